@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A concurrent map with a maximum number of entries. When an insertion takes the cache
+ * over its capacity the oldest inserted entries are evicted first. Reads never block and
+ * do not reorder entries, so the cache is first-in first-out rather than least recently
+ * used; for caches that are refilled on a daily cycle the difference is small and reads
+ * stay free of shared writes other than the hit counter.</p>
+ *
+ * <p>Hits and misses of get() are counted with LongAdder.</p>
+ *
+ * @param <K> Key type; must have value-based equals and hashCode.
+ * @param <V> Value type.
+ */
+public class BoundedCache<K, V> {
+    private final int capacity;
+    private final ConcurrentHashMap<K, V> entries;
+    private final ConcurrentLinkedQueue<K> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity Maximum number of entries, at least 1.
+     */
+    public BoundedCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<>(Math.min(capacity, 1 << 16));
+    }
+
+    /**
+     * @return The cached value, or null.
+     */
+    public V get(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    /**
+     * Like get(), but not counted in the statistics.
+     */
+    public V peek(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * @return The previous value for the key, or null.
+     */
+    public V put(K key, V value) {
+        V previous = entries.put(key, value);
+        if (previous == null) {
+            insertionOrder.add(key);
+            if (size.incrementAndGet() > capacity) {
+                evict();
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * @return The value already cached for the key, in which case nothing is changed, or null if value was added.
+     */
+    public V putIfAbsent(K key, V value) {
+        V existing = entries.putIfAbsent(key, value);
+        if (existing == null) {
+            insertionOrder.add(key);
+            if (size.incrementAndGet() > capacity) {
+                evict();
+            }
+        }
+        return existing;
+    }
+
+    public V remove(K key) {
+        V previous = entries.remove(key);
+        if (previous != null) {
+            // linear in the cache size; removal is for invalidation, not the lookup path
+            insertionOrder.remove(key);
+            size.decrementAndGet();
+        }
+        return previous;
+    }
+
+    /**
+     * Remove all entries. Entries put while the cache is being cleared may be kept without
+     * being counted against the capacity.
+     */
+    public void clear() {
+        insertionOrder.clear();
+        entries.clear();
+        size.set(0);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return A copy of the current entries, e.g. for persisting the cache.
+     */
+    public Map<K, V> snapshot() {
+        return new HashMap<>(entries);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return Hits divided by lookups, or 0 before the first lookup.
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    private void evict() {
+        while (size.get() > capacity) {
+            K oldest = insertionOrder.poll();
+            if (oldest == null) {
+                return;
+            }
+            // skip keys whose removal raced with being queued again
+            if (entries.remove(oldest) != null) {
+                size.decrementAndGet();
+                evictions.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Creates the client PKCS #12 files for a whole manifest of subject names at once, with the
+ * same contents createClientP12 gives each: a new RSA key, a certificate signed by the CA, and
+ * the client and CA certificates as the chain, under alias "1".</p>
+ *
+ * <p>The CA key and certificate are loaded once by the caller and shared. Keys are generated,
+ * certificates signed and the PKCS #12 files encoded on a fork-join pool; the encoded files
+ * are written by a single writer thread, each to a temporary file that is then renamed, so
+ * disk latency does not hold up the pool. Progress and throughput are logged at a fixed
+ * interval while a manifest is processed.</p>
+ *
+ * <p>It can be run from the command line:</p>
+ * <pre>
+ * PRIVACYCA_CA_PASSWORD=... PRIVACYCA_P12_PASSWORD=... java gov.niarl.his.privacyca.old.BulkP12Provisioner \
+ *     ca.p12 manifest.txt output-dir [keySize [validityDays [threads]]]
+ * </pre>
+ * <p>The manifest has one subject name per line; blank lines and lines starting with # are
+ * skipped. Each file is named after its subject, with characters other than letters, digits,
+ * '.', '_' and '-' replaced by '_'.</p>
+ */
+public class BulkP12Provisioner {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(BulkP12Provisioner.class);
+    public static final String CA_PASSWORD_ENV = "PRIVACYCA_CA_PASSWORD";
+    public static final String P12_PASSWORD_ENV = "PRIVACYCA_P12_PASSWORD";
+    public static final long DEFAULT_REPORT_INTERVAL_SECONDS = 5;
+
+    private final X509Certificate caCert;
+    private final PrivateKey caPrivKey;
+    private final int keySize;
+    private final int validityDays;
+    private final int parallelism;
+    private long reportIntervalSeconds = DEFAULT_REPORT_INTERVAL_SECONDS;
+
+    /**
+     * @param caCert The CA's certificate
+     * @param caPrivKey The CA's private key, for signing the client certificates
+     * @param keySize Size of the keys to generate
+     * @param validityDays number of days the client certificates should be valid
+     * @param parallelism The number of threads generating keys and signing certificates
+     */
+    public BulkP12Provisioner(X509Certificate caCert, PrivateKey caPrivKey, int keySize, int validityDays, int parallelism) {
+        this.caCert = caCert;
+        this.caPrivKey = caPrivKey;
+        this.keySize = keySize;
+        this.validityDays = validityDays;
+        this.parallelism = parallelism;
+    }
+
+    public void setReportIntervalSeconds(long reportIntervalSeconds) {
+        this.reportIntervalSeconds = reportIntervalSeconds;
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Result {
+        private final int created;
+        private final Map<String, Exception> failures;
+        private final long elapsedNanos;
+
+        Result(int created, Map<String, Exception> failures, long elapsedNanos) {
+            this.created = created;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getCreated() {
+            return created;
+        }
+
+        /**
+         * @return The subjects whose file could not be created, with the reason.
+         */
+        public Map<String, Exception> getFailures() {
+            return failures;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return Files created per second.
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : created * 1e9 / elapsedNanos;
+        }
+    }
+
+    /**
+     * Create a PKCS #12 file for every subject. A failure for one subject does not stop the others.
+     *
+     * @param subjectNames Subject names for the client certificates (do not include "CN=")
+     * @param outputDirectory The directory to write the files to; it is created if needed.
+     * @param p12Pass Password to use for encrypting the p12 files
+     * @return The number of files created and the subjects that failed.
+     */
+    public Result provision(List<String> subjectNames, File outputDirectory, String p12Pass) throws IOException, InterruptedException {
+        CryptoProviders.initialize();
+        Files.createDirectories(outputDirectory.toPath());
+        final int total = subjectNames.size();
+        final AtomicInteger created = new AtomicInteger();
+        final Map<String, Exception> failures = Collections.synchronizedMap(new LinkedHashMap<String, Exception>());
+        final long started = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "privacyca-p12-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "privacyca-p12-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> report(created.get(), failures.size(), total, System.nanoTime() - started),
+                reportIntervalSeconds, reportIntervalSeconds, TimeUnit.SECONDS);
+        try {
+            List<CompletableFuture<Void>> files = new ArrayList<>(total);
+            for (final String subjectName : subjectNames) {
+                final Path target = new File(outputDirectory, fileName(subjectName)).toPath();
+                files.add(CompletableFuture
+                        .supplyAsync(() -> encode(subjectName, p12Pass), pool)
+                        .thenAcceptAsync(p12 -> write(target, p12), writer)
+                        .handle((ignored, e) -> {
+                            if (e == null) {
+                                created.incrementAndGet();
+                            } else {
+                                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                                failures.put(subjectName, cause instanceof Exception ? (Exception) cause : new Exception(cause));
+                                log.warn("Cannot create the PKCS #12 file for {}", subjectName, cause);
+                            }
+                            return null;
+                        }));
+            }
+            CompletableFuture.allOf(files.toArray(new CompletableFuture<?>[0])).join();
+        } finally {
+            reporter.shutdownNow();
+            pool.shutdown();
+            writer.shutdown();
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        Result result = new Result(created.get(), new LinkedHashMap<>(failures), System.nanoTime() - started);
+        report(result.getCreated(), failures.size(), total, result.getElapsedNanos());
+        return result;
+    }
+
+    private byte[] encode(String subjectName, String p12Pass) {
+        try {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+            keyGen.initialize(keySize);
+            KeyPair keyPair = keyGen.generateKeyPair();
+            X509Certificate clientCert = TpmUtils.makeClientCert((RSAPublicKey) keyPair.getPublic(), subjectName, validityDays, caCert, caPrivKey);
+            KeyStore keystore = KeyStore.getInstance("PKCS12");
+            keystore.load(null, p12Pass.toCharArray());
+            Certificate[] chain = {clientCert, caCert};
+            keystore.setKeyEntry("1", keyPair.getPrivate(), p12Pass.toCharArray(), chain);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+            keystore.store(out, p12Pass.toCharArray());
+            return out.toByteArray();
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot create the key and certificate for " + subjectName, e);
+        }
+    }
+
+    private static void write(Path target, byte[] p12) {
+        try {
+            Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, p12);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write " + target, e);
+        }
+    }
+
+    private static void report(int created, int failed, int total, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        log.info("Created {} of {} PKCS #12 files, {} failed, in {} s ({} per second)",
+                created, total, failed, String.format("%.1f", seconds), String.format("%.1f", seconds == 0 ? 0 : created / seconds));
+    }
+
+    /**
+     * @return The file name for a subject: the subject with unsafe characters replaced, and ".p12".
+     */
+    static String fileName(String subjectName) {
+        return subjectName.replaceAll("[^A-Za-z0-9._-]", "_") + ".p12";
+    }
+
+    /**
+     * Read a manifest: one subject name per line, skipping blank lines, comments and repeated
+     * subjects, and subjects whose file name would repeat another's.
+     */
+    public static List<String> readManifest(File manifest) throws IOException {
+        Set<String> subjects = new LinkedHashSet<>();
+        Set<String> fileNames = new HashSet<>();
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            String subject = line.trim();
+            if (subject.isEmpty() || subject.startsWith("#") || subjects.contains(subject)) {
+                continue;
+            }
+            if (!fileNames.add(fileName(subject))) {
+                log.warn("Skipping {}: its file name is already used by another subject", subject);
+                continue;
+            }
+            subjects.add(subject);
+        }
+        return new ArrayList<>(subjects);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: BulkP12Provisioner ca.p12 manifest.txt output-dir [keySize [validityDays [threads]]]");
+            System.err.println("The CA and client P12 passwords are read from " + CA_PASSWORD_ENV + " and " + P12_PASSWORD_ENV + ".");
+            System.exit(2);
+        }
+        String caPass = System.getenv(CA_PASSWORD_ENV);
+        String p12Pass = System.getenv(P12_PASSWORD_ENV);
+        if (caPass == null || p12Pass == null) {
+            System.err.println("Set " + CA_PASSWORD_ENV + " and " + P12_PASSWORD_ENV + ".");
+            System.exit(2);
+        }
+        int keySize = args.length > 3 ? Integer.parseInt(args[3]) : 2048;
+        int validityDays = args.length > 4 ? Integer.parseInt(args[4]) : 365;
+        int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+        PrivateKey caPrivKey = TpmUtils.privateKeyFromP12(args[0], caPass);
+        X509Certificate caCert = TpmUtils.certFromP12(args[0], caPass);
+        List<String> subjects = readManifest(new File(args[1]));
+        Result result = new BulkP12Provisioner(caCert, caPrivKey, keySize, validityDays, threads).provision(subjects, new File(args[2]), p12Pass);
+        for (Map.Entry<String, Exception> failure : result.getFailures().entrySet()) {
+            System.err.println(failure.getKey() + ": " + failure.getValue().getMessage());
+        }
+        System.exit(result.getFailures().isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A CaCertificateSource held in memory, indexed by subject DN and SubjectKeyIdentifier when
+ * it is created. For a large CA set that should not be parsed up front, see {@link CaTrustStore}.
+ */
+public class CaCertificateSet implements CaCertificateSource {
+    private final List<X509Certificate> certificates;
+    private final Map<X500Principal, List<X509Certificate>> bySubject = new HashMap<>();
+    private final Map<ByteBuffer, List<X509Certificate>> byKeyIdentifier = new HashMap<>();
+
+    public CaCertificateSet(Collection<X509Certificate> certificates) {
+        this.certificates = Collections.unmodifiableList(new ArrayList<>(certificates));
+        for (X509Certificate cert : this.certificates) {
+            index(bySubject, cert.getSubjectX500Principal(), cert);
+            byte[] keyIdentifier = EkCertificateValidator.subjectKeyIdentifier(cert);
+            if (keyIdentifier != null) {
+                index(byKeyIdentifier, ByteBuffer.wrap(keyIdentifier), cert);
+            }
+        }
+    }
+
+    /**
+     * @param in Concatenated PEM (or DER) certificates.
+     */
+    public static CaCertificateSet read(InputStream in) throws CertificateException {
+        return new CaCertificateSet(readCertificates(in));
+    }
+
+    /**
+     * @param in Concatenated PEM (or DER) certificates.
+     * @return The certificates in the order they appear.
+     */
+    static List<X509Certificate> readCertificates(InputStream in) throws CertificateException {
+        List<X509Certificate> certificates = new ArrayList<>();
+        for (Certificate cert : CryptoPrimitives.certificateFactory("X.509", CryptoProviders.get(CryptoProviders.Operation.X509_PARSE)).generateCertificates(in)) {
+            certificates.add((X509Certificate) cert);
+        }
+        return certificates;
+    }
+
+    @Override
+    public List<X509Certificate> findBySubjectKeyIdentifier(byte[] keyIdentifier) {
+        return found(byKeyIdentifier.get(ByteBuffer.wrap(keyIdentifier)));
+    }
+
+    @Override
+    public List<X509Certificate> findBySubject(X500Principal subject) {
+        return found(bySubject.get(subject));
+    }
+
+    @Override
+    public int size() {
+        return certificates.size();
+    }
+
+    /**
+     * @return All certificates, in the order they were given.
+     */
+    public List<X509Certificate> getCertificates() {
+        return certificates;
+    }
+
+    private static List<X509Certificate> found(List<X509Certificate> list) {
+        return list == null ? Collections.<X509Certificate>emptyList() : Collections.unmodifiableList(list);
+    }
+
+    private static <K> void index(Map<K, List<X509Certificate>> map, K key, X509Certificate cert) {
+        List<X509Certificate> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            map.put(key, list);
+        }
+        list.add(cert);
+    }
+}
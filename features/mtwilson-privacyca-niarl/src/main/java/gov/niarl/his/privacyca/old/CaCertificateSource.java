@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * <p>A set of CA certificates that can be searched for the issuer of a certificate, such as
+ * the TPM manufacturer CAs used by {@link EkCertificateValidator}.</p>
+ *
+ * <p>Implementations must be safe for concurrent use and must return the same
+ * X509Certificate instance each time a certificate is found, so that callers can keep
+ * per-certificate results.</p>
+ */
+public interface CaCertificateSource {
+    /**
+     * @param keyIdentifier The key identifier from an AuthorityKeyIdentifier extension.
+     * @return The certificates whose SubjectKeyIdentifier is the key identifier; empty if there are none.
+     * @throws CertificateException If a stored certificate cannot be decoded.
+     */
+    List<X509Certificate> findBySubjectKeyIdentifier(byte[] keyIdentifier) throws CertificateException;
+
+    /**
+     * @param subject The issuer DN of a certificate.
+     * @return The certificates whose subject is the DN; empty if there are none.
+     * @throws CertificateException If a stored certificate cannot be decoded.
+     */
+    List<X509Certificate> findBySubject(X500Principal subject) throws CertificateException;
+
+    /**
+     * @return The number of certificates in the set.
+     */
+    int size();
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * <p>A read-only CaCertificateSource backed by a memory-mapped file, for CA sets with
+ * thousands of certificates. Opening the store reads only its header and record table; a
+ * certificate is decoded the first time a lookup reaches it and then kept, so a validator
+ * that only ever sees EK certificates of a few manufacturers decodes only their CAs.</p>
+ *
+ * <p>The file holds, all numbers big-endian:</p>
+ * <ul>
+ * <li>a 40 byte header: magic "PCTS", version, certificate count, slots per index, and the
+ * offsets of the key identifier index, the subject index and the record table;</li>
+ * <li>two open addressing hash indexes of 12 byte slots, a 64 bit hash and the record number
+ * plus one (0 for an empty slot), probed linearly. One is keyed by SubjectKeyIdentifier, the
+ * other by the canonical form of the subject DN, so that the issuer DN of a certificate
+ * finds it;</li>
+ * <li>a record table of 12 byte entries, the offset and length of each certificate;</li>
+ * <li>the DER encoded certificates.</li>
+ * </ul>
+ *
+ * <p>Hashes are the first 8 bytes of SHA-256; a lookup compares the decoded certificate, so
+ * hash collisions only cost a decode. The store is written by {@link #write(Collection, File)}
+ * or by running this class with PEM bundles.</p>
+ */
+public class CaTrustStore implements CaCertificateSource {
+    private static final int MAGIC = 0x50435453; // "PCTS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int SLOT_SIZE = 12;
+    private static final int RECORD_SIZE = 12;
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int slots;
+    private final int keyIdentifierIndex;
+    private final int subjectIndex;
+    private final int recordTable;
+    private final AtomicReferenceArray<X509Certificate> decoded;
+
+    private CaTrustStore(ByteBuffer buffer, File file) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a CA trust store");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported CA trust store version " + buffer.getInt(4) + " in " + file);
+        }
+        count = buffer.getInt(8);
+        slots = buffer.getInt(12);
+        long keyIdentifierOffset = buffer.getLong(16);
+        long subjectOffset = buffer.getLong(24);
+        long recordOffset = buffer.getLong(32);
+        long indexSize = (long) slots * SLOT_SIZE;
+        if (count < 0 || slots < 1 || Integer.bitCount(slots) != 1 || slots < count
+                || keyIdentifierOffset != HEADER_SIZE || subjectOffset != keyIdentifierOffset + indexSize
+                || recordOffset != subjectOffset + indexSize || recordOffset + (long) count * RECORD_SIZE > buffer.capacity()) {
+            throw new IOException("Corrupt CA trust store header in " + file);
+        }
+        keyIdentifierIndex = (int) keyIdentifierOffset;
+        subjectIndex = (int) subjectOffset;
+        recordTable = (int) recordOffset;
+        for (int record = 0; record < count; record++) {
+            long offset = buffer.getLong(recordTable + record * RECORD_SIZE);
+            int length = buffer.getInt(recordTable + record * RECORD_SIZE + 8);
+            if (offset < recordOffset + (long) count * RECORD_SIZE || length < 0 || offset + length > buffer.capacity()) {
+                throw new IOException("Corrupt CA trust store record " + record + " in " + file);
+            }
+        }
+        decoded = new AtomicReferenceArray<>(count);
+    }
+
+    /**
+     * Map a trust store file. The mapping stays valid after the file is replaced, so a new
+     * store can be renamed over it while it is in use.
+     */
+    public static CaTrustStore open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new CaTrustStore(mapped, file);
+        }
+    }
+
+    /**
+     * @return <b>True</b> if the file starts like a trust store, as opposed to PEM or DER certificates.
+     */
+    public static boolean isTrustStore(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public List<X509Certificate> findBySubjectKeyIdentifier(byte[] keyIdentifier) throws CertificateException {
+        List<X509Certificate> found = null;
+        for (int record : probe(keyIdentifierIndex, hash(keyIdentifier))) {
+            X509Certificate cert = certificate(record);
+            if (Arrays.equals(keyIdentifier, EkCertificateValidator.subjectKeyIdentifier(cert))) {
+                found = add(found, cert);
+            }
+        }
+        return found == null ? Collections.<X509Certificate>emptyList() : found;
+    }
+
+    @Override
+    public List<X509Certificate> findBySubject(X500Principal subject) throws CertificateException {
+        List<X509Certificate> found = null;
+        for (int record : probe(subjectIndex, hash(subject))) {
+            X509Certificate cert = certificate(record);
+            if (subject.equals(cert.getSubjectX500Principal())) {
+                found = add(found, cert);
+            }
+        }
+        return found == null ? Collections.<X509Certificate>emptyList() : found;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return The number of certificates decoded so far.
+     */
+    public int getDecodedCount() {
+        int decodedCount = 0;
+        for (int record = 0; record < count; record++) {
+            if (decoded.get(record) != null) {
+                decodedCount++;
+            }
+        }
+        return decodedCount;
+    }
+
+    /**
+     * @return The records in the index whose hash matches, in probe order.
+     */
+    private int[] probe(int index, long hash) {
+        int[] records = new int[2];
+        int found = 0;
+        int mask = slots - 1;
+        for (int slot = spread(hash) & mask, probes = 0; probes < slots; slot = (slot + 1) & mask, probes++) {
+            int position = index + slot * SLOT_SIZE;
+            int record = buffer.getInt(position + 8);
+            if (record == 0) {
+                break;
+            }
+            if (buffer.getLong(position) == hash && record <= count) {
+                if (found == records.length) {
+                    records = Arrays.copyOf(records, found * 2);
+                }
+                records[found++] = record - 1;
+            }
+        }
+        return Arrays.copyOf(records, found);
+    }
+
+    private X509Certificate certificate(int record) throws CertificateException {
+        X509Certificate cert = decoded.get(record);
+        if (cert == null) {
+            long offset = buffer.getLong(recordTable + record * RECORD_SIZE);
+            int length = buffer.getInt(recordTable + record * RECORD_SIZE + 8);
+            byte[] der = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) offset);
+            view.get(der);
+            cert = CertificateDecoder.parse(der);
+            // keep the first instance so that callers always see the same one
+            if (!decoded.compareAndSet(record, null, cert)) {
+                cert = decoded.get(record);
+            }
+        }
+        return cert;
+    }
+
+    private static List<X509Certificate> add(List<X509Certificate> found, X509Certificate cert) {
+        if (found == null) {
+            found = new ArrayList<>(1);
+        }
+        found.add(cert);
+        return found;
+    }
+
+    /**
+     * Write a trust store. Duplicate certificates are written once. The file is written
+     * next to the target and renamed over it, so a reader never sees a partial file.
+     *
+     * @return The number of certificates written.
+     */
+    public static int write(Collection<X509Certificate> certificates, File file) throws IOException {
+        Map<ByteBuffer, X509Certificate> unique = new LinkedHashMap<>();
+        try {
+            for (X509Certificate cert : certificates) {
+                unique.put(ByteBuffer.wrap(cert.getEncoded()), cert);
+            }
+        } catch (CertificateEncodingException e) {
+            throw new IOException("Cannot encode a CA certificate", e);
+        }
+        int count = unique.size();
+        int slots = Integer.highestOneBit(Math.max(1, count) * 2 - 1) << 1;
+        long[] keyIdentifierHashes = new long[slots];
+        int[] keyIdentifierRecords = new int[slots];
+        long[] subjectHashes = new long[slots];
+        int[] subjectRecords = new int[slots];
+        int record = 0;
+        for (X509Certificate cert : unique.values()) {
+            byte[] keyIdentifier = EkCertificateValidator.subjectKeyIdentifier(cert);
+            if (keyIdentifier != null) {
+                insert(keyIdentifierHashes, keyIdentifierRecords, hash(keyIdentifier), record);
+            }
+            insert(subjectHashes, subjectRecords, hash(cert.getSubjectX500Principal()), record);
+            record++;
+        }
+        long keyIdentifierOffset = HEADER_SIZE;
+        long subjectOffset = keyIdentifierOffset + (long) slots * SLOT_SIZE;
+        long recordOffset = subjectOffset + (long) slots * SLOT_SIZE;
+        long dataOffset = recordOffset + (long) count * RECORD_SIZE;
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(count);
+                out.writeInt(slots);
+                out.writeLong(keyIdentifierOffset);
+                out.writeLong(subjectOffset);
+                out.writeLong(recordOffset);
+                writeIndex(out, keyIdentifierHashes, keyIdentifierRecords);
+                writeIndex(out, subjectHashes, subjectRecords);
+                long offset = dataOffset;
+                for (ByteBuffer der : unique.keySet()) {
+                    out.writeLong(offset);
+                    out.writeInt(der.remaining());
+                    offset += der.remaining();
+                }
+                for (ByteBuffer der : unique.keySet()) {
+                    out.write(der.array(), der.arrayOffset() + der.position(), der.remaining());
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return count;
+    }
+
+    private static void insert(long[] hashes, int[] records, long hash, int record) {
+        int mask = hashes.length - 1;
+        int slot = spread(hash) & mask;
+        while (records[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        hashes[slot] = hash;
+        records[slot] = record + 1;
+    }
+
+    private static void writeIndex(DataOutputStream out, long[] hashes, int[] records) throws IOException {
+        for (int slot = 0; slot < hashes.length; slot++) {
+            out.writeLong(hashes[slot]);
+            out.writeInt(records[slot]);
+        }
+    }
+
+    private static int spread(long hash) {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static long hash(X500Principal principal) {
+        // the canonical form, so that DNs that are equal but encoded differently hash the same
+        return hash(principal.getName(X500Principal.CANONICAL).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long hash(byte[] value) {
+        MessageDigest sha256;
+        try {
+            sha256 = CryptoPrimitives.messageDigest("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        return ByteBuffer.wrap(sha256.digest(value)).getLong();
+    }
+
+    /**
+     * Convert PEM bundles, such as saved output of CaCertificates.searchCaCertificatesPem, to a trust store.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: CaTrustStore output.bin bundle.pem [bundle.pem ...]");
+            System.exit(2);
+        }
+        List<X509Certificate> certificates = new ArrayList<>();
+        for (int index = 1; index < args.length; index++) {
+            try (InputStream in = Files.newInputStream(new File(args[index]).toPath())) {
+                certificates.addAll(CaCertificateSet.readCertificates(in));
+            }
+        }
+        int written = write(certificates, new File(args[0]));
+        System.out.println("Wrote " + written + " of " + certificates.size() + " certificates to " + args[0]);
+    }
+}
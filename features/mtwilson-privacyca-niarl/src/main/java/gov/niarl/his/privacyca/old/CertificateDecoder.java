@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * <p>Decodes X.509 certificates with the per-thread CertificateFactory of the X509_PARSE
+ * provider, and remembers the result by the SHA-256 of the encoded bytes. The same EK or CA
+ * certificate arrives with many requests; after the first one it costs a hash instead of an
+ * ASN.1 parse. The cache is bounded and evicts first-in first-out (see {@link BoundedCache}).</p>
+ *
+ * <p>Decoded certificates are immutable and are shared between callers. Certificates that
+ * are only seen once, such as newly issued ones, should be decoded with {@link #parse(byte[])}
+ * so they do not push the shared ones out of the cache.</p>
+ *
+ * <p>The deprecated javax.security.cert form used by the TPM 1.2 structures is built from the
+ * decoded certificate on first use and cached with it, instead of parsing the bytes twice.</p>
+ */
+public class CertificateDecoder {
+    public static final String CAPACITY_PROPERTY = "privacyca.certcache.size";
+    public static final int DEFAULT_CAPACITY = 10000;
+    private static final Object defaultLock = new Object();
+    private static volatile CertificateDecoder defaultDecoder;
+    private final BoundedCache<String, Decoded> certificates;
+
+    private static class Decoded {
+        private final X509Certificate certificate;
+        @SuppressWarnings("removal")
+        private volatile javax.security.cert.X509Certificate legacy;
+
+        private Decoded(X509Certificate certificate) {
+            this.certificate = certificate;
+        }
+    }
+
+    /**
+     * @param capacity The maximum number of certificates kept.
+     */
+    public CertificateDecoder(int capacity) {
+        this.certificates = new BoundedCache<>(capacity);
+    }
+
+    /**
+     * @return The shared decoder, holding up to the number of certificates in the privacyca.certcache.size system property.
+     */
+    public static CertificateDecoder getDefault() {
+        CertificateDecoder decoder = defaultDecoder;
+        if (decoder == null) {
+            synchronized (defaultLock) {
+                decoder = defaultDecoder;
+                if (decoder == null) {
+                    decoder = new CertificateDecoder(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+                    defaultDecoder = decoder;
+                }
+            }
+        }
+        return decoder;
+    }
+
+    /**
+     * Decode a certificate without looking it up in or adding it to any cache.
+     *
+     * @param encoded A DER (or PEM) encoded certificate.
+     * @return The certificate.
+     */
+    public static X509Certificate parse(byte[] encoded) throws CertificateException {
+        X509Certificate cert = (X509Certificate) CryptoPrimitives.certificateFactory("X.509", CryptoProviders.get(CryptoProviders.Operation.X509_PARSE))
+                .generateCertificate(new ByteArrayInputStream(encoded));
+        if (cert == null) {
+            // some providers return null instead of throwing when the input is empty
+            throw new CertificateException("No certificate in " + encoded.length + " bytes");
+        }
+        return cert;
+    }
+
+    /**
+     * @param encoded A DER (or PEM) encoded certificate.
+     * @return The certificate, shared with other callers that decoded the same bytes.
+     */
+    public X509Certificate decode(byte[] encoded) throws CertificateException {
+        return decoded(ByteBuffer.wrap(encoded)).certificate;
+    }
+
+    /**
+     * Like decode(byte[]), but the bytes are only copied out of the buffer when they are not cached.
+     * The position of the buffer is not changed.
+     */
+    public X509Certificate decode(ByteBuffer encoded) throws CertificateException {
+        return decoded(encoded).certificate;
+    }
+
+    /**
+     * @param encoded A DER encoded certificate.
+     * @return The certificate in the javax.security.cert form, shared with other callers that decoded the same bytes.
+     */
+    @SuppressWarnings("removal")
+    public javax.security.cert.X509Certificate decodeLegacy(ByteBuffer encoded) throws javax.security.cert.CertificateException {
+        Decoded decoded;
+        try {
+            decoded = decoded(encoded);
+        } catch (CertificateException e) {
+            throw new javax.security.cert.CertificateException(e.getMessage());
+        }
+        javax.security.cert.X509Certificate legacy = decoded.legacy;
+        if (legacy == null) {
+            try {
+                legacy = javax.security.cert.X509Certificate.getInstance(decoded.certificate.getEncoded());
+            } catch (CertificateException e) {
+                throw new javax.security.cert.CertificateException(e.getMessage());
+            }
+            // racing threads may each build one; they are equivalent
+            decoded.legacy = legacy;
+        }
+        return legacy;
+    }
+
+    private Decoded decoded(ByteBuffer encoded) throws CertificateException {
+        MessageDigest sha256 = messageDigest();
+        sha256.update(encoded.duplicate());
+        String key = Hex.toHexString(sha256.digest());
+        Decoded decoded = certificates.get(key);
+        if (decoded == null) {
+            ByteBuffer source = encoded.duplicate();
+            byte[] bytes = new byte[source.remaining()];
+            source.get(bytes);
+            decoded = new Decoded(parse(bytes));
+            Decoded existing = certificates.putIfAbsent(key, decoded);
+            if (existing != null) {
+                decoded = existing;
+            }
+        }
+        return decoded;
+    }
+
+    private static MessageDigest messageDigest() throws CertificateException {
+        try {
+            return CryptoPrimitives.messageDigest("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateException("SHA-256 is not available", e);
+        }
+    }
+
+    public int size() {
+        return certificates.size();
+    }
+
+    public void clear() {
+        certificates.clear();
+    }
+
+    public long getHits() {
+        return certificates.getHits();
+    }
+
+    public long getMisses() {
+        return certificates.getMisses();
+    }
+
+    public void resetStatistics() {
+        certificates.resetStatistics();
+    }
+}
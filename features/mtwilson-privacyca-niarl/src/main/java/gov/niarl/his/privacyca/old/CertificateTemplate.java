@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECPublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Date;
+
+/**
+ * <p>Builds the AIK and EK certificates issued by TpmUtils.makeCert and makeEkCert directly in
+ * DER. The parts of the TBSCertificate that only depend on the CA certificate (version,
+ * signature AlgorithmIdentifier and issuer Name) are encoded once per CA certificate; for each
+ * certificate only the serial number, the validity dates, the subject public key and the
+ * critical rfc822Name SubjectAlternativeName are encoded, into a single array of the exact
+ * size.</p>
+ *
+ * <p>The output is the same, byte for byte, as what the BouncyCastle X509V3CertificateGenerator
+ * produced for these certificates: an empty subject, SHA256withRSA with NULL parameters, and
+ * UTCTime validity dates for the years 1950 to 2049 and GeneralizedTime otherwise, both to
+ * the second.</p>
+ *
+ * <p>When the CA certificate has an EC key the certificates are signed with SHA256withECDSA,
+ * SHA384withECDSA for curves of up to 384 bits or SHA512withECDSA for larger ones such as
+ * P-521, without parameters. Multi-prime RSA keys sign with MultiPrimeRsa.</p>
+ */
+public final class CertificateTemplate {
+    private static final byte[] VERSION_3 = {(byte) 0xa0, 0x03, 0x02, 0x01, 0x02};
+    // AlgorithmIdentifier sha256WithRSAEncryption (1.2.840.113549.1.1.11) with NULL parameters
+    private static final byte[] SHA256_WITH_RSA = {0x30, 0x0d, 0x06, 0x09, 0x2a, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xf7, 0x0d, 0x01, 0x01, 0x0b, 0x05, 0x00};
+    // AlgorithmIdentifier ecdsa-with-SHA256 (1.2.840.10045.4.3.2) without parameters
+    private static final byte[] SHA256_WITH_ECDSA = {0x30, 0x0a, 0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x04, 0x03, 0x02};
+    // AlgorithmIdentifier ecdsa-with-SHA384 (1.2.840.10045.4.3.3) without parameters
+    private static final byte[] SHA384_WITH_ECDSA = {0x30, 0x0a, 0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x04, 0x03, 0x03};
+    // AlgorithmIdentifier ecdsa-with-SHA512 (1.2.840.10045.4.3.4) without parameters
+    private static final byte[] SHA512_WITH_ECDSA = {0x30, 0x0a, 0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x04, 0x03, 0x04};
+    private static final byte[] EMPTY_NAME = {0x30, 0x00};
+    // extnID subjectAltName (2.5.29.17) and critical TRUE
+    private static final byte[] SAN_CRITICAL = {0x06, 0x03, 0x55, 0x1d, 0x11, 0x01, 0x01, (byte) 0xff};
+    private static final byte SEQUENCE = 0x30;
+    private static final byte INTEGER = 0x02;
+    private static final byte BIT_STRING = 0x03;
+    private static final byte OCTET_STRING = 0x04;
+    private static final byte UTC_TIME = 0x17;
+    private static final byte GENERALIZED_TIME = 0x18;
+    private static final byte RFC822_NAME = (byte) 0x81;
+    private static final byte EXTENSIONS = (byte) 0xa3;
+    private static volatile CertificateTemplate current;
+
+    private final X509Certificate caCert;
+    private final String signatureAlgorithm;
+    private final byte[] algorithmIdentifier;
+    private final CryptoProviders.Operation signOperation;
+    private final byte[] algorithmAndIssuer;
+
+    public CertificateTemplate(X509Certificate caCert) {
+        this.caCert = caCert;
+        PublicKey caKey = caCert.getPublicKey();
+        this.signatureAlgorithm = signatureAlgorithm(caKey);
+        if (caKey instanceof ECPublicKey) {
+            this.algorithmIdentifier = ecdsaAlgorithmIdentifier(signatureAlgorithm);
+            this.signOperation = CryptoProviders.Operation.EC_SIGN;
+        } else {
+            this.algorithmIdentifier = SHA256_WITH_RSA;
+            this.signOperation = CryptoProviders.Operation.RSA_SIGN;
+        }
+        byte[] issuer = caCert.getSubjectX500Principal().getEncoded();
+        this.algorithmAndIssuer = new byte[algorithmIdentifier.length + issuer.length];
+        System.arraycopy(algorithmIdentifier, 0, algorithmAndIssuer, 0, algorithmIdentifier.length);
+        System.arraycopy(issuer, 0, algorithmAndIssuer, algorithmIdentifier.length, issuer.length);
+    }
+
+    /**
+     * @param caKey The public key of the CA certificate.
+     * @return SHA256withRSA for an RSA key, and SHA256withECDSA, SHA384withECDSA or
+     * SHA512withECDSA for an EC key of up to 256, up to 384 or more bits.
+     */
+    public static String signatureAlgorithm(PublicKey caKey) {
+        if (caKey instanceof ECPublicKey) {
+            int fieldSize = ((ECPublicKey) caKey).getParams().getCurve().getField().getFieldSize();
+            if (fieldSize <= 256) {
+                return "SHA256withECDSA";
+            }
+            return fieldSize <= 384 ? "SHA384withECDSA" : "SHA512withECDSA";
+        }
+        return "SHA256withRSA";
+    }
+
+    private static byte[] ecdsaAlgorithmIdentifier(String signatureAlgorithm) {
+        switch (signatureAlgorithm) {
+            case "SHA256withECDSA":
+                return SHA256_WITH_ECDSA;
+            case "SHA384withECDSA":
+                return SHA384_WITH_ECDSA;
+            default:
+                return SHA512_WITH_ECDSA;
+        }
+    }
+
+    /**
+     * @return The JCA name of the algorithm certificates are signed with.
+     */
+    public String getSignatureAlgorithm() {
+        return signatureAlgorithm;
+    }
+
+    /**
+     * The CA certificate hardly ever changes, so the template for the last one used is kept
+     * and replaced when a different certificate is passed.
+     *
+     * @return A template for certificates issued by caCert.
+     */
+    public static CertificateTemplate forIssuer(X509Certificate caCert) {
+        CertificateTemplate template = current;
+        if (template == null || (template.caCert != caCert && !template.caCert.equals(caCert))) {
+            template = new CertificateTemplate(caCert);
+            current = template;
+        }
+        return template;
+    }
+
+    /**
+     * Build, sign and parse a certificate.
+     *
+     * @param serial The serial number.
+     * @param notBefore Start of validity; truncated to the second.
+     * @param notAfter End of validity; truncated to the second.
+     * @param subjectKey The certified key.
+     * @param sanLabel The rfc822Name for the critical SubjectAlternativeName, in ASCII.
+     * @param caPrivKey The CA key, to sign the certificate with.
+     * @return The certificate, parsed with the provider selected for X509_PARSE.
+     */
+    public X509Certificate issue(BigInteger serial, Date notBefore, Date notAfter, PublicKey subjectKey, String sanLabel, PrivateKey caPrivKey)
+            throws NoSuchAlgorithmException,
+            InvalidKeyException,
+            SignatureException,
+            CertificateEncodingException {
+        byte[] der = sign(encodeTbs(serial, notBefore, notAfter, subjectKey.getEncoded(), sanLabel), caPrivKey);
+        try {
+            return CertificateDecoder.parse(der);
+        } catch (CertificateException e) {
+            CertificateEncodingException wrapped = new CertificateEncodingException("Cannot parse the encoded certificate");
+            wrapped.initCause(e);
+            throw wrapped;
+        }
+    }
+
+    /**
+     * @return The DER encoded TBSCertificate.
+     */
+    public byte[] encodeTbs(BigInteger serial, Date notBefore, Date notAfter, byte[] subjectPublicKeyInfo, String sanLabel) {
+        byte[] serialBytes = serial.toByteArray();
+        int labelLength = sanLabel.length();
+        int timesLength = timeLength(notBefore) + timeLength(notAfter);
+        int generalNamesLength = tlvLength(labelLength);
+        int extensionLength = SAN_CRITICAL.length + tlvLength(tlvLength(generalNamesLength));
+        int extensionsLength = tlvLength(tlvLength(extensionLength));
+        int contentLength = VERSION_3.length
+                + tlvLength(serialBytes.length)
+                + algorithmAndIssuer.length
+                + tlvLength(timesLength)
+                + EMPTY_NAME.length
+                + subjectPublicKeyInfo.length
+                + tlvLength(extensionsLength);
+        ByteBuffer out = ByteBuffer.allocate(tlvLength(contentLength));
+        putHeader(out, SEQUENCE, contentLength);
+        out.put(VERSION_3);
+        putHeader(out, INTEGER, serialBytes.length);
+        out.put(serialBytes);
+        out.put(algorithmAndIssuer);
+        putHeader(out, SEQUENCE, timesLength);
+        putTime(out, notBefore);
+        putTime(out, notAfter);
+        out.put(EMPTY_NAME);
+        out.put(subjectPublicKeyInfo);
+        putHeader(out, EXTENSIONS, extensionsLength);
+        putHeader(out, SEQUENCE, tlvLength(extensionLength));
+        putHeader(out, SEQUENCE, extensionLength);
+        out.put(SAN_CRITICAL);
+        putHeader(out, OCTET_STRING, tlvLength(generalNamesLength));
+        putHeader(out, SEQUENCE, generalNamesLength);
+        putHeader(out, RFC822_NAME, labelLength);
+        for (int index = 0; index < labelLength; index++) {
+            out.put((byte) sanLabel.charAt(index));
+        }
+        return out.array();
+    }
+
+    /**
+     * Sign a TBSCertificate with the algorithm for the CA key and wrap it in a Certificate.
+     *
+     * @return The DER encoded certificate.
+     */
+    public byte[] sign(byte[] tbs, PrivateKey caPrivKey)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Signature signature = CryptoPrimitives.signature(signatureAlgorithm,
+                MultiPrimeRsa.isMultiPrime(caPrivKey) ? MultiPrimeRsa.getProvider() : CryptoProviders.get(signOperation));
+        signature.initSign(caPrivKey);
+        signature.update(tbs);
+        byte[] signatureBytes = signature.sign();
+        int bitStringLength = 1 + signatureBytes.length;
+        int contentLength = tbs.length + algorithmIdentifier.length + tlvLength(bitStringLength);
+        ByteBuffer out = ByteBuffer.allocate(tlvLength(contentLength));
+        putHeader(out, SEQUENCE, contentLength);
+        out.put(tbs);
+        out.put(algorithmIdentifier);
+        putHeader(out, BIT_STRING, bitStringLength);
+        out.put((byte) 0);
+        out.put(signatureBytes);
+        return out.array();
+    }
+
+    private static int tlvLength(int contentLength) {
+        return 1 + lengthOfLength(contentLength) + contentLength;
+    }
+
+    private static int lengthOfLength(int length) {
+        if (length < 0x80) {
+            return 1;
+        }
+        if (length <= 0xff) {
+            return 2;
+        }
+        if (length <= 0xffff) {
+            return 3;
+        }
+        if (length <= 0xffffff) {
+            return 4;
+        }
+        return 5;
+    }
+
+    private static void putHeader(ByteBuffer out, byte tag, int length) {
+        out.put(tag);
+        int lengthBytes = lengthOfLength(length) - 1;
+        if (lengthBytes == 0) {
+            out.put((byte) length);
+            return;
+        }
+        out.put((byte) (0x80 | lengthBytes));
+        for (int shift = (lengthBytes - 1) * 8; shift >= 0; shift -= 8) {
+            out.put((byte) (length >>> shift));
+        }
+    }
+
+    private static boolean isUtcTime(int year) {
+        return year >= 1950 && year <= 2049;
+    }
+
+    private static int timeLength(Date date) {
+        return isUtcTime(utc(date).getYear()) ? 2 + 13 : 2 + 15;
+    }
+
+    /**
+     * UTCTime YYMMDDhhmmssZ, or GeneralizedTime YYYYMMDDhhmmssZ outside 1950 to 2049.
+     */
+    private static void putTime(ByteBuffer out, Date date) {
+        LocalDateTime time = utc(date);
+        int year = time.getYear();
+        if (isUtcTime(year)) {
+            out.put(UTC_TIME).put((byte) 13);
+            putDigits(out, year % 100, 2);
+        } else {
+            out.put(GENERALIZED_TIME).put((byte) 15);
+            putDigits(out, year, 4);
+        }
+        putDigits(out, time.getMonthValue(), 2);
+        putDigits(out, time.getDayOfMonth(), 2);
+        putDigits(out, time.getHour(), 2);
+        putDigits(out, time.getMinute(), 2);
+        putDigits(out, time.getSecond(), 2);
+        out.put((byte) 'Z');
+    }
+
+    private static LocalDateTime utc(Date date) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(date.getTime(), 1000L), 0, ZoneOffset.UTC);
+    }
+
+    private static void putDigits(ByteBuffer out, int value, int digits) {
+        for (int divisor = digits == 4 ? 1000 : 10; divisor > 0; divisor /= 10) {
+            out.put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+}
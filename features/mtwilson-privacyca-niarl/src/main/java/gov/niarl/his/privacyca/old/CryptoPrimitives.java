@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * <p>Per-thread cache of Cipher, Signature, MessageDigest, Mac and CertificateFactory
+ * instances, keyed by algorithm (or transformation, including mode and padding) and
+ * provider. The getInstance provider lookup happens once per thread and key instead of on
+ * every call. Providers are passed as resolved Provider objects, normally from
+ * {@link CryptoProviders}, so no provider name is looked up per call either.</p>
+ *
+ * <p>Cipher, Signature and Mac instances are returned as they were left by the previous
+ * user and must be initialized with init() (which discards any previous state) before use,
+ * as the JCA requires anyway. MessageDigest instances are reset before they are returned.
+ * An instance belongs to the calling thread; it must not be shared with other threads or
+ * kept across a call to another helper that may take the same primitive.</p>
+ *
+ * <p>Hit and miss counters are kept with LongAdder so they do not become a point of
+ * contention themselves.</p>
+ */
+public final class CryptoPrimitives {
+    private static final int CIPHER = 0;
+    private static final int SIGNATURE = 1;
+    private static final int MESSAGE_DIGEST = 2;
+    private static final int MAC = 3;
+    private static final int CERTIFICATE_FACTORY = 4;
+    private static final int KINDS = 5;
+    // per provider (null for the JCA preference order), one map per primitive kind keyed by
+    // algorithm, so a lookup never needs a composite key
+    private static final ThreadLocal<Map<Provider, List<Map<String, Object>>>> INSTANCES = new ThreadLocal<Map<Provider, List<Map<String, Object>>>>() {
+        @Override
+        protected Map<Provider, List<Map<String, Object>>> initialValue() {
+            return new IdentityHashMap<>();
+        }
+    };
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private CryptoPrimitives() {
+    }
+
+    public static Cipher cipher(String transformation)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+        return cipher(transformation, null);
+    }
+
+    /**
+     * @param transformation The transformation, e.g. "AES/CBC/PKCS5Padding".
+     * @param provider The provider to take it from, or null for the JCA preference order.
+     * @return A Cipher owned by the calling thread; it must be initialized before use.
+     */
+    public static Cipher cipher(String transformation, Provider provider)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Map<String, Object> cache = cache(CIPHER, provider);
+        Cipher cipher = (Cipher) lookup(cache, transformation);
+        if (cipher == null) {
+            cipher = provider == null ? Cipher.getInstance(transformation) : Cipher.getInstance(transformation, provider);
+            cache.put(transformation, cipher);
+        }
+        return cipher;
+    }
+
+    public static Signature signature(String algorithm)
+            throws NoSuchAlgorithmException {
+        return signature(algorithm, null);
+    }
+
+    public static Signature signature(String algorithm, Provider provider)
+            throws NoSuchAlgorithmException {
+        Map<String, Object> cache = cache(SIGNATURE, provider);
+        Signature signature = (Signature) lookup(cache, algorithm);
+        if (signature == null) {
+            signature = provider == null ? Signature.getInstance(algorithm) : Signature.getInstance(algorithm, provider);
+            cache.put(algorithm, signature);
+        }
+        return signature;
+    }
+
+    /**
+     * @param algorithm The digest algorithm, e.g. "SHA1".
+     * @return A reset MessageDigest owned by the calling thread.
+     */
+    public static MessageDigest messageDigest(String algorithm)
+            throws NoSuchAlgorithmException {
+        Map<String, Object> cache = cache(MESSAGE_DIGEST, null);
+        MessageDigest digest = (MessageDigest) lookup(cache, algorithm);
+        if (digest == null) {
+            digest = MessageDigest.getInstance(algorithm);
+            cache.put(algorithm, digest);
+        } else {
+            digest.reset();
+        }
+        return digest;
+    }
+
+    public static Mac mac(String algorithm)
+            throws NoSuchAlgorithmException {
+        Map<String, Object> cache = cache(MAC, null);
+        Mac mac = (Mac) lookup(cache, algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            cache.put(algorithm, mac);
+        }
+        return mac;
+    }
+
+    /**
+     * CertificateFactory implementations are not required to be thread safe, so they are
+     * cached per thread like the other primitives.
+     *
+     * @param type The certificate type, e.g. "X.509".
+     * @param provider The provider to take it from, or null for the JCA preference order.
+     */
+    public static CertificateFactory certificateFactory(String type, Provider provider)
+            throws CertificateException {
+        Map<String, Object> cache = cache(CERTIFICATE_FACTORY, provider);
+        CertificateFactory factory = (CertificateFactory) lookup(cache, type);
+        if (factory == null) {
+            factory = provider == null ? CertificateFactory.getInstance(type) : CertificateFactory.getInstance(type, provider);
+            cache.put(type, factory);
+        }
+        return factory;
+    }
+
+    /**
+     * @return The number of requests served from a thread's cache since the last reset.
+     */
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return The number of requests that needed a getInstance lookup since the last reset.
+     */
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static void resetStatistics() {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Drop the calling thread's instances, e.g. before returning a thread to a pool that
+     * outlives the application.
+     */
+    public static void clearThread() {
+        INSTANCES.remove();
+    }
+
+    private static Map<String, Object> cache(int kind, Provider provider) {
+        Map<Provider, List<Map<String, Object>>> byProvider = INSTANCES.get();
+        List<Map<String, Object>> byKind = byProvider.get(provider);
+        if (byKind == null) {
+            byKind = new ArrayList<>(KINDS);
+            for (int index = 0; index < KINDS; index++) {
+                byKind.add(new HashMap<>());
+            }
+            byProvider.put(provider, byKind);
+        }
+        return byKind.get(kind);
+    }
+
+    private static Object lookup(Map<String, Object> cache, String algorithm) {
+        Object instance = cache.get(algorithm);
+        if (instance == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return instance;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * <p>Registers the BouncyCastle provider once, when this class is initialized, and holds the
+ * provider selected for each class of operation. Before this, TpmUtils added a new
+ * BouncyCastleProvider to the global provider list on every certificate it made and
+ * certFromBytes built one per call, which is slow and serializes concurrent callers on
+ * the provider list lock.</p>
+ *
+ * <p>Each operation reads its provider name from a system property when this class is
+ * initialized. The value is a registered provider name such as "SunJCE", "SunRsaSign", "SUN"
+ * or "BC", or "default" to use the JCA preference order. The defaults keep the providers
+ * the helpers used before the selection was configurable.</p>
+ */
+public final class CryptoProviders {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CryptoProviders.class);
+    public static final String DEFAULT = "default";
+
+    public enum Operation {
+        /** TCG OAEP decryption of identity request asym blobs. */
+        RSA_DECRYPT("privacyca.provider.rsa.decrypt", DEFAULT),
+        /** TCG OAEP encryption of asym blobs for identity requests and AIK activation. */
+        RSA_ENCRYPT("privacyca.provider.rsa.encrypt", DEFAULT),
+        /** Signing of issued certificates and verification of identity bindings. */
+        RSA_SIGN("privacyca.provider.rsa.sign", "BC"),
+        /** Signing of issued certificates with an EC CA key. */
+        EC_SIGN("privacyca.provider.ec.sign", DEFAULT),
+        /** AES/CBC encryption and decryption of sym blobs and credentials. */
+        AES("privacyca.provider.aes", DEFAULT),
+        /** Parsing of DER encoded X.509 certificates in CertificateDecoder. */
+        X509_PARSE("privacyca.provider.x509", "BC");
+
+        private final String property;
+        private final String defaultName;
+
+        Operation(String property, String defaultName) {
+            this.property = property;
+            this.defaultName = defaultName;
+        }
+
+        public String getProperty() {
+            return property;
+        }
+
+        public String getDefaultName() {
+            return defaultName;
+        }
+    }
+
+    private static final AtomicReferenceArray<Provider> selected = new AtomicReferenceArray<>(Operation.values().length);
+
+    static {
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        for (Operation operation : Operation.values()) {
+            String name = System.getProperty(operation.getProperty(), operation.getDefaultName());
+            try {
+                select(operation, name);
+            } catch (IllegalArgumentException e) {
+                log.warn("{}: {}, using {}", operation.getProperty(), e.getMessage(), operation.getDefaultName());
+                select(operation, operation.getDefaultName());
+            }
+        }
+    }
+
+    private CryptoProviders() {
+    }
+
+    /**
+     * Makes sure the providers are registered and selected. Calling it at startup moves that
+     * work, and any warning about a bad provider property, out of the first request.
+     */
+    public static void initialize() {
+        log.debug("Crypto providers: RSA_DECRYPT={} RSA_ENCRYPT={} RSA_SIGN={} EC_SIGN={} AES={} X509_PARSE={}",
+                getName(Operation.RSA_DECRYPT), getName(Operation.RSA_ENCRYPT), getName(Operation.RSA_SIGN), getName(Operation.EC_SIGN), getName(Operation.AES), getName(Operation.X509_PARSE));
+    }
+
+    /**
+     * @return The provider selected for the operation, or null for the JCA preference order.
+     */
+    public static Provider get(Operation operation) {
+        return selected.get(operation.ordinal());
+    }
+
+    /**
+     * @return The name of the provider selected for the operation, or "default".
+     */
+    public static String getName(Operation operation) {
+        Provider provider = get(operation);
+        return provider == null ? DEFAULT : provider.getName();
+    }
+
+    /**
+     * Change the provider for an operation at runtime, e.g. to compare providers.
+     *
+     * @param name A registered provider name, or "default" (or null) for the JCA preference order.
+     * @throws IllegalArgumentException If no provider with that name is registered.
+     */
+    public static void select(Operation operation, String name) {
+        Provider provider = null;
+        if (name != null && !DEFAULT.equalsIgnoreCase(name)) {
+            provider = Security.getProvider(name);
+            if (provider == null) {
+                throw new IllegalArgumentException("No security provider named " + name);
+            }
+        }
+        selected.set(operation.ordinal(), provider);
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.x509.AuthorityKeyIdentifier;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+
+/**
+ * <p>Checks that an EK certificate was issued by one of the TPM manufacturer CAs, the
+ * certificates that the ca-certificates API returns for the "ek" domain.</p>
+ *
+ * <p>The CAs come from a {@link CaCertificateSource}, searched by SubjectKeyIdentifier and by
+ * subject DN. The path from a CA to a trust anchor is worked out the first time the CA is
+ * needed and kept: its signatures are checked once and only the period in which the whole
+ * path is valid is remembered. A CA is a trust anchor if it is self-signed or if its issuer
+ * is not part of the set, in which case it was configured as trusted on its own, as a PKIX
+ * trust anchor may be. A CA whose issuer is in the set but whose signature does not verify
+ * is not trusted.</p>
+ *
+ * <p>Validating an EK certificate then takes one signature check against the CA found by
+ * the AuthorityKeyIdentifier (or the issuer DN when there is none) and a comparison of dates.
+ * Resolved CAs are kept in a concurrent map and never change, so the validator can be used
+ * by any number of threads; to change the CA set, create a new one and install it with
+ * setDefault().</p>
+ */
+public class EkCertificateValidator {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(EkCertificateValidator.class);
+    public static final String CA_CERTIFICATES_PROPERTY = "privacyca.ek.cacerts";
+    // longest CA path followed; the set is small and a longer one is more likely a loop
+    private static final int MAX_PATH_LENGTH = 8;
+    private static final Object defaultLock = new Object();
+    private static volatile boolean defaultResolved;
+    private static volatile EkCertificateValidator defaultValidator;
+    private final CaCertificateSource source;
+    private final ConcurrentHashMap<X509Certificate, Authority> authorities = new ConcurrentHashMap<>();
+
+    /**
+     * A CA certificate with the period in which its path to a trust anchor is valid.
+     */
+    private static class Authority {
+        private final X509Certificate certificate;
+        private final PublicKey publicKey;
+        private final long trustedFrom;
+        private final long trustedUntil;
+
+        private Authority(X509Certificate certificate, long trustedFrom, long trustedUntil) {
+            this.certificate = certificate;
+            this.publicKey = certificate.getPublicKey();
+            this.trustedFrom = trustedFrom;
+            this.trustedUntil = trustedUntil;
+        }
+
+        private boolean isTrusted() {
+            return trustedFrom <= trustedUntil;
+        }
+
+        private boolean isTrustedAt(long now) {
+            return trustedFrom <= now && now <= trustedUntil;
+        }
+    }
+
+    /**
+     * Resolve the paths of all CAs now. Certificates that are not CA certificates are never trusted.
+     *
+     * @param caCertificates The manufacturer CA certificates.
+     */
+    public EkCertificateValidator(Collection<X509Certificate> caCertificates) {
+        this(new CaCertificateSet(caCertificates));
+        try {
+            for (X509Certificate cert : caCertificates) {
+                authority(cert, newPath());
+            }
+        } catch (CertificateException e) {
+            // an in-memory set has nothing left to decode
+            throw new IllegalStateException(e);
+        }
+        log.debug("EK CA set has {} certificates, {} with a trusted path", caCertificates.size(), getTrustedCount());
+    }
+
+    /**
+     * Resolve the path of each CA when it is first needed, so that a large set such as a
+     * {@link CaTrustStore} is only decoded as far as it is used.
+     */
+    public EkCertificateValidator(CaCertificateSource source) {
+        this.source = source;
+    }
+
+    /**
+     * @param pem Concatenated PEM certificates, as returned by CaCertificates.searchCaCertificatesPem for the "ek" domain.
+     */
+    public static EkCertificateValidator fromPem(String pem) throws CertificateException {
+        return new EkCertificateValidator(CaCertificateSet.readCertificates(new ByteArrayInputStream(pem.getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    /**
+     * @param file A trust store written by CaTrustStore, or a file of concatenated PEM (or DER) certificates.
+     */
+    public static EkCertificateValidator fromFile(File file) throws IOException, CertificateException {
+        if (CaTrustStore.isTrustStore(file)) {
+            return new EkCertificateValidator(CaTrustStore.open(file));
+        }
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return new EkCertificateValidator(CaCertificateSet.readCertificates(in));
+        }
+    }
+
+    /**
+     * @return The validator TpmUtils.verifyTPM uses, or null if none is configured.
+     * @throws IllegalStateException If the file named by privacyca.ek.cacerts cannot be read.
+     */
+    public static EkCertificateValidator getDefault() {
+        if (!defaultResolved) {
+            synchronized (defaultLock) {
+                if (!defaultResolved) {
+                    String path = System.getProperty(CA_CERTIFICATES_PROPERTY);
+                    if (path != null) {
+                        try {
+                            defaultValidator = fromFile(new File(path));
+                        } catch (IOException | CertificateException e) {
+                            throw new IllegalStateException("Cannot read the EK CA certificates in " + path, e);
+                        }
+                    }
+                    defaultResolved = true;
+                }
+            }
+        }
+        return defaultValidator;
+    }
+
+    /**
+     * Set the validator TpmUtils.verifyTPM uses; null to accept every EK certificate.
+     */
+    public static void setDefault(EkCertificateValidator validator) {
+        synchronized (defaultLock) {
+            defaultValidator = validator;
+            defaultResolved = true;
+        }
+    }
+
+    /**
+     * @return <b>True</b> if the certificate is valid now and was issued by a trusted CA of the set.
+     */
+    public boolean isValid(X509Certificate ekCred) {
+        return findIssuer(ekCred, System.currentTimeMillis()) != null;
+    }
+
+    /**
+     * @param ekCred The EK certificate.
+     * @param now The time to validate at, in milliseconds since the epoch.
+     * @return The CA certificate that issued the EK certificate, or null if it is not valid at the time, is a CA certificate, or no trusted CA issued it.
+     */
+    public X509Certificate findIssuer(X509Certificate ekCred, long now) {
+        Authority authority = issuingAuthority(ekCred, now);
+        return authority == null ? null : authority.certificate;
+    }
+
+    /**
+     * For callers that keep the result, such as {@link EkCredentialCache}.
+     *
+     * @param ekCred The EK certificate.
+     * @param now The time to validate at, in milliseconds since the epoch.
+     * @return The last time at which the EK certificate and the path of its CA are still valid, or -1 if the certificate is not valid at the time.
+     */
+    public long trustedUntil(X509Certificate ekCred, long now) {
+        Authority authority = issuingAuthority(ekCred, now);
+        return authority == null ? -1 : Math.min(ekCred.getNotAfter().getTime(), authority.trustedUntil);
+    }
+
+    private Authority issuingAuthority(X509Certificate ekCred, long now) {
+        if (now < ekCred.getNotBefore().getTime() || now > ekCred.getNotAfter().getTime()) {
+            log.debug("EK certificate {} is not valid at {}", ekCred.getSerialNumber(), now);
+            return null;
+        }
+        if (ekCred.getBasicConstraints() >= 0) {
+            log.debug("Certificate {} is a CA certificate, not an EK certificate", ekCred.getSerialNumber());
+            return null;
+        }
+        try {
+            for (X509Certificate candidate : issuerCandidates(ekCred)) {
+                Authority authority = authority(candidate, newPath());
+                if (authority.isTrustedAt(now) && isSignedBy(ekCred, authority.publicKey)) {
+                    return authority;
+                }
+            }
+        } catch (CertificateException e) {
+            log.error("Cannot read the EK CA certificates", e);
+            return null;
+        }
+        log.debug("EK certificate {} was not issued by a trusted CA", ekCred.getSerialNumber());
+        return null;
+    }
+
+    /**
+     * @return The number of CA certificates in the set.
+     */
+    public int getAuthorityCount() {
+        return source.size();
+    }
+
+    /**
+     * @return The number of CA certificates resolved so far with a path to a trust anchor that is valid at some time.
+     */
+    public int getTrustedCount() {
+        int count = 0;
+        for (Authority authority : authorities.values()) {
+            if (authority.isTrusted()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Set<X509Certificate> newPath() {
+        return Collections.newSetFromMap(new IdentityHashMap<X509Certificate, Boolean>());
+    }
+
+    /**
+     * @param path The CAs whose paths are being resolved by the callers, to stop at loops in the set.
+     */
+    private Authority authority(X509Certificate cert, Set<X509Certificate> path) throws CertificateException {
+        Authority authority = authorities.get(cert);
+        if (authority == null) {
+            authority = resolve(cert, path);
+            Authority existing = authorities.putIfAbsent(cert, authority);
+            if (existing != null) {
+                authority = existing;
+            }
+        }
+        return authority;
+    }
+
+    /**
+     * Work out the validity period of the path from the CA to a trust anchor. Where a CA
+     * has more than one issuer in the set (cross certificates), the path valid the longest
+     * is kept.
+     */
+    private Authority resolve(X509Certificate cert, Set<X509Certificate> path) throws CertificateException {
+        // version 1 roots have no basic constraints and are accepted as CAs
+        if (cert.getVersion() >= 3 && cert.getBasicConstraints() < 0) {
+            log.warn("{} in the EK CA set is not a CA certificate", cert.getSubjectX500Principal());
+            return new Authority(cert, Long.MAX_VALUE, Long.MIN_VALUE);
+        }
+        long notBefore = cert.getNotBefore().getTime();
+        long notAfter = cert.getNotAfter().getTime();
+        List<X509Certificate> issuers = new ArrayList<>();
+        for (X509Certificate candidate : issuerCandidates(cert)) {
+            if (candidate != cert) {
+                issuers.add(candidate);
+            }
+        }
+        if (issuers.isEmpty() || isSelfSigned(cert)) {
+            return new Authority(cert, notBefore, notAfter);
+        }
+        if (path.size() >= MAX_PATH_LENGTH) {
+            log.warn("CA path for {} is longer than {}", cert.getSubjectX500Principal(), MAX_PATH_LENGTH);
+            return new Authority(cert, Long.MAX_VALUE, Long.MIN_VALUE);
+        }
+        long trustedFrom = Long.MAX_VALUE;
+        long trustedUntil = Long.MIN_VALUE;
+        path.add(cert);
+        for (X509Certificate issuerCert : issuers) {
+            if (path.contains(issuerCert)) {
+                continue;
+            }
+            Authority issuer = authority(issuerCert, path);
+            if (!issuer.isTrusted() || !isSignedBy(cert, issuer.publicKey)) {
+                continue;
+            }
+            long from = Math.max(notBefore, issuer.trustedFrom);
+            long until = Math.min(notAfter, issuer.trustedUntil);
+            if (from <= until && until > trustedUntil) {
+                trustedFrom = from;
+                trustedUntil = until;
+            }
+        }
+        path.remove(cert);
+        if (trustedFrom > trustedUntil) {
+            log.warn("No trusted path for {} in the EK CA set", cert.getSubjectX500Principal());
+        }
+        return new Authority(cert, trustedFrom, trustedUntil);
+    }
+
+    private static boolean isSelfSigned(X509Certificate cert) {
+        return cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal()) && isSignedBy(cert, cert.getPublicKey());
+    }
+
+    /**
+     * @return The CAs that may have issued the certificate: those whose key identifier matches
+     * the AuthorityKeyIdentifier, or those whose subject matches the issuer DN.
+     */
+    private List<X509Certificate> issuerCandidates(X509Certificate cert) throws CertificateException {
+        byte[] keyIdentifier = authorityKeyIdentifier(cert);
+        if (keyIdentifier != null) {
+            List<X509Certificate> candidates = source.findBySubjectKeyIdentifier(keyIdentifier);
+            if (!candidates.isEmpty()) {
+                return candidates;
+            }
+        }
+        return source.findBySubject(cert.getIssuerX500Principal());
+    }
+
+    private static boolean isSignedBy(X509Certificate cert, PublicKey issuerKey) {
+        try {
+            byte[] params = cert.getSigAlgParams();
+            // an encoded NULL, as RSA PKCS#1 signatures carry, is the same as no parameters
+            if (params != null && !(params.length == 2 && params[0] == 0x05 && params[1] == 0x00)) {
+                // parameterized algorithms such as RSASSA-PSS need the provider to read the parameters
+                cert.verify(issuerKey);
+                return true;
+            }
+            Signature signature = CryptoPrimitives.signature(cert.getSigAlgName());
+            signature.initVerify(issuerKey);
+            signature.update(cert.getTBSCertificate());
+            return signature.verify(cert.getSignature());
+        } catch (GeneralSecurityException | RuntimeException e) {
+            log.debug("Signature of {} does not verify with the given key", cert.getSubjectX500Principal(), e);
+            return false;
+        }
+    }
+
+    /**
+     * @return The key identifier of the SubjectKeyIdentifier extension, or null if there is none or it cannot be read.
+     */
+    static byte[] subjectKeyIdentifier(X509Certificate cert) {
+        byte[] extension = cert.getExtensionValue("2.5.29.14");
+        if (extension == null) {
+            return null;
+        }
+        try {
+            return SubjectKeyIdentifier.getInstance(ASN1OctetString.getInstance(extension).getOctets()).getKeyIdentifier();
+        } catch (RuntimeException e) {
+            log.debug("Cannot read the SubjectKeyIdentifier of {}", cert.getSubjectX500Principal(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return The key identifier of the AuthorityKeyIdentifier extension, or null if there is none or it cannot be read.
+     */
+    static byte[] authorityKeyIdentifier(X509Certificate cert) {
+        byte[] extension = cert.getExtensionValue("2.5.29.35");
+        if (extension == null) {
+            return null;
+        }
+        try {
+            return AuthorityKeyIdentifier.getInstance(ASN1OctetString.getInstance(extension).getOctets()).getKeyIdentifier();
+        } catch (RuntimeException e) {
+            log.debug("Cannot read the AuthorityKeyIdentifier of {}", cert.getSubjectX500Principal(), e);
+            return null;
+        }
+    }
+}
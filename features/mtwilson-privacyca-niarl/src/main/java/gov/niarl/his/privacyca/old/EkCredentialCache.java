@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.LongAdder;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * <p>Keeps, per EK certificate, its public key and whether it passed EK validation, so that
+ * a TPM that enrolls again does not have its endorsement credential parsed and checked again.
+ * Entries are keyed by the SHA-256 of the DER encoded certificate and the cache is bounded
+ * (see {@link BoundedCache}).</p>
+ *
+ * <p>A verdict is kept together with the {@link EkCertificateValidator} that gave it, so
+ * installing a new validator (for a new CA set) makes every certificate be checked again. A
+ * positive verdict holds until the certificate or the path of its CA expires. A negative
+ * verdict is checked again after {@link #NEGATIVE_RECHECK_MILLIS}, in case it was given
+ * because a certificate was not yet valid; until then a TPM that keeps retrying with a
+ * rejected certificate costs a hash per request.</p>
+ *
+ * <p>Hits and misses, verdicts computed and certificates rejected are counted with
+ * LongAdder.</p>
+ */
+public class EkCredentialCache {
+    public static final String CAPACITY_PROPERTY = "privacyca.ekcache.size";
+    public static final int DEFAULT_CAPACITY = 100000;
+    public static final long NEGATIVE_RECHECK_MILLIS = 10 * 60 * 1000L;
+    private static final Object defaultLock = new Object();
+    private static volatile EkCredentialCache defaultCache;
+    private final BoundedCache<String, Entry> entries;
+    private final LongAdder validations = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * The verdict of one validator, and the time until which it holds.
+     */
+    private static class Verdict {
+        private final EkCertificateValidator validator;
+        private final boolean trusted;
+        private final long until;
+
+        private Verdict(EkCertificateValidator validator, boolean trusted, long until) {
+            this.validator = validator;
+            this.trusted = trusted;
+            this.until = until;
+        }
+    }
+
+    /**
+     * An EK certificate with its public key and latest verdict.
+     */
+    public class Entry {
+        private final X509Certificate certificate;
+        private final PublicKey publicKey;
+        private volatile Verdict verdict;
+
+        private Entry(X509Certificate certificate) {
+            this.certificate = certificate;
+            this.publicKey = certificate.getPublicKey();
+        }
+
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        /**
+         * @return The EK public key; an RSA key for a TPM 1.2 EK.
+         */
+        public PublicKey getPublicKey() {
+            return publicKey;
+        }
+
+        /**
+         * @param validator The validator to check the certificate with; null to accept every certificate, as TpmUtils.verifyTPM does.
+         * @return <b>True</b> if the validator accepts the certificate now.
+         */
+        public boolean isTrusted(EkCertificateValidator validator) {
+            return isTrusted(validator, System.currentTimeMillis());
+        }
+
+        /**
+         * @param now The time to validate at, in milliseconds since the epoch.
+         */
+        public boolean isTrusted(EkCertificateValidator validator, long now) {
+            if (validator == null) {
+                return true;
+            }
+            Verdict current = verdict;
+            if (current == null || current.validator != validator || now > current.until) {
+                // racing threads may each compute one; they come to the same verdict
+                long trustedUntil = validator.trustedUntil(certificate, now);
+                validations.increment();
+                if (trustedUntil < 0) {
+                    rejections.increment();
+                    current = new Verdict(validator, false, now + NEGATIVE_RECHECK_MILLIS);
+                } else {
+                    current = new Verdict(validator, true, trustedUntil);
+                }
+                verdict = current;
+            }
+            return current.trusted;
+        }
+    }
+
+    /**
+     * @param capacity The maximum number of EK certificates kept.
+     */
+    public EkCredentialCache(int capacity) {
+        this.entries = new BoundedCache<>(capacity);
+    }
+
+    /**
+     * @return The shared cache, holding up to the number of certificates in the privacyca.ekcache.size system property.
+     */
+    public static EkCredentialCache getDefault() {
+        EkCredentialCache cache = defaultCache;
+        if (cache == null) {
+            synchronized (defaultLock) {
+                cache = defaultCache;
+                if (cache == null) {
+                    cache = new EkCredentialCache(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+                    defaultCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @param ekCred The DER encoded EK certificate, for example a view of the identity proof. The position of the buffer is not changed.
+     * @return The entry for the certificate, decoding it if it is not cached.
+     */
+    public Entry lookup(ByteBuffer ekCred) throws CertificateException {
+        MessageDigest sha256 = messageDigest();
+        sha256.update(ekCred.duplicate());
+        String key = Hex.toHexString(sha256.digest());
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            ByteBuffer source = ekCred.duplicate();
+            byte[] der = new byte[source.remaining()];
+            source.get(der);
+            entry = add(key, CertificateDecoder.parse(der));
+        }
+        return entry;
+    }
+
+    /**
+     * @param ekCred An EK certificate that is already decoded.
+     * @return The entry for the certificate.
+     */
+    public Entry lookup(X509Certificate ekCred) throws CertificateException {
+        String key = Hex.toHexString(messageDigest().digest(ekCred.getEncoded()));
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = add(key, ekCred);
+        }
+        return entry;
+    }
+
+    private Entry add(String key, X509Certificate certificate) {
+        Entry entry = new Entry(certificate);
+        Entry existing = entries.putIfAbsent(key, entry);
+        return existing == null ? entry : existing;
+    }
+
+    private static MessageDigest messageDigest() throws CertificateException {
+        try {
+            return CryptoPrimitives.messageDigest("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateException("SHA-256 is not available", e);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public long getHits() {
+        return entries.getHits();
+    }
+
+    public long getMisses() {
+        return entries.getMisses();
+    }
+
+    /**
+     * @return Hits divided by lookups, or 0 before the first lookup.
+     */
+    public double getHitRate() {
+        return entries.getHitRate();
+    }
+
+    /**
+     * @return The number of times a validator was run since the last reset.
+     */
+    public long getValidations() {
+        return validations.sum();
+    }
+
+    /**
+     * @return The number of validator runs that rejected the certificate since the last reset.
+     */
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    public void resetStatistics() {
+        entries.resetStatistics();
+        validations.reset();
+        rejections.reset();
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.bouncycastle.util.BigIntegers;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * <p>Endorses EK moduli in bulk, as makeEkCert does one at a time. Moduli are read one after
+ * another from a source (hex lines, PEM public keys or raw binary), signed on a fixed number
+ * of worker threads, and written in input order to a sink (one PEM bundle, or one PEM file per
+ * EK). At most twice as many entries as there are workers are in flight, so memory use does
+ * not depend on the size of the input.</p>
+ *
+ * <p>Every few entries the number of entries written so far, and the length of the bundle, is
+ * saved to a checkpoint file. A run given an existing checkpoint skips the entries it records
+ * and cuts the bundle back to the recorded length, so an interrupted run resumes without
+ * signing the checkpointed entries again, and the entries after the checkpoint are written
+ * exactly once. A modulus that cannot be endorsed is logged and skipped.</p>
+ */
+public class EkEndorsementPipeline {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(EkEndorsementPipeline.class);
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+    private static final String CHECKPOINT_ENTRIES = "entries";
+    private static final String CHECKPOINT_MARK = "mark";
+
+    private final PrivateKey caPrivKey;
+    private final X509Certificate caCert;
+    private final int validityDays;
+    private final int threads;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    /**
+     * @param caPrivKey The Privacy CA's private signing key.
+     * @param caCert The Privacy CA's public key certificate.
+     * @param validityDays The number of days until expiration of each EK certificate.
+     * @param threads The number of worker threads signing certificates.
+     */
+    public EkEndorsementPipeline(PrivateKey caPrivKey, X509Certificate caCert, int validityDays, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        }
+        this.caPrivKey = caPrivKey;
+        this.caCert = caCert;
+        this.validityDays = validityDays;
+        this.threads = threads;
+    }
+
+    /**
+     * @param checkpointInterval The number of entries written between checkpoints.
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval < 1) {
+            throw new IllegalArgumentException("Invalid checkpoint interval: " + checkpointInterval);
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * A stream of EK moduli.
+     */
+    public interface EkSource extends Closeable {
+        /**
+         * @return The next modulus, or null at the end of the input.
+         */
+        byte[] next() throws IOException;
+    }
+
+    /**
+     * Where EK certificates go, in input order.
+     */
+    public interface CertificateSink extends Closeable {
+        void write(byte[] modulus, X509Certificate ekCert) throws IOException;
+
+        /**
+         * Make everything written so far durable, and return a value that resume() can restore the sink to.
+         */
+        long mark() throws IOException;
+
+        /**
+         * Drop anything written after the mark was taken.
+         */
+        void resume(long mark) throws IOException;
+    }
+
+    /**
+     * The outcome of a run.
+     */
+    public static class Result {
+        private final long endorsed;
+        private final long resumed;
+        private final long failed;
+
+        Result(long endorsed, long resumed, long failed) {
+            this.endorsed = endorsed;
+            this.resumed = resumed;
+            this.failed = failed;
+        }
+
+        /**
+         * @return The number of certificates signed and written by this run.
+         */
+        public long getEndorsed() {
+            return endorsed;
+        }
+
+        /**
+         * @return The number of entries skipped because the checkpoint recorded them.
+         */
+        public long getResumed() {
+            return resumed;
+        }
+
+        /**
+         * @return The number of moduli that could not be endorsed.
+         */
+        public long getFailed() {
+            return failed;
+        }
+    }
+
+    /**
+     * Endorse every modulus of the source. The source and sink are closed when done.
+     *
+     * @param checkpoint The checkpoint file; if it exists the run resumes from it. It is deleted when the run completes.
+     */
+    public Result run(EkSource source, CertificateSink sink, File checkpoint) throws IOException, InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "privacyca-ek-endorse");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long entries = 0;
+        long resumed = 0;
+        long endorsed = 0;
+        long failed = 0;
+        try (EkSource in = source; CertificateSink out = sink) {
+            Properties saved = readCheckpoint(checkpoint);
+            if (saved != null) {
+                resumed = Long.parseLong(saved.getProperty(CHECKPOINT_ENTRIES));
+                out.resume(Long.parseLong(saved.getProperty(CHECKPOINT_MARK)));
+                for (; entries < resumed; entries++) {
+                    if (in.next() == null) {
+                        throw new IOException("The input has fewer entries than the checkpoint records: " + entries);
+                    }
+                }
+                log.info("Resuming EK endorsement after {} entries", resumed);
+            } else {
+                // a run stopped before its first interval resumes from here rather than appending again
+                writeCheckpoint(checkpoint, 0, out.mark());
+            }
+            ArrayDeque<byte[]> moduli = new ArrayDeque<>();
+            ArrayDeque<Future<X509Certificate>> pending = new ArrayDeque<>();
+            byte[] modulus;
+            boolean more = true;
+            while (more || !pending.isEmpty()) {
+                while (more && pending.size() < 2 * threads) {
+                    modulus = in.next();
+                    if (modulus == null) {
+                        more = false;
+                    } else {
+                        final byte[] ekModulus = modulus;
+                        moduli.add(ekModulus);
+                        pending.add(workers.submit(() -> TpmUtils.makeEkCert(ekModulus, caPrivKey, caCert, validityDays)));
+                    }
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                modulus = moduli.remove();
+                try {
+                    out.write(modulus, pending.remove().get());
+                    endorsed++;
+                } catch (ExecutionException e) {
+                    failed++;
+                    log.warn("Cannot endorse EK modulus {}", Hex.toHexString(modulus), e.getCause());
+                }
+                entries++;
+                if (entries % checkpointInterval == 0) {
+                    writeCheckpoint(checkpoint, entries, out.mark());
+                }
+            }
+            out.mark();
+        } finally {
+            workers.shutdownNow();
+        }
+        Files.deleteIfExists(checkpoint.toPath());
+        log.info("Endorsed {} EK moduli, {} failed, {} resumed from the checkpoint", endorsed, failed, resumed);
+        return new Result(endorsed, resumed, failed);
+    }
+
+    private static Properties readCheckpoint(File checkpoint) throws IOException {
+        if (!checkpoint.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try (Reader in = Files.newBufferedReader(checkpoint.toPath(), StandardCharsets.US_ASCII)) {
+            properties.load(in);
+        }
+        if (properties.getProperty(CHECKPOINT_ENTRIES) == null || properties.getProperty(CHECKPOINT_MARK) == null) {
+            throw new IOException("Invalid checkpoint file: " + checkpoint);
+        }
+        return properties;
+    }
+
+    /**
+     * The checkpoint is written next to the target, forced and renamed over it, so it is never partial.
+     */
+    private static void writeCheckpoint(File checkpoint, long entries, long mark) throws IOException {
+        Path target = checkpoint.toPath().toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            Properties properties = new Properties();
+            properties.setProperty(CHECKPOINT_ENTRIES, Long.toString(entries));
+            properties.setProperty(CHECKPOINT_MARK, Long.toString(mark));
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                Writer out = Channels.newWriter(channel, StandardCharsets.US_ASCII.newEncoder(), -1);
+                properties.store(out, null);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * One modulus per line in hex; blank lines and lines starting with # are skipped, and spaces and colons are ignored.
+     */
+    public static EkSource hexSource(Reader reader) {
+        final BufferedReader in = new BufferedReader(reader);
+        return new EkSource() {
+            @Override
+            public byte[] next() throws IOException {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.replaceAll("[\\s:]", "");
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    try {
+                        return Hex.decode(line);
+                    } catch (RuntimeException e) {
+                        throw new IOException("Invalid hex EK modulus: " + line, e);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * RSA public keys in PEM, as PUBLIC KEY (SubjectPublicKeyInfo) or RSA PUBLIC KEY (PKCS #1) blocks; text outside the blocks is skipped.
+     */
+    public static EkSource pemSource(Reader reader) {
+        final BufferedReader in = new BufferedReader(reader);
+        return new EkSource() {
+            @Override
+            public byte[] next() throws IOException {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.startsWith("-----BEGIN ")) {
+                        continue;
+                    }
+                    String label = line.substring("-----BEGIN ".length(), line.length() - "-----".length());
+                    StringBuilder base64 = new StringBuilder();
+                    while ((line = in.readLine()) != null && !line.trim().startsWith("-----END ")) {
+                        base64.append(line.trim());
+                    }
+                    if (line == null) {
+                        throw new IOException("Unterminated PEM block: " + label);
+                    }
+                    byte[] der = Base64.getDecoder().decode(base64.toString());
+                    try {
+                        if ("RSA PUBLIC KEY".equals(label)) {
+                            return BigIntegers.asUnsignedByteArray(org.bouncycastle.asn1.pkcs.RSAPublicKey.getInstance(der).getModulus());
+                        }
+                        if ("PUBLIC KEY".equals(label)) {
+                            RSAPublicKey key = (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(der));
+                            return BigIntegers.asUnsignedByteArray(key.getModulus());
+                        }
+                    } catch (NoSuchAlgorithmException | InvalidKeySpecException | ClassCastException | IllegalArgumentException e) {
+                        throw new IOException("Invalid PEM EK public key", e);
+                    }
+                    log.debug("Skipping PEM block {}", label);
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * Moduli of a fixed length, back to back, such as 256 bytes for RSA 2048.
+     */
+    public static EkSource binarySource(InputStream stream, final int modulusLength) {
+        final DataInputStream in = new DataInputStream(stream);
+        return new EkSource() {
+            @Override
+            public byte[] next() throws IOException {
+                int first = in.read();
+                if (first < 0) {
+                    return null;
+                }
+                byte[] modulus = new byte[modulusLength];
+                modulus[0] = (byte) first;
+                try {
+                    in.readFully(modulus, 1, modulusLength - 1);
+                } catch (EOFException e) {
+                    throw new IOException("The input ends in the middle of an EK modulus", e);
+                }
+                return modulus;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * All certificates in one PEM file, appended to it.
+     */
+    public static CertificateSink pemBundleSink(File file) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return new CertificateSink() {
+            @Override
+            public void write(byte[] modulus, X509Certificate ekCert) throws IOException {
+                ByteBuffer pem = ByteBuffer.wrap(pemEncode(ekCert));
+                while (pem.hasRemaining()) {
+                    channel.write(pem);
+                }
+            }
+
+            @Override
+            public long mark() throws IOException {
+                channel.force(false);
+                return channel.position();
+            }
+
+            @Override
+            public void resume(long mark) throws IOException {
+                channel.truncate(mark);
+                channel.position(mark);
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * One PEM file per certificate, named after the SHA-256 of the EK modulus. mark() forces
+     * the files written since the last mark and then the directory.
+     */
+    public static CertificateSink directorySink(final File directory) throws IOException {
+        Files.createDirectories(directory.toPath());
+        return new CertificateSink() {
+            private final List<Path> unsynced = new ArrayList<>();
+            private long synced;
+
+            @Override
+            public void write(byte[] modulus, X509Certificate ekCert) throws IOException {
+                String name;
+                try {
+                    name = Hex.toHexString(CryptoPrimitives.messageDigest("SHA-256").digest(modulus));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IOException(e);
+                }
+                Path file = new File(directory, name + ".pem").toPath();
+                Files.write(file, pemEncode(ekCert));
+                unsynced.add(file);
+            }
+
+            /**
+             * @return The number of files made durable so far.
+             */
+            @Override
+            public long mark() throws IOException {
+                for (Path file : unsynced) {
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                        channel.force(false);
+                    }
+                }
+                synced += unsynced.size();
+                unsynced.clear();
+                try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+                    channel.force(true);
+                } catch (IOException e) {
+                    // not every platform can open or force a directory
+                    log.debug("Cannot force the EK certificate directory {}", directory, e);
+                }
+                return synced;
+            }
+
+            @Override
+            public void resume(long mark) {
+                // files written after the checkpoint are written again with the same name
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    static byte[] pemEncode(X509Certificate cert) throws IOException {
+        try {
+            return ("-----BEGIN CERTIFICATE-----\n"
+                    + Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(cert.getEncoded())
+                    + "\n-----END CERTIFICATE-----\n").getBytes(StandardCharsets.US_ASCII);
+        } catch (CertificateEncodingException e) {
+            throw new IOException("Cannot encode an EK certificate", e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Verifies the identity binding of identity proofs for one Privacy CA key. The binding is
+ * the AIK signature over TPM_IDENTITY_CONTENTS: the structure version, the TPM_ORD_MakeIdentity
+ * ordinal, the SHA-1 of the label followed by the CA key as a TPM_PUBKEY (chosenIdHash), and
+ * the AIK as a TPM_PUBKEY.</p>
+ *
+ * <p>The verifier encodes the CA key once, and keeps the chosenIdHash of the most recently
+ * used labels, since a deployment uses only a few. The pieces of TPM_IDENTITY_CONTENTS are
+ * fed to the signature one after another, and the label and binding are read in place from
+ * the proof, so no TPM_IDENTITY_CONTENTS or chosenId array is built. Digests and signatures
+ * come from CryptoPrimitives. A verifier may be used by several threads.</p>
+ */
+public final class IdentityBindingVerifier {
+    public static final int DEFAULT_LABEL_CACHE_SIZE = 64;
+    //Structver in new (NTru) requests is appearing as 01 02 04 1E. Strange. (9/8/2009).
+    //To compensate, using a shim copy of structver populated with the correct values.
+    //
+    //In this case, the problem is that the structver included as cleartext in the identity proof is
+    //placed by the TSS, but the identity binding is created by the TPM independently. If one value of
+    //structver is used during the creation of the identity binding signature but a different structver
+    //is used when performing verification, the result will always be a failure to verify.
+    private static final byte[] TRADITIONAL_STRUCT_VER = {(byte) 0x01, (byte) 0x01, (byte) 0x00, (byte) 0x00};
+    private static final byte[] TPM_ORD_MAKE_IDENTITY = {(byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x79};
+    private static volatile IdentityBindingVerifier current;
+
+    private final RSAPublicKey caPubKey;
+    private final byte[] caKeyBytes;
+    private final Map<ByteBuffer, byte[]> chosenIdHashes;
+
+    public IdentityBindingVerifier(RSAPublicKey caPubKey)
+            throws TpmUtils.TpmUnsignedConversionException {
+        this(caPubKey, DEFAULT_LABEL_CACHE_SIZE);
+    }
+
+    /**
+     * @param caPubKey The Privacy CA's public key.
+     * @param labelCacheSize The number of labels whose chosenIdHash is kept.
+     */
+    public IdentityBindingVerifier(RSAPublicKey caPubKey, final int labelCacheSize)
+            throws TpmUtils.TpmUnsignedConversionException {
+        this.caPubKey = caPubKey;
+        this.caKeyBytes = new TpmPubKey(caPubKey, 3, 1).toByteArray();
+        this.chosenIdHashes = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+                return size() > labelCacheSize;
+            }
+        };
+    }
+
+    /**
+     * The CA key hardly ever changes, so the verifier for the last key used is kept and
+     * replaced when a different key is passed.
+     *
+     * @return A verifier for the key.
+     */
+    public static IdentityBindingVerifier forKey(RSAPublicKey caPubKey)
+            throws TpmUtils.TpmUnsignedConversionException {
+        IdentityBindingVerifier verifier = current;
+        if (verifier == null || !verifier.isFor(caPubKey)) {
+            verifier = new IdentityBindingVerifier(caPubKey);
+            current = verifier;
+        }
+        return verifier;
+    }
+
+    /**
+     * @return <b>True</b> if the identity binding of the proof checks out, <b>false</b> if it does not.
+     */
+    public boolean verify(TpmIdentityProof proof)
+            throws NoSuchAlgorithmException,
+            TpmUtils.TpmUnsignedConversionException,
+            InvalidKeyException,
+            InvalidKeySpecException,
+            SignatureException {
+        byte[] chosenIdHash = chosenIdHash(proof.idLabelBuffer());
+        Signature sig = CryptoPrimitives.signature("SHA1withRSA", CryptoProviders.get(CryptoProviders.Operation.RSA_SIGN));
+        sig.initVerify(proof.getAik().getKey());
+        sig.update(TRADITIONAL_STRUCT_VER);
+        sig.update(TPM_ORD_MAKE_IDENTITY);
+        sig.update(chosenIdHash);
+        sig.update(proof.getAik().toByteArray());
+        ByteBuffer binding = proof.idBindingBuffer();
+        return sig.verify(binding.array(), binding.arrayOffset() + binding.position(), binding.remaining());
+    }
+
+    /**
+     * @return SHA-1 of the label followed by the encoded CA key.
+     */
+    byte[] chosenIdHash(ByteBuffer label)
+            throws NoSuchAlgorithmException {
+        synchronized (chosenIdHashes) {
+            byte[] cached = chosenIdHashes.get(label);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        MessageDigest md = CryptoPrimitives.messageDigest("SHA1");
+        md.update(label.array(), label.arrayOffset() + label.position(), label.remaining());
+        md.update(caKeyBytes);
+        byte[] hash = md.digest();
+        // the lookup key is a view of the proof; keep a copy so the proof can be collected
+        byte[] labelCopy = new byte[label.remaining()];
+        label.duplicate().get(labelCopy);
+        synchronized (chosenIdHashes) {
+            chosenIdHashes.put(ByteBuffer.wrap(labelCopy), hash);
+        }
+        return hash;
+    }
+
+    private boolean isFor(RSAPublicKey key) {
+        return caPubKey == key
+                || (caPubKey.getModulus().equals(key.getModulus()) && caPubKey.getPublicExponent().equals(key.getPublicExponent()));
+    }
+}
@@ -0,0 +1,677 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only record of every certificate the CA issued: serial number, SHA-256 of the
+ * subject public key, SAN label, validity dates and the DER certificate. The journal is a
+ * directory of fixed-size segment files that are memory-mapped; a record is appended by
+ * copying it into the mapping of the last segment, and when a record does not fit a new
+ * segment is started.</p>
+ *
+ * <p>Records reach the disk by group commit: a background thread forces the dirty segments
+ * to disk at a fixed interval, so append() only costs the copy. A caller that needs a record
+ * on disk before going on passes the sequence number append() returned to awaitCommit().</p>
+ *
+ * <p>Each record carries its length and a CRC32 of its contents. When the journal is opened
+ * the segments are scanned to rebuild the in-memory indexes by serial number and by key hash.
+ * Only the last segment is written to, and it is forced to disk before the next one is
+ * started, so only the last segment can end with a record an interrupted write left
+ * incomplete; the scan truncates it there and new records are written from there. A record
+ * that is incomplete or fails its CRC in any other segment is damage, and the journal
+ * refuses to open rather than lose the records after it.</p>
+ *
+ * <p>A new segment file is written and forced under a temporary name and then renamed into
+ * place, so a crash never leaves a segment without its header.</p>
+ *
+ * <p>compact() drops the records of certificates that have expired: the records still valid
+ * in a segment that has expired records are copied to the end of the journal and the segment
+ * is deleted. The last segment is never compacted.</p>
+ *
+ * <p>TpmUtils.makeCert and makeEkCert record the certificates they issue in the default
+ * journal, which is opened in the directory named by the privacyca.journal.dir system
+ * property; without it nothing is recorded. By default they wait for the record to be
+ * committed before returning the certificate, so a certificate handed out is on disk; setting
+ * the privacyca.journal.sync system property to false, or calling setSyncOnIssue(false),
+ * trades that guarantee for the latency of the group commit.</p>
+ */
+public class IssuanceJournal implements Closeable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(IssuanceJournal.class);
+    /** System property with the directory of the default journal. */
+    public static final String DIRECTORY_PROPERTY = "privacyca.journal.dir";
+    /** System property that, set to false, lets issuance return before its record is committed. */
+    public static final String SYNC_PROPERTY = "privacyca.journal.sync";
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 10;
+    private static final int SEGMENT_MAGIC = 0x50434a31; // "PCJ1"
+    private static final int SEGMENT_HEADER = 8;
+    private static final int RECORD_HEADER = 8;
+    private static final byte RECORD_VERSION = 1;
+    private static final int KEY_HASH_LENGTH = 32;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final Object defaultLock = new Object();
+    private static volatile IssuanceJournal defaultJournal;
+    private static volatile boolean defaultResolved;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long commitIntervalMillis;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<BigInteger, Long> bySerial = new HashMap<>();
+    private final Map<ByteBuffer, long[]> byKeyHash = new HashMap<>();
+    private final List<Segment> dirty = new ArrayList<>();
+    private final Object commitLock = new Object();
+    private final Thread committer;
+    private Segment active;
+    private long appended;
+    private long committed;
+    private volatile boolean closed;
+    private volatile boolean syncOnIssue = !"false".equalsIgnoreCase(System.getProperty(SYNC_PROPERTY));
+
+    /**
+     * One entry of the journal.
+     */
+    public static class Entry {
+        private final BigInteger serial;
+        private final byte[] keyHash;
+        private final String label;
+        private final long notBefore;
+        private final long notAfter;
+        private final byte[] der;
+
+        Entry(BigInteger serial, byte[] keyHash, String label, long notBefore, long notAfter, byte[] der) {
+            this.serial = serial;
+            this.keyHash = keyHash;
+            this.label = label;
+            this.notBefore = notBefore;
+            this.notAfter = notAfter;
+            this.der = der;
+        }
+
+        public BigInteger getSerial() {
+            return serial;
+        }
+
+        /**
+         * @return SHA-256 of the encoded subject public key.
+         */
+        public byte[] getKeyHash() {
+            return keyHash.clone();
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public long getNotBefore() {
+            return notBefore;
+        }
+
+        public long getNotAfter() {
+            return notAfter;
+        }
+
+        public byte[] getEncoded() {
+            return der.clone();
+        }
+
+        public X509Certificate getCertificate() throws CertificateException {
+            return CertificateDecoder.parse(der);
+        }
+    }
+
+    /**
+     * A memory-mapped segment file.
+     */
+    private static class Segment {
+        private final int sequence;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int position;
+
+        Segment(int sequence, File file, int size) throws IOException {
+            this.sequence = sequence;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long length = Math.max(channel.size(), size);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+
+        ByteBuffer view(int offset) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            return view;
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    public IssuanceJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMMIT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Open the journal in a directory, creating it if needed.
+     *
+     * @param segmentSize The size of new segment files, in bytes.
+     * @param commitIntervalMillis How often dirty segments are forced to disk.
+     */
+    public IssuanceJournal(File directory, int segmentSize, long commitIntervalMillis) throws IOException {
+        if (segmentSize < 4096 || commitIntervalMillis < 1) {
+            throw new IllegalArgumentException("Invalid journal segment size " + segmentSize + " or commit interval " + commitIntervalMillis);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.commitIntervalMillis = commitIntervalMillis;
+        Files.createDirectories(directory.toPath());
+        File[] partial = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX + TEMPORARY_SUFFIX));
+        if (partial != null) {
+            // a segment that was being created when the process stopped; it holds no records
+            for (File file : partial) {
+                Files.delete(file.toPath());
+            }
+        }
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String number = file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length());
+                int sequence;
+                try {
+                    sequence = Integer.parseInt(number);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                segments.put(sequence, new Segment(sequence, file, segmentSize));
+            }
+        }
+        for (Segment segment : segments.values()) {
+            recover(segment, segment.sequence == segments.lastKey());
+        }
+        active = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+        committer = new Thread(this::commitLoop, "privacyca-journal-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * @return The journal TpmUtils records issued certificates in, or null if none is configured.
+     * @throws IllegalStateException If the journal named by privacyca.journal.dir cannot be opened.
+     */
+    public static IssuanceJournal getDefault() {
+        if (!defaultResolved) {
+            synchronized (defaultLock) {
+                if (!defaultResolved) {
+                    String path = System.getProperty(DIRECTORY_PROPERTY);
+                    if (path != null) {
+                        try {
+                            defaultJournal = new IssuanceJournal(new File(path));
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Cannot open the issuance journal in " + path, e);
+                        }
+                    }
+                    defaultResolved = true;
+                }
+            }
+        }
+        return defaultJournal;
+    }
+
+    /**
+     * Set the journal TpmUtils records issued certificates in; null to record nothing.
+     */
+    public static void setDefault(IssuanceJournal journal) {
+        synchronized (defaultLock) {
+            defaultJournal = journal;
+            defaultResolved = true;
+        }
+    }
+
+    /**
+     * @return SHA-256 of the encoded public key, as used for the key hash index.
+     */
+    public static byte[] keyHash(PublicKey key) {
+        try {
+            return CryptoPrimitives.messageDigest("SHA-256").digest(key.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return Whether TpmUtils waits for the record of a certificate to be committed before returning it.
+     */
+    public boolean isSyncOnIssue() {
+        return syncOnIssue;
+    }
+
+    public void setSyncOnIssue(boolean syncOnIssue) {
+        this.syncOnIssue = syncOnIssue;
+    }
+
+    /**
+     * Append an issued certificate. The record is on disk after the next group commit.
+     *
+     * @param sanLabel The SAN label the certificate was issued with.
+     * @return The sequence number to pass to awaitCommit().
+     */
+    public long append(X509Certificate cert, String sanLabel) throws IOException {
+        byte[] serial = cert.getSerialNumber().toByteArray();
+        byte[] label = sanLabel.getBytes(StandardCharsets.UTF_8);
+        byte[] der;
+        try {
+            der = cert.getEncoded();
+        } catch (CertificateEncodingException e) {
+            throw new IOException("Cannot encode the issued certificate", e);
+        }
+        if (serial.length > Short.MAX_VALUE || label.length > Short.MAX_VALUE) {
+            throw new IOException("The serial number or label is too long for the journal");
+        }
+        ByteBuffer payload = ByteBuffer.allocate(1 + 2 + serial.length + KEY_HASH_LENGTH + 8 + 8 + 2 + label.length + 4 + der.length);
+        payload.put(RECORD_VERSION);
+        payload.putShort((short) serial.length).put(serial);
+        byte[] keyHash = keyHash(cert.getPublicKey());
+        payload.put(keyHash);
+        payload.putLong(cert.getNotBefore().getTime());
+        payload.putLong(cert.getNotAfter().getTime());
+        payload.putShort((short) label.length).put(label);
+        payload.putInt(der.length).put(der);
+        synchronized (this) {
+            ensureOpen();
+            index(cert.getSerialNumber(), keyHash, appendRecord(payload.array()));
+            return ++appended;
+        }
+    }
+
+    /**
+     * Wait until the record with the sequence number, and all before it, are on disk.
+     */
+    public void awaitCommit(long sequence) throws InterruptedException, IOException {
+        synchronized (commitLock) {
+            while (committed < sequence) {
+                if (closed) {
+                    throw new IOException("The journal is closed");
+                }
+                commitLock.notifyAll();
+                commitLock.wait(commitIntervalMillis);
+            }
+        }
+    }
+
+    /**
+     * @return The entry for the serial number, or null.
+     */
+    public synchronized Entry findBySerial(BigInteger serial) throws IOException {
+        ensureOpen();
+        Long location = bySerial.get(serial);
+        return location == null ? null : read(location);
+    }
+
+    /**
+     * @param keyHash SHA-256 of the encoded subject public key.
+     * @return The entries for the key, oldest first.
+     */
+    public synchronized List<Entry> findByKeyHash(byte[] keyHash) throws IOException {
+        ensureOpen();
+        long[] locations = byKeyHash.get(ByteBuffer.wrap(keyHash));
+        if (locations == null) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>(locations.length);
+        for (long location : locations) {
+            entries.add(read(location));
+        }
+        return entries;
+    }
+
+    public synchronized int size() {
+        return bySerial.size();
+    }
+
+    /**
+     * @return The number of segment files.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Drop the records of certificates that expired before the time.
+     *
+     * @return The number of records dropped.
+     */
+    public synchronized int compact(long now) throws IOException {
+        ensureOpen();
+        int dropped = 0;
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment == active) {
+                continue;
+            }
+            List<Integer> live = new ArrayList<>();
+            int expired = 0;
+            for (int offset = SEGMENT_HEADER; offset < segment.position; offset += RECORD_HEADER + segment.buffer.getInt(offset)) {
+                if (parse(segment, offset).notAfter <= now) {
+                    expired++;
+                } else {
+                    live.add(offset);
+                }
+            }
+            if (expired == 0) {
+                continue;
+            }
+            for (int offset = SEGMENT_HEADER; offset < segment.position; offset += RECORD_HEADER + segment.buffer.getInt(offset)) {
+                Entry entry = parse(segment, offset);
+                unindex(entry.serial, entry.keyHash, location(segment.sequence, offset));
+            }
+            for (int offset : live) {
+                Entry entry = parse(segment, offset);
+                byte[] payload = new byte[segment.buffer.getInt(offset)];
+                segment.view(offset + RECORD_HEADER).get(payload);
+                index(entry.serial, entry.keyHash, appendRecord(payload));
+            }
+            // the copies must be on disk before the originals go
+            for (Segment copy : dirty) {
+                copy.buffer.force();
+            }
+            segments.remove(segment.sequence);
+            dirty.remove(segment);
+            segment.close();
+            Files.delete(segment.file.toPath());
+            dropped += expired;
+        }
+        if (dropped > 0) {
+            log.info("Compacted {} expired certificates out of the issuance journal", dropped);
+        }
+        return dropped;
+    }
+
+    /**
+     * Commit everything appended so far and close the segment files.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        committer.interrupt();
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            commit();
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+        }
+        synchronized (commitLock) {
+            commitLock.notifyAll();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("The journal is closed");
+        }
+    }
+
+    private void commitLoop() {
+        while (!closed) {
+            try {
+                synchronized (commitLock) {
+                    commitLock.wait(commitIntervalMillis);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                commit();
+            } catch (RuntimeException e) {
+                log.error("Cannot commit the issuance journal", e);
+            }
+        }
+    }
+
+    /**
+     * Force the dirty segments to disk and advance the committed sequence number.
+     */
+    private void commit() {
+        List<Segment> toForce;
+        long sequence;
+        synchronized (this) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            // a record appended while these are forced marks its segment dirty again
+            toForce = new ArrayList<>(dirty);
+            dirty.clear();
+            sequence = appended;
+        }
+        for (Segment segment : toForce) {
+            segment.buffer.force();
+        }
+        synchronized (commitLock) {
+            if (sequence > committed) {
+                committed = sequence;
+            }
+            commitLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return The location of the record.
+     */
+    private long appendRecord(byte[] payload) throws IOException {
+        int length = RECORD_HEADER + payload.length;
+        if (length > segmentSize - SEGMENT_HEADER) {
+            throw new IOException("The certificate is too large for a journal segment: " + payload.length);
+        }
+        if (active.position + length > active.buffer.capacity()) {
+            // a segment is complete on disk before the next one exists, so only the last can be torn
+            active.buffer.force();
+            active = newSegment(active.sequence + 1);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        int offset = active.position;
+        ByteBuffer out = active.view(offset);
+        out.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        active.position = offset + length;
+        if (!dirty.contains(active)) {
+            dirty.add(active);
+        }
+        return location(active.sequence, offset);
+    }
+
+    private Segment newSegment(int sequence) throws IOException {
+        File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        File temporary = new File(directory, file.getName() + TEMPORARY_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+            header.putInt(SEGMENT_MAGIC).putInt(sequence).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            // size the file now; the zeros past the header mark the end of the records
+            channel.write(ByteBuffer.allocate(1), segmentSize - 1);
+            channel.force(true);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+        Segment segment = new Segment(sequence, file, segmentSize);
+        segment.position = SEGMENT_HEADER;
+        segments.put(sequence, segment);
+        return segment;
+    }
+
+    /**
+     * Force the directory entries, so a renamed segment is still there after a crash.
+     */
+    private void forceDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not every platform can open or force a directory
+            log.debug("Cannot force the issuance journal directory {}", directory, e);
+        }
+    }
+
+    /**
+     * Scan a segment, index its records and find where the next record goes.
+     *
+     * @param last Whether this is the last segment, the only one an interrupted write can have left incomplete.
+     * @throws IOException If the segment has no header, or a segment other than the last is damaged.
+     */
+    private void recover(Segment segment, boolean last) throws IOException {
+        MappedByteBuffer buffer = segment.buffer;
+        if (buffer.getInt(0) != SEGMENT_MAGIC || buffer.getInt(4) != segment.sequence) {
+            throw new IOException("Not an issuance journal segment: " + segment.file);
+        }
+        int offset = SEGMENT_HEADER;
+        boolean torn = false;
+        while (offset + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || offset + RECORD_HEADER + length > buffer.capacity()) {
+                torn = true;
+                break;
+            }
+            byte[] payload = new byte[length];
+            segment.view(offset + RECORD_HEADER).get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                torn = true;
+                break;
+            }
+            Entry entry = parse(segment, offset);
+            index(entry.serial, entry.keyHash, location(segment.sequence, offset));
+            offset += RECORD_HEADER + length;
+        }
+        if (!torn && !last) {
+            // a length damaged to zero would otherwise end the scan early without a trace
+            for (int zero = offset; zero < buffer.capacity(); zero++) {
+                if (buffer.get(zero) != 0) {
+                    torn = true;
+                    break;
+                }
+            }
+        }
+        if (torn && !last) {
+            throw new IOException("Issuance journal segment " + segment.file + " is damaged at " + offset + "; the records after it cannot be read");
+        }
+        segment.position = offset;
+        if (torn) {
+            log.warn("Issuance journal segment {} ends with an incomplete record at {}", segment.file, offset);
+            // clear what the interrupted write left behind, so it is not mistaken for records later
+            ByteBuffer clear = segment.view(offset);
+            byte[] zeros = new byte[4096];
+            while (clear.hasRemaining()) {
+                clear.put(zeros, 0, Math.min(zeros.length, clear.remaining()));
+            }
+            buffer.force();
+        }
+    }
+
+    private Entry read(long location) throws IOException {
+        Segment segment = segments.get((int) (location >>> 32));
+        if (segment == null) {
+            throw new IOException("The issuance journal segment is missing for location " + location);
+        }
+        return parse(segment, (int) location);
+    }
+
+    private static Entry parse(Segment segment, int offset) {
+        ByteBuffer in = segment.view(offset + RECORD_HEADER);
+        in.get(); // version
+        byte[] serial = new byte[in.getShort()];
+        in.get(serial);
+        byte[] keyHash = new byte[KEY_HASH_LENGTH];
+        in.get(keyHash);
+        long notBefore = in.getLong();
+        long notAfter = in.getLong();
+        byte[] label = new byte[in.getShort()];
+        in.get(label);
+        byte[] der = new byte[in.getInt()];
+        in.get(der);
+        return new Entry(new BigInteger(serial), keyHash, new String(label, StandardCharsets.UTF_8), notBefore, notAfter, der);
+    }
+
+    private static long location(int sequence, int offset) {
+        return ((long) sequence << 32) | (offset & 0xffffffffL);
+    }
+
+    private void index(BigInteger serial, byte[] keyHash, long location) {
+        bySerial.put(serial, location);
+        ByteBuffer key = ByteBuffer.wrap(keyHash);
+        long[] locations = byKeyHash.get(key);
+        if (locations == null) {
+            byKeyHash.put(key, new long[] {location});
+        } else {
+            long[] grown = Arrays.copyOf(locations, locations.length + 1);
+            grown[locations.length] = location;
+            byKeyHash.put(key, grown);
+        }
+    }
+
+    private void unindex(BigInteger serial, byte[] keyHash, long location) {
+        Long current = bySerial.get(serial);
+        if (current != null && current == location) {
+            bySerial.remove(serial);
+        }
+        ByteBuffer key = ByteBuffer.wrap(keyHash);
+        long[] locations = byKeyHash.get(key);
+        if (locations == null) {
+            return;
+        }
+        long[] kept = new long[locations.length];
+        int count = 0;
+        for (long other : locations) {
+            if (other != location) {
+                kept[count++] = other;
+            }
+        }
+        if (count == 0) {
+            byKeyHash.remove(key);
+        } else {
+            byKeyHash.put(key, Arrays.copyOf(kept, count));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.SignatureException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * <p>Keeps the AIK certificates the CA issued, so that a Trust Agent that runs the identity
+ * challenge again for an AIK it already has a certificate for (after a service restart, for
+ * example) gets the same certificate back instead of a newly signed one.</p>
+ *
+ * <p>Certificates are keyed by the SHA-256 of the CA public key, the AIK modulus and the SAN
+ * label, each preceded by its length. The CA key is part of the key so that a certificate is never returned after the CA
+ * key changed. A cached certificate is only reused while at least a configurable fraction of
+ * its validity period is left, half by default; after that a new one is issued and replaces it.</p>
+ *
+ * <p>The cache can be saved to and loaded from a file, one "hash certificate" line per AIK with
+ * the certificate in Base64, so that it survives restarts.</p>
+ */
+public class IssuedCertificateCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(IssuedCertificateCache.class);
+    public static final int DEFAULT_CAPACITY = 100000;
+    public static final double DEFAULT_MIN_REMAINING = 0.5;
+    private final BoundedCache<String, X509Certificate> certificates;
+    private final double minRemaining;
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    public IssuedCertificateCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_MIN_REMAINING);
+    }
+
+    /**
+     * @param capacity The maximum number of certificates kept.
+     * @param minRemaining The fraction of its validity period, from 0 to 1, a certificate must have left to be reused.
+     */
+    public IssuedCertificateCache(int capacity, double minRemaining) {
+        if (minRemaining < 0 || minRemaining > 1) {
+            throw new IllegalArgumentException("Minimum remaining validity must be between 0 and 1: " + minRemaining);
+        }
+        this.certificates = new BoundedCache<>(capacity);
+        this.minRemaining = minRemaining;
+    }
+
+    /**
+     * Return the certificate issued earlier for the AIK and label if it still has enough
+     * validity left, and otherwise issue one with TpmUtils.makeCert and keep it.
+     *
+     * @return An AIK certificate.
+     * @see TpmUtils#makeCert(TpmPubKey, String, PrivateKey, X509Certificate, int, int)
+     */
+    public X509Certificate getOrIssue(TpmPubKey aik, String sanLabel, PrivateKey privKey, X509Certificate caCert, int validityDays)
+            throws InvalidKeySpecException,
+            NoSuchAlgorithmException,
+            CertificateEncodingException,
+            NoSuchProviderException,
+            SignatureException,
+            InvalidKeyException {
+        String key = key(caCert, aik, sanLabel);
+        X509Certificate cached = certificates.get(key);
+        if (cached != null && isReusable(cached, System.currentTimeMillis())) {
+            reused.increment();
+            return cached;
+        }
+        X509Certificate cert = TpmUtils.makeCert(aik, sanLabel, privKey, caCert, validityDays, 0);
+        certificates.put(key, cert);
+        issued.increment();
+        return cert;
+    }
+
+    /**
+     * @return <b>True</b> if the certificate is valid at the time and has at least the configured fraction of its validity left.
+     */
+    boolean isReusable(X509Certificate cert, long now) {
+        long notBefore = cert.getNotBefore().getTime();
+        long notAfter = cert.getNotAfter().getTime();
+        if (now < notBefore || now >= notAfter) {
+            return false;
+        }
+        return notAfter - now >= minRemaining * (notAfter - notBefore);
+    }
+
+    public int size() {
+        return certificates.size();
+    }
+
+    /**
+     * @return The number of certificates signed since the last reset.
+     */
+    public long getIssued() {
+        return issued.sum();
+    }
+
+    /**
+     * @return The number of certificates returned without signing since the last reset.
+     */
+    public long getReused() {
+        return reused.sum();
+    }
+
+    public void resetStatistics() {
+        certificates.resetStatistics();
+        issued.reset();
+        reused.reset();
+    }
+
+    /**
+     * Write the cache to a file. The file is written next to the target and renamed over it,
+     * so a reader never sees a partial file.
+     */
+    public void save(File file) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        Base64.Encoder encoder = Base64.getEncoder();
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.US_ASCII)) {
+                for (Map.Entry<String, X509Certificate> entry : certificates.snapshot().entrySet()) {
+                    out.write(entry.getKey());
+                    out.write(' ');
+                    out.write(encoder.encodeToString(entry.getValue().getEncoded()));
+                    out.newLine();
+                }
+            } catch (CertificateEncodingException e) {
+                throw new IOException("Cannot encode a cached certificate", e);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Add the entries of a file written by save(). A missing file is not an error; malformed
+     * lines and certificates that can no longer be reused are skipped.
+     *
+     * @return The number of entries loaded.
+     */
+    public int load(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        Base64.Decoder decoder = Base64.getDecoder();
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                try {
+                    X509Certificate cert = CertificateDecoder.parse(decoder.decode(line.substring(space + 1).trim()));
+                    if (isReusable(cert, now)) {
+                        certificates.put(line.substring(0, space), cert);
+                        loaded++;
+                    }
+                } catch (IllegalArgumentException | CertificateException e) {
+                    log.debug("Skipping issued certificate line: {}", line);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private static String key(X509Certificate caCert, TpmPubKey aik, String sanLabel)
+            throws InvalidKeySpecException, NoSuchAlgorithmException {
+        MessageDigest md = CryptoPrimitives.messageDigest("SHA-256");
+        update(md, caCert.getPublicKey().getEncoded());
+        update(md, aik.getKey().getModulus().toByteArray());
+        update(md, sanLabel.getBytes(StandardCharsets.UTF_8));
+        return Hex.toHexString(md.digest());
+    }
+
+    /**
+     * Hash a field with its length in front, so that moving bytes from one field to the next
+     * gives a different key.
+     */
+    private static void update(MessageDigest md, byte[] field) {
+        md.update((byte) (field.length >>> 24));
+        md.update((byte) (field.length >>> 16));
+        md.update((byte) (field.length >>> 8));
+        md.update((byte) field.length);
+        md.update(field);
+    }
+}
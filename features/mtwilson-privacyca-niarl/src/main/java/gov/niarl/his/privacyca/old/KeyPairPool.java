@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Supplies RSA key pairs generated ahead of time, for createClientP12.
+ * Generating a 2048 or 3072 bit key takes hundreds of milliseconds to seconds, which
+ * dominates bulk client provisioning.</p>
+ *
+ * <p>For every key size that is asked for, the pool keeps up to a configured number of key
+ * pairs. Whenever one is taken, a replacement is generated on a background thread; the
+ * threads run at minimum priority and there is one fewer of them than there are processors,
+ * so that they use spare cores. When no key pair of the size is ready, take() generates one
+ * on the calling thread, as before.</p>
+ *
+ * <p>The pool counts the key pairs taken from the pool and generated on the calling thread,
+ * and the time callers spent in take(); getDepth() tells how many are ready.</p>
+ */
+public class KeyPairPool {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(KeyPairPool.class);
+    /** System property with the number of key pairs the default pool keeps per key size; 0 disables pooling. */
+    public static final String DEPTH_PROPERTY = "privacyca.keypool.depth";
+    /** System property with the number of background threads of the default pool. */
+    public static final String THREADS_PROPERTY = "privacyca.keypool.threads";
+    public static final int DEFAULT_DEPTH = 4;
+    private static final Object defaultLock = new Object();
+    private static volatile KeyPairPool defaultPool;
+
+    private final int depth;
+    private final ExecutorService refill;
+    private final ConcurrentHashMap<Integer, Supply> supplies = new ConcurrentHashMap<>();
+    private final LongAdder pooled = new LongAdder();
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * @param depth The number of key pairs to keep per key size; 0 to always generate on the calling thread.
+     * @param threads The number of background threads generating key pairs.
+     */
+    public KeyPairPool(int depth, int threads) {
+        if (depth < 0 || threads < 1) {
+            throw new IllegalArgumentException("Invalid key pair pool depth " + depth + " or thread count " + threads);
+        }
+        this.depth = depth;
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable -> {
+            Thread thread = new Thread(runnable, "privacyca-keypool-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        this.refill = executor;
+    }
+
+    /**
+     * @return The pool used by TpmUtils, configured by the privacyca.keypool.depth and privacyca.keypool.threads system properties.
+     */
+    public static KeyPairPool getDefault() {
+        KeyPairPool pool = defaultPool;
+        if (pool == null) {
+            synchronized (defaultLock) {
+                pool = defaultPool;
+                if (pool == null) {
+                    int spare = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+                    pool = new KeyPairPool(Integer.getInteger(DEPTH_PROPERTY, DEFAULT_DEPTH), Integer.getInteger(THREADS_PROPERTY, spare));
+                    defaultPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Take a pre-generated key pair of the size, or generate one if none is ready.
+     *
+     * @param keySize The RSA key size in bits.
+     * @return A key pair that has not been handed out before.
+     */
+    public KeyPair take(int keySize) throws NoSuchAlgorithmException {
+        long started = System.nanoTime();
+        try {
+            if (depth == 0) {
+                generated.increment();
+                return generate(keySize);
+            }
+            Supply supply = supply(keySize);
+            KeyPair keyPair = supply.ready.poll();
+            supply.refill();
+            if (keyPair != null) {
+                pooled.increment();
+                return keyPair;
+            }
+            generated.increment();
+            return generate(keySize);
+        } finally {
+            waitNanos.add(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Start filling the pool for a key size before the first take().
+     */
+    public void prefill(int keySize) {
+        if (depth > 0) {
+            supply(keySize).refill();
+        }
+    }
+
+    /**
+     * @return The number of key pairs of the size that are ready.
+     */
+    public int getDepth(int keySize) {
+        Supply supply = supplies.get(keySize);
+        return supply == null ? 0 : supply.ready.size();
+    }
+
+    public int getCapacity() {
+        return depth;
+    }
+
+    /**
+     * @return The number of key pairs taken from the pool since the last reset.
+     */
+    public long getPooled() {
+        return pooled.sum();
+    }
+
+    /**
+     * @return The number of key pairs generated on the calling thread since the last reset.
+     */
+    public long getGenerated() {
+        return generated.sum();
+    }
+
+    /**
+     * @return The total time callers spent in take() since the last reset, in nanoseconds.
+     */
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    public void resetStatistics() {
+        pooled.reset();
+        generated.reset();
+        waitNanos.reset();
+    }
+
+    /**
+     * Stop the background threads. Key pairs already generated can still be taken.
+     */
+    public void shutdown() {
+        refill.shutdownNow();
+    }
+
+    private Supply supply(int keySize) {
+        return supplies.computeIfAbsent(keySize, Supply::new);
+    }
+
+    private static KeyPair generate(int keySize) throws NoSuchAlgorithmException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(keySize);
+        return keyGen.generateKeyPair();
+    }
+
+    /**
+     * The ready key pairs of one size, and the number of background generations under way
+     * for it, so that no more are started than are needed to fill the pool.
+     */
+    private class Supply {
+        private final int keySize;
+        private final BlockingQueue<KeyPair> ready = new ArrayBlockingQueue<>(depth);
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private Supply(int keySize) {
+            this.keySize = keySize;
+        }
+
+        private void refill() {
+            while (true) {
+                int inFlight = pending.get();
+                if (ready.size() + inFlight >= depth || refill.isShutdown()) {
+                    return;
+                }
+                if (pending.compareAndSet(inFlight, inFlight + 1)) {
+                    try {
+                        refill.execute(this::generateOne);
+                    } catch (RejectedExecutionException e) {
+                        pending.decrementAndGet();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void generateOne() {
+            try {
+                ready.offer(generate(keySize));
+            } catch (NoSuchAlgorithmException | RuntimeException e) {
+                log.warn("Cannot pre-generate a {} bit RSA key pair", keySize, e);
+            } finally {
+                pending.decrementAndGet();
+            }
+        }
+    }
+}
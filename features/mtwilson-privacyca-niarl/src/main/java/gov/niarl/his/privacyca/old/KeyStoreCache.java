@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAKey;
+import java.security.interfaces.RSAMultiPrimePrivateCrtKey;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * <p>Keeps the decoded contents of PKCS #12 files for TpmUtils.privKeyFromP12 and certFromP12.
+ * Loading one runs the PKCS #12 key derivation and decrypts every entry, which takes
+ * milliseconds; callers that read the CA key and certificate for each request get them from
+ * memory instead.</p>
+ *
+ * <p>Contents are cached per file and password. When several threads ask for a file that is
+ * not loaded yet, one of them loads it and the others wait for it. The directories of cached
+ * files are watched with a WatchService, and a file that changes is loaded again in the
+ * background; the new contents replace the old ones only once they have loaded, so a key
+ * rotation never exposes a half-read file. Watch events can be late or missing, so each call
+ * also compares the size, modification time and file key of the file with those it was
+ * loaded from, and loads it again if they differ. Rotate files by writing a new file and
+ * renaming it over the old one.</p>
+ */
+public class KeyStoreCache implements Closeable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(KeyStoreCache.class);
+    /** System property that turns off watching of the default cache when "false". */
+    public static final String WATCH_PROPERTY = "privacyca.keystore.watch";
+    private static final Object defaultLock = new Object();
+    private static volatile KeyStoreCache defaultCache;
+
+    private final ConcurrentHashMap<String, Holder> holders = new ConcurrentHashMap<>();
+    private final Set<Path> watchedDirectories = new HashSet<>();
+    private final WatchService watcher;
+    private final Thread watchThread;
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder reloads = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * The contents of a PKCS #12 file.
+     */
+    public static class Material {
+        private final Map<String, PrivateKey> privateKeys;
+        private final Map<String, X509Certificate> certificates;
+        private final String lastAlias;
+        private final Map<String, UnrecoverableKeyException> unreadable;
+        private final BasicFileAttributes attributes;
+
+        Material(Map<String, PrivateKey> privateKeys, Map<String, X509Certificate> certificates, String lastAlias,
+                Map<String, UnrecoverableKeyException> unreadable, BasicFileAttributes attributes) {
+            this.privateKeys = Collections.unmodifiableMap(privateKeys);
+            this.certificates = Collections.unmodifiableMap(certificates);
+            this.lastAlias = lastAlias;
+            this.unreadable = Collections.unmodifiableMap(unreadable);
+            this.attributes = attributes;
+        }
+
+        /**
+         * @return The private key of the last alias, as privKeyFromP12 returns it, or null.
+         * @throws UnrecoverableKeyException If the key of the last alias could not be decrypted.
+         */
+        public PrivateKey getPrivateKey() throws UnrecoverableKeyException {
+            return getPrivateKey(lastAlias);
+        }
+
+        /**
+         * @throws UnrecoverableKeyException If the key of the alias could not be decrypted.
+         */
+        public PrivateKey getPrivateKey(String alias) throws UnrecoverableKeyException {
+            if (alias == null) {
+                return null;
+            }
+            UnrecoverableKeyException e = unreadable.get(alias);
+            if (e != null) {
+                throw e;
+            }
+            return privateKeys.get(alias);
+        }
+
+        /**
+         * @return The certificate of the last alias, as certFromP12 returns it, or null.
+         */
+        public X509Certificate getCertificate() {
+            return getCertificate(lastAlias);
+        }
+
+        public X509Certificate getCertificate(String alias) {
+            return alias == null ? null : certificates.get(alias);
+        }
+
+        /**
+         * @return true if the file no longer has the size, modification time or file key it was loaded with.
+         */
+        boolean isStale(Path path) {
+            try {
+                BasicFileAttributes current = Files.readAttributes(path, BasicFileAttributes.class);
+                return current.size() != attributes.size()
+                        || !current.lastModifiedTime().equals(attributes.lastModifiedTime())
+                        || !Objects.equals(current.fileKey(), attributes.fileKey());
+            } catch (IOException e) {
+                return true;
+            }
+        }
+    }
+
+    private final class Holder {
+        private final String cacheKey;
+        private final Path path;
+        private final char[] password;
+        private final AtomicReference<FutureTask<Material>> current = new AtomicReference<>();
+
+        Holder(String cacheKey, Path path, char[] password) {
+            this.cacheKey = cacheKey;
+            this.path = path;
+            this.password = password;
+            current.set(newLoad());
+        }
+
+        FutureTask<Material> newLoad() {
+            return new FutureTask<>(() -> load(path, password));
+        }
+
+        /**
+         * Replace expected, which is failed or stale, with a new load, unless another thread has already.
+         */
+        FutureTask<Material> replace(FutureTask<Material> expected) {
+            FutureTask<Material> next = newLoad();
+            return current.compareAndSet(expected, next) ? next : current.get();
+        }
+    }
+
+    /**
+     * @param watch Whether to watch cached files and reload them when they change.
+     */
+    public KeyStoreCache(boolean watch) {
+        WatchService service = null;
+        if (watch) {
+            try {
+                service = FileSystems.getDefault().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                log.warn("Cannot watch PKCS #12 files, changes are noticed when they are next read: {}", e.getMessage());
+            }
+        }
+        this.watcher = service;
+        if (service != null) {
+            watchThread = new Thread(this::watchLoop, "privacyca-keystore-watch");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        } else {
+            watchThread = null;
+        }
+    }
+
+    /**
+     * @return The cache used by TpmUtils, which watches files unless the privacyca.keystore.watch system property is "false".
+     */
+    public static KeyStoreCache getDefault() {
+        KeyStoreCache cache = defaultCache;
+        if (cache == null) {
+            synchronized (defaultLock) {
+                cache = defaultCache;
+                if (cache == null) {
+                    cache = new KeyStoreCache(!"false".equals(System.getProperty(WATCH_PROPERTY)));
+                    defaultCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * @return The contents of the file, loading them if they are not cached or the file has changed.
+     */
+    public Material get(String filename, String password)
+            throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException {
+        Path path = Paths.get(filename).toAbsolutePath().normalize();
+        char[] passwordChars = password.toCharArray();
+        String cacheKey = path + "\n" + Hex.toHexString(CryptoPrimitives.messageDigest("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8)));
+        Holder holder = holders.get(cacheKey);
+        if (holder == null) {
+            holder = holders.computeIfAbsent(cacheKey, key -> new Holder(key, path, passwordChars));
+            watch(path.getParent());
+        }
+        FutureTask<Material> task = holder.current.get();
+        Material material = await(holder, task);
+        if (material.isStale(path)) {
+            material = await(holder, holder.replace(task));
+        }
+        return material;
+    }
+
+    /**
+     * Run the load unless another thread is running or has run it, and wait for it. A failed
+     * load is replaced so that the next call tries again. A load that cannot read the file, because
+     * it is missing or the password is wrong, also drops the holder, so that each password tried
+     * does not keep a copy of itself in the cache.
+     */
+    private Material await(Holder holder, FutureTask<Material> task)
+            throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException {
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading " + holder.path);
+        } catch (ExecutionException e) {
+            holder.replace(task);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                holders.remove(holder.cacheKey, holder);
+            }
+            if (cause instanceof KeyStoreException) {
+                throw (KeyStoreException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            }
+            if (cause instanceof CertificateException) {
+                throw (CertificateException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new KeyStoreException("Cannot load " + holder.path, cause);
+        }
+    }
+
+    private Material load(Path path, char[] password)
+            throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException {
+        loads.increment();
+        // the attributes are read first, so a change during the read makes the result stale
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        byte[] contents = Files.readAllBytes(path);
+        KeyStore keystore = KeyStore.getInstance("PKCS12");
+        keystore.load(new ByteArrayInputStream(contents), password);
+        Map<String, PrivateKey> privateKeys = new LinkedHashMap<>();
+        Map<String, X509Certificate> certificates = new LinkedHashMap<>();
+        String lastAlias = null;
+        Map<String, UnrecoverableKeyException> unreadable = new LinkedHashMap<>();
+        // aliases whose key the KeyStore could not read, or read without the extra primes
+        Set<String> multiPrime = new HashSet<>();
+        Enumeration<String> aliases = keystore.aliases();
+        while (aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
+            lastAlias = alias;
+            try {
+                Key key = keystore.getKey(alias, password);
+                if (key instanceof PrivateKey) {
+                    privateKeys.put(alias, (PrivateKey) key);
+                    if (MultiPrimeRsa.lostOtherPrimes(key)) {
+                        multiPrime.add(alias);
+                    }
+                }
+            } catch (UnrecoverableKeyException e) {
+                unreadable.put(alias, e);
+                multiPrime.add(alias);
+            }
+            Certificate certificate = keystore.getCertificate(alias);
+            if (certificate instanceof X509Certificate) {
+                certificates.put(alias, (X509Certificate) certificate);
+            }
+        }
+        if (!multiPrime.isEmpty()) {
+            recoverMultiPrimeKeys(contents, password, multiPrime, privateKeys, certificates, unreadable);
+        }
+        return new Material(privateKeys, certificates, lastAlias, unreadable, attributes);
+    }
+
+    /**
+     * Replace the keys of the aliases with the multi-prime keys of the file that have the same
+     * modulus, which the installed providers cannot parse or parse without the extra primes. The
+     * modulus comes from the key the KeyStore returned or from the certificate of the alias. An
+     * alias without a matching key is unreadable.
+     */
+    private static void recoverMultiPrimeKeys(byte[] contents, char[] password, Set<String> aliases, Map<String, PrivateKey> privateKeys,
+            Map<String, X509Certificate> certificates, Map<String, UnrecoverableKeyException> unreadable)
+            throws IOException, NoSuchAlgorithmException {
+        Map<BigInteger, PrivateKey> byModulus = new HashMap<>();
+        try {
+            for (RSAMultiPrimePrivateCrtKey key : MultiPrimeRsa.privateKeysFromPkcs12(contents, password)) {
+                byModulus.put(key.getModulus(), key);
+            }
+        } catch (UnrecoverableKeyException e) {
+            for (String alias : aliases) {
+                privateKeys.remove(alias);
+                unreadable.put(alias, e);
+            }
+            return;
+        }
+        for (String alias : aliases) {
+            BigInteger modulus = null;
+            if (privateKeys.get(alias) instanceof RSAKey) {
+                modulus = ((RSAKey) privateKeys.get(alias)).getModulus();
+            } else if (certificates.get(alias) != null && certificates.get(alias).getPublicKey() instanceof RSAKey) {
+                modulus = ((RSAKey) certificates.get(alias).getPublicKey()).getModulus();
+            }
+            PrivateKey key = modulus == null ? null : byModulus.get(modulus);
+            if (key != null) {
+                privateKeys.put(alias, key);
+                unreadable.remove(alias);
+            } else if (privateKeys.remove(alias) != null) {
+                unreadable.put(alias, new UnrecoverableKeyException("The RSA private key of " + alias + " does not match its modulus"));
+            }
+        }
+    }
+
+    private void watch(Path directory) {
+        if (watcher == null || directory == null) {
+            return;
+        }
+        synchronized (watchedDirectories) {
+            if (!watchedDirectories.add(directory)) {
+                return;
+            }
+            try {
+                directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (IOException | ClosedWatchServiceException e) {
+                log.debug("Cannot watch {}: {}", directory, e.getMessage());
+            }
+        }
+    }
+
+    private void watchLoop() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            Set<Path> changed = new HashSet<>();
+            boolean overflow = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                } else {
+                    changed.add(directory.resolve((Path) event.context()));
+                }
+            }
+            key.reset();
+            for (Holder holder : holders.values()) {
+                if (overflow ? directory.equals(holder.path.getParent()) : changed.contains(holder.path)) {
+                    reload(holder);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load a changed file and swap the result in, keeping the old contents if it cannot be loaded.
+     */
+    private void reload(Holder holder) {
+        FutureTask<Material> current = holder.current.get();
+        if (current.isDone()) {
+            try {
+                if (!current.get().isStale(holder.path)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // load it again below
+            }
+        }
+        try {
+            Material material = load(holder.path, holder.password);
+            FutureTask<Material> loaded = new FutureTask<>(() -> material);
+            loaded.run();
+            holder.current.set(loaded);
+            reloads.increment();
+            log.info("Reloaded {}", holder.path);
+        } catch (Exception e) {
+            log.warn("Cannot reload {}, keeping the loaded contents: {}", holder.path, e.getMessage());
+        }
+    }
+
+    /**
+     * @return Whether cached files are watched for changes.
+     */
+    public boolean isWatching() {
+        return watcher != null;
+    }
+
+    /**
+     * @return The number of times a file was loaded, including reloads.
+     */
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    /**
+     * @return The number of times a changed file was reloaded in the background.
+     */
+    public long getReloads() {
+        return reloads.sum();
+    }
+
+    /**
+     * @return The number of file and password pairs held in the cache.
+     */
+    int size() {
+        return holders.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (watcher != null) {
+            watcher.close();
+            watchThread.interrupt();
+        }
+        holders.clear();
+    }
+}
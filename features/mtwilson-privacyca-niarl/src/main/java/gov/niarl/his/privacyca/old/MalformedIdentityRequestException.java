@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+/**
+ * Thrown when an identity request fails TpmIdentityRequestValidator. The stack trace is not
+ * filled in: the cause is fully described by the result code, and rejecting garbage should
+ * not cost more than validating it.
+ */
+public class MalformedIdentityRequestException extends PrivacyCaException {
+    private final TpmIdentityRequestValidator.Result result;
+
+    public MalformedIdentityRequestException(TpmIdentityRequestValidator.Result result) {
+        super("Malformed TPM_IDENTITY_REQ: " + result);
+        this.result = result;
+    }
+
+    public TpmIdentityRequestValidator.Result getResult() {
+        return result;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,680 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+import java.security.UnrecoverableKeyException;
+import java.security.interfaces.RSAMultiPrimePrivateCrtKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAOtherPrimeInfo;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.EncryptedPrivateKeyInfo;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.AuthenticatedSafe;
+import org.bouncycastle.asn1.pkcs.ContentInfo;
+import org.bouncycastle.asn1.pkcs.KeyDerivationFunc;
+import org.bouncycastle.asn1.pkcs.PBES2Parameters;
+import org.bouncycastle.asn1.pkcs.PBKDF2Params;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.Pfx;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.pkcs.SafeBag;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+
+/**
+ * <p>Multi-prime RSA private keys (RFC 8017) for the Privacy CA. With three primes each CRT
+ * exponentiation works on numbers a third of the modulus long instead of half, which makes the
+ * private operation, used both to decrypt identity request asym blobs and to sign
+ * certificates, faster. The public key is an ordinary RSA public key, so TPMs and relying
+ * parties see no difference.</p>
+ *
+ * <p>Neither SunRsaSign nor BouncyCastle generates such keys or uses the extra primes:
+ * SunRsaSign's KeyFactory rejects a version 1 RSAPrivateKey with OtherPrimeInfos outright, and
+ * BouncyCastle parses one but drops the extra primes, which leaves a key it cannot use. This
+ * class generates the keys, encodes and parses them as PKCS#8, reads them back out of PKCS #12
+ * files, and does the private operation with blinding, checking the result with the public
+ * exponent. The keys are only usable through it: TcgOaep decrypts with it and
+ * {@link #getProvider()} signs with it.</p>
+ */
+public final class MultiPrimeRsa {
+    /** The key algorithm createCaP12 takes for a multi-prime RSA CA key. */
+    public static final String ALGORITHM = "RSA-MP";
+    public static final String PROVIDER_NAME = "PrivacyCAMultiPrimeRSA";
+    private static final BigInteger PUBLIC_EXPONENT = RSAKeyGenParameterSpec.F4;
+    // DER DigestInfo prefixes for EMSA-PKCS1-v1_5 (RFC 8017 section 9.2, note 1)
+    private static final byte[] SHA256_DIGEST_INFO = {0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20};
+    private static final byte[] SHA384_DIGEST_INFO = {0x30, 0x41, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x02, 0x05, 0x00, 0x04, 0x30};
+    private static final SecureRandom blindingRandom = new SecureRandom();
+    // {r^e, r^-1} per modulus, renewed by squaring as the JDK's RSACore does; a modInverse costs more than the CRT itself
+    private static final Map<BigInteger, BigInteger[]> blindings = new WeakHashMap<>();
+    private static final Provider provider = new MultiPrimeProvider();
+    // the PBES2 PRFs and ciphers there are JCE PBEWith<prf>And<cipher> names for
+    private static final Map<ASN1ObjectIdentifier, String> PBES2_PRFS = pbes2Prfs();
+    private static final Map<ASN1ObjectIdentifier, String> PBES2_CIPHERS = pbes2Ciphers();
+
+    static {
+        if (Security.getProvider(PROVIDER_NAME) == null) {
+            Security.addProvider(provider);
+        }
+    }
+
+    private MultiPrimeRsa() {
+    }
+
+    /**
+     * The provider for SHA256withRSA and SHA384withRSA signatures with multi-prime keys. It is
+     * registered, last, under {@link #PROVIDER_NAME}, and only signs.
+     */
+    public static Provider getProvider() {
+        return provider;
+    }
+
+    /**
+     * @return The most primes a modulus of keySize bits may have: 2 below 1024 bits, 3 below
+     * 4096, 4 below 8192 and 5 from there, as OpenSSL allows.
+     */
+    public static int maxPrimes(int keySize) {
+        if (keySize < 1024) {
+            return 2;
+        }
+        if (keySize < 4096) {
+            return 3;
+        }
+        if (keySize < 8192) {
+            return 4;
+        }
+        return 5;
+    }
+
+    /**
+     * @return true if key is an RSA private key with more than two primes.
+     */
+    public static boolean isMultiPrime(Key key) {
+        if (!(key instanceof RSAMultiPrimePrivateCrtKey)) {
+            return false;
+        }
+        RSAOtherPrimeInfo[] otherPrimes = ((RSAMultiPrimePrivateCrtKey) key).getOtherPrimeInfo();
+        return otherPrimes != null && otherPrimes.length > 0;
+    }
+
+    /**
+     * @return true if key is a CRT key whose two primes do not make up its modulus, which is
+     * what BouncyCastle makes of a multi-prime key.
+     */
+    static boolean lostOtherPrimes(Key key) {
+        if (!(key instanceof RSAPrivateCrtKey)) {
+            return false;
+        }
+        RSAPrivateCrtKey crtKey = (RSAPrivateCrtKey) key;
+        return crtKey.getPrimeP() != null && crtKey.getPrimeQ() != null
+                && !crtKey.getPrimeP().multiply(crtKey.getPrimeQ()).equals(crtKey.getModulus());
+    }
+
+    /**
+     * Generate a key pair with the public exponent 65537 and primes of about equal size.
+     *
+     * @param keySize The modulus size in bits.
+     * @param primes The number of primes, from 2 to {@link #maxPrimes(int)}.
+     * @return The key pair; the private key is an RSAMultiPrimePrivateCrtKey.
+     * @throws InvalidParameterException If the number of primes does not fit the key size.
+     */
+    public static KeyPair generateKeyPair(int keySize, int primes, SecureRandom random)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        if (primes < 2 || primes > maxPrimes(keySize)) {
+            throw new InvalidParameterException(primes + " primes are not allowed for a " + keySize + " bit key");
+        }
+        BigInteger[] factors = new BigInteger[primes];
+        BigInteger modulus;
+        BigInteger lambda;
+        do {
+            modulus = BigInteger.ONE;
+            lambda = BigInteger.ONE;
+            for (int index = 0; index < primes; index++) {
+                // the first primes take up the bits that do not divide evenly
+                int bits = keySize / primes + (index < keySize % primes ? 1 : 0);
+                factors[index] = generatePrime(bits, factors, index, random);
+                modulus = modulus.multiply(factors[index]);
+                BigInteger pMinusOne = factors[index].subtract(BigInteger.ONE);
+                lambda = lambda.divide(lambda.gcd(pMinusOne)).multiply(pMinusOne);
+            }
+            // with the top two bits set two primes always make keySize bits, but more can fall one short
+        } while (modulus.bitLength() != keySize);
+        BigInteger privateExponent = PUBLIC_EXPONENT.modInverse(lambda);
+        MultiPrimeKey privateKey = new MultiPrimeKey(modulus, PUBLIC_EXPONENT, privateExponent, factors);
+        PublicKey publicKey = KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, PUBLIC_EXPONENT));
+        return new KeyPair(publicKey, privateKey);
+    }
+
+    /**
+     * A prime of exactly bits bits with the top two bits set, which makes a product of the
+     * requested size likely, with p - 1 coprime to e, and not one already chosen.
+     */
+    private static BigInteger generatePrime(int bits, BigInteger[] chosen, int count, SecureRandom random) {
+        while (true) {
+            BigInteger prime = BigInteger.probablePrime(bits, random);
+            if (!prime.testBit(bits - 2) || !prime.subtract(BigInteger.ONE).gcd(PUBLIC_EXPONENT).equals(BigInteger.ONE)) {
+                continue;
+            }
+            boolean repeated = false;
+            for (int index = 0; index < count; index++) {
+                repeated |= chosen[index].equals(prime);
+            }
+            if (!repeated) {
+                return prime;
+            }
+        }
+    }
+
+    /**
+     * The RSA private operation, RSADP/RSASP1 of RFC 8017 with the CRT over every prime. The
+     * input is blinded and the result is checked with the public exponent, so a faulty
+     * computation never leaves this method.
+     *
+     * @param input An integer below the modulus, as a big-endian byte array.
+     * @return The result, as a big-endian byte array of the modulus length.
+     * @throws BadPaddingException If the input is not below the modulus or the check fails.
+     */
+    public static byte[] privateOperation(RSAMultiPrimePrivateCrtKey key, byte[] input)
+            throws BadPaddingException {
+        BigInteger modulus = key.getModulus();
+        BigInteger c = new BigInteger(1, input);
+        if (c.compareTo(modulus) >= 0) {
+            throw new BadPaddingException("Message is larger than modulus");
+        }
+        BigInteger[] blinding = blinding(key);
+        BigInteger blinded = c.multiply(blinding[0]).mod(modulus);
+        BigInteger m = crt(key, blinded).multiply(blinding[1]).mod(modulus);
+        if (!m.modPow(key.getPublicExponent(), modulus).equals(c)) {
+            throw new BadPaddingException("RSA private key operation failed");
+        }
+        byte[] magnitude = m.toByteArray();
+        byte[] result = new byte[(modulus.bitLength() + 7) / 8];
+        int length = Math.min(magnitude.length, result.length);
+        System.arraycopy(magnitude, magnitude.length - length, result, result.length - length, length);
+        return result;
+    }
+
+    /**
+     * @return {r^e, r^-1} mod n for a random r, different for every call.
+     */
+    private static BigInteger[] blinding(RSAMultiPrimePrivateCrtKey key) {
+        BigInteger modulus = key.getModulus();
+        synchronized (blindings) {
+            BigInteger[] current = blindings.get(modulus);
+            if (current != null) {
+                blindings.put(modulus, new BigInteger[] {current[0].multiply(current[0]).mod(modulus), current[1].multiply(current[1]).mod(modulus)});
+                return current;
+            }
+        }
+        while (true) {
+            BigInteger r = new BigInteger(modulus.bitLength(), blindingRandom).mod(modulus);
+            try {
+                BigInteger[] fresh = {r.modPow(key.getPublicExponent(), modulus), r.modInverse(modulus)};
+                synchronized (blindings) {
+                    blindings.put(modulus, new BigInteger[] {fresh[0].multiply(fresh[0]).mod(modulus), fresh[1].multiply(fresh[1]).mod(modulus)});
+                }
+                return fresh;
+            } catch (ArithmeticException e) {
+                // r shares a factor with the modulus; practically never happens
+            }
+        }
+    }
+
+    /**
+     * RFC 8017 section 5.1.2, step 2.b.
+     */
+    private static BigInteger crt(RSAMultiPrimePrivateCrtKey key, BigInteger c) {
+        BigInteger p = key.getPrimeP();
+        BigInteger q = key.getPrimeQ();
+        BigInteger mP = c.mod(p).modPow(key.getPrimeExponentP(), p);
+        BigInteger mQ = c.mod(q).modPow(key.getPrimeExponentQ(), q);
+        BigInteger m = mQ.add(q.multiply(mP.subtract(mQ).multiply(key.getCrtCoefficient()).mod(p)));
+        BigInteger product = p.multiply(q);
+        for (RSAOtherPrimeInfo info : key.getOtherPrimeInfo()) {
+            BigInteger prime = info.getPrime();
+            BigInteger mI = c.mod(prime).modPow(info.getExponent(), prime);
+            m = m.add(product.multiply(mI.subtract(m).multiply(info.getCrtCoefficient()).mod(prime)));
+            product = product.multiply(prime);
+        }
+        return m;
+    }
+
+    /**
+     * @param pkcs8 A PKCS#8 PrivateKeyInfo holding a version 1 (multi-prime) RSAPrivateKey.
+     * @return The key.
+     * @throws InvalidKeySpecException If pkcs8 does not hold a multi-prime RSA key.
+     */
+    public static RSAMultiPrimePrivateCrtKey privateKey(byte[] pkcs8)
+            throws InvalidKeySpecException {
+        try {
+            PrivateKeyInfo info = PrivateKeyInfo.getInstance(pkcs8);
+            if (!PKCSObjectIdentifiers.rsaEncryption.equals(info.getPrivateKeyAlgorithm().getAlgorithm())) {
+                throw new InvalidKeySpecException("Not an RSA key: " + info.getPrivateKeyAlgorithm().getAlgorithm());
+            }
+            ASN1Sequence sequence = ASN1Sequence.getInstance(info.parsePrivateKey());
+            if (sequence.size() != 10 || !integer(sequence, 0).equals(BigInteger.ONE)) {
+                throw new InvalidKeySpecException("Not a multi-prime RSA key");
+            }
+            ASN1Sequence others = ASN1Sequence.getInstance(sequence.getObjectAt(9));
+            RSAOtherPrimeInfo[] otherPrimes = new RSAOtherPrimeInfo[others.size()];
+            for (int index = 0; index < otherPrimes.length; index++) {
+                ASN1Sequence other = ASN1Sequence.getInstance(others.getObjectAt(index));
+                otherPrimes[index] = new RSAOtherPrimeInfo(integer(other, 0), integer(other, 1), integer(other, 2));
+            }
+            return new MultiPrimeKey(integer(sequence, 1), integer(sequence, 2), integer(sequence, 3), integer(sequence, 4), integer(sequence, 5),
+                    integer(sequence, 6), integer(sequence, 7), integer(sequence, 8), otherPrimes);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new InvalidKeySpecException("Cannot parse the RSA private key", e);
+        }
+    }
+
+    private static BigInteger integer(ASN1Sequence sequence, int index) {
+        return ASN1Integer.getInstance(sequence.getObjectAt(index)).getValue();
+    }
+
+    /**
+     * Read a multi-prime RSA key from the shrouded key bags of a PKCS #12 file, for when the
+     * KeyStore cannot. The MAC is not checked here; load the file with a KeyStore first.
+     *
+     * @param pfx The PKCS #12 file contents.
+     * @param password The password the key is encrypted with.
+     * @return The first multi-prime key, or null if there is none.
+     * @throws UnrecoverableKeyException If a key bag cannot be decrypted.
+     */
+    public static RSAMultiPrimePrivateCrtKey privateKeyFromPkcs12(byte[] pfx, char[] password)
+            throws IOException, NoSuchAlgorithmException, UnrecoverableKeyException {
+        List<RSAMultiPrimePrivateCrtKey> keys = privateKeysFromPkcs12(pfx, password);
+        return keys.isEmpty() ? null : keys.get(0);
+    }
+
+    /**
+     * Read every multi-prime RSA key from the shrouded key bags of a PKCS #12 file, as
+     * privateKeyFromPkcs12 does. Match them to the KeyStore entries by modulus.
+     *
+     * @return The multi-prime keys in the order of the file; empty if there are none.
+     * @throws UnrecoverableKeyException If a key bag cannot be decrypted.
+     */
+    public static List<RSAMultiPrimePrivateCrtKey> privateKeysFromPkcs12(byte[] pfx, char[] password)
+            throws IOException, NoSuchAlgorithmException, UnrecoverableKeyException {
+        List<RSAMultiPrimePrivateCrtKey> keys = new ArrayList<>();
+        AuthenticatedSafe authenticatedSafe = AuthenticatedSafe.getInstance(
+                ASN1OctetString.getInstance(Pfx.getInstance(ASN1Primitive.fromByteArray(pfx)).getAuthSafe().getContent()).getOctets());
+        for (ContentInfo contentInfo : authenticatedSafe.getContentInfo()) {
+            // keys are in shrouded key bags, which need no outer encryption
+            if (!PKCSObjectIdentifiers.data.equals(contentInfo.getContentType())) {
+                continue;
+            }
+            ASN1Sequence bags = ASN1Sequence.getInstance(ASN1OctetString.getInstance(contentInfo.getContent()).getOctets());
+            for (int index = 0; index < bags.size(); index++) {
+                SafeBag bag = SafeBag.getInstance(bags.getObjectAt(index));
+                if (!PKCSObjectIdentifiers.pkcs8ShroudedKeyBag.equals(bag.getBagId())) {
+                    continue;
+                }
+                byte[] pkcs8 = decrypt(new EncryptedPrivateKeyInfo(bag.getBagValue().toASN1Primitive().getEncoded()), password);
+                try {
+                    keys.add(privateKey(pkcs8));
+                } catch (InvalidKeySpecException e) {
+                    // some other kind of key
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static byte[] decrypt(EncryptedPrivateKeyInfo encrypted, char[] password)
+            throws NoSuchAlgorithmException, UnrecoverableKeyException {
+        AlgorithmParameters parameters = encrypted.getAlgParameters();
+        String algorithm = encrypted.getAlgName();
+        if (parameters != null && ("PBES2".equals(algorithm) || PKCSObjectIdentifiers.id_PBES2.getId().equals(algorithm))) {
+            algorithm = pbes2Algorithm(parameters);
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(algorithm);
+            cipher.init(Cipher.DECRYPT_MODE, SecretKeyFactory.getInstance(algorithm).generateSecret(new PBEKeySpec(password)), parameters);
+            return encrypted.getKeySpec(cipher).getEncoded();
+        } catch (NoSuchAlgorithmException e) {
+            throw e;
+        } catch (GeneralSecurityException e) {
+            UnrecoverableKeyException wrapped = new UnrecoverableKeyException("Cannot decrypt the private key: " + e.getMessage());
+            wrapped.initCause(e);
+            throw wrapped;
+        }
+    }
+
+    /**
+     * PBES2 names its PRF and cipher in its parameters (RFC 8018 appendix A.4); the JCE name of
+     * the combination is e.g. PBEWithHmacSHA256AndAES_256.
+     */
+    private static String pbes2Algorithm(AlgorithmParameters parameters) throws NoSuchAlgorithmException {
+        PBES2Parameters pbes2;
+        try {
+            pbes2 = PBES2Parameters.getInstance(ASN1Primitive.fromByteArray(parameters.getEncoded()));
+        } catch (IOException | IllegalArgumentException e) {
+            NoSuchAlgorithmException wrapped = new NoSuchAlgorithmException("Cannot read the PBES2 parameters");
+            wrapped.initCause(e);
+            throw wrapped;
+        }
+        KeyDerivationFunc keyDerivation = pbes2.getKeyDerivationFunc();
+        if (!PKCSObjectIdentifiers.id_PBKDF2.equals(keyDerivation.getAlgorithm())) {
+            throw new NoSuchAlgorithmException("Unsupported PBES2 key derivation function " + keyDerivation.getAlgorithm());
+        }
+        ASN1ObjectIdentifier prf = PBKDF2Params.getInstance(keyDerivation.getParameters()).getPrf().getAlgorithm();
+        String prfName = PBES2_PRFS.get(prf);
+        if (prfName == null) {
+            throw new NoSuchAlgorithmException("Unsupported PBES2 pseudorandom function " + prf);
+        }
+        ASN1ObjectIdentifier scheme = pbes2.getEncryptionScheme().getAlgorithm();
+        String schemeName = PBES2_CIPHERS.get(scheme);
+        if (schemeName == null) {
+            throw new NoSuchAlgorithmException("Unsupported PBES2 encryption scheme " + scheme);
+        }
+        return "PBEWith" + prfName + "And" + schemeName;
+    }
+
+    private static Map<ASN1ObjectIdentifier, String> pbes2Prfs() {
+        Map<ASN1ObjectIdentifier, String> prfs = new HashMap<>();
+        prfs.put(PKCSObjectIdentifiers.id_hmacWithSHA1, "HmacSHA1");
+        prfs.put(PKCSObjectIdentifiers.id_hmacWithSHA224, "HmacSHA224");
+        prfs.put(PKCSObjectIdentifiers.id_hmacWithSHA256, "HmacSHA256");
+        prfs.put(PKCSObjectIdentifiers.id_hmacWithSHA384, "HmacSHA384");
+        prfs.put(PKCSObjectIdentifiers.id_hmacWithSHA512, "HmacSHA512");
+        return Collections.unmodifiableMap(prfs);
+    }
+
+    private static Map<ASN1ObjectIdentifier, String> pbes2Ciphers() {
+        Map<ASN1ObjectIdentifier, String> ciphers = new HashMap<>();
+        ciphers.put(NISTObjectIdentifiers.id_aes128_CBC, "AES_128");
+        ciphers.put(NISTObjectIdentifiers.id_aes256_CBC, "AES_256");
+        return Collections.unmodifiableMap(ciphers);
+    }
+
+    /**
+     * A multi-prime RSA private key, encoded as PKCS#8.
+     */
+    static final class MultiPrimeKey implements RSAMultiPrimePrivateCrtKey {
+        private static final long serialVersionUID = 1L;
+        private final BigInteger modulus;
+        private final BigInteger publicExponent;
+        private final BigInteger privateExponent;
+        private final BigInteger primeP;
+        private final BigInteger primeQ;
+        private final BigInteger primeExponentP;
+        private final BigInteger primeExponentQ;
+        private final BigInteger crtCoefficient;
+        private final RSAOtherPrimeInfo[] otherPrimes;
+
+        MultiPrimeKey(BigInteger modulus, BigInteger publicExponent, BigInteger privateExponent, BigInteger primeP, BigInteger primeQ,
+                BigInteger primeExponentP, BigInteger primeExponentQ, BigInteger crtCoefficient, RSAOtherPrimeInfo[] otherPrimes) {
+            this.modulus = modulus;
+            this.publicExponent = publicExponent;
+            this.privateExponent = privateExponent;
+            this.primeP = primeP;
+            this.primeQ = primeQ;
+            this.primeExponentP = primeExponentP;
+            this.primeExponentQ = primeExponentQ;
+            this.crtCoefficient = crtCoefficient;
+            this.otherPrimes = otherPrimes.clone();
+        }
+
+        /**
+         * Derive the CRT values from the primes, in the order given.
+         */
+        MultiPrimeKey(BigInteger modulus, BigInteger publicExponent, BigInteger privateExponent, BigInteger[] primes) {
+            this(modulus, publicExponent, privateExponent, primes[0], primes[1],
+                    privateExponent.mod(primes[0].subtract(BigInteger.ONE)),
+                    privateExponent.mod(primes[1].subtract(BigInteger.ONE)),
+                    primes[1].modInverse(primes[0]),
+                    otherPrimes(privateExponent, primes));
+        }
+
+        private static RSAOtherPrimeInfo[] otherPrimes(BigInteger privateExponent, BigInteger[] primes) {
+            RSAOtherPrimeInfo[] otherPrimes = new RSAOtherPrimeInfo[primes.length - 2];
+            BigInteger product = primes[0].multiply(primes[1]);
+            for (int index = 2; index < primes.length; index++) {
+                BigInteger prime = primes[index];
+                otherPrimes[index - 2] = new RSAOtherPrimeInfo(prime, privateExponent.mod(prime.subtract(BigInteger.ONE)), product.modInverse(prime));
+                product = product.multiply(prime);
+            }
+            return otherPrimes;
+        }
+
+        @Override
+        public BigInteger getModulus() {
+            return modulus;
+        }
+
+        @Override
+        public BigInteger getPublicExponent() {
+            return publicExponent;
+        }
+
+        @Override
+        public BigInteger getPrivateExponent() {
+            return privateExponent;
+        }
+
+        @Override
+        public BigInteger getPrimeP() {
+            return primeP;
+        }
+
+        @Override
+        public BigInteger getPrimeQ() {
+            return primeQ;
+        }
+
+        @Override
+        public BigInteger getPrimeExponentP() {
+            return primeExponentP;
+        }
+
+        @Override
+        public BigInteger getPrimeExponentQ() {
+            return primeExponentQ;
+        }
+
+        @Override
+        public BigInteger getCrtCoefficient() {
+            return crtCoefficient;
+        }
+
+        @Override
+        public RSAOtherPrimeInfo[] getOtherPrimeInfo() {
+            return otherPrimes.length == 0 ? null : otherPrimes.clone();
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "RSA";
+        }
+
+        @Override
+        public String getFormat() {
+            return "PKCS#8";
+        }
+
+        /**
+         * @return PrivateKeyInfo with RSAPrivateKey version 1 (RFC 8017 appendix A.1.2).
+         */
+        @Override
+        public byte[] getEncoded() {
+            ASN1EncodableVector fields = new ASN1EncodableVector();
+            fields.add(new ASN1Integer(otherPrimes.length == 0 ? 0 : 1));
+            for (BigInteger value : new BigInteger[] {modulus, publicExponent, privateExponent, primeP, primeQ, primeExponentP, primeExponentQ, crtCoefficient}) {
+                fields.add(new ASN1Integer(value));
+            }
+            if (otherPrimes.length > 0) {
+                ASN1EncodableVector others = new ASN1EncodableVector();
+                for (RSAOtherPrimeInfo info : otherPrimes) {
+                    ASN1EncodableVector other = new ASN1EncodableVector();
+                    other.add(new ASN1Integer(info.getPrime()));
+                    other.add(new ASN1Integer(info.getExponent()));
+                    other.add(new ASN1Integer(info.getCrtCoefficient()));
+                    others.add(new DERSequence(other));
+                }
+                fields.add(new DERSequence(others));
+            }
+            try {
+                return new PrivateKeyInfo(new AlgorithmIdentifier(PKCSObjectIdentifiers.rsaEncryption, DERNull.INSTANCE), new DERSequence(fields)).getEncoded();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * RSASSA-PKCS1-v1_5 signing (RFC 8017 section 8.2.1) with a multi-prime key.
+     */
+    abstract static class MultiPrimeSignature extends SignatureSpi {
+        private final String digestAlgorithm;
+        private final byte[] digestInfo;
+        private MessageDigest digest;
+        private RSAMultiPrimePrivateCrtKey key;
+
+        MultiPrimeSignature(String digestAlgorithm, byte[] digestInfo) {
+            this.digestAlgorithm = digestAlgorithm;
+            this.digestInfo = digestInfo;
+        }
+
+        @Override
+        protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+            throw new InvalidKeyException("Only signing is supported; verify with a standard RSA provider");
+        }
+
+        @Override
+        protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+            if (!isMultiPrime(privateKey)) {
+                throw new InvalidKeyException("Not a multi-prime RSA key");
+            }
+            try {
+                digest = MessageDigest.getInstance(digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new InvalidKeyException(e);
+            }
+            key = (RSAMultiPrimePrivateCrtKey) privateKey;
+        }
+
+        @Override
+        protected void engineUpdate(byte b) throws SignatureException {
+            checkInitialized();
+            digest.update(b);
+        }
+
+        @Override
+        protected void engineUpdate(byte[] b, int off, int len) throws SignatureException {
+            checkInitialized();
+            digest.update(b, off, len);
+        }
+
+        @Override
+        protected byte[] engineSign() throws SignatureException {
+            checkInitialized();
+            byte[] hash = digest.digest();
+            int length = (key.getModulus().bitLength() + 7) / 8;
+            int tLength = digestInfo.length + hash.length;
+            if (length < tLength + 11) {
+                throw new SignatureException("Key too short for " + digestAlgorithm);
+            }
+            // EM = 0x00 || 0x01 || PS (0xff) || 0x00 || T
+            byte[] encoded = new byte[length];
+            encoded[1] = 0x01;
+            for (int index = 2; index < length - tLength - 1; index++) {
+                encoded[index] = (byte) 0xff;
+            }
+            System.arraycopy(digestInfo, 0, encoded, length - tLength, digestInfo.length);
+            System.arraycopy(hash, 0, encoded, length - hash.length, hash.length);
+            try {
+                return privateOperation(key, encoded);
+            } catch (BadPaddingException e) {
+                throw new SignatureException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+            throw new SignatureException("Only signing is supported");
+        }
+
+        @Override
+        @Deprecated
+        protected void engineSetParameter(String param, Object value) {
+            throw new InvalidParameterException("No parameters are supported");
+        }
+
+        @Override
+        @Deprecated
+        protected Object engineGetParameter(String param) {
+            throw new InvalidParameterException("No parameters are supported");
+        }
+
+        private void checkInitialized() throws SignatureException {
+            if (key == null) {
+                throw new SignatureException("Not initialized for signing");
+            }
+        }
+    }
+
+    public static final class Sha256Signature extends MultiPrimeSignature {
+        public Sha256Signature() {
+            super("SHA-256", SHA256_DIGEST_INFO);
+        }
+    }
+
+    public static final class Sha384Signature extends MultiPrimeSignature {
+        public Sha384Signature() {
+            super("SHA-384", SHA384_DIGEST_INFO);
+        }
+    }
+
+    private static final class MultiPrimeProvider extends Provider {
+        private static final long serialVersionUID = 1L;
+
+        @SuppressWarnings("deprecation")
+        MultiPrimeProvider() {
+            super(PROVIDER_NAME, 1.0, "Multi-prime RSA signatures for the Privacy CA");
+            put("Signature.SHA256withRSA", Sha256Signature.class.getName());
+            put("Signature.SHA256withRSA SupportedKeyClasses", RSAMultiPrimePrivateCrtKey.class.getName());
+            put("Signature.SHA384withRSA", Sha384Signature.class.getName());
+            put("Signature.SHA384withRSA SupportedKeyClasses", RSAMultiPrimePrivateCrtKey.class.getName());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Allocates certificate serial numbers that are unique across threads, restarts and CA
+ * nodes without any coordination between nodes. A serial is a per-allocator prefix followed by
+ * a 63-bit counter:</p>
+ * <ul>
+ * <li>With a node ID, the prefix is the 16-bit ID, which must be configured differently on
+ * every node, and serials are 10 bytes.</li>
+ * <li>With a random prefix, the prefix is 64 random bits chosen when the allocator is
+ * created, so nothing has to be configured; two allocators collide only if they draw the
+ * same prefix, with a probability of about n<sup>2</sup>/2<sup>65</sup> for n allocators.
+ * Serials are 16 bytes.</li>
+ * </ul>
+ *
+ * <p>The counter starts at the current time in milliseconds times 4096 and is advanced with
+ * a single atomic increment, so allocation never retries or blocks under contention. As long
+ * as fewer than 4096 serials per millisecond are issued on average, the counter stays behind
+ * the clock and an allocator created after a restart starts above every serial issued
+ * before. Every 4096th allocation checks this and waits for the clock if the counter has
+ * run ahead.</p>
+ *
+ * <p>All serials are positive and at most 16 bytes, within the 20 octets allowed by RFC 5280.</p>
+ */
+public final class SerialNumberAllocator {
+    /** System property with the node ID for the default allocator; without it a random prefix is used. */
+    public static final String NODE_PROPERTY = "privacyca.serial.node";
+    public static final int MAX_NODE_ID = 0xffff;
+    private static final int COUNTER_SHIFT = 12;
+    private static final long CHECK_MASK = (1L << COUNTER_SHIFT) - 1;
+    private static final Object defaultLock = new Object();
+    private static volatile SerialNumberAllocator defaultAllocator;
+
+    private final byte[] prefix;
+    private final AtomicLong counter;
+
+    private SerialNumberAllocator(byte[] prefix) {
+        this.prefix = prefix;
+        this.counter = new AtomicLong(System.currentTimeMillis() << COUNTER_SHIFT);
+    }
+
+    /**
+     * @param nodeId This node's ID, from 0 to 65535, different on every CA node.
+     */
+    public static SerialNumberAllocator forNode(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Serial number node ID must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+        }
+        return new SerialNumberAllocator(new byte[] {(byte) (nodeId >>> 8), (byte) nodeId});
+    }
+
+    public static SerialNumberAllocator withRandomPrefix(SecureRandom random) {
+        byte[] prefix = new byte[8];
+        random.nextBytes(prefix);
+        return new SerialNumberAllocator(prefix);
+    }
+
+    /**
+     * @return The allocator used by TpmUtils, configured by the privacyca.serial.node system property.
+     * @throws IllegalArgumentException If the property is not a valid node ID.
+     */
+    public static SerialNumberAllocator getDefault() {
+        SerialNumberAllocator allocator = defaultAllocator;
+        if (allocator == null) {
+            synchronized (defaultLock) {
+                allocator = defaultAllocator;
+                if (allocator == null) {
+                    String node = System.getProperty(NODE_PROPERTY);
+                    allocator = node == null ? withRandomPrefix(new SecureRandom()) : forNode(Integer.parseInt(node.trim()));
+                    defaultAllocator = allocator;
+                }
+            }
+        }
+        return allocator;
+    }
+
+    /**
+     * @return A new serial number.
+     */
+    public BigInteger next() {
+        long value = counter.getAndIncrement();
+        if ((value & CHECK_MASK) == 0) {
+            while ((value >>> COUNTER_SHIFT) > System.currentTimeMillis()) {
+                Thread.yield();
+            }
+        }
+        byte[] magnitude = new byte[prefix.length + 8];
+        System.arraycopy(prefix, 0, magnitude, 0, prefix.length);
+        for (int index = magnitude.length - 1, shift = 0; shift < 64; index--, shift += 8) {
+            magnitude[index] = (byte) (value >>> shift);
+        }
+        return new BigInteger(1, magnitude);
+    }
+}
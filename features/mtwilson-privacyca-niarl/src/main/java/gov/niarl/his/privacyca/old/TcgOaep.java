@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAMultiPrimePrivateCrtKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * <p>RSAES-OAEP decryption (SHA-1, MGF1 with SHA-1) of TCG asym blobs that accepts either of
+ * the OAEP labels seen in identity requests: "TCPA", as the TPM 1.2 specification requires,
+ * and the empty label used by TrouSerS. The RSA private operation is done once and the
+ * recovered block is unpadded here, instead of running the whole decryption again with the
+ * other label when the first attempt fails.</p>
+ *
+ * <p>The unpadding does the same work whichever label matches, or if none does: both label
+ * hashes are always compared and the separator search does not stop early, so the time taken
+ * does not tell a caller which part of the padding was wrong.</p>
+ *
+ * <p>Multi-prime keys are decrypted with MultiPrimeRsa, which uses all of their primes.</p>
+ */
+public final class TcgOaep {
+    private static final int HASH_LENGTH = 20;
+    private static final byte[] TCPA_LABEL_HASH = sha1("TCPA".getBytes());
+    private static final byte[] BLANK_LABEL_HASH = sha1(new byte[0]);
+
+    /**
+     * The recovered message and the label it was padded with.
+     */
+    public static final class Result {
+        private final byte[] message;
+        private final boolean blankLabel;
+
+        private Result(byte[] message, boolean blankLabel) {
+            this.message = message;
+            this.blankLabel = blankLabel;
+        }
+
+        public byte[] getMessage() {
+            return message;
+        }
+
+        /**
+         * @return true if the message was padded with the empty label (TrouSerS), false for "TCPA".
+         */
+        public boolean isBlankLabel() {
+            return blankLabel;
+        }
+    }
+
+    private TcgOaep() {
+    }
+
+    /**
+     * @param ciphertext The asym blob, as long as the key modulus.
+     * @param privKey The RSA private key to decrypt it with.
+     * @return The message and the label that matched.
+     * @throws BadPaddingException If the block is not OAEP padded with either label.
+     */
+    public static Result decrypt(byte[] ciphertext, RSAPrivateKey privKey)
+            throws NoSuchAlgorithmException,
+            NoSuchPaddingException,
+            InvalidKeyException,
+            IllegalBlockSizeException,
+            BadPaddingException {
+        int modulusBytes = (privKey.getModulus().bitLength() + 7) / 8;
+        if (ciphertext.length != modulusBytes || modulusBytes < 2 * HASH_LENGTH + 2) {
+            throw new IllegalBlockSizeException("Ciphertext length " + ciphertext.length + " does not fit a " + modulusBytes + " byte modulus");
+        }
+        byte[] block;
+        if (MultiPrimeRsa.isMultiPrime(privKey)) {
+            block = MultiPrimeRsa.privateOperation((RSAMultiPrimePrivateCrtKey) privKey, ciphertext);
+        } else {
+            Cipher rawCipher = CryptoPrimitives.cipher("RSA/ECB/NoPadding", CryptoProviders.get(CryptoProviders.Operation.RSA_DECRYPT));
+            rawCipher.init(Cipher.DECRYPT_MODE, privKey);
+            block = rawCipher.doFinal(ciphertext);
+        }
+        if (block.length < modulusBytes) {
+            // some providers drop the leading zero bytes of the integer
+            byte[] padded = new byte[modulusBytes];
+            System.arraycopy(block, 0, padded, modulusBytes - block.length, block.length);
+            block = padded;
+        }
+        return unpad(block);
+    }
+
+    /**
+     * Remove OAEP padding from a recovered block of modulus length (RFC 8017 section 7.1.2, steps 3a to 3g).
+     */
+    static Result unpad(byte[] block)
+            throws NoSuchAlgorithmException, BadPaddingException {
+        MessageDigest sha1 = CryptoPrimitives.messageDigest("SHA1");
+        int dbLength = block.length - HASH_LENGTH - 1;
+        byte[] seed = Arrays.copyOfRange(block, 1, 1 + HASH_LENGTH);
+        byte[] db = Arrays.copyOfRange(block, 1 + HASH_LENGTH, block.length);
+        mgf1Xor(sha1, seed, 0, HASH_LENGTH, db);
+        mgf1Xor(sha1, db, 0, dbLength, seed);
+
+        int tcpaDiff = 0;
+        int blankDiff = 0;
+        for (int index = 0; index < HASH_LENGTH; index++) {
+            tcpaDiff |= db[index] ^ TCPA_LABEL_HASH[index];
+            blankDiff |= db[index] ^ BLANK_LABEL_HASH[index];
+        }
+        int tcpaMatch = isZero(tcpaDiff & 0xff);
+        int blankMatch = isZero(blankDiff & 0xff);
+
+        // find the 0x01 after the zero padding without stopping at it
+        int found = 0;
+        int separator = 0;
+        int bad = isZero(block[0] & 0xff) ^ 1;
+        for (int index = HASH_LENGTH; index < dbLength; index++) {
+            int value = db[index] & 0xff;
+            int isOne = isZero(value ^ 1);
+            int notFound = found ^ 1;
+            separator |= -(notFound & isOne) & index;
+            bad |= notFound & (isOne ^ 1) & (isZero(value) ^ 1);
+            found |= isOne;
+        }
+        bad |= found ^ 1;
+        if (((bad ^ 1) & (tcpaMatch | blankMatch)) == 0) {
+            throw new BadPaddingException("Decryption error");
+        }
+        return new Result(Arrays.copyOfRange(db, separator + 1, dbLength), tcpaMatch == 0);
+    }
+
+    /**
+     * @return 1 if value is zero, 0 otherwise, for 0 &lt;= value &lt;= 0xff, without branching.
+     */
+    private static int isZero(int value) {
+        return ((value - 1) >>> 31) & 1;
+    }
+
+    /**
+     * XOR MGF1-SHA1(seed, length) into target[offset..offset+length). seed and target must be
+     * different arrays.
+     */
+    private static void mgf1Xor(MessageDigest sha1, byte[] target, int offset, int length, byte[] seed) {
+        byte[] counter = new byte[4];
+        int done = 0;
+        for (int block = 0; done < length; block++) {
+            counter[0] = (byte) (block >>> 24);
+            counter[1] = (byte) (block >>> 16);
+            counter[2] = (byte) (block >>> 8);
+            counter[3] = (byte) block;
+            sha1.update(seed);
+            sha1.update(counter);
+            byte[] mask = sha1.digest();
+            int count = Math.min(mask.length, length - done);
+            for (int index = 0; index < count; index++) {
+                target[offset + done + index] ^= mask[index];
+            }
+            done += count;
+        }
+    }
+
+    private static byte[] sha1(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import gov.niarl.his.privacyca.old.TpmUtils.TpmBytestreamResouceException;
+import gov.niarl.his.privacyca.old.TpmUtils.TpmUnsignedConversionException;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Big-endian cursor over a serialized TPM structure. Unlike the stream based
+ * TpmUtils.getUINT32/getUINT16/getBytes helpers, this reader works directly on the
+ * backing array: integers are decoded in place and returned as primitives, and
+ * variable-length fields can be taken as slice views that share the input buffer.</p>
+ *
+ * <p>All positions and indexes are relative to the start of the structure, not to the
+ * start of the backing array. The relative read methods keep the semantics of the
+ * TpmUtils helpers they replace (including the checked exceptions), so the parsing
+ * code in this package can move over without changing its error handling.</p>
+ *
+ * <p>A reader is not thread safe, but any number of readers may share one buffer.</p>
+ */
+public class TpmBlobReader {
+    private final byte[] buffer;
+    private final int offset;
+    private final int limit;
+    private int position;
+
+    /**
+     * Create a reader over an entire byte array.
+     *
+     * @param blob The serialized structure.
+     */
+    public TpmBlobReader(byte[] blob) {
+        this(blob, 0, blob.length);
+    }
+
+    /**
+     * Create a reader over a region of a byte array. The array is not copied.
+     *
+     * @param blob The buffer containing the serialized structure.
+     * @param offset Index of the first byte of the structure.
+     * @param length Number of bytes available to the reader.
+     */
+    public TpmBlobReader(byte[] blob, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > blob.length - length) {
+            throw new IndexOutOfBoundsException("Invalid region " + offset + "+" + length + " of " + blob.length + " byte buffer");
+        }
+        this.buffer = blob;
+        this.offset = offset;
+        this.limit = offset + length;
+        this.position = offset;
+    }
+
+    /**
+     * Create a reader over the remaining bytes of a ByteBuffer. Heap buffers are read
+     * in place; a direct buffer is copied once into a heap array. The position of the
+     * source buffer is not changed.
+     *
+     * @param source The buffer containing the serialized structure.
+     */
+    public TpmBlobReader(ByteBuffer source) {
+        if (source.hasArray()) {
+            this.buffer = source.array();
+            this.offset = source.arrayOffset() + source.position();
+        } else {
+            this.buffer = new byte[source.remaining()];
+            source.duplicate().get(this.buffer);
+            this.offset = 0;
+        }
+        this.limit = this.offset + source.remaining();
+        this.position = this.offset;
+    }
+
+    /**
+     * @return The total number of bytes available to this reader.
+     */
+    public int length() {
+        return limit - offset;
+    }
+
+    /**
+     * @return The current read position, relative to the start of the structure.
+     */
+    public int position() {
+        return position - offset;
+    }
+
+    /**
+     * Move the read position.
+     *
+     * @param newPosition The new position, relative to the start of the structure.
+     */
+    public void position(int newPosition) {
+        if (newPosition < 0 || newPosition > length()) {
+            throw new IndexOutOfBoundsException("Position " + newPosition + " is outside of " + length() + " byte structure");
+        }
+        position = offset + newPosition;
+    }
+
+    /**
+     * @return The number of bytes between the current position and the end of the structure.
+     */
+    public int remaining() {
+        return limit - position;
+    }
+
+    /**
+     * The array backing this reader. Together with arrayOffset() this allows callers to
+     * record where a field lives instead of copying it.
+     *
+     * @return The backing array (not a copy).
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Translate a structure-relative index into an index of the backing array.
+     *
+     * @param index Index relative to the start of the structure.
+     * @return Index into array().
+     */
+    public int arrayOffset(int index) {
+        return offset + index;
+    }
+
+    /**
+     * Advance the read position without reading.
+     *
+     * @param count The number of bytes to skip.
+     * @throws TpmBytestreamResouceException Thrown if fewer than <b>count</b> bytes remain.
+     */
+    public void skip(int count)
+            throws TpmBytestreamResouceException {
+        require(count, "There are not enough available bytes in the bytestream to skip the requested number.");
+        position += count;
+    }
+
+    /**
+     * Read a single byte.
+     *
+     * @return The byte at the current position.
+     * @throws TpmBytestreamResouceException Thrown if no bytes remain.
+     */
+    public byte readByte()
+            throws TpmBytestreamResouceException {
+        require(1, "There is not enough room in the bytestream to extract a BYTE.");
+        return buffer[position++];
+    }
+
+    /**
+     * Read a UINT16 into a short. See TpmUtils.getUINT16 for the range restrictions.
+     *
+     * @return The value of the UINT16.
+     * @throws TpmUnsignedConversionException Thrown if the UINT16 is too large to be stored as a short.
+     * @throws TpmBytestreamResouceException Thrown if fewer than two bytes remain.
+     */
+    public short readUINT16()
+            throws TpmUnsignedConversionException,
+            TpmBytestreamResouceException {
+        require(2, "There is not enough room in the bytestream to extract a UINT16.");
+        if ((buffer[position] & 0x80) == 0x80) {
+            throw new TpmUnsignedConversionException("Cannot convert UINT16 to signed Short: too large - would be converted to negative.");
+        }
+        short value = (short) getUINT16(buffer, position);
+        position += 2;
+        return value;
+    }
+
+    /**
+     * Read a UINT32 into an int. See TpmUtils.getUINT32 for the range restrictions.
+     *
+     * @return The value of the UINT32.
+     * @throws TpmUnsignedConversionException Thrown if the UINT32 is too large to be stored in an integer.
+     * @throws TpmBytestreamResouceException Thrown if fewer than four bytes remain.
+     */
+    public int readUINT32()
+            throws TpmUnsignedConversionException,
+            TpmBytestreamResouceException {
+        require(4, "There is not enough room in the bytestream to extract a UINT32.");
+        if ((buffer[position] & 0x80) == 0x80) {
+            throw new TpmUnsignedConversionException("Cannot convert UINT32 to signed Integer: too large - would be converted to negative.");
+        }
+        int value = (int) getUINT32(buffer, position);
+        position += 4;
+        return value;
+    }
+
+    /**
+     * Read a field into a new array. Use this for fields that outlive the input buffer.
+     *
+     * @param size The number of bytes to read.
+     * @return A copy of the next <b>size</b> bytes.
+     * @throws TpmBytestreamResouceException Thrown if fewer than <b>size</b> bytes remain.
+     */
+    public byte[] readBytes(int size)
+            throws TpmBytestreamResouceException {
+        require(size, "There are not enough available bytes in the bytestream to extract the requested number.");
+        byte[] value = new byte[size];
+        System.arraycopy(buffer, position, value, 0, size);
+        position += size;
+        return value;
+    }
+
+    /**
+     * Read a field as a read-only view of the input buffer. No bytes are copied.
+     *
+     * @param size The number of bytes to read.
+     * @return A ByteBuffer positioned at the start of the field with limit at its end.
+     * @throws TpmBytestreamResouceException Thrown if fewer than <b>size</b> bytes remain.
+     */
+    public ByteBuffer readSlice(int size)
+            throws TpmBytestreamResouceException {
+        require(size, "There are not enough available bytes in the bytestream to extract the requested number.");
+        ByteBuffer slice = ByteBuffer.wrap(buffer, position, size).slice().asReadOnlyBuffer();
+        position += size;
+        return slice;
+    }
+
+    /**
+     * Get a stream over the remaining bytes, for nested structures such as TpmKeyParams and
+     * TpmPubKey that are parsed from a ByteArrayInputStream. The stream shares the backing
+     * array. After the nested structure is parsed, call skipConsumed() with the same stream
+     * to move this reader past it.
+     *
+     * @return A stream positioned at the current read position.
+     */
+    public ByteArrayInputStream remainingAsStream() {
+        return new ByteArrayInputStream(buffer, position, limit - position);
+    }
+
+    /**
+     * Advance past the bytes consumed from a stream returned by remainingAsStream().
+     *
+     * @param stream The stream returned by the last call to remainingAsStream().
+     */
+    public void skipConsumed(ByteArrayInputStream stream) {
+        position = limit - stream.available();
+    }
+
+    /**
+     * Decode an unsigned byte at an absolute index.
+     *
+     * @param index Index relative to the start of the structure.
+     * @return The value, 0-255.
+     * @throws TpmBytestreamResouceException Thrown if the index is outside of the structure.
+     */
+    public int getUINT8(int index)
+            throws TpmBytestreamResouceException {
+        check(index, 1);
+        return buffer[offset + index] & 0xff;
+    }
+
+    /**
+     * Decode a UINT16 at an absolute index without moving the read position.
+     *
+     * @param index Index relative to the start of the structure.
+     * @return The unsigned value, 0-65535.
+     * @throws TpmBytestreamResouceException Thrown if the field is outside of the structure.
+     */
+    public int getUINT16(int index)
+            throws TpmBytestreamResouceException {
+        check(index, 2);
+        return getUINT16(buffer, offset + index);
+    }
+
+    /**
+     * Decode a UINT32 at an absolute index without moving the read position.
+     *
+     * @param index Index relative to the start of the structure.
+     * @return The unsigned value, 0-4294967295.
+     * @throws TpmBytestreamResouceException Thrown if the field is outside of the structure.
+     */
+    public long getUINT32(int index)
+            throws TpmBytestreamResouceException {
+        check(index, 4);
+        return getUINT32(buffer, offset + index);
+    }
+
+    /**
+     * Decode a big-endian UINT16. No bounds checking beyond that of the array itself.
+     *
+     * @param buf The buffer.
+     * @param index Index of the first byte in <b>buf</b>.
+     * @return The unsigned value.
+     */
+    static int getUINT16(byte[] buf, int index) {
+        return ((buf[index] & 0xff) << 8)
+                | (buf[index + 1] & 0xff);
+    }
+
+    /**
+     * Decode a big-endian UINT32. No bounds checking beyond that of the array itself.
+     *
+     * @param buf The buffer.
+     * @param index Index of the first byte in <b>buf</b>.
+     * @return The unsigned value.
+     */
+    static long getUINT32(byte[] buf, int index) {
+        return ((long) (buf[index] & 0xff) << 24)
+                | ((buf[index + 1] & 0xff) << 16)
+                | ((buf[index + 2] & 0xff) << 8)
+                | (buf[index + 3] & 0xff);
+    }
+
+    private void require(int count, String message)
+            throws TpmBytestreamResouceException {
+        if (count < 0 || limit - position < count) {
+            throw new TpmBytestreamResouceException(message);
+        }
+    }
+
+    private void check(int index, int size)
+            throws TpmBytestreamResouceException {
+        if (index < 0 || index > length() - size) {
+            throw new TpmBytestreamResouceException("Index " + index + " is outside of the " + length() + " byte structure.");
+        }
+    }
+}
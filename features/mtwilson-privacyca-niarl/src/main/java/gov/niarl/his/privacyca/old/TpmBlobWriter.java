@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import gov.niarl.his.privacyca.old.TpmUtils.TpmUnsignedConversionException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Big-endian encoder for serialized TPM structures, the counterpart of TpmBlobReader.
+ * Fields are written straight into a caller supplied ByteBuffer or OutputStream, so a
+ * structure whose encoded size is known up front can be serialized with no intermediate
+ * arrays.</p>
+ *
+ * <p>The UINT16/UINT32 writers keep the range checks of TpmUtils.shortToByteArray and
+ * TpmUtils.intToByteArray. When writing to an OutputStream, an IOException from the
+ * stream is rethrown as an UncheckedIOException; the writeTo(OutputStream) methods of
+ * the structures in this package unwrap it again.</p>
+ *
+ * <p>A writer is not thread safe.</p>
+ */
+public class TpmBlobWriter {
+    private final ByteBuffer buffer;
+    private final OutputStream out;
+    private int count;
+
+    /**
+     * Create a writer that encodes into a ByteBuffer, starting at its current position.
+     * The buffer must have at least as many bytes remaining as will be written.
+     *
+     * @param target The buffer to write to.
+     */
+    public TpmBlobWriter(ByteBuffer target) {
+        this.buffer = target;
+        this.out = null;
+    }
+
+    /**
+     * Create a writer that encodes into an OutputStream. The stream is not buffered or
+     * closed by the writer.
+     *
+     * @param target The stream to write to.
+     */
+    public TpmBlobWriter(OutputStream target) {
+        this.buffer = null;
+        this.out = target;
+    }
+
+    /**
+     * @return The number of bytes written so far.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Write a single byte.
+     *
+     * @param value The byte to write.
+     */
+    public void putByte(byte value) {
+        if (buffer != null) {
+            buffer.put(value);
+        } else {
+            try {
+                out.write(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        count++;
+    }
+
+    /**
+     * Write a short as a UINT16.
+     *
+     * @param value The value to write.
+     * @throws TpmUnsignedConversionException Thrown if the value is negative.
+     */
+    public void putUINT16(short value)
+            throws TpmUnsignedConversionException {
+        if (value < 0) {
+            throw new TpmUnsignedConversionException("Cannot convert negative short to UINT16 array: " + value);
+        }
+        putByte((byte) (value >> 8));
+        putByte((byte) value);
+    }
+
+    /**
+     * Write an int as a UINT32.
+     *
+     * @param value The value to write.
+     * @throws TpmUnsignedConversionException Thrown if the value is negative.
+     */
+    public void putUINT32(int value)
+            throws TpmUnsignedConversionException {
+        if (value < 0) {
+            throw new TpmUnsignedConversionException("Cannot convert negative integer to UINT32 array: " + value);
+        }
+        putByte((byte) (value >> 24));
+        putByte((byte) (value >> 16));
+        putByte((byte) (value >> 8));
+        putByte((byte) value);
+    }
+
+    /**
+     * Write an entire array.
+     *
+     * @param value The bytes to write.
+     */
+    public void putBytes(byte[] value) {
+        putBytes(value, 0, value.length);
+    }
+
+    /**
+     * Write a region of an array.
+     *
+     * @param value The array containing the bytes to write.
+     * @param offset Index of the first byte to write.
+     * @param length The number of bytes to write.
+     */
+    public void putBytes(byte[] value, int offset, int length) {
+        if (buffer != null) {
+            buffer.put(value, offset, length);
+        } else {
+            try {
+                out.write(value, offset, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        count += length;
+    }
+}
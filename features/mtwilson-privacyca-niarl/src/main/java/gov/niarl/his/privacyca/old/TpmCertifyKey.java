@@ -27,16 +27,22 @@ public class TpmCertifyKey {
     }
 
     public TpmCertifyKey(byte[] blob) throws TpmBytestreamResouceException, TpmUnsignedConversionException {
-        try (ByteArrayInputStream bs = new ByteArrayInputStream(blob)) {
-            structVer = TpmUtils.getBytes(bs, 4);
-            tpmKeyUsage = TpmUtils.getUINT16(bs);
-            tpmKeyFlags = TpmUtils.getUINT32(bs);
-            tpmAuthDataUsage = TpmUtils.getBytes(bs, 1)[0]; //byte
+        this(new TpmBlobReader(blob));
+    }
+
+    public TpmCertifyKey(TpmBlobReader reader) throws TpmBytestreamResouceException, TpmUnsignedConversionException {
+        try {
+            structVer = reader.readBytes(4);
+            tpmKeyUsage = reader.readUINT16();
+            tpmKeyFlags = reader.readUINT32();
+            tpmAuthDataUsage = reader.readByte(); //byte
+            ByteArrayInputStream bs = reader.remainingAsStream();
             keyParms = new TpmKeyParams(bs); //TpmKeyParams
-            publicKeyDigest = TpmUtils.getBytes(bs, TPM_SHA1_160_HASH_LEN);
-            nonce = TpmUtils.getBytes(bs, TPM_SHA1BASED_NONCE_LEN);
-            parentPCRStatus = TpmUtils.getBytes(bs, 1)[0];
-            pcrInfoSize = TpmUtils.getUINT32(bs);
+            reader.skipConsumed(bs);
+            publicKeyDigest = reader.readBytes(TPM_SHA1_160_HASH_LEN);
+            nonce = reader.readBytes(TPM_SHA1BASED_NONCE_LEN);
+            parentPCRStatus = reader.readByte();
+            pcrInfoSize = reader.readUINT32();
         } catch (Exception e) {
             log.error("Error in TpmCertifyKey", e);
             throw new TpmUtils.TpmBytestreamResouceException("Error in TpmCertifyKey");
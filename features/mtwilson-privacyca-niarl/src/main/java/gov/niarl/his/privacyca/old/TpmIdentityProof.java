@@ -17,6 +17,7 @@ import java.security.*;
 import java.security.spec.*;
 import java.security.interfaces.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import javax.security.cert.*;
 
 /**
@@ -51,10 +52,21 @@ import javax.security.cert.*;
  * <p>This class can be used by a Privacy CA for parsing an incoming request, but 
  * it can also be used by a client for constructing a new request.</p>
  * 
+ * <p>When parsed from a decrypted identity request, the proof is a view of the 
+ * decrypted buffer: only the offset and size of the label, identity binding and 
+ * credentials are recorded, and each of them is copied (or, for the credentials, 
+ * parsed) the first time it is requested. A Privacy CA that never looks at the 
+ * platform or conformance credentials therefore never copies them.</p>
+ * 
  * @author schawki
  * @see TpmIdentityRequest
  */
 public class TpmIdentityProof {
+	private static final int LABEL = 0;
+	private static final int BINDING = 1;
+	private static final int EK_CRED = 2;
+	private static final int PLATFORM_CRED = 3;
+	private static final int CONFORM_CRED = 4;
 	private byte [] structVer;
 	private TpmPubKey Aik;
 	private byte [] idLabelBytes;
@@ -62,6 +74,11 @@ public class TpmIdentityProof {
 	private byte [] ekCredBytes;
 	private byte [] platformCredBytes;
 	private byte [] conformCredBytes;
+	private X509Certificate ekCred;
+	//backing buffer and field locations of a parsed proof; source is null if the proof was built from its parts
+	private byte [] source;
+	private int [] fieldOffsets;
+	private int [] fieldSizes;
 	private boolean TrousersModeIV = false;
 	private boolean TrousersModeSymkeyEncscheme = false;
 	private boolean TrousersModeBlankOeap = false;
@@ -119,6 +136,9 @@ public class TpmIdentityProof {
 	 * Identity Request is needed to properly parse the Ideneity Proof. Also, 
 	 * that information may be useful when crafting the response to the client.
 	 * 
+	 * <p>The proof keeps a reference to <b>blob</b> and reads fields from it on demand, so
+	 * the array must not be modified afterwards.</p>
+	 * 
 	 * @param blob The decrypted form of the sym blob from the Identity Request.
 	 * @param IV Set to TRUE if the IV was placed at the beginning of the symblob of the Identity Request instead of in the key parameters. 
 	 * @param symKey Set to TRUE if the symmetric encryption scheme was set to TPM_ES_NONE in the Identity Request.
@@ -131,23 +151,45 @@ public class TpmIdentityProof {
 			throws PrivacyCaException, 
 			TpmUtils.TpmUnsignedConversionException, 
 			TpmUtils.TpmBytestreamResouceException {
+		this(new TpmBlobReader(blob), IV, symKey, oaep);
+	}
+	/**
+	 * Create new TpmIdentityProof object by parsing the decrypted data from a 
+	 * TPM_IDENTITY_REQ, starting at the current position of a reader. The reader 
+	 * is left positioned after the identity proof. The proof keeps a reference to 
+	 * the reader's backing array, which must not be modified afterwards.
+	 * 
+	 * @param reader Reader over the decrypted form of the sym blob from the Identity Request.
+	 * @param IV Set to TRUE if the IV was placed at the beginning of the symblob of the Identity Request instead of in the key parameters. 
+	 * @param symKey Set to TRUE if the symmetric encryption scheme was set to TPM_ES_NONE in the Identity Request.
+	 * @param oaep Set to TRUE if the OAEP password was blank.
+	 * @throws PrivacyCaException 
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 * @throws TpmUtils.TpmBytestreamResouceException
+	 */
+	public TpmIdentityProof(TpmBlobReader reader, boolean IV, boolean symKey, boolean oaep) 
+			throws PrivacyCaException, 
+			TpmUtils.TpmUnsignedConversionException, 
+			TpmUtils.TpmBytestreamResouceException {
 		TrousersModeIV = IV;
 		TrousersModeSymkeyEncscheme = symKey;
 		TrousersModeBlankOeap = oaep;
-		ByteArrayInputStream bs = new ByteArrayInputStream(blob);
-		structVer = new byte[4];
-		structVer = TpmUtils.getBytes(bs, 4);
-		int labelSize = TpmUtils.getUINT32(bs);
-		int identBindingSize = TpmUtils.getUINT32(bs);
-		int ekCredSize = TpmUtils.getUINT32(bs);
-		int platformCredSize = TpmUtils.getUINT32(bs);
-		int conformCredSize = TpmUtils.getUINT32(bs);
+		structVer = reader.readBytes(4);
+		int labelSize = reader.readUINT32();
+		int identBindingSize = reader.readUINT32();
+		int ekCredSize = reader.readUINT32();
+		int platformCredSize = reader.readUINT32();
+		int conformCredSize = reader.readUINT32();
+		ByteArrayInputStream bs = reader.remainingAsStream();
 		Aik = new TpmPubKey(bs);
-		idLabelBytes = TpmUtils.getBytes(bs, labelSize);
-		idBindingBytes = TpmUtils.getBytes(bs, identBindingSize);
-		ekCredBytes = TpmUtils.getBytes(bs, ekCredSize);
-		platformCredBytes = TpmUtils.getBytes(bs, platformCredSize);
-		conformCredBytes = TpmUtils.getBytes(bs, conformCredSize);
+		reader.skipConsumed(bs);
+		source = reader.array();
+		fieldSizes = new int[] {labelSize, identBindingSize, ekCredSize, platformCredSize, conformCredSize};
+		fieldOffsets = new int[fieldSizes.length];
+		for (int i = 0; i < fieldSizes.length; i++) {
+			fieldOffsets[i] = reader.arrayOffset(reader.position());
+			reader.skip(fieldSizes[i]);
+		}
 	}
 	/**
 	 * Create a new TpmIdentityProof by supplying all of the necessary elements to construct one from scratch.
@@ -183,40 +225,77 @@ public class TpmIdentityProof {
 	 */
 	public byte [] toByteArray() 
 			throws TpmUtils.TpmUnsignedConversionException {
-		byte [] labelSize = TpmUtils.intToByteArray(idLabelBytes.length);
-		byte [] idBindingSize = TpmUtils.intToByteArray(idBindingBytes.length);
-		byte [] endorsementSize = TpmUtils.intToByteArray(ekCredBytes.length);
-		byte [] platformSize = TpmUtils.intToByteArray(ekCredBytes.length);
-		byte [] conformanceSize = TpmUtils.intToByteArray(ekCredBytes.length);
 		byte [] identityKey = Aik.toByteArray();
-		 // Assemble the return array
-		 byte [] toReturn = new byte[structVer.length + labelSize.length + idBindingSize.length + endorsementSize.length + platformSize.length + conformanceSize.length + 
-		  		                            identityKey.length + idLabelBytes.length + idBindingBytes.length + ekCredBytes.length + platformCredBytes.length + conformCredBytes.length];
-		int copyOffset = 0;
-		System.arraycopy(structVer, 0, toReturn, copyOffset, structVer.length);
-		copyOffset += structVer.length;
-		System.arraycopy(labelSize, 0, toReturn, copyOffset, labelSize.length);
-		copyOffset += labelSize.length;
-		System.arraycopy(idBindingSize, 0, toReturn, copyOffset, idBindingSize.length);
-		copyOffset += idBindingSize.length;
-		System.arraycopy(endorsementSize, 0, toReturn, copyOffset, endorsementSize.length);
-		copyOffset += endorsementSize.length;
-		System.arraycopy(platformSize, 0, toReturn, copyOffset, platformSize.length);
-		copyOffset += platformSize.length;
-		System.arraycopy(conformanceSize, 0, toReturn, copyOffset, conformanceSize.length);
-		copyOffset += conformanceSize.length;
-		System.arraycopy(identityKey, 0, toReturn, copyOffset, identityKey.length);
-		copyOffset += identityKey.length;
-		System.arraycopy(idLabelBytes, 0, toReturn, copyOffset, idLabelBytes.length);
-		copyOffset += idLabelBytes.length;
-		System.arraycopy(idBindingBytes, 0, toReturn, copyOffset, idBindingBytes.length);
-		copyOffset += idBindingBytes.length;
-		System.arraycopy(ekCredBytes, 0, toReturn, copyOffset, ekCredBytes.length);
-		copyOffset += ekCredBytes.length;
-		System.arraycopy(platformCredBytes, 0, toReturn, copyOffset, platformCredBytes.length);
-		copyOffset += platformCredBytes.length;
-		System.arraycopy(conformCredBytes, 0, toReturn, copyOffset, conformCredBytes.length);
-		return toReturn;
+		ByteBuffer toReturn = ByteBuffer.allocate(encodedSize(identityKey));
+		encode(new TpmBlobWriter(toReturn), identityKey);
+		return toReturn.array();
+	}
+	/**
+	 * 
+	 * @return The number of bytes written by toByteArray() or writeTo().
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 */
+	public int getEncodedSize()
+			throws TpmUtils.TpmUnsignedConversionException {
+		return encodedSize(Aik.toByteArray());
+	}
+	/**
+	 * Serialize the structure into a ByteBuffer, starting at its current position. No intermediate arrays are 
+	 * allocated for the fields of the structure itself.
+	 * 
+	 * @param target The buffer to write to. It must have at least getEncodedSize() bytes remaining.
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 */
+	public void writeTo(ByteBuffer target)
+			throws TpmUtils.TpmUnsignedConversionException {
+		byte [] identityKey = Aik.toByteArray();
+		encode(new TpmBlobWriter(target), identityKey);
+	}
+	/**
+	 * Serialize the structure directly into an OutputStream.
+	 * 
+	 * @param target The stream to write to.
+	 * @throws IOException Passed from the stream.
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 */
+	public void writeTo(OutputStream target)
+			throws IOException, 
+			TpmUtils.TpmUnsignedConversionException {
+		byte [] identityKey = Aik.toByteArray();
+		try {
+			encode(new TpmBlobWriter(target), identityKey);
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	private int encodedSize(byte [] identityKey) {
+		return structVer.length + 4 * 5 + identityKey.length + fieldSize(LABEL, idLabelBytes) + fieldSize(BINDING, idBindingBytes) 
+				+ getEkCredSize() + getPlatformCredSize() + getConformCredSize();
+	}
+	private void encode(TpmBlobWriter writer, byte [] identityKey)
+			throws TpmUtils.TpmUnsignedConversionException {
+		writer.putBytes(structVer);
+		writer.putUINT32(fieldSize(LABEL, idLabelBytes));
+		writer.putUINT32(fieldSize(BINDING, idBindingBytes));
+		writer.putUINT32(getEkCredSize());
+		writer.putUINT32(getPlatformCredSize());
+		writer.putUINT32(getConformCredSize());
+		writer.putBytes(identityKey);
+		putField(writer, LABEL, idLabelBytes);
+		putField(writer, BINDING, idBindingBytes);
+		putField(writer, EK_CRED, ekCredBytes);
+		putField(writer, PLATFORM_CRED, platformCredBytes);
+		putField(writer, CONFORM_CRED, conformCredBytes);
+	}
+	/**
+	 * Write a field, straight from the backing buffer if it has not been materialized.
+	 */
+	private void putField(TpmBlobWriter writer, int field, byte [] value) {
+		if (value != null)
+			writer.putBytes(value);
+		else if (source != null)
+			writer.putBytes(source, fieldOffsets[field], fieldSizes[field]);
 	}
 	/**
 	 * Display the parsed contents of the request in a form suitable for display on console or in log file. This is intended to be used when troubleshooting.
@@ -228,17 +307,18 @@ public class TpmIdentityProof {
 		returnVal += "TpmIdentityProof:\n";
 		returnVal += " StructVer: " + TpmUtils.byteArrayToString(structVer, 16) + "\n";
 		returnVal += " Aik:\n" + Aik.toString() + "\n";
-		String junk = new String(idLabelBytes);
+		String junk = new String(getIdLableBytes());
 		returnVal += " idLabel:\n" + junk + "\n";
-		returnVal += " idBinding:\n" + TpmUtils.byteArrayToString(idBindingBytes, 16) + "\n";
-		returnVal += " ekCred:\n" + TpmUtils.byteArrayToString(ekCredBytes, 16) + "\n";
-		returnVal += " platformCred:\n" + TpmUtils.byteArrayToString(platformCredBytes, 16) + "\n";
-		returnVal += " conformCred:\n" + TpmUtils.byteArrayToString(conformCredBytes, 16) + "\n";
+		returnVal += " idBinding:\n" + TpmUtils.byteArrayToString(getIdBindingBytes(), 16) + "\n";
+		returnVal += " ekCred:\n" + TpmUtils.byteArrayToString(getEkCredBytes(), 16) + "\n";
+		returnVal += " platformCred:\n" + TpmUtils.byteArrayToString(getPlatformCredBytes(), 16) + "\n";
+		returnVal += " conformCred:\n" + TpmUtils.byteArrayToString(getConformCredBytes(), 16) + "\n";
 		return returnVal;
 	}
 	/**
 	 * Use the identity binding (the signature value of the TPM_IDENTITY_CONTENTS structure) to determine the validity of the request.<p>
 	 * The TPM_IDENTITY_CONTENTS structure contains the public AIK and a hash of the idLabel and the Privacy CA's public key.<p>
+	 * The encoded CA key and the label hashes are cached by the IdentityBindingVerifier for the key.<p>
 	 * 
 	 * @param caPubKey The Privacy CA's public key.
 	 * @return <b>True</b> if the identity binding checks out, <b>false</b> if it does not.
@@ -254,36 +334,7 @@ public class TpmIdentityProof {
 			InvalidKeyException, 
 			InvalidKeySpecException, 
 			SignatureException {
-		TpmPubKey pca = new TpmPubKey(caPubKey, 3, 1);
-		MessageDigest md = MessageDigest.getInstance("SHA1");
-		byte [] pcaBytes = pca.toByteArray();
-		byte [] chosenId = new byte[idLabelBytes.length + pcaBytes.length];
-		System.arraycopy(idLabelBytes, 0, chosenId, 0, idLabelBytes.length);
-		System.arraycopy(pcaBytes, 0, chosenId, idLabelBytes.length, pcaBytes.length);
-		md.update(chosenId);
-		byte [] chosenIdHash = md.digest();
-		byte [] tpmMakeIdOrd = TpmUtils.intToByteArray(0x79);
-		byte [] aikPubKey = Aik.toByteArray();
-		//Structver in new (NTru) requests is appearing as 01 02 04 1E. Strange. (9/8/2009).
-		//To compensate, using a shim copy of structver populated with the correct values.
-		//
-		//In this case, the problem is that the structver included as cleartext in the identity proof is
-		//placed by the TSS, but the identity binding is created by the TPM independently. If one value of
-		//structver is used during the creation of the identity binding signature but a different structver
-		//is used when performing verification, the result will always be a failure to verify.
-		byte [] thisStructVer;// = structVer;
-		byte [] traditionalStructVer = {(byte)0x01, (byte)0x01, (byte)0x00, (byte)0x00};
-		thisStructVer = traditionalStructVer;
-		byte [] identityContents = new byte[thisStructVer.length + tpmMakeIdOrd.length + chosenIdHash.length + aikPubKey.length];
-		System.arraycopy(thisStructVer, 0, identityContents, 0, thisStructVer.length);
-		System.arraycopy(tpmMakeIdOrd, 0, identityContents, thisStructVer.length, tpmMakeIdOrd.length);
-		System.arraycopy(chosenIdHash, 0, identityContents, thisStructVer.length + tpmMakeIdOrd.length, chosenIdHash.length);
-		System.arraycopy(aikPubKey, 0, identityContents, thisStructVer.length + tpmMakeIdOrd.length + chosenIdHash.length, aikPubKey.length);
-		Signature sig = Signature.getInstance("SHA1withRSA");
-		sig.initVerify(Aik.getKey());
-		sig.update(identityContents);
-		boolean bindingCheck = sig.verify(idBindingBytes);
-		return bindingCheck;
+		return IdentityBindingVerifier.forKey(caPubKey).verify(this);
 	}
 	/**
 	 * Get the AIK stored in the request.
@@ -307,6 +358,8 @@ public class TpmIdentityProof {
 	 * @return The identity label as a byte string (ASCII).
 	 */
 	public byte [] getIdLableBytes() {
+		if (idLabelBytes == null && source != null)
+			idLabelBytes = copyField(LABEL);
 		return idLabelBytes;
 	}
 	/**
@@ -315,6 +368,8 @@ public class TpmIdentityProof {
 	 * @return The identity binding, as extracted directly from the identity proof.
 	 */
 	public byte [] getIdBindingBytes() {
+		if (idBindingBytes == null && source != null)
+			idBindingBytes = copyField(BINDING);
 		return idBindingBytes;
 	}
 	/**
@@ -323,8 +378,27 @@ public class TpmIdentityProof {
 	 * @return The X509 Endorsement Key Certificate as a byte array. This must be present to complete the Privacy CA process.
 	 */
 	public byte [] getEkCredBytes() {
+		if (ekCredBytes == null && source != null)
+			ekCredBytes = copyField(EK_CRED);
 		return ekCredBytes;
 	}
+	/**
+	 * Size of the EC stored in the Identity Proof. Unlike getEkCredBytes().length, this does not copy the credential.
+	 * 
+	 * @return The size in bytes of the endorsement credential; 0 if there is none.
+	 */
+	public int getEkCredSize() {
+		return fieldSize(EK_CRED, ekCredBytes);
+	}
+	/**
+	 * The EC as a view of the decrypted proof (or of the bytes it was set from), for EkCredentialCache. 
+	 * Unlike getEkCredBytes(), this does not copy the credential.
+	 * 
+	 * @return The endorsement credential; empty if there is none.
+	 */
+	ByteBuffer ekCredBuffer() {
+		return fieldBuffer(EK_CRED, ekCredBytes);
+	}
 	/**
 	 * EC stored in the Identity Proof, if present, in the form of an X509Certificate object.
 	 * 
@@ -333,7 +407,9 @@ public class TpmIdentityProof {
 	 */
 	public X509Certificate getEkCred() 
 			throws CertificateException {
-		return X509Certificate.getInstance(ekCredBytes);
+		if (ekCred == null)
+			ekCred = CertificateDecoder.getDefault().decodeLegacy(fieldBuffer(EK_CRED, ekCredBytes));
+		return ekCred;
 	}
 	/**
 	 * PC stored in the Identity Proof, if present, in the form of raw bytes.
@@ -341,8 +417,18 @@ public class TpmIdentityProof {
 	 * @return The Platform Certificate as a byte array. May be <b>null</b>.
 	 */
 	public byte [] getPlatformCredBytes() {
+		if (platformCredBytes == null && source != null)
+			platformCredBytes = copyField(PLATFORM_CRED);
 		return platformCredBytes;
 	}
+	/**
+	 * Size of the PC stored in the Identity Proof. Unlike getPlatformCredBytes().length, this does not copy the credential.
+	 * 
+	 * @return The size in bytes of the platform credential; 0 if there is none.
+	 */
+	public int getPlatformCredSize() {
+		return fieldSize(PLATFORM_CRED, platformCredBytes);
+	}
 	/**
 	 * PC stored in the Identity Proof, if present, in the form of an X509Certificate object.
 	 * 
@@ -355,7 +441,7 @@ public class TpmIdentityProof {
 			throws CertificateException, 
 			java.security.cert.CertificateException, 
 			java.security.cert.CertificateEncodingException {
-		return getCertFromBytes(platformCredBytes);
+		return CertificateDecoder.getDefault().decodeLegacy(fieldBuffer(PLATFORM_CRED, platformCredBytes));
 	}
 	/**
 	 * CC stored in the Identity Proof, if present, in the form of raw bytes.
@@ -363,8 +449,18 @@ public class TpmIdentityProof {
 	 * @return The Conformance Credential as a byte array. May be <b>null</b>.
 	 */
 	public byte [] getConformCredBytes() {
+		if (conformCredBytes == null && source != null)
+			conformCredBytes = copyField(CONFORM_CRED);
 		return conformCredBytes;
 	}
+	/**
+	 * Size of the CC stored in the Identity Proof. Unlike getConformCredBytes().length, this does not copy the credential.
+	 * 
+	 * @return The size in bytes of the conformance credential; 0 if there is none.
+	 */
+	public int getConformCredSize() {
+		return fieldSize(CONFORM_CRED, conformCredBytes);
+	}
 	/**
 	 * CC stored in the Identity Proof, if present, in the form of an X509Certificate object.
 	 * 
@@ -377,29 +473,48 @@ public class TpmIdentityProof {
 			throws CertificateException, 
 			java.security.cert.CertificateException, 
 			java.security.cert.CertificateEncodingException {
-		return getCertFromBytes(conformCredBytes);
+		return CertificateDecoder.getDefault().decodeLegacy(fieldBuffer(CONFORM_CRED, conformCredBytes));
+	}
+	/**
+	 * @return The identity label, as a view of the backing buffer if it has not been materialized.
+	 */
+	ByteBuffer idLabelBuffer() {
+		return fieldBuffer(LABEL, idLabelBytes);
+	}
+	/**
+	 * @return The identity binding, as a view of the backing buffer if it has not been materialized.
+	 */
+	ByteBuffer idBindingBuffer() {
+		return fieldBuffer(BINDING, idBindingBytes);
+	}
+	private ByteBuffer fieldBuffer(int field, byte [] value) {
+		if (value != null)
+			return ByteBuffer.wrap(value);
+		if (source != null)
+			return ByteBuffer.wrap(source, fieldOffsets[field], fieldSizes[field]);
+		return ByteBuffer.allocate(0);
 	}
 	/**
-	 * Convert from a byte array to a Java X509 Certificate. By default, all of the Privacy CA functions use 
-	 * javax.security.cert.X509Certificate. The conversion process requires the creation of a 
-	 * java.security.cert.X509Certificate. Although these two are identitical in structure, their member 
-	 * functions are different, and are seen by Java as different. This function performs the conversion process
-	 * between the two.
+	 * Copy a field out of the backing buffer of a parsed proof.
 	 * 
-	 * @param certBytes The byte array to convert.
-	 * @return A javax.security.cert.X509Certificate.
-	 * @throws CertificateException
-	 * @throws java.security.cert.CertificateException
-	 * @throws java.security.cert.CertificateEncodingException
+	 * @param field One of the field index constants.
+	 * @return A new array holding the field.
 	 */
-	private X509Certificate getCertFromBytes(byte [] certBytes) 
-			throws CertificateException, 
-			java.security.cert.CertificateException, 
-			java.security.cert.CertificateEncodingException {
-		ByteArrayInputStream bs = new ByteArrayInputStream(certBytes);
-		java.security.cert.CertificateFactory cf = java.security.cert.CertificateFactory.getInstance("X.509");
-		java.security.cert.X509Certificate cert = (java.security.cert.X509Certificate)cf.generateCertificate(bs);
-		X509Certificate xcert = javax.security.cert.X509Certificate.getInstance(cert.getEncoded());
-		return xcert;
+	private byte [] copyField(int field) {
+		byte [] value = new byte[fieldSizes[field]];
+		System.arraycopy(source, fieldOffsets[field], value, 0, value.length);
+		return value;
+	}
+	/**
+	 * @param field One of the field index constants.
+	 * @param value The materialized field, if any.
+	 * @return The size of the field, whether or not it has been materialized.
+	 */
+	private int fieldSize(int field, byte [] value) {
+		if (value != null)
+			return value.length;
+		if (source != null)
+			return fieldSizes[field];
+		return 0;
 	}
 }
@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory;
 
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * <p>The TpmIdentityRequest class is based on the TPM_IDENTITY_REQUEST structure and includes 
@@ -121,20 +122,50 @@ public class TpmIdentityRequest {
 			throws TpmUtils.TpmUnsignedConversionException, 
 			TpmUtils.TpmBytestreamResouceException,
 			PrivacyCaException {
-            try (ByteArrayInputStream bs = new ByteArrayInputStream(blob)) {
-                int asymSize = TpmUtils.getUINT32(bs);
-                int symSize = TpmUtils.getUINT32(bs);
+		this(new TpmBlobReader(blob));
+	}
+	/**
+	 * Create a new TpmIdentityRequest object from a reader positioned at the start of the 
+	 * output of Tspi_TPM_CollateIdentityRequest. The reader is left positioned after the request.
+	 *  
+	 * @param reader Reader over the byte blob form of the identity request.
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 * @throws TpmUtils.TpmBytestreamResouceException
+	 * @throws PrivacyCaException
+	 */
+	public TpmIdentityRequest(TpmBlobReader reader)
+			throws TpmUtils.TpmUnsignedConversionException, 
+			TpmUtils.TpmBytestreamResouceException,
+			PrivacyCaException {
+            try {
+                int asymSize = reader.readUINT32();
+                int symSize = reader.readUINT32();
+                ByteArrayInputStream bs = reader.remainingAsStream();
                 asymAlgorithm = new TpmKeyParams(bs);
                 symAlgorithm = new TpmKeyParams(bs);
+                reader.skipConsumed(bs);
                 TrousersModeIV = symAlgorithm.getTrouSerSmode();
-                asymBlob = TpmUtils.getBytes(bs, asymSize);
-                symBlob = TpmUtils.getBytes(bs, symSize);
-                findIv();
+                asymBlob = reader.readBytes(asymSize);
+                findIv(reader, symSize);
             } catch (Exception e) {
                 log.error("Error generating TPM identity request", e);
                 throw new PrivacyCaException("Error generating TPM identity request");
             }
 	}
+	/**
+	 * Create a TpmIdentityRequest from its header fields only, for TpmIdentityRequestDecoder. The sym blob 
+	 * is not held by the object; it is decrypted as it is read from the channel.
+	 * 
+	 * @param asymAlgorithm The parsed asym key_parms.
+	 * @param symAlgorithm The parsed sym key_parms.
+	 * @param asymBlob The encrypted symmetric key.
+	 */
+	TpmIdentityRequest(TpmKeyParams asymAlgorithm, TpmKeyParams symAlgorithm, byte [] asymBlob) {
+		this.asymAlgorithm = asymAlgorithm;
+		this.symAlgorithm = symAlgorithm;
+		this.asymBlob = asymBlob;
+		TrousersModeIV = symAlgorithm.getTrouSerSmode();
+	}
 	/**
 	 * Create a new TpmIdentityRequest by supplying a TpmIdentityProof and the Privacy CA's public key. A symmetric key and IV will be randomly created.
 	 * 
@@ -334,7 +365,7 @@ public class TpmIdentityRequest {
 			BadPaddingException, 
 			IllegalBlockSizeException{
 		//encrypt
-		Cipher symCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		Cipher symCipher = CryptoPrimitives.cipher("AES/CBC/PKCS5Padding", CryptoProviders.get(CryptoProviders.Operation.AES));
 		IvParameterSpec ivSpec = new IvParameterSpec(iv);
 		SecretKeySpec symKey = new SecretKeySpec(key, "AES");
 		symCipher.init(Cipher.ENCRYPT_MODE, symKey, ivSpec);
@@ -375,7 +406,7 @@ public class TpmIdentityRequest {
 			oaepSpec = new OAEPParameterSpec("Sha1", "MGF1", MGF1ParameterSpec.SHA1, new PSource.PSpecified("".getBytes()));
 		else
 			oaepSpec = new OAEPParameterSpec("Sha1", "MGF1", MGF1ParameterSpec.SHA1, new PSource.PSpecified("TCPA".getBytes()));
-		Cipher asymCipher = Cipher.getInstance("RSA/ECB/OAEPWithSha1AndMGF1Padding");
+		Cipher asymCipher = CryptoPrimitives.cipher("RSA/ECB/OAEPWithSha1AndMGF1Padding", CryptoProviders.get(CryptoProviders.Operation.RSA_ENCRYPT));
 		asymCipher.init(Cipher.PUBLIC_KEY, caKey, oaepSpec);
 		asymCipher.update(symKey.toByteArray());
 		asymBlob = asymCipher.doFinal();
@@ -388,18 +419,64 @@ public class TpmIdentityRequest {
 	 */
 	public byte [] toByteArray()
 			throws TpmUtils.TpmUnsignedConversionException {
-		byte [] asymSize = TpmUtils.intToByteArray(asymBlob.length);
-		byte [] symSize = TpmUtils.intToByteArray(symBlob.length);
 		byte [] asymAlgorithmBytes = asymAlgorithm.toByteArray();
 		byte [] symAlgorithmBytes = symAlgorithm.toByteArray();
-		byte [] toReturn = new byte[asymSize.length + symSize.length + asymAlgorithmBytes.length + symAlgorithmBytes.length + asymBlob.length + symBlob.length];
-		System.arraycopy(asymSize, 0, toReturn, 0, asymSize.length);
-		System.arraycopy(symSize, 0, toReturn, asymSize.length, symSize.length);
-		System.arraycopy(asymAlgorithmBytes, 0, toReturn, asymSize.length + symSize.length, asymAlgorithmBytes.length);
-		System.arraycopy(symAlgorithmBytes, 0, toReturn, asymSize.length + symSize.length + asymAlgorithmBytes.length, symAlgorithmBytes.length);
-		System.arraycopy(asymBlob, 0, toReturn, asymSize.length + symSize.length + asymAlgorithmBytes.length + symAlgorithmBytes.length, asymBlob.length);
-		System.arraycopy(symBlob, 0, toReturn, asymSize.length + symSize.length + asymAlgorithmBytes.length + symAlgorithmBytes.length + asymBlob.length, symBlob.length);
-		return toReturn;
+		ByteBuffer toReturn = ByteBuffer.allocate(encodedSize(asymAlgorithmBytes, symAlgorithmBytes));
+		encode(new TpmBlobWriter(toReturn), asymAlgorithmBytes, symAlgorithmBytes);
+		return toReturn.array();
+	}
+	/**
+	 * 
+	 * @return The number of bytes written by toByteArray() or writeTo().
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 */
+	public int getEncodedSize()
+			throws TpmUtils.TpmUnsignedConversionException {
+		return encodedSize(asymAlgorithm.toByteArray(), symAlgorithm.toByteArray());
+	}
+	/**
+	 * Serialize the structure into a ByteBuffer, starting at its current position. No intermediate arrays are 
+	 * allocated for the fields of the structure itself.
+	 * 
+	 * @param target The buffer to write to. It must have at least getEncodedSize() bytes remaining.
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 */
+	public void writeTo(ByteBuffer target)
+			throws TpmUtils.TpmUnsignedConversionException {
+		byte [] asymAlgorithmBytes = asymAlgorithm.toByteArray();
+		byte [] symAlgorithmBytes = symAlgorithm.toByteArray();
+		encode(new TpmBlobWriter(target), asymAlgorithmBytes, symAlgorithmBytes);
+	}
+	/**
+	 * Serialize the structure directly into an OutputStream.
+	 * 
+	 * @param target The stream to write to.
+	 * @throws IOException Passed from the stream.
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 */
+	public void writeTo(OutputStream target)
+			throws IOException, 
+			TpmUtils.TpmUnsignedConversionException {
+		byte [] asymAlgorithmBytes = asymAlgorithm.toByteArray();
+		byte [] symAlgorithmBytes = symAlgorithm.toByteArray();
+		try {
+			encode(new TpmBlobWriter(target), asymAlgorithmBytes, symAlgorithmBytes);
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	private int encodedSize(byte [] asymAlgorithmBytes, byte [] symAlgorithmBytes) {
+		return 4 + 4 + asymAlgorithmBytes.length + symAlgorithmBytes.length + asymBlob.length + symBlob.length;
+	}
+	private void encode(TpmBlobWriter writer, byte [] asymAlgorithmBytes, byte [] symAlgorithmBytes)
+			throws TpmUtils.TpmUnsignedConversionException {
+		writer.putUINT32(asymBlob.length);
+		writer.putUINT32(symBlob.length);
+		writer.putBytes(asymAlgorithmBytes);
+		writer.putBytes(symAlgorithmBytes);
+		writer.putBytes(asymBlob);
+		writer.putBytes(symBlob);
 	}
 	/**
 	 * 
@@ -461,26 +538,14 @@ public class TpmIdentityRequest {
 		TpmSymmetricKey symKey;
 		switch (asymAlgorithm.getEncScheme()) {
 		case 0x3: // <-- most likely with NTRU, TrouSerS
-			Cipher asymCipher = Cipher.getInstance("RSA/ECB/OAEPWithSha1AndMGF1Padding");
-			OAEPParameterSpec oaepSpec = new OAEPParameterSpec("Sha1", "MGF1", MGF1ParameterSpec.SHA1, new PSource.PSpecified("TCPA".getBytes()));
-			asymCipher.init(Cipher.PRIVATE_KEY, privCaKey, oaepSpec);
-			asymCipher.update(asymBlob);
-			byte[] temparray;
-			try {
-				temparray = asymCipher.doFinal();
-			} catch (BadPaddingException e) { //<- TrouSerS does not use an OAEP parameter string of "TCPA", per 1.1b spec. This results in a BadPaddingException -- try again without!
-				oaepSpec = new OAEPParameterSpec("Sha1", "MGF1", MGF1ParameterSpec.SHA1, new PSource.PSpecified("".getBytes()));
-				asymCipher.init(Cipher.PRIVATE_KEY, privCaKey, oaepSpec);
-				asymCipher.update(asymBlob);
-				temparray = asymCipher.doFinal();
-				TrousersModeBlankOeap = true;
-			}
-			if (temparray == null)
-				throw new PrivacyCaException("Unable to decrypt asym blob from incoming request.");
-			symKey = new TpmSymmetricKey(temparray);
+			// TrouSerS does not use an OAEP parameter string of "TCPA", per 1.1b spec, but a blank one.
+			// Both are checked on a single RSA decryption.
+			TcgOaep.Result decrypted = TcgOaep.decrypt(asymBlob, privCaKey);
+			TrousersModeBlankOeap = decrypted.isBlankLabel();
+			symKey = new TpmSymmetricKey(decrypted.getMessage());
 			break;
 		default:
-			asymCipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+			Cipher asymCipher = CryptoPrimitives.cipher("RSA/ECB/PKCS1Padding", CryptoProviders.get(CryptoProviders.Operation.RSA_DECRYPT));
 			asymCipher.init(Cipher.DECRYPT_MODE, privCaKey);
 			symKey = new TpmSymmetricKey(asymCipher.doFinal(asymBlob));
 			break;
@@ -517,7 +582,7 @@ public class TpmIdentityRequest {
 			PrivacyCaException, 
 			TpmUtils.TpmBytestreamResouceException {
 		String instance = symKey.getAlgorithmStr() + "/" + symKey.getEncSchemeStr();
-		Cipher symCipher = Cipher.getInstance(instance);
+		Cipher symCipher = CryptoPrimitives.cipher(instance, CryptoProviders.get(CryptoProviders.Operation.AES));
 		IvParameterSpec ivSpec = new IvParameterSpec(symAlgorithm.getSubParams().getByteData());
 		symCipher.init(Cipher.DECRYPT_MODE, symKey.getSecretKey(), ivSpec);
 		TpmIdentityProof identProof = new TpmIdentityProof(symCipher.doFinal(symBlob), TrousersModeIV, TrousersModeSymkeyEncscheme, TrousersModeBlankOeap);
@@ -550,11 +615,29 @@ public class TpmIdentityRequest {
 			TpmUtils.TpmBytestreamResouceException {
 		String instance = symKey.getAlgorithmStr() + "/" + symKey.getEncSchemeStr();
 		//System.out.println("Instance: " + instance);
-		Cipher symCipher = Cipher.getInstance(instance);
+		Cipher symCipher = CryptoPrimitives.cipher(instance, CryptoProviders.get(CryptoProviders.Operation.AES));
 		IvParameterSpec ivSpec = new IvParameterSpec(symAlgorithm.getSubParams().getByteData());
 		symCipher.init(Cipher.DECRYPT_MODE, symKey.getSecretKey(), ivSpec);
 		return symCipher.doFinal(symBlob);
 	}
+	/**
+	 * Decrypt only the asymmetric portion of the request, for callers that decrypt the sym blob themselves.
+	 * 
+	 * @param privCaKey The Privacy CA's private key.
+	 * @return The symmetric key protecting the identity proof.
+	 */
+	TpmSymmetricKey decryptKey(RSAPrivateKey privCaKey)
+			throws InvalidKeyException, 
+			IllegalBlockSizeException, 
+			InvalidAlgorithmParameterException, 
+			TpmUtils.TpmUnsignedConversionException, 
+			NoSuchAlgorithmException, 
+			BadPaddingException, 
+			NoSuchPaddingException, 
+			PrivacyCaException, 
+			TpmUtils.TpmBytestreamResouceException {
+		return decryptAsym(privCaKey);
+	}
 	/**
 	 * Decrypt the identity request to get the identity proof.
 	 * 
@@ -618,47 +701,66 @@ public class TpmIdentityRequest {
 	 * from TrouSerS-style to 1.2 spec compliant style. A flag is set when parsing (in the constructor) so that the particular
 	 * style is recorded. This will be used when constructing a response. 
 	 * 
+	 * @param reader Reader positioned at the start of the symmetrically encrypted blob.
+	 * @param symSize The size of the symmetrically encrypted blob, including a TrouSerS-style IV.
 	 * @throws PrivacyCaException
+	 * @throws TpmUtils.TpmBytestreamResouceException
 	 */
-	private void findIv() 
-			throws PrivacyCaException { //must be called at this level to have access to symBlob
+	private void findIv(TpmBlobReader reader, int symSize) 
+			throws PrivacyCaException,
+			TpmUtils.TpmBytestreamResouceException { //must be called at this level to have access to symBlob
 		//Because TrouSerS-style might be in effect, we may have to find the IV and adjust the symBlob
+		int ivSize = findIvSize(symSize);
+		if (ivSize > 0) {
+			//snag the first (blocksize) bits from the symBlob, the rest is the ciphertext
+			symAlgorithm.getSubParams().setByteData(reader.readBytes(ivSize));
+		}
+		symBlob = reader.readBytes(symSize - ivSize);
+	}
+	/**
+	 * Detect TrouSerS-style IV placement from the sym key_parms. In that case the key length and block size for the 
+	 * symmetric algorithm are filled in, and the IV (of block size) must then be taken from the head of the sym blob 
+	 * and stored with symAlgorithm.getSubParams().setByteData().
+	 * 
+	 * @param symSize The size of the symmetrically encrypted blob, including a TrouSerS-style IV.
+	 * @return The number of IV bytes at the head of the sym blob; 0 if the IV is in the key_parms.
+	 * @throws PrivacyCaException
+	 */
+	int findIvSize(int symSize) 
+			throws PrivacyCaException {
 		//Also, based on this populate other values (keyLength, blockSize)
-		if (symAlgorithm.getSubParams().getValueData() == 0) {
-			TrousersModeIV = true;
-			//This indicates TrouSerS mode is active.
-			//Set the key length and block size to the value for the symmetric algorithm
-			switch (symAlgorithm.getAlgorithmId()) {
-			case 0x2: //TPM_ALG_DES
-				symAlgorithm.getSubParams().setKeyLength(56);
-				symAlgorithm.getSubParams().setValueData(64); //set block size, assume in bits (not specified in TCG documentation)
-				break;
-			case 0x3: //TPM_ALG_3DES
-				symAlgorithm.getSubParams().setKeyLength(192);
-				symAlgorithm.getSubParams().setValueData(64); //set block size, assume in bits (not specified in TCG documentation)
-				break;
-			case 0x6: //TPM_ALG_AES/AES128* most likely to occur
-				symAlgorithm.getSubParams().setKeyLength(128);
-				symAlgorithm.getSubParams().setValueData(128); //set block size, assume in bits (not specified in TCG documentation)
-				break;
-			case 0x8: //TPM_ALG_AES192
-				symAlgorithm.getSubParams().setKeyLength(192);
-				symAlgorithm.getSubParams().setValueData(128); //set block size, assume in bits (not specified in TCG documentation)
-				break;
-			case 0x9: //TPM_ALG_AES256
-				symAlgorithm.getSubParams().setKeyLength(256);
-				symAlgorithm.getSubParams().setValueData(128); //set block size, assume in bits (not specified in TCG documentation)
-				break;
-			default:
-				throw new PrivacyCaException("Unexpected symmetric algorithm ID: " + Integer.toHexString(symAlgorithm.getAlgorithmId()));
-			}
-			//snag the first (blocksize) bits from the symBlob
-			byte [] newIv = new byte[symAlgorithm.getSubParams().getValueData() / 8];
-			System.arraycopy(symBlob, 0, newIv, 0, newIv.length);
-			symAlgorithm.getSubParams().setByteData(newIv);
-			byte [] newSymBlob = new byte[symBlob.length - newIv.length];
-			System.arraycopy(symBlob, newIv.length, newSymBlob, 0, newSymBlob.length);
-			symBlob = newSymBlob;
+		if (symAlgorithm.getSubParams().getValueData() != 0)
+			return 0;
+		TrousersModeIV = true;
+		//This indicates TrouSerS mode is active.
+		//Set the key length and block size to the value for the symmetric algorithm
+		switch (symAlgorithm.getAlgorithmId()) {
+		case 0x2: //TPM_ALG_DES
+			symAlgorithm.getSubParams().setKeyLength(56);
+			symAlgorithm.getSubParams().setValueData(64); //set block size, assume in bits (not specified in TCG documentation)
+			break;
+		case 0x3: //TPM_ALG_3DES
+			symAlgorithm.getSubParams().setKeyLength(192);
+			symAlgorithm.getSubParams().setValueData(64); //set block size, assume in bits (not specified in TCG documentation)
+			break;
+		case 0x6: //TPM_ALG_AES/AES128* most likely to occur
+			symAlgorithm.getSubParams().setKeyLength(128);
+			symAlgorithm.getSubParams().setValueData(128); //set block size, assume in bits (not specified in TCG documentation)
+			break;
+		case 0x8: //TPM_ALG_AES192
+			symAlgorithm.getSubParams().setKeyLength(192);
+			symAlgorithm.getSubParams().setValueData(128); //set block size, assume in bits (not specified in TCG documentation)
+			break;
+		case 0x9: //TPM_ALG_AES256
+			symAlgorithm.getSubParams().setKeyLength(256);
+			symAlgorithm.getSubParams().setValueData(128); //set block size, assume in bits (not specified in TCG documentation)
+			break;
+		default:
+			throw new PrivacyCaException("Unexpected symmetric algorithm ID: " + Integer.toHexString(symAlgorithm.getAlgorithmId()));
 		}
+		int ivSize = symAlgorithm.getSubParams().getValueData() / 8;
+		if (symSize < ivSize)
+			throw new PrivacyCaException("Symmetric blob is too small to contain an initialization vector.");
+		return ivSize;
 	}
 }
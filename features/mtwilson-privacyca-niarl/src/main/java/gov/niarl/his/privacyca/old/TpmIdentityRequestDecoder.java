@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import gov.niarl.his.privacyca.old.TpmUtils.TpmBytestreamResouceException;
+import gov.niarl.his.privacyca.old.TpmUtils.TpmUnsignedConversionException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.interfaces.RSAPrivateKey;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * <p>Decodes a TPM_IDENTITY_REQ as it arrives on a channel, instead of from a byte array.</p>
+ *
+ * <p>The header, both TPM_KEY_PARMS and the asym blob are read first and the asym blob is
+ * RSA decrypted before any of the sym blob is read. The sym blob is then read in fixed-size
+ * chunks and decrypted into a single plaintext buffer, sized from the declared sym size,
+ * from which a lazily materialized TpmIdentityProof is built. Compared to
+ * TpmIdentityRequest(byte[]) followed by decrypt(), neither the full request nor the
+ * ciphertext is ever buffered, and the credentials in the proof exist only once, in
+ * plaintext.</p>
+ *
+ * <p>As soon as the fixed part of the proof is decrypted its declared field sizes are
+ * checked against the sym size, so an inconsistent request is rejected without decrypting
+ * the rest of it.</p>
+ *
+ * <p>The channel must be in blocking mode. A decoder holds a chunk buffer and may be reused
+ * for consecutive requests, but it is not thread safe.</p>
+ */
+public class TpmIdentityRequestDecoder {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmIdentityRequestDecoder.class);
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+    /** Upper bound on the sym blob, which carries the EK, platform and conformance credentials. */
+    public static final int DEFAULT_MAX_SYM_SIZE = 1024 * 1024;
+    // TPM_KEY_PARMS: algorithmID UINT32, encScheme UINT16, sigScheme UINT16, parmSize UINT32
+    private static final int KEY_PARMS_HEADER = 12;
+    private static final int MAX_PARM_SIZE = 1024;
+    // TPM_IDENTITY_PROOF: TPM_STRUCT_VER followed by five UINT32 sizes
+    private static final int PROOF_SIZES_END = 4 + 5 * 4;
+
+    private final ByteBuffer chunk;
+    private final int maxSymSize;
+    private TpmIdentityRequest request;
+
+    public TpmIdentityRequestDecoder() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_SYM_SIZE);
+    }
+
+    /**
+     * @param chunkSize Number of ciphertext bytes read from the channel at a time.
+     * @param maxSymSize Largest sym blob accepted; larger requests are rejected before anything is allocated for them.
+     */
+    public TpmIdentityRequestDecoder(int chunkSize, int maxSymSize) {
+        this.chunk = ByteBuffer.allocate(chunkSize);
+        this.maxSymSize = maxSymSize;
+    }
+
+    /**
+     * Read one identity request from the channel and decrypt it. The channel is left
+     * positioned after the request.
+     *
+     * @param channel A blocking channel positioned at the start of the TPM_IDENTITY_REQ.
+     * @param privCaKey The Privacy CA's private key.
+     * @return The identity proof. It is a view of the decrypted buffer, see TpmIdentityProof.
+     * @throws IOException Passed from the channel.
+     * @throws PrivacyCaException Thrown if the request is inconsistent with itself or the CA key.
+     * @throws TpmBytestreamResouceException Thrown if the channel ends before the request does.
+     */
+    public TpmIdentityProof decode(ReadableByteChannel channel, RSAPrivateKey privCaKey)
+            throws IOException,
+            PrivacyCaException,
+            TpmBytestreamResouceException,
+            TpmUnsignedConversionException,
+            InvalidKeyException,
+            InvalidAlgorithmParameterException,
+            NoSuchAlgorithmException,
+            NoSuchPaddingException,
+            IllegalBlockSizeException,
+            BadPaddingException {
+        request = null;
+        ByteBuffer header = readFully(channel, ByteBuffer.allocate(8));
+        int asymSize = header.getInt(0);
+        int symSize = header.getInt(4);
+        int modulusBytes = (privCaKey.getModulus().bitLength() + 7) / 8;
+        if (asymSize != modulusBytes) {
+            throw new PrivacyCaException("Asym blob size " + asymSize + " does not match the Privacy CA key");
+        }
+        if (symSize <= 0 || symSize > maxSymSize) {
+            throw new PrivacyCaException("Sym blob size " + symSize + " is out of range");
+        }
+        TpmKeyParams asymAlgorithm = new TpmKeyParams(new ByteArrayInputStream(readKeyParms(channel)));
+        TpmKeyParams symAlgorithm = new TpmKeyParams(new ByteArrayInputStream(readKeyParms(channel)));
+        byte[] asymBlob = readFully(channel, ByteBuffer.allocate(asymSize)).array();
+        TpmIdentityRequest parsed = new TpmIdentityRequest(asymAlgorithm, symAlgorithm, asymBlob);
+        TpmSymmetricKey symKey = parsed.decryptKey(privCaKey);
+        int ivSize = parsed.findIvSize(symSize);
+        if (ivSize > 0) {
+            symAlgorithm.getSubParams().setByteData(readFully(channel, ByteBuffer.allocate(ivSize)).array());
+        }
+        Cipher symCipher = CryptoPrimitives.cipher(symKey.getAlgorithmStr() + "/" + symKey.getEncSchemeStr(), CryptoProviders.get(CryptoProviders.Operation.AES));
+        symCipher.init(Cipher.DECRYPT_MODE, symKey.getSecretKey(), new IvParameterSpec(symAlgorithm.getSubParams().getByteData()));
+        int cipherSize = symSize - ivSize;
+        // with padding removed the plaintext is never longer than the ciphertext
+        byte[] plain = new byte[cipherSize];
+        int plainSize = 0;
+        int left = cipherSize;
+        boolean sizesChecked = false;
+        try {
+            while (left > 0) {
+                chunk.clear();
+                chunk.limit(Math.min(chunk.capacity(), left));
+                readFully(channel, chunk);
+                left -= chunk.limit();
+                plainSize += symCipher.update(chunk.array(), 0, chunk.limit(), plain, plainSize);
+                if (!sizesChecked && plainSize >= PROOF_SIZES_END) {
+                    checkProofSizes(plain, cipherSize);
+                    sizesChecked = true;
+                }
+            }
+            plainSize += symCipher.doFinal(plain, plainSize);
+        } catch (ShortBufferException e) {
+            // cannot happen: the output buffer is as large as the whole ciphertext
+            throw new IllegalStateException(e);
+        }
+        if (!sizesChecked) {
+            checkProofSizes(plain, plainSize);
+        }
+        request = parsed;
+        log.debug("Decoded identity request: {} byte proof in {} byte sym blob", plainSize, symSize);
+        return new TpmIdentityProof(new TpmBlobReader(plain, 0, plainSize), parsed.getIVmode(), parsed.getSymkeyEncscheme(), parsed.getOeapMode());
+    }
+
+    /**
+     * The request decoded by the last successful call to decode(). It holds the key parameters and
+     * TrouSerS flags needed to build a response. It does not hold the sym blob, so getSymBlob() and
+     * toByteArray() are not available on it.
+     *
+     * @return The last decoded request, or null.
+     */
+    public TpmIdentityRequest getRequest() {
+        return request;
+    }
+
+    private byte[] readKeyParms(ReadableByteChannel channel)
+            throws IOException, PrivacyCaException, TpmBytestreamResouceException {
+        ByteBuffer parmsHeader = readFully(channel, ByteBuffer.allocate(KEY_PARMS_HEADER));
+        int parmSize = parmsHeader.getInt(8);
+        if (parmSize < 0 || parmSize > MAX_PARM_SIZE) {
+            throw new PrivacyCaException("Key parms size " + parmSize + " is out of range");
+        }
+        ByteBuffer parms = ByteBuffer.allocate(KEY_PARMS_HEADER + parmSize);
+        parms.put(parmsHeader.array());
+        return readFully(channel, parms).array();
+    }
+
+    /**
+     * Reject a proof whose declared field sizes cannot fit in the plaintext.
+     */
+    private static void checkProofSizes(byte[] plain, int available)
+            throws PrivacyCaException {
+        if (available < PROOF_SIZES_END) {
+            throw new PrivacyCaException("Identity proof is truncated");
+        }
+        long declared = 0;
+        for (int index = 4; index < PROOF_SIZES_END; index += 4) {
+            declared += TpmBlobReader.getUINT32(plain, index);
+        }
+        if (declared > available - PROOF_SIZES_END) {
+            throw new PrivacyCaException("Identity proof field sizes exceed the sym blob");
+        }
+    }
+
+    private static ByteBuffer readFully(ReadableByteChannel channel, ByteBuffer target)
+            throws IOException, TpmBytestreamResouceException {
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+                throw new TpmBytestreamResouceException("Channel ended before the end of the identity request.");
+            }
+        }
+        return target;
+    }
+}
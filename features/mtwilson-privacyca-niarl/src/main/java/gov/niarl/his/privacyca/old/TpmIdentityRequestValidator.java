@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * <p>Structural check of a serialized TPM_IDENTITY_REQ, done before any parsing or RSA
+ * work. The validator walks the header and the two TPM_KEY_PARMS structures in place and
+ * checks that:</p>
+ * <ul>
+ * <li>the declared asym and sym sizes fit in a signed integer and together with the key
+ * parameters account for exactly the bytes supplied,</li>
+ * <li>the asym algorithm is TPM_ALG_RSA and the asym blob is exactly one RSA block for the
+ * Privacy CA key,</li>
+ * <li>the sym algorithm is DES, 3DES or AES, and the sym blob is a non-empty multiple of
+ * the cipher block size,</li>
+ * <li>the parameter sizes agree with the variable-length fields they contain.</li>
+ * </ul>
+ *
+ * <p>Only the headers are read, nothing is allocated, and problems are reported as a Result
+ * rather than thrown, so a flood of malformed requests can be rejected cheaply. A VALID
+ * result does not mean the request decrypts or verifies.</p>
+ */
+public class TpmIdentityRequestValidator {
+    // TPM_KEY_PARMS: algorithmID UINT32, encScheme UINT16, sigScheme UINT16, parmSize UINT32
+    private static final int KEY_PARMS_HEADER = 12;
+    // TPM_RSA_KEY_PARMS and TPM_SYMMETRIC_KEY_PARMS: three UINT32 followed by a sized field
+    private static final int SUB_PARMS_HEADER = 12;
+    private static final int TPM_ALG_RSA = 0x1;
+    private static final int TPM_ALG_DES = 0x2;
+    private static final int TPM_ALG_3DES = 0x3;
+    private static final int TPM_ALG_AES128 = 0x6;
+    private static final int TPM_ALG_AES192 = 0x8;
+    private static final int TPM_ALG_AES256 = 0x9;
+
+    public enum Result {
+        VALID,
+        /** The blob ends before a fixed-size field or a declared field. */
+        TRUNCATED,
+        /** A declared size has its high bit set. */
+        SIZE_OUT_OF_RANGE,
+        /** The asym algorithm is not TPM_ALG_RSA. */
+        UNSUPPORTED_ASYM_ALGORITHM,
+        /** The asym blob is not the size of the Privacy CA modulus. */
+        ASYM_SIZE_MISMATCH,
+        /** The sym algorithm is not one of DES, 3DES, AES128, AES192 or AES256. */
+        UNSUPPORTED_SYM_ALGORITHM,
+        /** The sym blob is empty or not a multiple of the cipher block size. */
+        SYM_SIZE_MISMATCH,
+        /** A parmSize does not match the parameters it contains. */
+        BAD_KEY_PARMS,
+        /** There are bytes after the sym blob. */
+        TRAILING_DATA
+    }
+
+    private TpmIdentityRequestValidator() {
+    }
+
+    /**
+     * Validate an identity request against the Privacy CA key it was encrypted for.
+     *
+     * @param blob The TPM_IDENTITY_REQ as received from the client.
+     * @param caKey The Privacy CA public key.
+     * @return VALID, or the first problem found.
+     */
+    public static Result validate(byte[] blob, RSAPublicKey caKey) {
+        return validate(blob, 0, blob.length, (caKey.getModulus().bitLength() + 7) / 8);
+    }
+
+    /**
+     * Validate an identity request held in a region of a buffer.
+     *
+     * @param blob The buffer holding the TPM_IDENTITY_REQ.
+     * @param offset Index of the first byte of the request.
+     * @param length Size of the request.
+     * @param modulusBytes Size in bytes of the Privacy CA modulus.
+     * @return VALID, or the first problem found.
+     */
+    public static Result validate(byte[] blob, int offset, int length, int modulusBytes) {
+        int end = offset + length;
+        int pos = offset;
+        if (length < 8 + KEY_PARMS_HEADER) {
+            return Result.TRUNCATED;
+        }
+        long asymSize = TpmBlobReader.getUINT32(blob, pos);
+        long symSize = TpmBlobReader.getUINT32(blob, pos + 4);
+        if (asymSize > Integer.MAX_VALUE || symSize > Integer.MAX_VALUE) {
+            return Result.SIZE_OUT_OF_RANGE;
+        }
+        pos += 8;
+        // asymAlgorithm
+        if (TpmBlobReader.getUINT32(blob, pos) != TPM_ALG_RSA) {
+            return Result.UNSUPPORTED_ASYM_ALGORITHM;
+        }
+        int asymParms = checkKeyParms(blob, pos, end);
+        if (asymParms < 0) {
+            return asymParms == -1 ? Result.TRUNCATED : Result.BAD_KEY_PARMS;
+        }
+        pos += asymParms;
+        // symAlgorithm
+        if (end - pos < KEY_PARMS_HEADER) {
+            return Result.TRUNCATED;
+        }
+        int blockSize;
+        switch ((int) TpmBlobReader.getUINT32(blob, pos)) {
+            case TPM_ALG_DES:
+            case TPM_ALG_3DES:
+                blockSize = 8;
+                break;
+            case TPM_ALG_AES128:
+            case TPM_ALG_AES192:
+            case TPM_ALG_AES256:
+                blockSize = 16;
+                break;
+            default:
+                return Result.UNSUPPORTED_SYM_ALGORITHM;
+        }
+        int symParms = checkKeyParms(blob, pos, end);
+        if (symParms < 0) {
+            return symParms == -1 ? Result.TRUNCATED : Result.BAD_KEY_PARMS;
+        }
+        pos += symParms;
+        // blobs
+        if (asymSize != modulusBytes) {
+            return Result.ASYM_SIZE_MISMATCH;
+        }
+        if (symSize == 0 || symSize % blockSize != 0) {
+            return Result.SYM_SIZE_MISMATCH;
+        }
+        long declared = asymSize + symSize;
+        if (end - pos < declared) {
+            return Result.TRUNCATED;
+        }
+        if (end - pos > declared) {
+            return Result.TRAILING_DATA;
+        }
+        return Result.VALID;
+    }
+
+    /**
+     * Check a TPM_KEY_PARMS whose header is known to be in bounds.
+     *
+     * @return The encoded size of the structure, -1 if it runs past <b>end</b>, or -2 if its
+     * parmSize disagrees with its contents.
+     */
+    private static int checkKeyParms(byte[] blob, int pos, int end) {
+        long parmSize = TpmBlobReader.getUINT32(blob, pos + 8);
+        pos += KEY_PARMS_HEADER;
+        if (parmSize > end - pos) {
+            return -1;
+        }
+        if (parmSize != 0) {
+            // keyLength, blockSize/numPrimes, then a sized IV or exponent filling the rest
+            if (parmSize < SUB_PARMS_HEADER) {
+                return -2;
+            }
+            if (TpmBlobReader.getUINT32(blob, pos + 8) != parmSize - SUB_PARMS_HEADER) {
+                return -2;
+            }
+        }
+        return KEY_PARMS_HEADER + (int) parmSize;
+    }
+}
@@ -17,6 +17,10 @@ import gov.niarl.his.privacyca.old.TpmUtils.TpmBytestreamResouceException;
 import gov.niarl.his.privacyca.old.TpmUtils.TpmUnsignedConversionException;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 
 /**
  * <p>This class is for the TCG's TPM_KEY structure.</p>
@@ -52,18 +56,32 @@ public class TpmKey {
 	public TpmKey(byte [] blob) 
 			throws TpmBytestreamResouceException, 
 			TpmUnsignedConversionException{
-            try (ByteArrayInputStream bs = new ByteArrayInputStream(blob)) {
-                structVer = TpmUtils.getBytes(bs, 4); //4 bytes
-                tpmKeyUsage = TpmUtils.getUINT16(bs); //uint16
-                tpmKeyFlags = TpmUtils.getUINT32(bs); //uint32
-                tpmAuthDataUsage = TpmUtils.getBytes(bs, 1)[0]; //byte
+		this(new TpmBlobReader(blob));
+	}
+	/**
+	 * Create a new TpmKey by extracting values from a reader positioned at the start of a TPM_KEY.
+	 * The reader is left positioned after the structure.
+	 * @param reader Reader over a raw blob containing a TPM_KEY.
+	 * @throws TpmBytestreamResouceException
+	 * @throws TpmUnsignedConversionException
+	 */
+	public TpmKey(TpmBlobReader reader) 
+			throws TpmBytestreamResouceException, 
+			TpmUnsignedConversionException{
+            try {
+                structVer = reader.readBytes(4); //4 bytes
+                tpmKeyUsage = reader.readUINT16(); //uint16
+                tpmKeyFlags = reader.readUINT32(); //uint32
+                tpmAuthDataUsage = reader.readByte(); //byte
+                ByteArrayInputStream bs = reader.remainingAsStream();
                 keyParms = new TpmKeyParams(bs); //TpmKeyParams
-                int tempSize = TpmUtils.getUINT32(bs); //uint32
-                pcrInfo = TpmUtils.getBytes(bs, tempSize); //<tempSize> bytes
-                tempSize = TpmUtils.getUINT32(bs); //uint32
-                tpmStorePubkey = TpmUtils.getBytes(bs, tempSize); //<tempSize> bytes
-                tempSize = TpmUtils.getUINT32(bs); //uint32
-                encryptedData = TpmUtils.getBytes(bs, tempSize); //<tempSize> bytes
+                reader.skipConsumed(bs);
+                int tempSize = reader.readUINT32(); //uint32
+                pcrInfo = reader.readBytes(tempSize); //<tempSize> bytes
+                tempSize = reader.readUINT32(); //uint32
+                tpmStorePubkey = reader.readBytes(tempSize); //<tempSize> bytes
+                tempSize = reader.readUINT32(); //uint32
+                encryptedData = reader.readBytes(tempSize); //<tempSize> bytes
             } catch (Exception e) {
                 log.error("Error creating TpmKey from byte blob", e);
                 throw new TpmUtils.TpmBytestreamResouceException("Error creating TpmKey from byte blob");
@@ -196,48 +214,72 @@ public class TpmKey {
 	public byte [] toByteArray() 
 			throws TpmUnsignedConversionException{
 		byte [] keyParmsBytes = keyParms.toByteArray();
-		byte [] toReturn = new byte[4 + 2 + 4 + 1 + keyParmsBytes.length + 4 + pcrInfo.length + 4 + tpmStorePubkey.length + 4 + encryptedData.length];
-		byte [] tempBytes;
-		int copyPos = 0;
+		ByteBuffer toReturn = ByteBuffer.allocate(encodedSize(keyParmsBytes));
+		encode(new TpmBlobWriter(toReturn), keyParmsBytes);
+		return toReturn.array();
+	}
+	/**
+	 * 
+	 * @return The number of bytes written by toByteArray() or writeTo().
+	 * @throws TpmUnsignedConversionException
+	 */
+	public int getEncodedSize()
+			throws TpmUnsignedConversionException {
+		return encodedSize(keyParms.toByteArray());
+	}
+	/**
+	 * Serialize the structure into a ByteBuffer, starting at its current position. No intermediate arrays are 
+	 * allocated for the fields of the structure itself.
+	 * 
+	 * @param target The buffer to write to. It must have at least getEncodedSize() bytes remaining.
+	 * @throws TpmUnsignedConversionException
+	 */
+	public void writeTo(ByteBuffer target)
+			throws TpmUnsignedConversionException {
+		byte [] keyParmsBytes = keyParms.toByteArray();
+		encode(new TpmBlobWriter(target), keyParmsBytes);
+	}
+	/**
+	 * Serialize the structure directly into an OutputStream.
+	 * 
+	 * @param target The stream to write to.
+	 * @throws IOException Passed from the stream.
+	 * @throws TpmUnsignedConversionException
+	 */
+	public void writeTo(OutputStream target)
+			throws IOException, 
+			TpmUnsignedConversionException {
+		byte [] keyParmsBytes = keyParms.toByteArray();
+		try {
+			encode(new TpmBlobWriter(target), keyParmsBytes);
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	private int encodedSize(byte [] keyParmsBytes) {
+		return 4 + 2 + 4 + 1 + keyParmsBytes.length + 4 + pcrInfo.length + 4 + tpmStorePubkey.length + 4 + encryptedData.length;
+	}
+	private void encode(TpmBlobWriter writer, byte [] keyParmsBytes)
+			throws TpmUnsignedConversionException {
 		//structver: 4
-		System.arraycopy(structVer, 0, toReturn, copyPos, structVer.length);
-		copyPos += structVer.length;
+		writer.putBytes(structVer);
 		//tpm key usage: uint16/short
-		tempBytes = TpmUtils.shortToByteArray(tpmKeyUsage);
-		System.arraycopy(tempBytes, 0, toReturn, copyPos, tempBytes.length);
-		copyPos += tempBytes.length;
+		writer.putUINT16(tpmKeyUsage);
 		//tpm key flags: uint32/int
-		tempBytes = TpmUtils.intToByteArray(tpmKeyFlags);
-		System.arraycopy(tempBytes, 0, toReturn, copyPos, tempBytes.length);
-		copyPos += tempBytes.length;
+		writer.putUINT32(tpmKeyFlags);
 		//tpm auth data usage: byte[1]
-		tempBytes = new byte[1];
-		tempBytes[0] = tpmAuthDataUsage;
-		System.arraycopy(tempBytes, 0, toReturn, copyPos, tempBytes.length);
-		copyPos += tempBytes.length;
-		//tpm key parms: above
-		System.arraycopy(keyParmsBytes, 0, toReturn, copyPos, keyParmsBytes.length);
-		copyPos += keyParmsBytes.length;
-		//size of pcr info
-		tempBytes = TpmUtils.intToByteArray(pcrInfo.length);
-		System.arraycopy(tempBytes, 0, toReturn, copyPos, tempBytes.length);
-		copyPos += tempBytes.length;
-		//pcr info
-		System.arraycopy(pcrInfo, 0, toReturn, copyPos, pcrInfo.length);
-		copyPos += pcrInfo.length;
-		//size of modulus
-		tempBytes = TpmUtils.intToByteArray(tpmStorePubkey.length);
-		System.arraycopy(tempBytes, 0, toReturn, copyPos, tempBytes.length);
-		copyPos += tempBytes.length;
-		//modulus
-		System.arraycopy(tpmStorePubkey, 0, toReturn, copyPos, tpmStorePubkey.length);
-		copyPos += tpmStorePubkey.length;
-		//enc data size
-		tempBytes = TpmUtils.intToByteArray(encryptedData.length);
-		System.arraycopy(tempBytes, 0, toReturn, copyPos, tempBytes.length);
-		copyPos += tempBytes.length;
-		//enc data
-		System.arraycopy(encryptedData, 0, toReturn, copyPos, encryptedData.length);
-		return toReturn;
+		writer.putByte(tpmAuthDataUsage);
+		//tpm key parms
+		writer.putBytes(keyParmsBytes);
+		//size of pcr info, pcr info
+		writer.putUINT32(pcrInfo.length);
+		writer.putBytes(pcrInfo);
+		//size of modulus, modulus
+		writer.putUINT32(tpmStorePubkey.length);
+		writer.putBytes(tpmStorePubkey);
+		//enc data size, enc data
+		writer.putUINT32(encryptedData.length);
+		writer.putBytes(encryptedData);
 	}
 }
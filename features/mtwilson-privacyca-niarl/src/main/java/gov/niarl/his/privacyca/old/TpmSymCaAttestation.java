@@ -13,9 +13,9 @@
 
 package gov.niarl.his.privacyca.old;
 
-import java.io.ByteArrayInputStream;
 import java.security.cert.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.security.*;
 import javax.crypto.*;
 
@@ -32,6 +32,7 @@ public class TpmSymCaAttestation {
 	private TpmKeyParams algorithm;
 	private byte [] plainAikCred = null;
 	private byte [] encAikCred;
+	private byte [] encAikCredIv = null;
 	
 	public TpmSymCaAttestation(){}
 	/**
@@ -57,9 +58,7 @@ public class TpmSymCaAttestation {
 	 */
 	public X509Certificate getAikCredential()
 			throws CertificateException {
-		ByteArrayInputStream bs = new ByteArrayInputStream(plainAikCred);
-		CertificateFactory cf = CertificateFactory.getInstance("X.509");
-		return (X509Certificate)cf.generateCertificate(bs);
+		return CertificateDecoder.parse(plainAikCred);
 	}
 	/**
 	 * Encrypt the stored certificate using the specified options. A random key and IV are created.
@@ -105,18 +104,16 @@ public class TpmSymCaAttestation {
 		byte [] newKey = TpmUtils.createRandomBytes(16);
 		//System.out.println("The symmetric key is " + newKey.length + " bytes long");
 		//encrypt
-		Cipher symCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		Cipher symCipher = CryptoPrimitives.cipher("AES/CBC/PKCS5Padding", CryptoProviders.get(CryptoProviders.Operation.AES));
 		IvParameterSpec ivSpec = new IvParameterSpec(newIv);
 		SecretKeySpec symKey = new SecretKeySpec(newKey, "AES");
 		symCipher.init(Cipher.ENCRYPT_MODE, symKey, ivSpec);
 		encAikCred = symCipher.doFinal(plainAikCred);
-		if (TrousersModeIV) { //copy iv to from of encrypted portion
-			byte [] temp = new byte[newIv.length + encAikCred.length];
-			System.arraycopy(newIv, 0, temp, 0, newIv.length);
-			System.arraycopy(encAikCred, 0, temp, newIv.length, encAikCred.length);
-			encAikCred = temp;
+		if (TrousersModeIV) { //iv goes in front of the encrypted portion; it is written there when serialized
+			encAikCredIv = newIv;
 		}
 		else {
+			encAikCredIv = null;
 			algorithm.setSubParams(new TpmSymmetricKeyParams());
 			algorithm.getSubParams().setByteData(newIv);
 			algorithm.getSubParams().setValueData(16);
@@ -139,13 +136,62 @@ public class TpmSymCaAttestation {
 	 */
 	public byte [] toByteArray()
 			throws TpmUtils.TpmUnsignedConversionException {
-		byte [] credSize = TpmUtils.intToByteArray(encAikCred.length); //credSize.length must be 4!
 		byte [] tempAlgo = algorithm.toByteArray();
-		int x = credSize.length + tempAlgo.length + encAikCred.length;
-		byte [] returnArray = new byte[x];
-		System.arraycopy(credSize, 0, returnArray, 0, credSize.length);
-		System.arraycopy(tempAlgo, 0, returnArray, credSize.length, tempAlgo.length);
-		System.arraycopy(encAikCred, 0, returnArray, credSize.length + tempAlgo.length, encAikCred.length);
-		return returnArray;
+		ByteBuffer returnArray = ByteBuffer.allocate(encodedSize(tempAlgo));
+		encode(new TpmBlobWriter(returnArray), tempAlgo);
+		return returnArray.array();
+	}
+	/**
+	 * 
+	 * @return The number of bytes written by toByteArray() or writeTo().
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 */
+	public int getEncodedSize()
+			throws TpmUtils.TpmUnsignedConversionException {
+		return encodedSize(algorithm.toByteArray());
+	}
+	/**
+	 * Serialize the structure into a ByteBuffer, starting at its current position. No intermediate arrays are 
+	 * allocated for the fields of the structure itself.
+	 * 
+	 * @param target The buffer to write to. It must have at least getEncodedSize() bytes remaining.
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 */
+	public void writeTo(ByteBuffer target)
+			throws TpmUtils.TpmUnsignedConversionException {
+		byte [] tempAlgo = algorithm.toByteArray();
+		encode(new TpmBlobWriter(target), tempAlgo);
+	}
+	/**
+	 * Serialize the structure directly into an OutputStream.
+	 * 
+	 * @param target The stream to write to.
+	 * @throws IOException Passed from the stream.
+	 * @throws TpmUtils.TpmUnsignedConversionException
+	 */
+	public void writeTo(OutputStream target)
+			throws IOException, 
+			TpmUtils.TpmUnsignedConversionException {
+		byte [] tempAlgo = algorithm.toByteArray();
+		try {
+			encode(new TpmBlobWriter(target), tempAlgo);
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	private int encodedSize(byte [] tempAlgo) {
+		return 4 + tempAlgo.length + credSize();
+	}
+	private int credSize() {
+		return (encAikCredIv == null ? 0 : encAikCredIv.length) + encAikCred.length;
+	}
+	private void encode(TpmBlobWriter writer, byte [] tempAlgo)
+			throws TpmUtils.TpmUnsignedConversionException {
+		writer.putUINT32(credSize());
+		writer.putBytes(tempAlgo);
+		if (encAikCredIv != null) //TrouSerS mode: iv in front of the encrypted portion
+			writer.putBytes(encAikCredIv);
+		writer.putBytes(encAikCred);
 	}
 }
@@ -117,24 +117,14 @@ public class TpmUtils {
             if (source.available() < 4) {
                 throw new TpmBytestreamResouceException("There is not enough room in the bytestream to extract a UINT32.");
             }
-            int retval;
-            try {
-                byte[] temp = IOUtils.toByteArray(source,4);
-
-                if ((temp[0] & 0x80) == 0x80) {
-                    throw new TpmUnsignedConversionException("Cannot convert UINT32 to signed Integer: too large - would be converted to negative.");
-                }
-                retval = (int) ((temp[0] << 24 & 0xff000000)
-                        + (int) (temp[1] << 16 & 0x00ff0000)
-                        + (int) (temp[2] << 8 & 0x0000ff00)
-                        + (int) (temp[3] << 0 & 0x000000ff));
-                return retval;
-            } 
-            catch (IOException e) {
-                log.error("Error converting to UINT32, Exception: {}", e);
-                throw new TpmBytestreamResouceException("Error converting to UINT32");
+            int b0 = source.read();
+            if ((b0 & 0x80) == 0x80) {
+                throw new TpmUnsignedConversionException("Cannot convert UINT32 to signed Integer: too large - would be converted to negative.");
             }
-           
+            return (b0 << 24)
+                    | (source.read() << 16)
+                    | (source.read() << 8)
+                    | source.read();
 	}
 	/**
 	 * Extracts a UINT16 from a bytestream and stores is as a short. See getUINT32 for issues that apply to this function.
@@ -150,18 +140,9 @@ public class TpmUtils {
 		if (source.available() < 2) {
 			throw new TpmBytestreamResouceException("There is not enough room in the bytestream to extract a UINT32.");
 		}
-		int retval;
-                try {
-                byte[] temp = IOUtils.toByteArray(source,2);
-		if ((temp[0]&0x80) == 0x80) throw new TpmUnsignedConversionException("Cannot convert UINT16 to signed Short: too large - would be converted to negative.");
-		retval = (int)((temp[0]<<8)&0x0000ff00) + 
-			 	 (int)((temp[1]<<0)&0x000000ff);
-		return (short)retval;
-                }
-                catch (IOException e) {
-                log.error("Error converting to UINT16, Exception: {}", e);
-                throw new TpmBytestreamResouceException("Error converting to UINT16");
-            }
+		int b0 = source.read();
+		if ((b0&0x80) == 0x80) throw new TpmUnsignedConversionException("Cannot convert UINT16 to signed Short: too large - would be converted to negative.");
+		return (short)((b0 << 8) | source.read());
 	}
 	/**
 	 * This exception is thrown to indicate an error in converting between a signed and an unsigned 
@@ -202,57 +183,67 @@ public class TpmUtils {
 	 */
 	public static byte[] getBytes(ByteArrayInputStream source, int size) 
 			throws TpmBytestreamResouceException {
-		if (source.available() < size) {
+		if (size < 0 || source.available() < size) {
 			throw new TpmBytestreamResouceException("There are not enough available bytes in the bytestream to extract the requested number.");
 		}
-                try{
-                byte[] retval = IOUtils.toByteArray(source, size);
+		byte[] retval = new byte[size];
+		source.read(retval, 0, size);
 		return retval;
-                }
-                catch (IOException e) {
-                log.error("Error getting bytes, Exception: {}", e);
-                throw new TpmBytestreamResouceException("Error getting bytes");
-            }
 	}
-    public static X509Certificate makeCert(TpmPubKey aik, String sanLabel, RSAPrivateKey privKey, X509Certificate caCert, int validityDays, int level) throws InvalidKeySpecException,
+    public static X509Certificate makeCert(TpmPubKey aik, String sanLabel, PrivateKey privKey, X509Certificate caCert, int validityDays, int level) throws InvalidKeySpecException,
             NoSuchAlgorithmException,
             CertificateEncodingException,
             NoSuchProviderException,
             SignatureException,
             InvalidKeyException {
-        Security.addProvider(new BouncyCastleProvider());
-        X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-        certGen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
-        certGen.setIssuerDN(caCert.getSubjectX500Principal());
-        certGen.setNotBefore(new java.sql.Time(System.currentTimeMillis()));
+        Date notBefore = new Date();
         Calendar expiry = Calendar.getInstance();
+        expiry.setTime(notBefore);
         expiry.add(Calendar.DAY_OF_YEAR, validityDays);
-        certGen.setNotAfter(expiry.getTime());
-        certGen.setSubjectDN(new X500Principal(""));
-        certGen.setPublicKey(aik.getKey());
-        certGen.setSignatureAlgorithm("SHA256withRSA");
-        certGen.addExtension(org.bouncycastle.asn1.x509.X509Extension.subjectAlternativeName /*org.bouncycastle.asn1.x509.X509Extensions.SubjectAlternativeName*/, true, new GeneralNames(new GeneralName(GeneralName.rfc822Name, sanLabel)));
-        X509Certificate cert = certGen.generate(privKey, "BC");
+        return journal(CertificateTemplate.forIssuer(caCert).issue(SerialNumberAllocator.getDefault().next(), notBefore, expiry.getTime(), aik.getKey(), sanLabel, privKey), sanLabel);
+    }
+
+    /**
+     * Record an issued certificate in the default IssuanceJournal, if one is configured. A certificate that cannot be recorded is not handed out; unless the journal's syncOnIssue is off, that includes waiting for the record to be committed to disk.
+     *
+     * @return The certificate.
+     * @throws IllegalStateException If the journal cannot record the certificate.
+     */
+    private static X509Certificate journal(X509Certificate cert, String sanLabel) {
+        IssuanceJournal journal = IssuanceJournal.getDefault();
+        if (journal != null) {
+            try {
+                long sequence = journal.append(cert, sanLabel);
+                if (journal.isSyncOnIssue()) {
+                    journal.awaitCommit(sequence);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot record the issued certificate in the issuance journal", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while committing the issued certificate to the issuance journal", e);
+            }
+        }
         return cert;
     }
 
     /**
-     * Creates a new X509 V3 certificate for use as an Attestation Identity Key (AIK) using the BouncyCastle provider. The certificate is designed in the direction of the Trusted Computing Group's specification of certificates for the Trusted Platform Module, although in its current form this function does not meet the standard. To that extent, the Subject Name field is left blank, and the V3 Subject Alternative Name field is marked critical and populated with the ID Label specified in the supplied TPM_Identity_Proof structure.
+     * Creates a new X509 V3 certificate for use as an Attestation Identity Key (AIK), encoded by CertificateTemplate. The certificate is designed in the direction of the Trusted Computing Group's specification of certificates for the Trusted Platform Module, although in its current form this function does not meet the standard. To that extent, the Subject Name field is left blank, and the V3 Subject Alternative Name field is marked critical and populated with the ID Label specified in the supplied TPM_Identity_Proof structure.
      *
      * @param idProof The TPM_Identity_Proof structure, used for the identity label field.
-     * @param privKey The Privacy CA's private key for signing the certificate.
+     * @param privKey The Privacy CA's private key for signing the certificate, RSA or EC to match caCert.
      * @param caCert The Privacy CA's public key certificate.
      * @param validityDays The number of days until the created certificate expires, from the time this function is run.
      * @param level Currently not used.
      * @return An AIK certificate.
-     * @throws InvalidKeySpecException Passed on from the BouncyCastle certificate generator.
-     * @throws NoSuchAlgorithmException Passed on from the BouncyCastle certificate generator.
-     * @throws CertificateEncodingException Passed on from the BouncyCastle certificate generator.
+     * @throws InvalidKeySpecException Passed on from CertificateTemplate.
+     * @throws NoSuchAlgorithmException Passed on from CertificateTemplate.
+     * @throws CertificateEncodingException Passed on from CertificateTemplate.
      * @throws NoSuchProviderException Thrown if the BouncyCastle provider cannot be found.
-     * @throws SignatureException Passed on from the BouncyCastle certificate generator.
-     * @throws InvalidKeyException Passed on from the BouncyCastle certificate generator.
+     * @throws SignatureException Passed on from CertificateTemplate.
+     * @throws InvalidKeyException Passed on from CertificateTemplate.
      */
-    public static X509Certificate makeCert(TpmIdentityProof idProof, RSAPrivateKey privKey, X509Certificate caCert, int validityDays, int level)
+    public static X509Certificate makeCert(TpmIdentityProof idProof, PrivateKey privKey, X509Certificate caCert, int validityDays, int level)
             throws InvalidKeySpecException,
             NoSuchAlgorithmException,
             CertificateEncodingException,
@@ -298,14 +289,60 @@ public class TpmUtils {
 				KeyStoreException, 
 				java.security.cert.CertificateException, 
 				IOException{
-		Security.addProvider(new BouncyCastleProvider());
-		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-		keyGen.initialize(keySize);
-		KeyPair keyPair = keyGen.generateKeyPair();
-		RSAPrivateKey privKey = (RSAPrivateKey)keyPair.getPrivate();
-		RSAPublicKey pubKey = (RSAPublicKey)keyPair.getPublic();
+		createCaP12("RSA", keySize, caName, newP12Pass, p12FileName, validityDays);
+	}
+	/**
+	 * Creates a key pair and associated certificate for a certificate authority, as createCaP12(int, String, String, String, int) 
+	 * does, with either an RSA key or an EC key. An EC key of 256 bits is on the secp256r1 curve and one of 384 bits on the 
+	 * secp384r1 curve; certificates issued with it are signed with SHA256withECDSA and SHA384withECDSA respectively, which 
+	 * costs far less per certificate than an RSA signature. The CA must keep an RSA key to decrypt TPM identity requests.
+	 * A MultiPrimeRsa.ALGORITHM key is an RSA key with as many primes as MultiPrimeRsa.maxPrimes allows for its size, 
+	 * which makes its private operations faster; read it back with privateKeyFromP12.
+	 * 
+	 * @param keyAlgorithm "RSA", "EC" or MultiPrimeRsa.ALGORITHM
+	 * @param keySize The size (in bits) of the key to create; 256 or 384 for "EC"
+	 * @param caName The subject name for the new Certificate Authority (do not include "CN=")
+	 * @param newP12Pass The password for encrypting the PKCS 12 file
+	 * @param p12FileName The name for the PKCS 12 key store file (should end with .p12)
+	 * @param validityDays The number of days the certificate should be valid before expiring
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 * @throws IllegalStateException
+	 * @throws SignatureException
+	 * @throws KeyStoreException
+	 * @throws java.security.cert.CertificateException
+	 * @throws IOException
+	 */
+	public static void createCaP12(String keyAlgorithm, int keySize, String caName, String newP12Pass, String p12FileName, int validityDays) 
+			throws NoSuchAlgorithmException, 
+				InvalidKeyException, 
+				IllegalStateException, 
+				SignatureException, 
+				KeyStoreException, 
+				java.security.cert.CertificateException, 
+				IOException{
+		CryptoProviders.initialize();
+		KeyPair keyPair;
+		if ("EC".equals(keyAlgorithm)) {
+			keyPair = makeEcKeyPair(keySize);
+		} else if ("RSA".equals(keyAlgorithm)) {
+			// a CA key is made once and kept for years, so it does not come from the shared KeyPairPool
+			KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+			keyGen.initialize(keySize);
+			keyPair = keyGen.generateKeyPair();
+		} else if (MultiPrimeRsa.ALGORITHM.equals(keyAlgorithm)) {
+			try {
+				keyPair = MultiPrimeRsa.generateKeyPair(keySize, MultiPrimeRsa.maxPrimes(keySize), new SecureRandom());
+			} catch (InvalidKeySpecException e) {
+				throw new InvalidKeyException("Cannot create the multi-prime RSA key", e);
+			}
+		} else {
+			throw new NoSuchAlgorithmException("Unsupported CA key algorithm: " + keyAlgorithm);
+		}
+		PrivateKey privKey = keyPair.getPrivate();
+		PublicKey pubKey = keyPair.getPublic();
 		X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-		certGen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
+		certGen.setSerialNumber(SerialNumberAllocator.getDefault().next());
 		certGen.setIssuerDN(new X500Principal("CN=" + caName));
 		certGen.setNotBefore(new java.sql.Time(System.currentTimeMillis()));
 		Calendar expiry = Calendar.getInstance();
@@ -313,12 +350,12 @@ public class TpmUtils {
 		certGen.setNotAfter(expiry.getTime());
 		certGen.setSubjectDN(new X500Principal("CN=" + caName));
 		certGen.setPublicKey(pubKey);
-		certGen.setSignatureAlgorithm("SHA256withRSA");
+		certGen.setSignatureAlgorithm(CertificateTemplate.signatureAlgorithm(pubKey));
 		certGen.addExtension(X509Extensions.SubjectKeyIdentifier, false, new SubjectKeyIdentifier(pubKey.getEncoded()));
 		certGen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(true));
-		X509Certificate caCert = certGen.generate(privKey);
+		X509Certificate caCert = generate(certGen, privKey);
 		certGen.addExtension(X509Extensions.AuthorityKeyIdentifier, false, new AuthorityKeyIdentifierStructure(caCert));
-		caCert = certGen.generate(privKey);
+		caCert = generate(certGen, privKey);
 		FileOutputStream newp12 = new FileOutputStream(p12FileName);
 		
 		try {
@@ -336,7 +373,35 @@ public class TpmUtils {
 		
 	}
 	/**
-	 * This function creates a p12 file for a client, creating a new RSA key pair of specified size. A certificate generated, signed by a the CA using the specified private key and CA certificate file. Both the client and CA certificates are stored as a chain in the p12 file. The client certificate's serial number is a system time in miliseconds.
+	 * Generates an EC key pair on the NIST curve of the given size.
+	 * 
+	 * @param keySize 256 for secp256r1 or 384 for secp384r1
+	 * @return The key pair.
+	 * @throws NoSuchAlgorithmException Thrown for any other size.
+	 */
+	private static KeyPair makeEcKeyPair(int keySize) 
+			throws NoSuchAlgorithmException {
+		String curve;
+		switch (keySize) {
+		case 256:
+			curve = "secp256r1";
+			break;
+		case 384:
+			curve = "secp384r1";
+			break;
+		default:
+			throw new NoSuchAlgorithmException("Unsupported EC key size: " + keySize);
+		}
+		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+		try {
+			keyGen.initialize(new ECGenParameterSpec(curve));
+		} catch (InvalidAlgorithmParameterException e) {
+			throw new NoSuchAlgorithmException("Curve " + curve + " is not available", e);
+		}
+		return keyGen.generateKeyPair();
+	}
+	/**
+	 * This function creates a p12 file for a client, creating a new RSA key pair of specified size. A certificate generated, signed by a the CA using the specified private key and CA certificate file. The key pair is taken from KeyPairPool. Both the client and CA certificates are stored as a chain in the p12 file. The client certificate's serial number comes from SerialNumberAllocator.
 	 * 
 	 * @param keySize Size of the key to generate
 	 * @param subjectName Subject name for the client certificate
@@ -344,7 +409,7 @@ public class TpmUtils {
 	 * @param p12FileName name for the generated file
 	 * @param validityDays number of days the client certificate should be valid
 	 * @param caCert The CA's certificate
-	 * @param caPrivKey The CA's private key, for signing the client certificate
+	 * @param caPrivKey The CA's private key, RSA or EC, for signing the client certificate
 	 * @throws NoSuchAlgorithmException
 	 * @throws InvalidKeyException
 	 * @throws IllegalStateException
@@ -353,7 +418,7 @@ public class TpmUtils {
 	 * @throws java.security.cert.CertificateException
 	 * @throws IOException
 	 */
-	public static void createClientP12(int keySize, String subjectName, String newP12Pass, String p12FileName, int validityDays, X509Certificate caCert, RSAPrivateKey caPrivKey) 
+	public static void createClientP12(int keySize, String subjectName, String newP12Pass, String p12FileName, int validityDays, X509Certificate caCert, PrivateKey caPrivKey) 
 			throws NoSuchAlgorithmException, 
 				InvalidKeyException, 
 				IllegalStateException, 
@@ -361,26 +426,10 @@ public class TpmUtils {
 				KeyStoreException, 
 				java.security.cert.CertificateException, 
 				IOException{
-		Security.addProvider(new BouncyCastleProvider());
-		KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-		keyGen.initialize(keySize);
-		KeyPair keyPair = keyGen.generateKeyPair();
+		CryptoProviders.initialize();
+		KeyPair keyPair = KeyPairPool.getDefault().take(keySize);
 		RSAPrivateKey privKey = (RSAPrivateKey)keyPair.getPrivate();
-		RSAPublicKey pubKey = (RSAPublicKey)keyPair.getPublic();
-		X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-		certGen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
-		certGen.setIssuerDN(caCert.getSubjectX500Principal());
-		certGen.setNotBefore(new java.sql.Time(System.currentTimeMillis()));
-		Calendar expiry = Calendar.getInstance();
-		expiry.add(Calendar.DAY_OF_YEAR, validityDays);
-		certGen.setNotAfter(expiry.getTime());
-		certGen.setSubjectDN(new X500Principal("CN=" + subjectName));
-		certGen.setPublicKey(pubKey);
-		certGen.setSignatureAlgorithm("SHA256withRSA");
-		certGen.addExtension(X509Extensions.SubjectKeyIdentifier, false, new SubjectKeyIdentifier(pubKey.getEncoded()));
-		certGen.addExtension(X509Extensions.AuthorityKeyIdentifier, false, new AuthorityKeyIdentifierStructure(caCert));
-		certGen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(false));
-		X509Certificate clientCert = certGen.generate(caPrivKey);
+		X509Certificate clientCert = makeClientCert((RSAPublicKey)keyPair.getPublic(), subjectName, validityDays, caCert, caPrivKey);
 		FileOutputStream newp12 = new FileOutputStream(p12FileName);
 		
 		try {
@@ -399,6 +448,60 @@ public class TpmUtils {
 		}
 		
 	}
+	/**
+	 * Creates the certificate of a client key, signed by the CA, as stored by createClientP12. The serial number comes from SerialNumberAllocator.
+	 * 
+	 * @param pubKey The client's public key
+	 * @param subjectName Subject name for the client certificate (do not include "CN=")
+	 * @param validityDays number of days the client certificate should be valid
+	 * @param caCert The CA's certificate
+	 * @param caPrivKey The CA's private key, RSA or EC, for signing the client certificate
+	 * @return The client certificate.
+	 * @throws InvalidKeyException
+	 * @throws IllegalStateException
+	 * @throws NoSuchAlgorithmException
+	 * @throws SignatureException
+	 * @throws java.security.cert.CertificateException
+	 */
+	public static X509Certificate makeClientCert(RSAPublicKey pubKey, String subjectName, int validityDays, X509Certificate caCert, PrivateKey caPrivKey) 
+			throws InvalidKeyException, 
+				IllegalStateException, 
+				NoSuchAlgorithmException, 
+				SignatureException, 
+				java.security.cert.CertificateException {
+		X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
+		certGen.setSerialNumber(SerialNumberAllocator.getDefault().next());
+		certGen.setIssuerDN(caCert.getSubjectX500Principal());
+		certGen.setNotBefore(new java.sql.Time(System.currentTimeMillis()));
+		Calendar expiry = Calendar.getInstance();
+		expiry.add(Calendar.DAY_OF_YEAR, validityDays);
+		certGen.setNotAfter(expiry.getTime());
+		certGen.setSubjectDN(new X500Principal("CN=" + subjectName));
+		certGen.setPublicKey(pubKey);
+		certGen.setSignatureAlgorithm(CertificateTemplate.signatureAlgorithm(caCert.getPublicKey()));
+		certGen.addExtension(X509Extensions.SubjectKeyIdentifier, false, new SubjectKeyIdentifier(pubKey.getEncoded()));
+		certGen.addExtension(X509Extensions.AuthorityKeyIdentifier, false, new AuthorityKeyIdentifierStructure(caCert));
+		certGen.addExtension(X509Extensions.BasicConstraints, true, new BasicConstraints(false));
+		return generate(certGen, caPrivKey);
+	}
+	/**
+	 * Sign a certificate, with the MultiPrimeRsa provider if the key is a multi-prime RSA key, which the standard providers would use without its CRT values.
+	 */
+	private static X509Certificate generate(X509V3CertificateGenerator certGen, PrivateKey privKey) 
+			throws InvalidKeyException, 
+				IllegalStateException, 
+				NoSuchAlgorithmException, 
+				SignatureException, 
+				CertificateEncodingException {
+		if (!MultiPrimeRsa.isMultiPrime(privKey)) {
+			return certGen.generate(privKey);
+		}
+		try {
+			return certGen.generate(privKey, MultiPrimeRsa.PROVIDER_NAME);
+		} catch (NoSuchProviderException e) {
+			throw new IllegalStateException("The multi-prime RSA provider is not registered", e);
+		}
+	}
 	/**
 	 * Creates an Endorsement Key (EK) Certificate. This certificate is not fully meet Trusted Computing Group specifications. Aside from the key and label source, the 
 	 * certificate is basically identical to the AIK certificate made by the makeCert function. The label used is "TPM EK Credential". Ideally, an EK certificate should 
@@ -406,44 +509,35 @@ public class TpmUtils {
 	 * permanent storage of the EK certificate in NVRAM. 
 	 * 
 	 * @param pubEkMod The modulus of the public Endorsement Key (EK) in the form of a byte array.
-	 * @param privKey The Privacy CA's private signing key.
+	 * @param privKey The Privacy CA's private signing key, RSA or EC to match caCert.
 	 * @param caCert The Privacy CA's public key certificate.
 	 * @param validityDays The number of days until expiration, from the time this function is run.
 	 * @return An EK certificate for the specified TPM's EK.
-	 * @throws NoSuchAlgorithmException Passed on from the BouncyCastle certificate generator.
-	 * @throws InvalidKeySpecException Passed on from the BouncyCastle certificate generator.
-	 * @throws SignatureException Passed on from the BouncyCastle certificate generator.
+	 * @throws NoSuchAlgorithmException Passed on from CertificateTemplate.
+	 * @throws InvalidKeySpecException Passed on from CertificateTemplate.
+	 * @throws SignatureException Passed on from CertificateTemplate.
 	 * @throws NoSuchProviderException Thrown if the BouncyCastle provider cannot be found.
-	 * @throws InvalidKeyException Passed on from the BouncyCastle certificate generator.
-	 * @throws CertificateEncodingException Passed on from the BouncyCastle certificate generator.
+	 * @throws InvalidKeyException Passed on from CertificateTemplate.
+	 * @throws CertificateEncodingException Passed on from CertificateTemplate.
 	 */
-	public static X509Certificate makeEkCert(byte [] pubEkMod, RSAPrivateKey privKey, X509Certificate caCert, int validityDays) 
+	public static X509Certificate makeEkCert(byte [] pubEkMod, PrivateKey privKey, X509Certificate caCert, int validityDays) 
 			throws NoSuchAlgorithmException, 
 			InvalidKeySpecException, 
 			SignatureException, 
 			NoSuchProviderException, 
 			InvalidKeyException, 
 			CertificateEncodingException {
-		Security.addProvider(new BouncyCastleProvider());
-		X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
-		certGen.setSerialNumber(BigInteger.valueOf(System.currentTimeMillis()));
-		certGen.setIssuerDN(caCert.getSubjectX500Principal());
-		certGen.setNotBefore(new java.sql.Time(System.currentTimeMillis()));
+		Date notBefore = new Date();
 		Calendar expiry = Calendar.getInstance();
+		expiry.setTime(notBefore);
 		expiry.add(Calendar.DAY_OF_YEAR, validityDays);
-		certGen.setNotAfter(expiry.getTime());
-		certGen.setSubjectDN(new X500Principal(""));
 		byte [] pubExp = new byte[3];
 		pubExp[0] = (byte)(0x01 & 0xff);
 //		pubExp[1] = (byte)(0x00 & 0xff);
 		pubExp[1] = (byte)(0x00);
 		pubExp[2] = (byte)(0x01 & 0xff);
 		RSAPublicKey pubEk = TpmUtils.makePubKey(pubEkMod, pubExp);
-		certGen.setPublicKey(pubEk);
-		certGen.setSignatureAlgorithm("SHA256withRSA");
-		certGen.addExtension(org.bouncycastle.asn1.x509.X509Extension.subjectAlternativeName /*org.bouncycastle.asn1.x509.X509Extensions.SubjectAlternativeName*/, true, new GeneralNames(new GeneralName(GeneralName.rfc822Name, "TPM EK Credential")));
-		X509Certificate cert = certGen.generate(privKey, "BC");
-		return cert;
+		return journal(CertificateTemplate.forIssuer(caCert).issue(SerialNumberAllocator.getDefault().next(), notBefore, expiry.getTime(), pubEk, "TPM EK Credential", privKey), "TPM EK Credential");
 	}
 	/**
 	 * Create a Java RSAPublicKey using the specified modulus and public exponent in byte array form.
@@ -505,15 +599,26 @@ public class TpmUtils {
 		return new BigInteger(tempArray);
 	}
 	/**
-	 * This function is not yet implemented. The intended purpose is to check the validity of an EK certificate supplied in an identity 
-	 * request. A valid certificate is one signed by a trusted entity. Another potential version of validity is the EK being present in 
-	 * a database of known TPMs.
+	 * Check the validity of an EK certificate supplied in an identity request. A valid certificate is one that is within its validity 
+	 * period and signed by a trusted TPM manufacturer CA, as checked by the default EkCertificateValidator. If no validator is configured 
+	 * (see EkCertificateValidator.CA_CERTIFICATES_PROPERTY), every EK certificate is accepted, as before validation was implemented. 
+	 * The verdict is kept in the default EkCredentialCache, so a TPM's certificate is checked once while it remains valid.
 	 * 
 	 * @param ekCred The EK certificate from the identity proof.
 	 * @return <b>True</b>, if EK certificate passes verification.
 	 */
 	public static boolean verifyTPM(X509Certificate ekCred) {
-		return true;
+		EkCertificateValidator validator = EkCertificateValidator.getDefault();
+		if (validator == null) {
+			log.debug("No EK CA certificates are configured; accepting the EK certificate");
+			return true;
+		}
+		try {
+			return EkCredentialCache.getDefault().lookup(ekCred).isTrusted(validator);
+		} catch (java.security.cert.CertificateException e) {
+			log.debug("Cannot encode the EK certificate", e);
+			return false;
+		}
 	}
 	/**
 	 * Creates a string of uppercase hexidecimal duples representing the supplied byte array. They are placed in lines containing a specified number of duples..
@@ -558,27 +663,36 @@ public class TpmUtils {
 			UnrecoverableKeyException, 
 			javax.security.cert.CertificateException, 
 			java.security.cert.CertificateException {
-		KeyStore caKs = KeyStore.getInstance("PKCS12");
-		FileInputStream fis = new FileInputStream(filename); 
-		try {
-			caKs.load(fis, password.toCharArray());
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		finally{
-				fis.close();
-		}
-		
-		Enumeration<String> aliases = caKs.aliases();
-		RSAPrivateKey privKey = null;
-		while(aliases.hasMoreElements()) {
-			String name = aliases.nextElement();
-			privKey = (RSAPrivateKey)caKs.getKey(name, password.toCharArray());
-		}
-		return privKey;
+		return (RSAPrivateKey)privateKeyFromP12(filename, password);
+	}
+	/**
+	 * Retrieve a private key of any type, such as the EC signing key of a CA created by createCaP12("EC", ...), from a PKCS #12 store. 
+	 * Multi-prime RSA keys, which the installed providers cannot parse or parse without their extra primes, are read by MultiPrimeRsa. 
+	 * It is expected that the P12 file will contain only one private key and one public key certificate. The contents of the file are 
+	 * cached by KeyStoreCache, which loads them again when the file changes.
+	 * 
+	 * @param filename The name of the P12 file.
+	 * @param password The password needed to extract from the specified P12 file.
+	 * @return The private key.
+	 * @throws KeyStoreException Passed on from called functions.
+	 * @throws IOException Passed on from called functions.
+	 * @throws NoSuchAlgorithmException Passed on from called functions.
+	 * @throws UnrecoverableKeyException Passed on from called functions.
+	 * @throws javax.security.cert.CertificateException Passed on from called functions.
+	 * @throws java.security.cert.CertificateException Passed on from called functions.
+	 */
+	public static PrivateKey privateKeyFromP12(String filename, String password) 
+			throws KeyStoreException, 
+			IOException, 
+			NoSuchAlgorithmException, 
+			UnrecoverableKeyException, 
+			javax.security.cert.CertificateException, 
+			java.security.cert.CertificateException {
+		return KeyStoreCache.getDefault().get(filename, password).getPrivateKey();
 	}
 	/**
-	 * Retrieve a public key certificate from a PKCS #12 store. It is expected that the P12 file will contain only one private key and one public key certificate.
+	 * Retrieve a public key certificate from a PKCS #12 store. It is expected that the P12 file will contain only one private key and one public key certificate. 
+	 * The contents of the file are cached by KeyStoreCache, which loads them again when the file changes.
 	 * 
 	 * @param filename The name of the P12 file.
 	 * @param password The password needed to extract from the specified P12 file.
@@ -595,25 +709,7 @@ public class TpmUtils {
 			NoSuchAlgorithmException, 
 			javax.security.cert.CertificateException, 
 			java.security.cert.CertificateException {
-		KeyStore caKs = KeyStore.getInstance("PKCS12");
-		FileInputStream fis =new FileInputStream(filename);
-		try {
-			caKs.load(fis, password.toCharArray());
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		finally{
-				fis.close();
-		}
-		
-		
-		Enumeration<String> aliases = caKs.aliases();
-		X509Certificate cert = null;
-		while(aliases.hasMoreElements()) {
-			String name = aliases.nextElement();
-			cert = (X509Certificate)caKs.getCertificate(name);
-		}
-		return cert;
+		return KeyStoreCache.getDefault().get(filename, password).getCertificate();
 	}
 	/**
 	 * Retrieve a certificate as an X509Certificate object from a file (generally .cer or .crt using DER or PEM encoding)
@@ -633,8 +729,7 @@ public class TpmUtils {
 			java.security.cert.CertificateException {
 		try(InputStream certStream = new FileInputStream(filename)){
                     byte[] certBytes = IOUtils.toByteArray(certStream);
-                    javax.security.cert.X509Certificate cert = javax.security.cert.X509Certificate.getInstance(certBytes);
-                    return convertX509Cert(cert);
+                    return CertificateDecoder.getDefault().decode(certBytes);
                 }
                 catch(Exception e){
                     log.error("Error encountered while reading cert from file",e);
@@ -653,8 +748,25 @@ public class TpmUtils {
 			throws CertificateException, 
 			CertificateEncodingException, 
 			java.security.cert.CertificateException{
-                java.security.cert.CertificateFactory cf = java.security.cert.CertificateFactory.getInstance("X.509", new BouncyCastleProvider());
-		return (java.security.cert.X509Certificate)cf.generateCertificate(new ByteArrayInputStream(certBytes));
+		return CertificateDecoder.getDefault().decode(certBytes);
+	}
+	/**
+	 * Open a set of CA certificates, such as the TPM manufacturer CAs, from a file. A trust store written by CaTrustStore is 
+	 * memory-mapped and its certificates are decoded as they are looked up; any other file is read as PEM (or DER) certificates.
+	 * @param filename
+	 * @return The certificates, searchable by subject and key identifier.
+	 * @throws IOException
+	 * @throws java.security.cert.CertificateException
+	 */
+	public static CaCertificateSource caCertsFromFile(String filename) 
+			throws IOException, 
+			java.security.cert.CertificateException {
+		File file = new File(filename);
+		if (CaTrustStore.isTrustStore(file))
+			return CaTrustStore.open(file);
+		try (InputStream in = new FileInputStream(file)) {
+			return CaCertificateSet.read(in);
+		}
 	}
 	/**
 	 * Take an incoming identity request, unpack the contents, create an identity certificate, and return it in the properly formated form.
@@ -698,19 +810,111 @@ public class TpmUtils {
 			javax.security.cert.CertificateException, 
 			java.security.cert.CertificateException,
 			TpmUtils.TpmBytestreamResouceException {
+		return processIdentityRequest(idRequestBlob, caPrivKey, caPubCert, validityDays, TrousersProfileCache.getDefault());
+	}
+	/**
+	 * Take an incoming identity request and process it as processIdentityRequest(byte[], RSAPrivateKey, X509Certificate, int) does,
+	 * recording the TrouSerS profile of the request under the EK certificate in the decrypted identity proof.
+	 * processIdentityRequest(byte[], RSAPrivateKey, X509Certificate, int) records profiles in TrousersProfileCache.getDefault().
+	 * 
+	 * @param profiles The profile cache, or null to not record profiles.
+	 * @see TrousersProfileCache
+	 */
+	public static idResponse processIdentityRequest (byte [] idRequestBlob, RSAPrivateKey caPrivKey, X509Certificate caPubCert, int validityDays, TrousersProfileCache profiles) 
+			throws PrivacyCaException, 
+			TpmUtils.TpmUnsignedConversionException, 
+			BadPaddingException, 
+			IllegalBlockSizeException, 
+			InvalidAlgorithmParameterException, 
+			NoSuchPaddingException, 
+			NoSuchAlgorithmException, 
+			InvalidKeyException, 
+			CertificateEncodingException, 
+			IOException, 
+			InvalidKeySpecException, 
+			SignatureException, 
+			NoSuchProviderException, 
+			javax.security.cert.CertificateException, 
+			java.security.cert.CertificateException,
+			TpmUtils.TpmBytestreamResouceException {
+		return processIdentityRequest(idRequestBlob, caPrivKey, caPubCert, validityDays, profiles, null);
+	}
+	/**
+	 * Take an incoming identity request and process it as processIdentityRequest(byte[], RSAPrivateKey, X509Certificate, int, TrousersProfileCache) does,
+	 * returning the certificate issued earlier for the same AIK and label if it still has enough validity left instead of signing a new one.
+	 * 
+	 * @param certificates The issued certificate cache, or null to always sign a new certificate.
+	 * @see IssuedCertificateCache
+	 */
+	public static idResponse processIdentityRequest (byte [] idRequestBlob, RSAPrivateKey caPrivKey, X509Certificate caPubCert, int validityDays, TrousersProfileCache profiles, IssuedCertificateCache certificates) 
+			throws PrivacyCaException, 
+			TpmUtils.TpmUnsignedConversionException, 
+			BadPaddingException, 
+			IllegalBlockSizeException, 
+			InvalidAlgorithmParameterException, 
+			NoSuchPaddingException, 
+			NoSuchAlgorithmException, 
+			InvalidKeyException, 
+			CertificateEncodingException, 
+			IOException, 
+			InvalidKeySpecException, 
+			SignatureException, 
+			NoSuchProviderException, 
+			javax.security.cert.CertificateException, 
+			java.security.cert.CertificateException,
+			TpmUtils.TpmBytestreamResouceException {
+		return processIdentityRequest(idRequestBlob, caPrivKey, (RSAPublicKey)caPubCert.getPublicKey(), caPrivKey, caPubCert, validityDays, profiles, certificates);
+	}
+	/**
+	 * Take an incoming identity request and process it as processIdentityRequest(byte[], RSAPrivateKey, X509Certificate, int, TrousersProfileCache, IssuedCertificateCache) does,
+	 * for a Privacy CA that signs AIK certificates with a different key than the one identity requests are encrypted to.
+	 * A TPM 1.2 can only encrypt the identity proof to an RSA key and binds that key into the identity binding, while the signing key
+	 * may be an EC key.
+	 * 
+	 * @param caDecryptKey The RSA private key identity requests are encrypted to.
+	 * @param caDecryptPubKey The public key of caDecryptKey, which the TPM included in the identity binding.
+	 * @param caSigningKey The private key AIK certificates are signed with, RSA or EC.
+	 * @param caSigningCert The certificate of caSigningKey, the issuer of the AIK certificates.
+	 */
+	public static idResponse processIdentityRequest (byte [] idRequestBlob, RSAPrivateKey caDecryptKey, RSAPublicKey caDecryptPubKey, PrivateKey caSigningKey, X509Certificate caSigningCert, int validityDays, TrousersProfileCache profiles, IssuedCertificateCache certificates) 
+			throws PrivacyCaException, 
+			TpmUtils.TpmUnsignedConversionException, 
+			BadPaddingException, 
+			IllegalBlockSizeException, 
+			InvalidAlgorithmParameterException, 
+			NoSuchPaddingException, 
+			NoSuchAlgorithmException, 
+			InvalidKeyException, 
+			CertificateEncodingException, 
+			IOException, 
+			InvalidKeySpecException, 
+			SignatureException, 
+			NoSuchProviderException, 
+			javax.security.cert.CertificateException, 
+			java.security.cert.CertificateException,
+			TpmUtils.TpmBytestreamResouceException {
+		TpmIdentityRequestValidator.Result check = TpmIdentityRequestValidator.validate(idRequestBlob, caDecryptPubKey);
+		if (check != TpmIdentityRequestValidator.Result.VALID) throw new MalformedIdentityRequestException(check);
 		TpmIdentityRequest request = new TpmIdentityRequest(idRequestBlob);
-		TpmIdentityProof idProof = request.decrypt(caPrivKey);
-		if (idProof.getEkCredBytes().length == 0) throw new PrivacyCaException("PrivacyCaException: Error parsing TPM_IDENTITY_PROOF: there is no endorsement credential.");
-		if (!idProof.checkValidity((RSAPublicKey)caPubCert.getPublicKey())) throw new PrivacyCaException("Request does not pass integrity check: identity binding does not pass verification.");
+		TpmIdentityProof idProof = request.decrypt(caDecryptKey);
+		if (idProof.getEkCredSize() == 0) throw new PrivacyCaException("PrivacyCaException: Error parsing TPM_IDENTITY_PROOF: there is no endorsement credential.");
+		if (!idProof.checkValidity(caDecryptPubKey)) throw new PrivacyCaException("Request does not pass integrity check: identity binding does not pass verification.");
+		EkCredentialCache.Entry ek = EkCredentialCache.getDefault().lookup(idProof.ekCredBuffer());
+		if (!ek.isTrusted(EkCertificateValidator.getDefault())) throw new PrivacyCaException("Request does not pass integrity check: the endorsement credential was not issued by a trusted TPM manufacturer CA.");
+		if (profiles != null) profiles.record(idProof.getEkCredBytes(), TrousersProfile.of(request));
 		TpmSymCaAttestation symPart = new TpmSymCaAttestation();
-		symPart.setAikCredential(TpmUtils.makeCert(idProof, caPrivKey, caPubCert, validityDays, 0));
+		if (certificates != null) {
+			symPart.setAikCredential(certificates.getOrIssue(idProof.getAik(), new String(idProof.getIdLableBytes()), caSigningKey, caSigningCert, validityDays));
+		} else {
+			symPart.setAikCredential(TpmUtils.makeCert(idProof, caSigningKey, caSigningCert, validityDays, 0));
+		}
 		TpmAsymCaContents asymPart = new TpmAsymCaContents();
 		//pass symmetric encryption mode here
 		TpmSymmetricKey temp = symPart.encrypt(TpmKeyParams.TPM_ALG_AES, TpmKeyParams.TPM_ES_SYM_CBC_PKCS5PAD, request.getSymKeyParams().getTrouSerSmode(), !request.getSymkeyEncscheme()); //see the !
 		asymPart.setSymmetricKey(temp);
 		asymPart.setDigest(idProof.getAik());
 		//pass asymmetric encryption mode here
-		asymPart.encrypt((RSAPublicKey)idProof.getEkCred().getPublicKey(), !request.getOeapMode());//see the !
+		asymPart.encrypt((RSAPublicKey)ek.getPublicKey(), !request.getOeapMode());//see the !
 		idResponse returnval = new idResponse(asymPart, symPart);
 		return returnval;
 	}
@@ -756,10 +960,41 @@ public class TpmUtils {
 			javax.security.cert.CertificateException, 
 			java.security.cert.CertificateException,
 			TpmBytestreamResouceException {
+		return partiallyProcessIdentityRequest(idRequestBlob, caPrivKey, (RSAPublicKey)caPubCert.getPublicKey(), caPrivKey, caPubCert, validityDays);
+	}
+	/**
+	 * Process an Identity Request without an EC as partiallyProcessIdentityRequest(byte[], RSAPrivateKey, X509Certificate, int) does,
+	 * decrypting it with one key and signing the AIC with another, as in processIdentityRequest(byte[], RSAPrivateKey, RSAPublicKey, PrivateKey, X509Certificate, int, TrousersProfileCache, IssuedCertificateCache).
+	 * 
+	 * @param caDecryptKey The RSA private key identity requests are encrypted to.
+	 * @param caDecryptPubKey The public key of caDecryptKey, which the TPM included in the identity binding.
+	 * @param caSigningKey The private key the AIC is signed with, RSA or EC.
+	 * @param caSigningCert The certificate of caSigningKey, the issuer of the AIC.
+	 * @return the AIC in the form of an X509Certificate
+	 */
+	public static X509Certificate partiallyProcessIdentityRequest (byte [] idRequestBlob, RSAPrivateKey caDecryptKey, RSAPublicKey caDecryptPubKey, PrivateKey caSigningKey, X509Certificate caSigningCert, int validityDays) 
+			throws PrivacyCaException, 
+			TpmUnsignedConversionException, 
+			BadPaddingException, 
+			IllegalBlockSizeException, 
+			InvalidAlgorithmParameterException, 
+			NoSuchPaddingException, 
+			NoSuchAlgorithmException, 
+			InvalidKeyException, 
+			CertificateEncodingException, 
+			IOException, 
+			InvalidKeySpecException, 
+			SignatureException, 
+			NoSuchProviderException, 
+			javax.security.cert.CertificateException, 
+			java.security.cert.CertificateException,
+			TpmBytestreamResouceException {
+		TpmIdentityRequestValidator.Result check = TpmIdentityRequestValidator.validate(idRequestBlob, caDecryptPubKey);
+		if (check != TpmIdentityRequestValidator.Result.VALID) throw new MalformedIdentityRequestException(check);
 		TpmIdentityRequest request = new TpmIdentityRequest(idRequestBlob);
-		TpmIdentityProof idProof = request.decrypt(caPrivKey);
-		if (!idProof.checkValidity((RSAPublicKey)caPubCert.getPublicKey())) throw new PrivacyCaException("Request does not pass integrity check: identity binding does not pass verification.");
-		return TpmUtils.makeCert(idProof, caPrivKey, caPubCert, validityDays, 0);
+		TpmIdentityProof idProof = request.decrypt(caDecryptKey);
+		if (!idProof.checkValidity(caDecryptPubKey)) throw new PrivacyCaException("Request does not pass integrity check: identity binding does not pass verification.");
+		return TpmUtils.makeCert(idProof, caSigningKey, caSigningCert, validityDays, 0);
 	}
 	/**
 	 * Generate a new identity request. User supplied data for a new request is the identity label 
@@ -860,8 +1095,7 @@ public class TpmUtils {
 			javax.security.cert.CertificateEncodingException,
 			java.security.cert.CertificateException,
 			javax.security.cert.CertificateException {
-		java.security.cert.CertificateFactory cf = java.security.cert.CertificateFactory.getInstance("X.509");
-		return (java.security.cert.X509Certificate)cf.generateCertificate(new ByteArrayInputStream(cert.getEncoded()));
+		return CertificateDecoder.parse(cert.getEncoded());
 	}
 	/**
 	 * Convert a <b>java</b> X509Certificate to a <b>javax</b> X509Certificate.
@@ -945,7 +1179,7 @@ public class TpmUtils {
 	public static byte[] sha1hash(byte[] blob)
 			throws NoSuchAlgorithmException{
 		byte[] toReturn;
-		MessageDigest md = MessageDigest.getInstance("SHA1");
+		MessageDigest md = CryptoPrimitives.messageDigest("SHA1");
 		md.update(blob);
 		toReturn = md.digest();
 		return toReturn;
@@ -971,7 +1205,7 @@ public class TpmUtils {
 				IllegalBlockSizeException,
 				BadPaddingException{
 		OAEPParameterSpec oaepSpec = new OAEPParameterSpec("Sha1", "MGF1", MGF1ParameterSpec.SHA1, new PSource.PSpecified(OAEPstring.getBytes()));
-		Cipher asymCipher = Cipher.getInstance("RSA/ECB/OAEPWithSha1AndMGF1Padding");
+		Cipher asymCipher = CryptoPrimitives.cipher("RSA/ECB/OAEPWithSha1AndMGF1Padding", CryptoProviders.get(CryptoProviders.Operation.RSA_ENCRYPT));
 		asymCipher.init(Cipher.PUBLIC_KEY, pubKey, oaepSpec);
 		asymCipher.update(payload);
 		byte [] toReturn = asymCipher.doFinal();
@@ -1018,7 +1252,7 @@ public class TpmUtils {
 				InvalidAlgorithmParameterException, 
 				IllegalBlockSizeException, 
 				BadPaddingException{
-		Cipher symCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		Cipher symCipher = CryptoPrimitives.cipher("AES/CBC/PKCS5Padding", CryptoProviders.get(CryptoProviders.Operation.AES));
 		IvParameterSpec ivSpec = new IvParameterSpec(iv);
 		SecretKeySpec symKey = new SecretKeySpec(key, "AES");
 		symCipher.init(Cipher.ENCRYPT_MODE, symKey, ivSpec);
@@ -1048,7 +1282,15 @@ public class TpmUtils {
 	 * @throws BadPaddingException
 	 */
 	public static byte[] tcgAsymDecrypt(byte[] ciphertext, RSAPrivateKey privKey, String OAEPstring) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException{
-		Cipher asymCipher = Cipher.getInstance("RSA/ECB/OAEPWithSha1AndMGF1Padding");
+		if (MultiPrimeRsa.isMultiPrime(privKey) && (OAEPstring.equals("TCPA") || OAEPstring.isEmpty())) {
+			// the providers would not use the key's CRT values
+			TcgOaep.Result decrypted = TcgOaep.decrypt(ciphertext, privKey);
+			if (decrypted.isBlankLabel() != OAEPstring.isEmpty()) {
+				throw new BadPaddingException("Decryption error");
+			}
+			return decrypted.getMessage();
+		}
+		Cipher asymCipher = CryptoPrimitives.cipher("RSA/ECB/OAEPWithSha1AndMGF1Padding", CryptoProviders.get(CryptoProviders.Operation.RSA_DECRYPT));
 		OAEPParameterSpec oaepSpec = new OAEPParameterSpec("Sha1", "MGF1", MGF1ParameterSpec.SHA1, new PSource.PSpecified(OAEPstring.getBytes()));
 		asymCipher.init(Cipher.PRIVATE_KEY, privKey, oaepSpec);
 		asymCipher.update(ciphertext);
@@ -1069,7 +1311,7 @@ public class TpmUtils {
 	 * @throws BadPaddingException
 	 */
 	public static byte[] tcgSymDecrypt(byte[] ciphertext, byte[] key, byte[] iv) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException, BadPaddingException{
-		Cipher symCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		Cipher symCipher = CryptoPrimitives.cipher("AES/CBC/PKCS5Padding", CryptoProviders.get(CryptoProviders.Operation.AES));
 		IvParameterSpec ivSpec = new IvParameterSpec(iv);
 		symCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), ivSpec);
 		return symCipher.doFinal(ciphertext);
@@ -1098,19 +1340,21 @@ public class TpmUtils {
             * BYTE *          credential -- result of encryption TPM_IDENTITY_CREDENTIAL using the session_key and the algorithm indicated "algorithm"
             *          In this context it is: byte [] encryptedBlob = TpmUtils.concat(iv, TpmUtils.tcgSymEncrypt(challengeRaw, key, iv));
          */
-        ByteArrayInputStream bs = new ByteArrayInputStream(symCaAttestation);        
-        int credsize = TpmUtils.getUINT32(bs);   
+        TpmBlobReader reader = new TpmBlobReader(symCaAttestation);
+        int credsize = reader.readUINT32();
+        ByteArrayInputStream bs = reader.remainingAsStream();
         TpmKeyParams keyParms = new TpmKeyParams(bs);
+        reader.skipConsumed(bs);
         log.debug("Consumed Key Params " + keyParms);
-        byte[] iv = new byte[16];
-        if(bs.read(iv, 0, iv.length) == -1) {
+        if (reader.remaining() < 16) {
             throw new IOException("Failed to read iv");
         }
+        byte[] iv = reader.readBytes(16);
         int ciphertextLen = credsize - 16;
-        byte[] ciphertext = new byte[ciphertextLen];
-        if(bs.read(ciphertext, 0, ciphertextLen) == -1) {
+        if (ciphertextLen < 0 || reader.remaining() < ciphertextLen) {
             throw new IOException("Failed to read Cipher Text");
         }
+        byte[] ciphertext = reader.readBytes(ciphertextLen);
 
         return TpmUtils.tcgSymDecrypt(ciphertext, key, iv);
     }
@@ -1123,7 +1367,7 @@ public class TpmUtils {
 	 * @throws Exception
 	 */
 	public static byte[] hmac(byte[] authBlob, byte[] xH1concat) throws Exception{
-		Mac mac = Mac.getInstance("HmacSha1");
+		Mac mac = CryptoPrimitives.mac("HmacSha1");
 		SecretKey key = new SecretKeySpec(authBlob, "HmacSha1");
 		mac.init(key);
 		mac.update(xH1concat);
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+/**
+ * The combination of TrouSerS quirks a client's identity request used: the IV at the head of
+ * the sym blob instead of in the key parms, TPM_ES_NONE as the symmetric key scheme, and a
+ * blank OAEP label. There are eight combinations, so profiles are interned.
+ */
+public final class TrousersProfile {
+    private static final int IV = 1;
+    private static final int SYMKEY_ENCSCHEME = 2;
+    private static final int BLANK_OAEP = 4;
+    private static final TrousersProfile[] PROFILES = new TrousersProfile[8];
+
+    static {
+        for (int flags = 0; flags < PROFILES.length; flags++) {
+            PROFILES[flags] = new TrousersProfile(flags);
+        }
+    }
+
+    private final int flags;
+
+    private TrousersProfile(int flags) {
+        this.flags = flags;
+    }
+
+    public static TrousersProfile of(boolean ivMode, boolean symkeyEncscheme, boolean blankOaep) {
+        return PROFILES[(ivMode ? IV : 0) | (symkeyEncscheme ? SYMKEY_ENCSCHEME : 0) | (blankOaep ? BLANK_OAEP : 0)];
+    }
+
+    /**
+     * @param request A request that has been decrypted, so all three quirks are known.
+     */
+    public static TrousersProfile of(TpmIdentityRequest request) {
+        return of(request.getIVmode(), request.getSymkeyEncscheme(), request.getOeapMode());
+    }
+
+    /**
+     * @param flags The value of getFlags() of a profile.
+     * @throws IllegalArgumentException If the flags do not name a profile.
+     */
+    public static TrousersProfile fromFlags(int flags) {
+        if (flags < 0 || flags >= PROFILES.length) {
+            throw new IllegalArgumentException("Invalid TrouSerS profile flags: " + flags);
+        }
+        return PROFILES[flags];
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean getIVmode() {
+        return (flags & IV) != 0;
+    }
+
+    public boolean getSymkeyEncscheme() {
+        return (flags & SYMKEY_ENCSCHEME) != 0;
+    }
+
+    public boolean getOeapMode() {
+        return (flags & BLANK_OAEP) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TrousersProfile[iv=" + getIVmode() + ", symkeyEncscheme=" + getSymkeyEncscheme() + ", blankOaep=" + getOeapMode() + "]";
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * <p>Remembers the TrouSerS profile each client used in its last identity request. Clients
+ * are identified by the SHA-256 of the EK certificate in the decrypted identity proof, which
+ * stays the same across re-attestations while the AIK is usually new.</p>
+ *
+ * <p>The quirks themselves are detected without retries (the IV position from the key parms,
+ * both OAEP labels on a single RSA decryption), so the profile is not needed to pick a
+ * decryption path. It is used to notice a known client whose profile changed, which means
+ * its TSS was replaced, and its hit rate shows how much of a re-attestation wave came from
+ * known clients.</p>
+ *
+ * <p>The cache can be saved to and loaded from a file, one "hash flags" line per client,
+ * so that it survives restarts. The shared cache TpmUtils.processIdentityRequest records
+ * profiles in is loaded from the file named by the privacyca.trousers.profiles system
+ * property and saved back to it when the JVM shuts down.</p>
+ */
+public class TrousersProfileCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TrousersProfileCache.class);
+    public static final String FILE_PROPERTY = "privacyca.trousers.profiles";
+    public static final int DEFAULT_CAPACITY = 100000;
+    private static final Object defaultLock = new Object();
+    private static volatile TrousersProfileCache defaultCache;
+    private static volatile boolean defaultResolved;
+    private final BoundedCache<String, TrousersProfile> profiles;
+    private final LongAdder changes = new LongAdder();
+
+    public TrousersProfileCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TrousersProfileCache(int capacity) {
+        this.profiles = new BoundedCache<>(capacity);
+    }
+
+    /**
+     * @return The cache TpmUtils.processIdentityRequest records profiles in, or null if none is configured.
+     * @throws IllegalStateException If the file named by privacyca.trousers.profiles cannot be read.
+     */
+    public static TrousersProfileCache getDefault() {
+        if (!defaultResolved) {
+            synchronized (defaultLock) {
+                if (!defaultResolved) {
+                    String path = System.getProperty(FILE_PROPERTY);
+                    if (path != null) {
+                        File file = new File(path);
+                        TrousersProfileCache cache = fromFile(file);
+                        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                            try {
+                                cache.save(file);
+                            } catch (IOException e) {
+                                log.error("Cannot save the TrouSerS profiles to {}", file, e);
+                            }
+                        }, "trousers-profile-save"));
+                        defaultCache = cache;
+                    }
+                    defaultResolved = true;
+                }
+            }
+        }
+        return defaultCache;
+    }
+
+    /**
+     * @return A cache of the default capacity holding the profiles in the file, as getDefault
+     * loads it, without saving it on shutdown.
+     * @throws IllegalStateException If the file cannot be read.
+     */
+    static TrousersProfileCache fromFile(File file) {
+        TrousersProfileCache cache = new TrousersProfileCache();
+        try {
+            log.info("Loaded {} TrouSerS profiles from {}", cache.load(file), file);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read the TrouSerS profiles in " + file, e);
+        }
+        return cache;
+    }
+
+    /**
+     * Set the cache TpmUtils.processIdentityRequest records profiles in; null to record nothing.
+     * The cache is not saved on shutdown.
+     */
+    public static void setDefault(TrousersProfileCache cache) {
+        synchronized (defaultLock) {
+            defaultCache = cache;
+            defaultResolved = true;
+        }
+    }
+
+    /**
+     * @param ekCred The DER encoded EK certificate of the client.
+     * @return The profile the client used last time, or null for an unknown client.
+     */
+    public TrousersProfile lookup(byte[] ekCred) {
+        return profiles.get(key(ekCred));
+    }
+
+    /**
+     * Record the profile of a request that decrypted and verified. This counts as a lookup
+     * of the client in the hit rate.
+     *
+     * @param ekCred The DER encoded EK certificate from the identity proof.
+     * @return The profile previously recorded for the client, or null.
+     */
+    public TrousersProfile record(byte[] ekCred, TrousersProfile profile) {
+        String key = key(ekCred);
+        TrousersProfile previous = profiles.get(key);
+        if (previous != profile) {
+            profiles.put(key, profile);
+            if (previous != null) {
+                changes.increment();
+                log.warn("TrouSerS profile of client {} changed from {} to {}", key, previous, profile);
+            }
+        }
+        return previous;
+    }
+
+    public int size() {
+        return profiles.size();
+    }
+
+    public long getHits() {
+        return profiles.getHits();
+    }
+
+    public long getMisses() {
+        return profiles.getMisses();
+    }
+
+    public double getHitRate() {
+        return profiles.getHitRate();
+    }
+
+    /**
+     * @return The number of known clients whose profile changed since the last reset.
+     */
+    public long getChanges() {
+        return changes.sum();
+    }
+
+    public void resetStatistics() {
+        profiles.resetStatistics();
+        changes.reset();
+    }
+
+    /**
+     * Write the cache to a file. The file is written next to the target and renamed over it,
+     * so a reader never sees a partial file.
+     */
+    public void save(File file) throws IOException {
+        Path target = file.toPath().toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.US_ASCII)) {
+                for (Map.Entry<String, TrousersProfile> entry : profiles.snapshot().entrySet()) {
+                    out.write(entry.getKey());
+                    out.write(' ');
+                    out.write(Integer.toString(entry.getValue().getFlags()));
+                    out.newLine();
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Add the entries of a file written by save(). A missing file is not an error; malformed
+     * lines are skipped.
+     *
+     * @return The number of entries loaded.
+     */
+    public int load(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        int loaded = 0;
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space <= 0) {
+                    continue;
+                }
+                try {
+                    profiles.put(line.substring(0, space), TrousersProfile.fromFlags(Integer.parseInt(line.substring(space + 1).trim())));
+                    loaded++;
+                } catch (IllegalArgumentException e) {
+                    log.debug("Skipping TrouSerS profile line: {}", line);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private static String key(byte[] ekCred) {
+        try {
+            return Hex.toHexString(CryptoPrimitives.messageDigest("SHA-256").digest(ekCred));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
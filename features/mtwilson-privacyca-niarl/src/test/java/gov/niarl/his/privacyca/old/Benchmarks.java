@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import org.junit.Assume;
+
+/**
+ * The timing loop of the benchmark tests. They are skipped unless the build is run with
+ * -Dprivacyca.benchmark=true, and print their results instead of asserting on them.
+ */
+final class Benchmarks {
+    static final String PROPERTY = "privacyca.benchmark";
+
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Skip the calling test unless benchmarks are enabled.
+     */
+    static void assumeEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean(PROPERTY));
+    }
+
+    /**
+     * Run the task warmup times, then time it over iterations runs.
+     *
+     * @return The mean time of a run in nanoseconds.
+     */
+    static long nanosPerOp(int warmup, int iterations, Task task) throws Exception {
+        for (int index = 0; index < warmup; index++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int index = 0; index < iterations; index++) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     * Time the task as nanosPerOp does and print the result under the name.
+     */
+    static long report(String name, int warmup, int iterations, Task task) throws Exception {
+        long nanosPerOp = nanosPerOp(warmup, iterations, task);
+        System.out.println(name + ": " + nanosPerOp + " ns/op");
+        return nanosPerOp;
+    }
+}
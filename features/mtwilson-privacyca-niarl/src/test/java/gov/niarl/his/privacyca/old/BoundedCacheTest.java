@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void testEvictsOldestFirst() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(2);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("a", 3);
+        cache.put("c", 4);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("a"));
+        assertEquals(Integer.valueOf(2), cache.get("b"));
+        assertEquals(Integer.valueOf(4), cache.get("c"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2.0 / 3.0, cache.getHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testRemoveAndPutIfAbsent() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(2);
+        assertNull(cache.putIfAbsent("a", 1));
+        assertEquals(Integer.valueOf(1), cache.putIfAbsent("a", 2));
+        assertEquals(Integer.valueOf(1), cache.remove("a"));
+        assertEquals(0, cache.size());
+        cache.put("b", 1);
+        cache.put("c", 2);
+        cache.put("d", 3);
+        assertEquals(2, cache.size());
+        assertNull(cache.peek("b"));
+    }
+
+    @Test
+    public void testClear() {
+        BoundedCache<String, Integer> cache = new BoundedCache<>(2);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.peek("a"));
+        cache.put("c", 3);
+        cache.put("a", 4);
+        cache.put("d", 5);
+        assertEquals(2, cache.size());
+        assertNull(cache.peek("c"));
+        assertEquals(Integer.valueOf(4), cache.peek("a"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsZeroCapacity() {
+        new BoundedCache<String, String>(0);
+    }
+}
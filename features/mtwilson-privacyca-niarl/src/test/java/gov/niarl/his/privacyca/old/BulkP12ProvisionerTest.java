@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Arrays;
+import java.util.List;
+import javax.security.auth.x500.X500Principal;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BulkP12ProvisionerTest {
+    private static KeyPair ca;
+    private static X509Certificate caCert;
+
+    @BeforeClass
+    public static void createCa() throws Exception {
+        ca = TestCertificates.caKeyPair();
+        caCert = TestCertificates.caCert();
+    }
+
+    private static File createTempDirectory() throws Exception {
+        return Files.createTempDirectory("bulk-p12").toFile();
+    }
+
+    private static void deleteRecursively(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testCreatesOneFilePerSubject() throws Exception {
+        File output = createTempDirectory();
+        try {
+            List<String> subjects = Arrays.asList("host-1", "host-2", "host 3", "host-4");
+            BulkP12Provisioner provisioner = new BulkP12Provisioner(caCert, (RSAPrivateKey) ca.getPrivate(), 1024, 30, 2);
+            BulkP12Provisioner.Result result = provisioner.provision(subjects, output, "password");
+            assertEquals(4, result.getCreated());
+            assertTrue(result.getFailures().isEmpty());
+            assertTrue(result.getThroughput() > 0);
+            for (String subject : subjects) {
+                KeyStore keystore = KeyStore.getInstance("PKCS12");
+                try (FileInputStream in = new FileInputStream(new File(output, BulkP12Provisioner.fileName(subject)))) {
+                    keystore.load(in, "password".toCharArray());
+                }
+                Certificate[] chain = keystore.getCertificateChain("1");
+                assertEquals(2, chain.length);
+                X509Certificate clientCert = (X509Certificate) chain[0];
+                assertEquals(new X500Principal("CN=" + subject), clientCert.getSubjectX500Principal());
+                clientCert.verify(ca.getPublic());
+                assertEquals(caCert, chain[1]);
+                assertNotNull(keystore.getKey("1", "password".toCharArray()));
+            }
+            assertEquals(4, output.listFiles().length);
+        } finally {
+            deleteRecursively(output);
+        }
+    }
+
+    @Test
+    public void testReadManifest() throws Exception {
+        File manifest = File.createTempFile("manifest", ".txt");
+        try {
+            Files.write(manifest.toPath(), "# cluster\nhost-1\n\nhost 2\nhost-1\nhost_2\n  host-3  \n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(Arrays.asList("host-1", "host 2", "host-3"), BulkP12Provisioner.readManifest(manifest));
+        } finally {
+            manifest.delete();
+        }
+    }
+
+    @Test
+    public void testFileName() {
+        assertEquals("host_1.example.com.p12", BulkP12Provisioner.fileName("host 1.example.com"));
+        assertEquals("a_b.p12", BulkP12Provisioner.fileName("a/b"));
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import javax.security.auth.x500.X500Principal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The benchmark test compares opening a trust store with parsing the same certificates from
+ * PEM. It is skipped unless the build is run with -Dprivacyca.benchmark=true.
+ */
+public class CaTrustStoreTest {
+    private static final long DAY = 86400000L;
+    private static final int CA_COUNT = 50;
+    private static KeyPair rootKey;
+    private static KeyPair caKey;
+    private static X509Certificate root;
+    private static List<X509Certificate> intermediates;
+    private File directory;
+
+    @BeforeClass
+    public static void createCertificates() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+        keyGen.initialize(256);
+        rootKey = keyGen.generateKeyPair();
+        caKey = keyGen.generateKeyPair();
+        root = certificate(1, "CN=TPM Manufacturer Root", rootKey, null, rootKey.getPrivate(), true);
+        intermediates = intermediates(CA_COUNT - 1);
+    }
+
+    private static List<X509Certificate> intermediates(int count) throws Exception {
+        List<X509Certificate> certs = new ArrayList<>();
+        for (int index = 0; index < count; index++) {
+            certs.add(certificate(100 + index, "CN=EK CA " + index + ",O=Manufacturer", caKey, root, rootKey.getPrivate(), true));
+        }
+        return certs;
+    }
+
+    /**
+     * All CAs share a key to keep the test fast; the serial number makes their key identifiers differ.
+     */
+    private static X509Certificate certificate(long serial, String subject, KeyPair subjectKey, X509Certificate issuer, PrivateKey signingKey,
+            boolean ca) throws Exception {
+        long now = System.currentTimeMillis();
+        return TestCertificates.certificate(serial, subject, subjectKey.getPublic(), issuer, signingKey, now - DAY, now + 365 * DAY, ca, keyIdentifier(serial));
+    }
+
+    private static byte[] keyIdentifier(long serial) {
+        return ByteBuffer.allocate(20).putLong(12, serial).array();
+    }
+
+    private static String pem(List<X509Certificate> certs) throws Exception {
+        StringBuilder pem = new StringBuilder();
+        for (X509Certificate cert : certs) {
+            pem.append("-----BEGIN CERTIFICATE-----\n");
+            pem.append(Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(cert.getEncoded()));
+            pem.append("\n-----END CERTIFICATE-----\n");
+        }
+        return pem.toString();
+    }
+
+    private static List<X509Certificate> all() {
+        List<X509Certificate> certs = new ArrayList<>();
+        certs.add(root);
+        certs.addAll(intermediates);
+        return certs;
+    }
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("ca-trust-store").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testLookupsDecodeLazily() throws Exception {
+        File file = new File(directory, "ek-ca.bin");
+        assertEquals(CA_COUNT, CaTrustStore.write(all(), file));
+        CaTrustStore store = CaTrustStore.open(file);
+        assertEquals(CA_COUNT, store.size());
+        assertEquals(0, store.getDecodedCount());
+        X509Certificate wanted = intermediates.get(17);
+        List<X509Certificate> bySubject = store.findBySubject(new X500Principal("CN=EK CA 17, O=Manufacturer"));
+        assertEquals(1, bySubject.size());
+        assertEquals(wanted, bySubject.get(0));
+        List<X509Certificate> byKey = store.findBySubjectKeyIdentifier(keyIdentifier(117));
+        assertSame(bySubject.get(0), byKey.get(0));
+        assertTrue(store.getDecodedCount() < 5);
+        assertTrue(store.findBySubject(new X500Principal("CN=Unknown CA")).isEmpty());
+        assertTrue(store.findBySubjectKeyIdentifier(keyIdentifier(99999)).isEmpty());
+    }
+
+    @Test
+    public void testDuplicatesAreWrittenOnce() throws Exception {
+        File file = new File(directory, "ek-ca.bin");
+        List<X509Certificate> certs = all();
+        certs.addAll(intermediates.subList(0, 10));
+        assertEquals(CA_COUNT, CaTrustStore.write(certs, file));
+        assertEquals(CA_COUNT, CaTrustStore.open(file).size());
+    }
+
+    @Test
+    public void testValidatorAndTpmUtilsUseStore() throws Exception {
+        File store = new File(directory, "ek-ca.bin");
+        CaTrustStore.write(all(), store);
+        File pemFile = new File(directory, "ek-ca.pem");
+        Files.write(pemFile.toPath(), pem(all()).getBytes(StandardCharsets.US_ASCII));
+        assertTrue(CaTrustStore.isTrustStore(store));
+        assertFalse(CaTrustStore.isTrustStore(pemFile));
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+        keyGen.initialize(256);
+        X509Certificate ek = certificate(5000, "CN=TPM EK", keyGen.generateKeyPair(), intermediates.get(3), caKey.getPrivate(), false);
+        EkCertificateValidator validator = EkCertificateValidator.fromFile(store);
+        assertTrue(validator.isValid(ek));
+        assertEquals(intermediates.get(3), validator.findIssuer(ek, System.currentTimeMillis()));
+        assertEquals(CA_COUNT, validator.getAuthorityCount());
+        assertTrue(EkCertificateValidator.fromFile(pemFile).isValid(ek));
+        for (File file : new File[] {store, pemFile}) {
+            CaCertificateSource source = TpmUtils.caCertsFromFile(file.getPath());
+            assertEquals(CA_COUNT, source.size());
+            assertEquals(root, source.findBySubject(root.getSubjectX500Principal()).get(0));
+        }
+    }
+
+    @Test
+    public void testRejectsCorruptStore() throws Exception {
+        File file = new File(directory, "ek-ca.bin");
+        CaTrustStore.write(all(), file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 100);
+        }
+        try {
+            CaTrustStore.open(file);
+            fail("A truncated store should not open");
+        } catch (IOException e) {
+            // expected
+        }
+        Files.write(file.toPath(), new byte[] {0x50, 0x43, 0x54, 0x53, 0, 0, 0, 9});
+        try {
+            CaTrustStore.open(file);
+            fail("A store without a complete header should not open");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void benchmarkOpen() throws Exception {
+        Benchmarks.assumeEnabled();
+        List<X509Certificate> certs = new ArrayList<>(all());
+        certs.addAll(intermediates(2000));
+        File file = new File(directory, "ek-ca.bin");
+        CaTrustStore.write(certs, file);
+        byte[] pem = pem(certs).getBytes(StandardCharsets.US_ASCII);
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            CaCertificateSet set = CaCertificateSet.read(new ByteArrayInputStream(pem));
+            long parsed = System.nanoTime() - start;
+            start = System.nanoTime();
+            CaTrustStore store = CaTrustStore.open(file);
+            store.findBySubject(new X500Principal("CN=EK CA 1500, O=Manufacturer"));
+            long mapped = System.nanoTime() - start;
+            System.out.println("CA set of " + set.size() + " from PEM: " + parsed / 1000 + " us, trust store open and lookup: " + mapped / 1000 + " us");
+        }
+    }
+}
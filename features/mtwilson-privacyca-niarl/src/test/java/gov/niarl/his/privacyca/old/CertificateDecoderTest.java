@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import gov.niarl.his.privacyca.old.Benchmarks.Task;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The benchmark test compares decoding an already seen certificate with parsing it again.
+ * It is skipped unless the build is run with -Dprivacyca.benchmark=true.
+ */
+public class CertificateDecoderTest {
+    private static final int WARMUP = 2000;
+    private static final int ITERATIONS = 20000;
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void createKey() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        keyPair = keyGen.generateKeyPair();
+    }
+
+    private static byte[] certificate(long serial) throws Exception {
+        long now = System.currentTimeMillis();
+        return TestCertificates.certificate(serial, "CN=Endorsement CA", keyPair.getPublic(), null, keyPair.getPrivate(), now, now + TestCertificates.DAY, false, null).getEncoded();
+    }
+
+    @Test
+    public void testSameBytesDecodeOnce() throws Exception {
+        CertificateDecoder decoder = new CertificateDecoder(10);
+        byte[] encoded = certificate(1);
+        X509Certificate first = decoder.decode(encoded);
+        assertSame(first, decoder.decode(encoded.clone()));
+        assertEquals(CertificateDecoder.parse(encoded), first);
+        assertEquals(1, decoder.getMisses());
+        assertEquals(1, decoder.getHits());
+        assertEquals(1, decoder.size());
+    }
+
+    @Test
+    public void testBufferSliceIsNotConsumed() throws Exception {
+        CertificateDecoder decoder = new CertificateDecoder(10);
+        byte[] encoded = certificate(2);
+        byte[] framed = new byte[encoded.length + 8];
+        System.arraycopy(encoded, 0, framed, 4, encoded.length);
+        ByteBuffer buffer = ByteBuffer.wrap(framed, 4, encoded.length);
+        X509Certificate cert = decoder.decode(buffer);
+        assertEquals(4, buffer.position());
+        assertSame(cert, decoder.decode(encoded));
+    }
+
+    @Test
+    public void testLegacyFormIsShared() throws Exception {
+        CertificateDecoder decoder = new CertificateDecoder(10);
+        byte[] encoded = certificate(3);
+        boolean legacyAvailable = true;
+        try {
+            javax.security.cert.X509Certificate.getInstance(encoded);
+        } catch (javax.security.cert.CertificateException e) {
+            // later JDKs dropped the implementation of the deprecated API
+            legacyAvailable = false;
+        }
+        Assume.assumeTrue(legacyAvailable);
+        javax.security.cert.X509Certificate legacy = decoder.decodeLegacy(ByteBuffer.wrap(encoded));
+        assertSame(legacy, decoder.decodeLegacy(ByteBuffer.wrap(encoded)));
+        assertArrayEquals(encoded, legacy.getEncoded());
+        assertEquals(1, decoder.getMisses());
+    }
+
+    @Test
+    public void testCapacityIsBounded() throws Exception {
+        CertificateDecoder decoder = new CertificateDecoder(2);
+        for (long serial = 10; serial < 15; serial++) {
+            decoder.decode(certificate(serial));
+        }
+        assertEquals(2, decoder.size());
+    }
+
+    @Test
+    public void testGarbageIsRejectedAndNotCached() throws Exception {
+        CertificateDecoder decoder = new CertificateDecoder(10);
+        try {
+            decoder.decode(new byte[] {0x30, 0x03, 0x02, 0x01, 0x01});
+            fail("A non-certificate should not decode");
+        } catch (CertificateException e) {
+            // expected
+        }
+        try {
+            decoder.decodeLegacy(ByteBuffer.allocate(0));
+            fail("An absent certificate should not decode");
+        } catch (javax.security.cert.CertificateException e) {
+            // expected
+        }
+        assertEquals(0, decoder.size());
+    }
+
+    @Test
+    public void benchmarkDecode() throws Exception {
+        Benchmarks.assumeEnabled();
+        final byte[] encoded = certificate(100);
+        final CertificateDecoder decoder = new CertificateDecoder(10);
+        measure("parse", new Task() {
+            @Override
+            public void run() throws Exception {
+                CertificateDecoder.parse(encoded).getPublicKey();
+            }
+        });
+        measure("cached decode", new Task() {
+            @Override
+            public void run() throws Exception {
+                decoder.decode(encoded).getPublicKey();
+            }
+        });
+    }
+
+    private static void measure(String name, Task task) throws Exception {
+        Benchmarks.report("certificate " + name, WARMUP, ITERATIONS, task);
+    }
+}
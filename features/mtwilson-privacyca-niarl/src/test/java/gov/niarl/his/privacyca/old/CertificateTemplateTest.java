@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import gov.niarl.his.privacyca.old.Benchmarks.Task;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Date;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The benchmark test compares the cost of issuing a certificate with each kind of CA key.
+ * It is skipped unless the build is run with -Dprivacyca.benchmark=true.
+ */
+public class CertificateTemplateTest {
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+    private static KeyPair ca;
+    private static KeyPair subject;
+    private static X509Certificate caCert;
+
+    @BeforeClass
+    public static void createCa() throws Exception {
+        ca = TestCertificates.caKeyPair();
+        subject = rsaKeyPair(2048);
+        caCert = TestCertificates.caCert();
+    }
+
+    private static KeyPair rsaKeyPair(int keySize) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(keySize);
+        return keyGen.generateKeyPair();
+    }
+
+    private static KeyPair ecKeyPair(String curve) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("EC");
+        keyGen.initialize(new ECGenParameterSpec(curve));
+        return keyGen.generateKeyPair();
+    }
+
+    /**
+     * The way makeCert built certificates before CertificateTemplate.
+     */
+    private static byte[] reference(BigInteger serial, Date notBefore, Date notAfter, PublicKey key, String label) throws Exception {
+        return reference(caCert, ca.getPrivate(), serial, notBefore, notAfter, key, label);
+    }
+
+    private static byte[] reference(X509Certificate issuer, PrivateKey issuerKey, BigInteger serial, Date notBefore, Date notAfter, PublicKey key, String label) throws Exception {
+        return referenceCertificate(issuer, issuerKey, serial, notBefore, notAfter, key, label).getEncoded();
+    }
+
+    private static X509Certificate referenceCertificate(X509Certificate issuer, PrivateKey issuerKey, BigInteger serial, Date notBefore, Date notAfter, PublicKey key, String label) throws Exception {
+        X509V3CertificateGenerator certGen = new X509V3CertificateGenerator();
+        certGen.setSerialNumber(serial);
+        certGen.setIssuerDN(issuer.getSubjectX500Principal());
+        certGen.setNotBefore(notBefore);
+        certGen.setNotAfter(notAfter);
+        certGen.setSubjectDN(new X500Principal(""));
+        certGen.setPublicKey(key);
+        certGen.setSignatureAlgorithm(CertificateTemplate.signatureAlgorithm(issuer.getPublicKey()));
+        certGen.addExtension(X509Extension.subjectAlternativeName, true, new GeneralNames(new GeneralName(GeneralName.rfc822Name, label)));
+        return certGen.generate(issuerKey);
+    }
+
+    /**
+     * ECDSA signatures are randomized, so only the TBSCertificate and the signature algorithm can match the reference.
+     */
+    private static void assertSameAsReferenceWithEcCa(String curve, String algorithm, String oid) throws Exception {
+        KeyPair ecCa = ecKeyPair(curve);
+        X509Certificate ecCaCert = TestCertificates.selfSigned(ecCa);
+        BigInteger serial = BigInteger.valueOf(4242);
+        long now = System.currentTimeMillis();
+        Date notBefore = new Date(now);
+        Date notAfter = new Date(now + 365L * 86400000L);
+        CertificateTemplate template = CertificateTemplate.forIssuer(ecCaCert);
+        assertEquals(algorithm, template.getSignatureAlgorithm());
+        X509Certificate cert = template.issue(serial, notBefore, notAfter, subject.getPublic(), "HIS_Identity_Key", ecCa.getPrivate());
+        X509Certificate expected = referenceCertificate(ecCaCert, ecCa.getPrivate(), serial, notBefore, notAfter, subject.getPublic(), "HIS_Identity_Key");
+        assertArrayEquals(expected.getTBSCertificate(), cert.getTBSCertificate());
+        assertEquals(oid, cert.getSigAlgOID());
+        assertNull(cert.getSigAlgParams());
+        cert.verify(ecCa.getPublic());
+    }
+
+    private static void assertSameAsReference(BigInteger serial, Date notBefore, Date notAfter, String label) throws Exception {
+        X509Certificate cert = CertificateTemplate.forIssuer(caCert).issue(serial, notBefore, notAfter, subject.getPublic(), label, ca.getPrivate());
+        assertArrayEquals(reference(serial, notBefore, notAfter, subject.getPublic(), label), cert.getEncoded());
+        cert.verify(ca.getPublic());
+    }
+
+    @Test
+    public void testMatchesReferenceEncoder() throws Exception {
+        long now = System.currentTimeMillis();
+        assertSameAsReference(BigInteger.valueOf(now), new Date(now), new Date(now + 365L * 86400000L), "HIS_Identity_Key");
+        assertSameAsReference(BigInteger.valueOf(now), new Date(now), new Date(now + 365L * 86400000L), "TPM EK Credential");
+    }
+
+    @Test
+    public void testLongLabelAndLargeSerial() throws Exception {
+        char[] label = new char[300];
+        Arrays.fill(label, 'a');
+        assertSameAsReference(BigInteger.ONE.shiftLeft(159).add(BigInteger.TEN), new Date(0L), new Date(1000L * 86400000L), new String(label));
+    }
+
+    @Test
+    public void testGeneralizedTimeAfter2049() throws Exception {
+        // 2051-01-01 and 2099-12-31
+        assertSameAsReference(BigInteger.valueOf(127), new Date(2556144000000L), new Date(4102358400000L), "label");
+    }
+
+    @Test
+    public void testMakeCertUsesTemplate() throws Exception {
+        TpmPubKey aik = new TpmPubKey((java.security.interfaces.RSAPublicKey) subject.getPublic(), 3, 1);
+        X509Certificate cert = TpmUtils.makeCert(aik, "HIS_Identity_Key", (java.security.interfaces.RSAPrivateKey) ca.getPrivate(), caCert, 30, 0);
+        assertArrayEquals(reference(cert.getSerialNumber(), cert.getNotBefore(), cert.getNotAfter(), aik.getKey(), "HIS_Identity_Key"), cert.getEncoded());
+    }
+
+    @Test
+    public void testEcCaSignsWithEcdsa() throws Exception {
+        assertSameAsReferenceWithEcCa("secp256r1", "SHA256withECDSA", "1.2.840.10045.4.3.2");
+        assertSameAsReferenceWithEcCa("secp384r1", "SHA384withECDSA", "1.2.840.10045.4.3.3");
+        assertSameAsReferenceWithEcCa("secp521r1", "SHA512withECDSA", "1.2.840.10045.4.3.4");
+    }
+
+    @Test
+    public void testEcCaFromP12() throws Exception {
+        File p12 = File.createTempFile("ec-ca", ".p12");
+        try {
+            TpmUtils.createCaP12("EC", 256, "EC Privacy CA", "password", p12.getPath(), 30);
+            PrivateKey ecCaKey = TpmUtils.privateKeyFromP12(p12.getPath(), "password");
+            X509Certificate ecCaCert = TpmUtils.certFromP12(p12.getPath(), "password");
+            assertTrue(ecCaCert.getPublicKey() instanceof ECPublicKey);
+            assertEquals("1.2.840.10045.4.3.2", ecCaCert.getSigAlgOID());
+            ecCaCert.verify(ecCaCert.getPublicKey());
+            TpmPubKey aik = new TpmPubKey((java.security.interfaces.RSAPublicKey) subject.getPublic(), 3, 1);
+            X509Certificate cert = TpmUtils.makeCert(aik, "HIS_Identity_Key", ecCaKey, ecCaCert, 30, 0);
+            assertEquals("1.2.840.10045.4.3.2", cert.getSigAlgOID());
+            cert.verify(ecCaCert.getPublicKey());
+        } finally {
+            p12.delete();
+        }
+    }
+
+    /**
+     * Sign the TPM_IDENTITY_CONTENTS a TPM would for an AIK and a Privacy CA key.
+     */
+    private static byte[] identityBinding(byte[] label, TpmPubKey aikPub, PrivateKey aikKey, RSAPublicKey caKey) throws Exception {
+        ByteArrayOutputStream chosenId = new ByteArrayOutputStream();
+        chosenId.write(label);
+        chosenId.write(new TpmPubKey(caKey, 3, 1).toByteArray());
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        contents.write(new byte[] {0x01, 0x01, 0x00, 0x00});
+        contents.write(TpmUtils.intToByteArray(0x79));
+        contents.write(MessageDigest.getInstance("SHA1").digest(chosenId.toByteArray()));
+        contents.write(aikPub.toByteArray());
+        Signature sig = Signature.getInstance("SHA1withRSA");
+        sig.initSign(aikKey);
+        sig.update(contents.toByteArray());
+        return sig.sign();
+    }
+
+    /**
+     * A Privacy CA with an EC signing key still decrypts identity requests with an RSA key.
+     */
+    @Test
+    public void testEcCaIssuesAikFromIdentityRequest() throws Exception {
+        byte[] label = "HIS_Identity_Key".getBytes();
+        long now = System.currentTimeMillis();
+        KeyPair manufacturer = rsaKeyPair(2048);
+        X509Certificate manufacturerCert = TestCertificates.certificate(10, "CN=TPM Manufacturer CA", manufacturer.getPublic(), null, manufacturer.getPrivate(),
+                now - TestCertificates.DAY, now + TestCertificates.DAY, true, null);
+        KeyPair ek = rsaKeyPair(2048);
+        X509Certificate ekCert = TestCertificates.certificate(11, "CN=TPM EK", ek.getPublic(), manufacturerCert, manufacturer.getPrivate(),
+                now - TestCertificates.DAY, now + TestCertificates.DAY, false, null);
+        KeyPair ecCa = ecKeyPair("secp384r1");
+        X509Certificate ecCaCert = TestCertificates.selfSigned(ecCa);
+        RSAPublicKey decryptPub = (RSAPublicKey) ca.getPublic();
+        TpmPubKey aik = new TpmPubKey((RSAPublicKey) subject.getPublic(), 3, 1);
+        TpmIdentityProof proof = new TpmIdentityProof(label, identityBinding(label, aik, subject.getPrivate(), decryptPub), aik, ekCert.getEncoded(),
+                new byte[0], new byte[0], false, false, false);
+        byte[] request = new TpmIdentityRequest(proof, decryptPub).toByteArray();
+        try {
+            EkCertificateValidator.setDefault(new EkCertificateValidator(Arrays.asList(manufacturerCert)));
+            IssuedCertificateCache certificates = new IssuedCertificateCache();
+            assertNotNull(TpmUtils.processIdentityRequest(request, (RSAPrivateKey) ca.getPrivate(), decryptPub, ecCa.getPrivate(), ecCaCert, 30, null, certificates));
+            assertEquals(1, certificates.getIssued());
+            X509Certificate cert = certificates.getOrIssue(aik, "HIS_Identity_Key", ecCa.getPrivate(), ecCaCert, 30);
+            assertEquals(1, certificates.getReused());
+            assertEquals("1.2.840.10045.4.3.3", cert.getSigAlgOID());
+            assertEquals(ecCaCert.getSubjectX500Principal(), cert.getIssuerX500Principal());
+            assertEquals(((RSAPublicKey) subject.getPublic()).getModulus(), ((RSAPublicKey) cert.getPublicKey()).getModulus());
+            cert.verify(ecCa.getPublic());
+            X509Certificate partial = TpmUtils.partiallyProcessIdentityRequest(request, (RSAPrivateKey) ca.getPrivate(), decryptPub, ecCa.getPrivate(), ecCaCert, 30);
+            partial.verify(ecCa.getPublic());
+        } finally {
+            EkCertificateValidator.setDefault(null);
+        }
+    }
+
+    @Test(expected = java.security.NoSuchAlgorithmException.class)
+    public void testUnsupportedEcKeySize() throws Exception {
+        File p12 = File.createTempFile("ec-ca", ".p12");
+        try {
+            TpmUtils.createCaP12("EC", 224, "EC Privacy CA", "password", p12.getPath(), 30);
+        } finally {
+            p12.delete();
+        }
+    }
+
+    /**
+     * Per-certificate cost of makeCert's signing path for each kind of CA key, after a warmup.
+     */
+    @Test
+    public void benchmarkIssueByCaKey() throws Exception {
+        Benchmarks.assumeEnabled();
+        String[] names = {"RSA-2048", "RSA-3072", "P-256", "P-384"};
+        KeyPair[] keyPairs = {rsaKeyPair(2048), rsaKeyPair(3072), ecKeyPair("secp256r1"), ecKeyPair("secp384r1")};
+        long now = System.currentTimeMillis();
+        final Date notBefore = new Date(now);
+        final Date notAfter = new Date(now + 365L * 86400000L);
+        for (int index = 0; index < names.length; index++) {
+            final CertificateTemplate template = new CertificateTemplate(TestCertificates.selfSigned(keyPairs[index]));
+            final PrivateKey key = keyPairs[index].getPrivate();
+            final BigInteger serial = BigInteger.valueOf(index + 1);
+            Benchmarks.report("issue " + names[index] + " (" + template.getSignatureAlgorithm() + ")", WARMUP, ITERATIONS, new Task() {
+                @Override
+                public void run() throws Exception {
+                    template.issue(serial, notBefore, notAfter, subject.getPublic(), "HIS_Identity_Key", key);
+                }
+            });
+        }
+    }
+}
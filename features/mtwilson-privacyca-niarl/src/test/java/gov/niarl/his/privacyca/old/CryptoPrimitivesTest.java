@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.crypto.Cipher;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CryptoPrimitivesTest {
+
+    @Test
+    public void testSameThreadReusesInstance() throws Exception {
+        CryptoPrimitives.clearThread();
+        long misses = CryptoPrimitives.getMisses();
+        long hits = CryptoPrimitives.getHits();
+        Cipher first = CryptoPrimitives.cipher("AES/CBC/PKCS5Padding");
+        Cipher second = CryptoPrimitives.cipher("AES/CBC/PKCS5Padding");
+        assertSame(first, second);
+        assertNotSame(first, CryptoPrimitives.cipher("AES/ECB/NoPadding"));
+        // counters are global, so other threads can only add to them
+        assertTrue(CryptoPrimitives.getMisses() - misses >= 2);
+        assertTrue(CryptoPrimitives.getHits() - hits >= 1);
+    }
+
+    @Test
+    public void testOtherThreadGetsOwnInstance() throws Exception {
+        final Cipher mine = CryptoPrimitives.cipher("AES/CBC/PKCS5Padding");
+        final AtomicReference<Object> theirs = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    theirs.set(CryptoPrimitives.cipher("AES/CBC/PKCS5Padding"));
+                } catch (Exception e) {
+                    theirs.set(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        assertTrue(theirs.get() instanceof Cipher);
+        assertNotSame(mine, theirs.get());
+    }
+
+    @Test
+    public void testMessageDigestIsReset() throws Exception {
+        MessageDigest digest = CryptoPrimitives.messageDigest("SHA1");
+        digest.update(new byte[] {1, 2, 3});
+        byte[] empty = MessageDigest.getInstance("SHA1").digest();
+        assertArrayEquals(empty, CryptoPrimitives.messageDigest("SHA1").digest());
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import gov.niarl.his.privacyca.old.Benchmarks.Task;
+import gov.niarl.his.privacyca.old.CryptoProviders.Operation;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.MGF1ParameterSpec;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The benchmark tests compare the candidate providers for each operation on the running JDK.
+ * They are skipped unless the build is run with -Dprivacyca.benchmark=true.
+ */
+public class CryptoProvidersTest {
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 2000;
+
+    @After
+    public void restoreDefaults() {
+        for (Operation operation : Operation.values()) {
+            CryptoProviders.select(operation, operation.getDefaultName());
+        }
+    }
+
+    @Test
+    public void testBouncyCastleRegisteredOnce() {
+        CryptoProviders.initialize();
+        int count = 0;
+        for (Provider provider : Security.getProviders()) {
+            if ("BC".equals(provider.getName())) {
+                count++;
+            }
+        }
+        assertEquals(1, count);
+        assertEquals("BC", CryptoProviders.getName(Operation.X509_PARSE));
+        assertNull(CryptoProviders.get(Operation.AES));
+    }
+
+    @Test
+    public void testSelect() {
+        CryptoProviders.select(Operation.AES, "SunJCE");
+        assertEquals("SunJCE", CryptoProviders.getName(Operation.AES));
+        CryptoProviders.select(Operation.AES, CryptoProviders.DEFAULT);
+        assertNull(CryptoProviders.get(Operation.AES));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSelectUnknownProvider() {
+        CryptoProviders.select(Operation.AES, "NoSuchProvider");
+    }
+
+    @Test
+    public void benchmarkRsaDecrypt() throws Exception {
+        Benchmarks.assumeEnabled();
+        final KeyPair keyPair = rsaKeyPair();
+        final OAEPParameterSpec oaepSpec = new OAEPParameterSpec("Sha1", "MGF1", MGF1ParameterSpec.SHA1, new PSource.PSpecified("TCPA".getBytes()));
+        final byte[] ciphertext = TpmUtils.tcgAsymEncrypt(new byte[32], (RSAPublicKey) keyPair.getPublic());
+        compare(Operation.RSA_DECRYPT, new String[] {"SunJCE", "BC"}, new Task() {
+            @Override
+            public void run() throws Exception {
+                Cipher cipher = CryptoPrimitives.cipher("RSA/ECB/OAEPWithSha1AndMGF1Padding", CryptoProviders.get(Operation.RSA_DECRYPT));
+                cipher.init(Cipher.PRIVATE_KEY, keyPair.getPrivate(), oaepSpec);
+                cipher.doFinal(ciphertext);
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkRsaSign() throws Exception {
+        Benchmarks.assumeEnabled();
+        final KeyPair keyPair = rsaKeyPair();
+        final byte[] data = new byte[512];
+        compare(Operation.RSA_SIGN, new String[] {"SunRsaSign", "BC"}, new Task() {
+            @Override
+            public void run() throws Exception {
+                Signature signature = CryptoPrimitives.signature("SHA256withRSA", CryptoProviders.get(Operation.RSA_SIGN));
+                signature.initSign(keyPair.getPrivate());
+                signature.update(data);
+                signature.sign();
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkAes() throws Exception {
+        Benchmarks.assumeEnabled();
+        final SecretKeySpec key = new SecretKeySpec(new byte[16], "AES");
+        final IvParameterSpec iv = new IvParameterSpec(new byte[16]);
+        // about the size of a sym blob carrying an EK credential
+        final byte[] plaintext = new byte[2048];
+        compare(Operation.AES, new String[] {"SunJCE", "BC"}, new Task() {
+            @Override
+            public void run() throws Exception {
+                Cipher cipher = CryptoPrimitives.cipher("AES/CBC/PKCS5Padding", CryptoProviders.get(Operation.AES));
+                cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+                cipher.doFinal(plaintext);
+            }
+        });
+    }
+
+    @Test
+    public void benchmarkX509Parse() throws Exception {
+        Benchmarks.assumeEnabled();
+        KeyPair keyPair = rsaKeyPair();
+        long now = System.currentTimeMillis();
+        X509Certificate cert = TestCertificates.certificate(1, "CN=Benchmark", keyPair.getPublic(), null, keyPair.getPrivate(), now, now + TestCertificates.DAY, false, null);
+        final byte[] encoded = cert.getEncoded();
+        compare(Operation.X509_PARSE, new String[] {"SUN", "BC"}, new Task() {
+            @Override
+            public void run() throws Exception {
+                X509Certificate parsed = CertificateDecoder.parse(encoded);
+                // parsing is lazy in some providers; touch the key so all of them do the same work
+                parsed.getPublicKey();
+            }
+        });
+    }
+
+    private static KeyPair rsaKeyPair() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        return keyGen.generateKeyPair();
+    }
+
+    private static void compare(Operation operation, String[] providers, Task task) throws Exception {
+        for (String provider : providers) {
+            CryptoProviders.select(operation, provider);
+            Benchmarks.report(operation + " " + provider, WARMUP, ITERATIONS, task);
+        }
+    }
+}
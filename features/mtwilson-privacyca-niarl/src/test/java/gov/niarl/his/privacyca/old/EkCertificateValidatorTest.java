@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import gov.niarl.his.privacyca.old.Benchmarks.Task;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The benchmark test compares the validator with a PKIX CertPathValidator run per EK
+ * certificate, and measures the validator with one thread and with one per core. It is
+ * skipped unless the build is run with -Dprivacyca.benchmark=true.
+ */
+public class EkCertificateValidatorTest {
+    private static final long DAY = 86400000L;
+    private static final int WARMUP = 500;
+    private static final int ITERATIONS = 5000;
+    private static KeyPair rootKey;
+    private static KeyPair intermediateKey;
+    private static KeyPair ekKey;
+    private static X509Certificate root;
+    private static X509Certificate intermediate;
+    private static X509Certificate ek;
+
+    @BeforeClass
+    public static void createChain() throws Exception {
+        rootKey = keyPair();
+        intermediateKey = keyPair();
+        ekKey = keyPair();
+        long now = System.currentTimeMillis();
+        root = TestCertificates.certificate(1, "CN=TPM Manufacturer Root", rootKey.getPublic(), null, rootKey.getPrivate(), now - DAY, now + 365 * DAY, true, null);
+        intermediate = TestCertificates.certificate(2, "CN=TPM Manufacturer EK CA", intermediateKey.getPublic(), root, rootKey.getPrivate(), now - DAY, now + 365 * DAY, true, null);
+        ek = TestCertificates.certificate(3, "CN=TPM EK", ekKey.getPublic(), intermediate, intermediateKey.getPrivate(), now - DAY, now + 3650 * DAY, false, null);
+    }
+
+    private static KeyPair keyPair() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        return keyGen.generateKeyPair();
+    }
+
+    private static String pem(X509Certificate... certs) throws Exception {
+        StringBuilder pem = new StringBuilder();
+        for (X509Certificate cert : certs) {
+            pem.append("-----BEGIN CERTIFICATE-----\n");
+            pem.append(Base64.getMimeEncoder(64, new byte[] {'\n'}).encodeToString(cert.getEncoded()));
+            pem.append("\n-----END CERTIFICATE-----\n");
+        }
+        return pem.toString();
+    }
+
+    @Test
+    public void testValidChain() throws Exception {
+        EkCertificateValidator validator = new EkCertificateValidator(Arrays.asList(root, intermediate));
+        assertEquals(2, validator.getTrustedCount());
+        assertTrue(validator.isValid(ek));
+        assertEquals(intermediate, validator.findIssuer(ek, System.currentTimeMillis()));
+        assertNull(validator.findIssuer(ek, ek.getNotBefore().getTime() - DAY));
+    }
+
+    @Test
+    public void testForgedIssuerIsRejected() throws Exception {
+        EkCertificateValidator validator = new EkCertificateValidator(Arrays.asList(root, intermediate));
+        KeyPair forger = keyPair();
+        long now = System.currentTimeMillis();
+        X509Certificate forged = TestCertificates.certificate(4, "CN=TPM EK", ekKey.getPublic(), intermediate, forger.getPrivate(), now - DAY, now + DAY, false, null);
+        assertFalse(validator.isValid(forged));
+    }
+
+    @Test
+    public void testPathIsLimitedByIntermediateValidity() throws Exception {
+        long ekNotBefore = ek.getNotBefore().getTime();
+        X509Certificate shortLived = TestCertificates.certificate(5, "CN=TPM Manufacturer EK CA", intermediateKey.getPublic(), root, rootKey.getPrivate(), ekNotBefore - 10 * DAY, ekNotBefore + 1000, true, null);
+        EkCertificateValidator validator = new EkCertificateValidator(Arrays.asList(root, shortLived));
+        assertFalse(validator.isValid(ek));
+        assertEquals(shortLived, validator.findIssuer(ek, ekNotBefore + 500));
+        assertNull(validator.findIssuer(ek, ekNotBefore + 2000));
+    }
+
+    @Test
+    public void testIntermediateNotSignedByRootIsUntrusted() throws Exception {
+        long now = System.currentTimeMillis();
+        KeyPair forger = keyPair();
+        X509Certificate forgedIntermediate = TestCertificates.certificate(6, "CN=TPM Manufacturer EK CA", intermediateKey.getPublic(), root, forger.getPrivate(), now - DAY, now + DAY, true, null);
+        EkCertificateValidator validator = new EkCertificateValidator(Arrays.asList(root, forgedIntermediate));
+        assertEquals(1, validator.getTrustedCount());
+        assertFalse(validator.isValid(ek));
+    }
+
+    @Test
+    public void testIntermediateWithoutRootIsAnchor() throws Exception {
+        EkCertificateValidator validator = new EkCertificateValidator(Collections.singletonList(intermediate));
+        assertTrue(validator.isValid(ek));
+        EkCertificateValidator rootOnly = new EkCertificateValidator(Collections.singletonList(root));
+        assertFalse(rootOnly.isValid(ek));
+    }
+
+    @Test
+    public void testVerifyTpmUsesDefaultValidator() throws Exception {
+        try {
+            EkCertificateValidator.setDefault(EkCertificateValidator.fromPem(pem(root, intermediate)));
+            assertEquals(2, EkCertificateValidator.getDefault().getAuthorityCount());
+            assertTrue(TpmUtils.verifyTPM(ek));
+            // a CA certificate is not an EK certificate, even though it chains
+            assertFalse(TpmUtils.verifyTPM(intermediate));
+            EkCertificateValidator.setDefault(EkCertificateValidator.fromPem(pem(root)));
+            assertFalse(TpmUtils.verifyTPM(ek));
+        } finally {
+            EkCertificateValidator.setDefault(null);
+        }
+        assertTrue(TpmUtils.verifyTPM(ek));
+    }
+
+    @Test
+    public void benchmarkValidation() throws Exception {
+        Benchmarks.assumeEnabled();
+        final EkCertificateValidator validator = new EkCertificateValidator(Arrays.asList(root, intermediate));
+        final PKIXParameters parameters = new PKIXParameters(Collections.singleton(new TrustAnchor(root, null)));
+        parameters.setRevocationEnabled(false);
+        final CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        measure("CertPathValidator", new Task() {
+            @Override
+            public void run() throws Exception {
+                CertPath path = factory.generateCertPath(Arrays.asList(ek, intermediate));
+                CertPathValidator.getInstance("PKIX").validate(path, parameters);
+            }
+        });
+        measure("EkCertificateValidator", new Task() {
+            @Override
+            public void run() throws Exception {
+                if (!validator.isValid(ek)) {
+                    throw new IllegalStateException("EK certificate did not validate");
+                }
+            }
+        });
+        int cores = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(cores);
+        try {
+            for (int threads : new int[] {1, cores}) {
+                List<Callable<Void>> workers = new ArrayList<>();
+                for (int index = 0; index < threads; index++) {
+                    workers.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+                                validator.isValid(ek);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                long start = System.nanoTime();
+                for (Future<Void> result : executor.invokeAll(workers)) {
+                    result.get();
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.println("EK validation with " + threads + " threads: " + (threads * ITERATIONS * 1000000000L / elapsed) + " ops/s");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void measure(String name, Task task) throws Exception {
+        Benchmarks.report("EK validation " + name, WARMUP, ITERATIONS, task);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import gov.niarl.his.privacyca.old.Benchmarks.Task;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The benchmark test compares a cached lookup and verdict with parsing and validating the EK
+ * certificate each time. It is skipped unless the build is run with -Dprivacyca.benchmark=true.
+ */
+public class EkCredentialCacheTest {
+    private static final long DAY = 86400000L;
+    private static final int WARMUP = 500;
+    private static final int ITERATIONS = 5000;
+    private static KeyPair caKey;
+    private static KeyPair ekKey;
+    private static X509Certificate ca;
+    private static X509Certificate ek;
+
+    @BeforeClass
+    public static void createChain() throws Exception {
+        caKey = keyPair();
+        ekKey = keyPair();
+        long now = System.currentTimeMillis();
+        ca = TestCertificates.certificate(1, "CN=TPM Manufacturer EK CA", caKey.getPublic(), null, caKey.getPrivate(), now - DAY, now + 365 * DAY, true, null);
+        ek = TestCertificates.certificate(2, "CN=TPM EK", ekKey.getPublic(), ca, caKey.getPrivate(), now - DAY, now + 3650 * DAY, false, null);
+    }
+
+    private static KeyPair keyPair() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        return keyGen.generateKeyPair();
+    }
+
+    @Test
+    public void testSameCredentialIsParsedOnce() throws Exception {
+        EkCredentialCache cache = new EkCredentialCache(10);
+        byte[] der = ek.getEncoded();
+        ByteBuffer view = ByteBuffer.wrap(der.clone());
+        EkCredentialCache.Entry first = cache.lookup(view);
+        assertEquals(0, view.position());
+        EkCredentialCache.Entry second = cache.lookup(ByteBuffer.wrap(der.clone()));
+        assertSame(first, second);
+        assertSame(first, cache.lookup(ek));
+        assertEquals(ekKey.getPublic(), first.getPublicKey());
+        assertEquals(ek, first.getCertificate());
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testVerdictIsComputedOnce() throws Exception {
+        EkCredentialCache cache = new EkCredentialCache(10);
+        EkCertificateValidator validator = new EkCertificateValidator(Arrays.asList(ca));
+        for (int index = 0; index < 10; index++) {
+            assertTrue(cache.lookup(ByteBuffer.wrap(ek.getEncoded())).isTrusted(validator));
+        }
+        assertEquals(1, cache.getValidations());
+        assertEquals(0, cache.getRejections());
+        EkCredentialCache.Entry entry = cache.lookup(ek);
+        // the verdict expires with the CA certificate
+        assertFalse(entry.isTrusted(validator, ca.getNotAfter().getTime() + 1));
+        assertEquals(2, cache.getValidations());
+        assertTrue(entry.isTrusted(null));
+        assertEquals(2, cache.getValidations());
+        cache.resetStatistics();
+        assertEquals(0, cache.getValidations());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void testRejectionIsRecheckedLater() throws Exception {
+        EkCredentialCache cache = new EkCredentialCache(10);
+        KeyPair otherKey = keyPair();
+        X509Certificate other = TestCertificates.certificate(3, "CN=Other Manufacturer EK CA", otherKey.getPublic(), null, otherKey.getPrivate(),
+                ek.getNotBefore().getTime(), ek.getNotAfter().getTime(), true, null);
+        EkCertificateValidator validator = new EkCertificateValidator(Arrays.asList(other));
+        EkCredentialCache.Entry entry = cache.lookup(ek);
+        long now = System.currentTimeMillis();
+        assertFalse(entry.isTrusted(validator, now));
+        assertFalse(entry.isTrusted(validator, now + 1000));
+        assertEquals(1, cache.getValidations());
+        assertEquals(1, cache.getRejections());
+        assertFalse(entry.isTrusted(validator, now + EkCredentialCache.NEGATIVE_RECHECK_MILLIS + 1));
+        assertEquals(2, cache.getValidations());
+        // a new CA set is consulted at once
+        assertTrue(entry.isTrusted(new EkCertificateValidator(Arrays.asList(other, ca)), now + 2000));
+        assertEquals(3, cache.getValidations());
+    }
+
+    @Test
+    public void testSizeIsBounded() throws Exception {
+        EkCredentialCache cache = new EkCredentialCache(4);
+        for (int serial = 100; serial < 120; serial++) {
+            long now = System.currentTimeMillis();
+            cache.lookup(TestCertificates.certificate(serial, "CN=TPM EK " + serial, ekKey.getPublic(), ca, caKey.getPrivate(), now - DAY, now + DAY, false, null));
+        }
+        assertTrue(cache.size() <= 4);
+        assertEquals(20, cache.getMisses());
+    }
+
+    @Test
+    public void testVerifyTpmUsesDefaultValidator() throws Exception {
+        try {
+            EkCertificateValidator.setDefault(null);
+            assertTrue(TpmUtils.verifyTPM(ek));
+            EkCertificateValidator.setDefault(new EkCertificateValidator(Arrays.asList(ca)));
+            assertTrue(TpmUtils.verifyTPM(ek));
+            assertFalse(TpmUtils.verifyTPM(ca));
+        } finally {
+            EkCertificateValidator.setDefault(null);
+        }
+    }
+
+    @Test
+    public void benchmarkLookup() throws Exception {
+        Benchmarks.assumeEnabled();
+        final byte[] der = ek.getEncoded();
+        final EkCertificateValidator validator = new EkCertificateValidator(Arrays.asList(ca));
+        final EkCredentialCache cache = new EkCredentialCache(EkCredentialCache.DEFAULT_CAPACITY);
+        measure("parse and validate", new Task() {
+            @Override
+            public void run() throws Exception {
+                X509Certificate cert = CertificateDecoder.parse(der);
+                cert.getPublicKey();
+                validator.isValid(cert);
+            }
+        });
+        measure("cached", new Task() {
+            @Override
+            public void run() throws Exception {
+                EkCredentialCache.Entry entry = cache.lookup(ByteBuffer.wrap(der));
+                entry.getPublicKey();
+                entry.isTrusted(validator);
+            }
+        });
+        System.out.println("EK cache hit rate: " + cache.getHitRate() + ", validations: " + cache.getValidations());
+    }
+
+    private static void measure(String name, Task task) throws Exception {
+        Benchmarks.report("EK credential " + name, WARMUP, ITERATIONS, task);
+    }
+}
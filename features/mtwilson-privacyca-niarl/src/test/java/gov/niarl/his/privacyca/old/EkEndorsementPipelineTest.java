@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import org.bouncycastle.util.BigIntegers;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EkEndorsementPipelineTest {
+    private static KeyPair ca;
+    private static X509Certificate caCert;
+    private static List<RSAPublicKey> eks = new ArrayList<>();
+
+    @BeforeClass
+    public static void createCa() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        ca = TestCertificates.caKeyPair();
+        for (int i = 0; i < 5; i++) {
+            eks.add((RSAPublicKey) keyGen.generateKeyPair().getPublic());
+        }
+        caCert = TestCertificates.caCert();
+    }
+
+    private static String hexInput() {
+        StringBuilder hex = new StringBuilder("# manufacturer batch\n");
+        for (RSAPublicKey ek : eks) {
+            hex.append(Hex.toHexString(BigIntegers.asUnsignedByteArray(ek.getModulus()))).append('\n');
+        }
+        return hex.toString();
+    }
+
+    private static EkEndorsementPipeline pipeline() {
+        return new EkEndorsementPipeline((RSAPrivateKey) ca.getPrivate(), caCert, 30, 2);
+    }
+
+    private static List<X509Certificate> readBundle(File bundle) throws Exception {
+        List<X509Certificate> certs = new ArrayList<>();
+        try (InputStream in = new FileInputStream(bundle)) {
+            Collection<? extends Certificate> parsed = CertificateFactory.getInstance("X.509").generateCertificates(in);
+            for (Certificate cert : parsed) {
+                certs.add((X509Certificate) cert);
+            }
+        }
+        return certs;
+    }
+
+    private static void assertEndorsesAllInOrder(List<X509Certificate> certs) throws Exception {
+        assertEquals(eks.size(), certs.size());
+        for (int i = 0; i < eks.size(); i++) {
+            assertEquals(eks.get(i).getModulus(), ((RSAPublicKey) certs.get(i).getPublicKey()).getModulus());
+            certs.get(i).verify(ca.getPublic());
+        }
+    }
+
+    @Test
+    public void testEndorsesHexInputIntoBundle() throws Exception {
+        File bundle = File.createTempFile("ek-bundle", ".pem");
+        File checkpoint = new File(bundle.getPath() + ".checkpoint");
+        try {
+            EkEndorsementPipeline.Result result = pipeline().run(EkEndorsementPipeline.hexSource(new StringReader(hexInput())),
+                    EkEndorsementPipeline.pemBundleSink(bundle), checkpoint);
+            assertEquals(5, result.getEndorsed());
+            assertEquals(0, result.getFailed());
+            assertEndorsesAllInOrder(readBundle(bundle));
+            assertFalse(checkpoint.exists());
+        } finally {
+            bundle.delete();
+        }
+    }
+
+    @Test
+    public void testResumesFromCheckpoint() throws Exception {
+        File bundle = File.createTempFile("ek-bundle", ".pem");
+        File checkpoint = new File(bundle.getPath() + ".checkpoint");
+        try {
+            final EkEndorsementPipeline.EkSource full = EkEndorsementPipeline.hexSource(new StringReader(hexInput()));
+            // a source that fails after four entries, as if the run were interrupted, once the first has been written
+            EkEndorsementPipeline.EkSource interrupted = new EkEndorsementPipeline.EkSource() {
+                private int count;
+
+                @Override
+                public byte[] next() throws IOException {
+                    if (count++ == 4) {
+                        throw new IOException("interrupted");
+                    }
+                    return full.next();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    full.close();
+                }
+            };
+            EkEndorsementPipeline first = pipeline();
+            first.setCheckpointInterval(1);
+            try {
+                first.run(interrupted, EkEndorsementPipeline.pemBundleSink(bundle), checkpoint);
+                fail("The interrupted run should fail");
+            } catch (IOException e) {
+                assertEquals("interrupted", e.getMessage());
+            }
+            assertTrue(checkpoint.exists());
+            EkEndorsementPipeline.Result result = pipeline().run(EkEndorsementPipeline.hexSource(new StringReader(hexInput())),
+                    EkEndorsementPipeline.pemBundleSink(bundle), checkpoint);
+            assertEquals(5, result.getResumed() + result.getEndorsed());
+            assertTrue(result.getResumed() > 0);
+            assertEndorsesAllInOrder(readBundle(bundle));
+            assertFalse(checkpoint.exists());
+        } finally {
+            bundle.delete();
+            checkpoint.delete();
+        }
+    }
+
+    @Test
+    public void testRerunBeforeFirstCheckpointWritesEachCertificateOnce() throws Exception {
+        File bundle = File.createTempFile("ek-bundle", ".pem");
+        File checkpoint = new File(bundle.getPath() + ".checkpoint");
+        try {
+            final EkEndorsementPipeline.CertificateSink sink = EkEndorsementPipeline.pemBundleSink(bundle);
+            // a sink that fails on the fourth certificate, long before the default checkpoint interval
+            EkEndorsementPipeline.CertificateSink interrupted = new EkEndorsementPipeline.CertificateSink() {
+                private int count;
+
+                @Override
+                public void write(byte[] modulus, X509Certificate ekCert) throws IOException {
+                    if (count++ == 3) {
+                        throw new IOException("interrupted");
+                    }
+                    sink.write(modulus, ekCert);
+                }
+
+                @Override
+                public long mark() throws IOException {
+                    return sink.mark();
+                }
+
+                @Override
+                public void resume(long mark) throws IOException {
+                    sink.resume(mark);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    sink.close();
+                }
+            };
+            try {
+                pipeline().run(EkEndorsementPipeline.hexSource(new StringReader(hexInput())), interrupted, checkpoint);
+                fail("The interrupted run should fail");
+            } catch (IOException e) {
+                assertEquals("interrupted", e.getMessage());
+            }
+            assertEquals(3, readBundle(bundle).size());
+            assertTrue(checkpoint.exists());
+            EkEndorsementPipeline.Result result = pipeline().run(EkEndorsementPipeline.hexSource(new StringReader(hexInput())),
+                    EkEndorsementPipeline.pemBundleSink(bundle), checkpoint);
+            assertEquals(0, result.getResumed());
+            assertEquals(5, result.getEndorsed());
+            assertEndorsesAllInOrder(readBundle(bundle));
+            assertFalse(checkpoint.exists());
+        } finally {
+            bundle.delete();
+            checkpoint.delete();
+        }
+    }
+
+    @Test
+    public void testPemAndBinarySources() throws Exception {
+        StringBuilder pem = new StringBuilder();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        for (RSAPublicKey ek : eks) {
+            pem.append("-----BEGIN PUBLIC KEY-----\n")
+                    .append(Base64.getMimeEncoder().encodeToString(ek.getEncoded()))
+                    .append("\n-----END PUBLIC KEY-----\n");
+            binary.write(BigIntegers.asUnsignedByteArray(256, ek.getModulus()));
+        }
+        EkEndorsementPipeline.EkSource pemSource = EkEndorsementPipeline.pemSource(new StringReader(pem.toString()));
+        EkEndorsementPipeline.EkSource binarySource = EkEndorsementPipeline.binarySource(new ByteArrayInputStream(binary.toByteArray()), 256);
+        for (RSAPublicKey ek : eks) {
+            assertEquals(ek.getModulus(), new BigInteger(1, pemSource.next()));
+            assertEquals(ek.getModulus(), new BigInteger(1, binarySource.next()));
+        }
+        assertNull(pemSource.next());
+        assertNull(binarySource.next());
+    }
+
+    @Test(expected = IOException.class)
+    public void testBinarySourceRejectsTruncatedInput() throws Exception {
+        EkEndorsementPipeline.EkSource source = EkEndorsementPipeline.binarySource(new ByteArrayInputStream(new byte[300]), 256);
+        source.next();
+        source.next();
+    }
+
+    @Test
+    public void testDirectorySinkAndFailures() throws Exception {
+        File directory = Files.createTempDirectory("ek-certs").toFile();
+        File checkpoint = new File(directory, "checkpoint");
+        try {
+            // an empty modulus cannot be endorsed and is skipped
+            String input = hexInput() + "00\n";
+            EkEndorsementPipeline.Result result = pipeline().run(EkEndorsementPipeline.hexSource(new StringReader(input)),
+                    EkEndorsementPipeline.directorySink(directory), checkpoint);
+            assertEquals(5, result.getEndorsed());
+            assertEquals(1, result.getFailed());
+            assertEquals(5, directory.listFiles().length);
+            try (EkEndorsementPipeline.CertificateSink sink = EkEndorsementPipeline.directorySink(directory)) {
+                sink.write(BigIntegers.asUnsignedByteArray(eks.get(0).getModulus()), caCert);
+                sink.write(BigIntegers.asUnsignedByteArray(eks.get(1).getModulus()), caCert);
+                assertEquals(2, sink.mark());
+                assertEquals(2, sink.mark());
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
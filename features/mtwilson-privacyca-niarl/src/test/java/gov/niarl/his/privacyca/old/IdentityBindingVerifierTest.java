@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IdentityBindingVerifierTest {
+    private static final byte[] LABEL = "HIS_Identity_Key".getBytes();
+    private static KeyPair ca;
+    private static KeyPair aik;
+
+    @BeforeClass
+    public static void createKeys() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        ca = keyGen.generateKeyPair();
+        aik = keyGen.generateKeyPair();
+    }
+
+    /**
+     * Sign TPM_IDENTITY_CONTENTS built the way checkValidity used to build it.
+     */
+    private static byte[] identityBinding(byte[] label, TpmPubKey aikPub) throws Exception {
+        ByteArrayOutputStream chosenId = new ByteArrayOutputStream();
+        chosenId.write(label);
+        chosenId.write(new TpmPubKey((RSAPublicKey) ca.getPublic(), 3, 1).toByteArray());
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        contents.write(new byte[] {0x01, 0x01, 0x00, 0x00});
+        contents.write(TpmUtils.intToByteArray(0x79));
+        contents.write(MessageDigest.getInstance("SHA1").digest(chosenId.toByteArray()));
+        contents.write(aikPub.toByteArray());
+        Signature sig = Signature.getInstance("SHA1withRSA");
+        sig.initSign(aik.getPrivate());
+        sig.update(contents.toByteArray());
+        return sig.sign();
+    }
+
+    private static TpmIdentityProof proof(byte[] binding, TpmPubKey aikPub) {
+        return new TpmIdentityProof(LABEL, binding, aikPub, new byte[0], new byte[0], new byte[0], false, false, false);
+    }
+
+    @Test
+    public void testValidBinding() throws Exception {
+        TpmPubKey aikPub = new TpmPubKey((RSAPublicKey) aik.getPublic(), 3, 1);
+        TpmIdentityProof proof = proof(identityBinding(LABEL, aikPub), aikPub);
+        assertTrue(proof.checkValidity((RSAPublicKey) ca.getPublic()));
+        IdentityBindingVerifier verifier = IdentityBindingVerifier.forKey((RSAPublicKey) ca.getPublic());
+        assertSame(verifier, IdentityBindingVerifier.forKey((RSAPublicKey) ca.getPublic()));
+        assertSame(verifier.chosenIdHash(ByteBuffer.wrap(LABEL)), verifier.chosenIdHash(ByteBuffer.wrap(LABEL.clone())));
+        assertTrue(verifier.verify(proof));
+    }
+
+    @Test
+    public void testWrongLabelOrKeyFails() throws Exception {
+        TpmPubKey aikPub = new TpmPubKey((RSAPublicKey) aik.getPublic(), 3, 1);
+        TpmIdentityProof proof = proof(identityBinding("other label".getBytes(), aikPub), aikPub);
+        assertFalse(proof.checkValidity((RSAPublicKey) ca.getPublic()));
+        TpmIdentityProof wrongCa = proof(identityBinding(LABEL, aikPub), aikPub);
+        assertFalse(new IdentityBindingVerifier((RSAPublicKey) aik.getPublic()).verify(wrongCa));
+    }
+}
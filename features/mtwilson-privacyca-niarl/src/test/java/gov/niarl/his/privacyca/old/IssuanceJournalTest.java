@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IssuanceJournalTest {
+    private static final long DAY = 86400000L;
+    private static KeyPair ca;
+    private static KeyPair subject;
+    private static X509Certificate caCert;
+    private File directory;
+
+    @BeforeClass
+    public static void createCa() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        ca = TestCertificates.caKeyPair();
+        subject = keyGen.generateKeyPair();
+        caCert = TestCertificates.caCert();
+    }
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("issuance-journal").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static X509Certificate issue(long serial, long notBefore, long notAfter) throws Exception {
+        return CertificateTemplate.forIssuer(caCert).issue(BigInteger.valueOf(serial), new Date(notBefore), new Date(notAfter),
+                subject.getPublic(), "HIS_Identity_Key", ca.getPrivate());
+    }
+
+    @Test
+    public void testFindsEntriesBySerialAndKeyHash() throws Exception {
+        long now = System.currentTimeMillis();
+        try (IssuanceJournal journal = new IssuanceJournal(directory)) {
+            X509Certificate first = issue(1001, now, now + 30 * DAY);
+            X509Certificate second = issue(1002, now, now + 30 * DAY);
+            journal.append(first, "HIS_Identity_Key");
+            long sequence = journal.append(second, "HIS_Identity_Key");
+            journal.awaitCommit(sequence);
+            IssuanceJournal.Entry entry = journal.findBySerial(BigInteger.valueOf(1001));
+            assertEquals("HIS_Identity_Key", entry.getLabel());
+            assertEquals(first.getNotAfter().getTime(), entry.getNotAfter());
+            assertEquals(first, entry.getCertificate());
+            List<IssuanceJournal.Entry> byKey = journal.findByKeyHash(IssuanceJournal.keyHash(subject.getPublic()));
+            assertEquals(2, byKey.size());
+            assertEquals(BigInteger.valueOf(1002), byKey.get(1).getSerial());
+            assertNull(journal.findBySerial(BigInteger.valueOf(999)));
+        }
+    }
+
+    @Test
+    public void testReopenRebuildsIndexAndRollsSegments() throws Exception {
+        long now = System.currentTimeMillis();
+        try (IssuanceJournal journal = new IssuanceJournal(directory, 4096, 5)) {
+            for (int serial = 1; serial <= 20; serial++) {
+                journal.append(issue(serial, now, now + DAY), "HIS_Identity_Key");
+            }
+            assertTrue(journal.getSegmentCount() > 1);
+        }
+        try (IssuanceJournal journal = new IssuanceJournal(directory, 4096, 5)) {
+            assertEquals(20, journal.size());
+            for (int serial = 1; serial <= 20; serial++) {
+                assertNotNull(journal.findBySerial(BigInteger.valueOf(serial)));
+            }
+            journal.append(issue(21, now, now + DAY), "HIS_Identity_Key");
+            assertEquals(21, journal.size());
+        }
+    }
+
+    @Test
+    public void testRecoversFromTornWrite() throws Exception {
+        long now = System.currentTimeMillis();
+        try (IssuanceJournal journal = new IssuanceJournal(directory, 1 << 16, 5)) {
+            journal.append(issue(1, now, now + DAY), "HIS_Identity_Key");
+            journal.append(issue(2, now, now + DAY), "HIS_Identity_Key");
+        }
+        File segment = directory.listFiles()[0];
+        // damage the second record as if the write had been cut short
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(8);
+            int firstLength = file.readInt();
+            file.seek(8 + 8 + firstLength + 8 + 100);
+            file.write(new byte[] {1, 2, 3, 4});
+        }
+        try (IssuanceJournal journal = new IssuanceJournal(directory, 1 << 16, 5)) {
+            assertEquals(1, journal.size());
+            assertNull(journal.findBySerial(BigInteger.valueOf(2)));
+            journal.append(issue(3, now, now + DAY), "HIS_Identity_Key");
+        }
+        try (IssuanceJournal journal = new IssuanceJournal(directory, 1 << 16, 5)) {
+            assertEquals(2, journal.size());
+            assertNotNull(journal.findBySerial(BigInteger.valueOf(3)));
+        }
+    }
+
+    @Test
+    public void testRefusesDamagedSealedSegment() throws Exception {
+        long now = System.currentTimeMillis();
+        try (IssuanceJournal journal = new IssuanceJournal(directory, 4096, 5)) {
+            for (int serial = 1; serial <= 20; serial++) {
+                journal.append(issue(serial, now, now + DAY), "HIS_Identity_Key");
+            }
+            assertTrue(journal.getSegmentCount() > 1);
+        }
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        // flip a bit inside the first record of the first, sealed, segment
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            file.seek(8 + 8 + 100);
+            int value = file.read();
+            file.seek(8 + 8 + 100);
+            file.write(value ^ 1);
+        }
+        try {
+            new IssuanceJournal(directory, 4096, 5).close();
+            fail("A damaged sealed segment was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(files.length, directory.listFiles().length);
+    }
+
+    @Test
+    public void testDiscardsPartiallyCreatedSegment() throws Exception {
+        long now = System.currentTimeMillis();
+        try (IssuanceJournal journal = new IssuanceJournal(directory, 4096, 5)) {
+            journal.append(issue(1, now, now + DAY), "HIS_Identity_Key");
+        }
+        // as if the process stopped before the next segment was renamed into place
+        File partial = new File(directory, "journal-00000002.seg.tmp");
+        try (RandomAccessFile file = new RandomAccessFile(partial, "rw")) {
+            file.setLength(4096);
+        }
+        try (IssuanceJournal journal = new IssuanceJournal(directory, 4096, 5)) {
+            assertFalse(partial.exists());
+            assertEquals(1, journal.size());
+            journal.append(issue(2, now, now + DAY), "HIS_Identity_Key");
+        }
+    }
+
+    @Test
+    public void testCompactionDropsExpiredEntries() throws Exception {
+        long now = System.currentTimeMillis();
+        try (IssuanceJournal journal = new IssuanceJournal(directory, 4096, 5)) {
+            for (int serial = 1; serial <= 20; serial++) {
+                long notAfter = serial % 2 == 0 ? now - DAY : now + DAY;
+                journal.append(issue(serial, now - 2 * DAY, notAfter), "HIS_Identity_Key");
+            }
+            int dropped = journal.compact(now);
+            assertTrue(dropped > 0);
+            assertEquals(20 - dropped, journal.size());
+            for (int serial = 1; serial <= 20; serial += 2) {
+                assertNotNull(journal.findBySerial(BigInteger.valueOf(serial)));
+            }
+        }
+        try (IssuanceJournal journal = new IssuanceJournal(directory, 4096, 5)) {
+            for (int serial = 1; serial <= 20; serial += 2) {
+                assertNotNull(journal.findBySerial(BigInteger.valueOf(serial)));
+            }
+        }
+    }
+
+    @Test
+    public void testMakeCertRecordsInDefaultJournal() throws Exception {
+        try (IssuanceJournal journal = new IssuanceJournal(directory)) {
+            IssuanceJournal.setDefault(journal);
+            TpmPubKey aik = new TpmPubKey((RSAPublicKey) subject.getPublic(), 3, 1);
+            X509Certificate cert = TpmUtils.makeCert(aik, "HIS_Identity_Key", (RSAPrivateKey) ca.getPrivate(), caCert, 30, 0);
+            assertEquals(cert, journal.findBySerial(cert.getSerialNumber()).getCertificate());
+        } finally {
+            IssuanceJournal.setDefault(null);
+        }
+    }
+}
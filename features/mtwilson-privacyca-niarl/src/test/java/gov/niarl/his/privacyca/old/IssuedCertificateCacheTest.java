@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.File;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IssuedCertificateCacheTest {
+    private static KeyPair ca;
+    private static X509Certificate caCert;
+    private static TpmPubKey aikA;
+    private static TpmPubKey aikB;
+
+    @BeforeClass
+    public static void createCa() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        ca = TestCertificates.caKeyPair();
+        aikA = new TpmPubKey((RSAPublicKey) keyGen.generateKeyPair().getPublic(), 3, 1);
+        aikB = new TpmPubKey((RSAPublicKey) keyGen.generateKeyPair().getPublic(), 3, 1);
+        caCert = TestCertificates.caCert();
+    }
+
+    private static X509Certificate issue(IssuedCertificateCache cache, TpmPubKey aik, String label) throws Exception {
+        return cache.getOrIssue(aik, label, (RSAPrivateKey) ca.getPrivate(), caCert, 30);
+    }
+
+    @Test
+    public void testReusesCertificateForSameAikAndLabel() throws Exception {
+        IssuedCertificateCache cache = new IssuedCertificateCache(10, 0.5);
+        X509Certificate first = issue(cache, aikA, "HIS_Identity_Key");
+        assertSame(first, issue(cache, aikA, "HIS_Identity_Key"));
+        assertNotSame(first, issue(cache, aikA, "Other_Label"));
+        assertNotSame(first, issue(cache, aikB, "HIS_Identity_Key"));
+        assertEquals(3, cache.getIssued());
+        assertEquals(1, cache.getReused());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testReusableOnlyWithEnoughValidityLeft() throws Exception {
+        IssuedCertificateCache cache = new IssuedCertificateCache(10, 0.25);
+        X509Certificate cert = issue(cache, aikA, "HIS_Identity_Key");
+        long notBefore = cert.getNotBefore().getTime();
+        long notAfter = cert.getNotAfter().getTime();
+        long period = notAfter - notBefore;
+        assertTrue(cache.isReusable(cert, notBefore));
+        assertTrue(cache.isReusable(cert, notAfter - period / 4));
+        assertFalse(cache.isReusable(cert, notAfter - period / 4 + 1));
+        assertFalse(cache.isReusable(cert, notBefore - 1));
+        assertFalse(cache.isReusable(cert, notAfter));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsInvalidFraction() {
+        new IssuedCertificateCache(10, 1.5);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        IssuedCertificateCache cache = new IssuedCertificateCache(10, 0.5);
+        X509Certificate first = issue(cache, aikA, "HIS_Identity_Key");
+        issue(cache, aikB, "HIS_Identity_Key");
+        File file = File.createTempFile("issued-certificates", ".txt");
+        try {
+            cache.save(file);
+            IssuedCertificateCache loaded = new IssuedCertificateCache(10, 0.5);
+            assertEquals(2, loaded.load(file));
+            assertEquals(first, issue(loaded, aikA, "HIS_Identity_Key"));
+            assertEquals(0, loaded.getIssued());
+            assertEquals(1, loaded.getReused());
+        } finally {
+            file.delete();
+        }
+    }
+}
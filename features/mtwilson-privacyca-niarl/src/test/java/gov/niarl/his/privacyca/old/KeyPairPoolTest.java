@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.interfaces.RSAPublicKey;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeyPairPoolTest {
+
+    private static void awaitDepth(KeyPairPool pool, int keySize, int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (pool.getDepth(keySize) < depth && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(depth, pool.getDepth(keySize));
+    }
+
+    @Test
+    public void testTakesPregeneratedKeyPairs() throws Exception {
+        KeyPairPool pool = new KeyPairPool(2, 2);
+        try {
+            pool.prefill(1024);
+            awaitDepth(pool, 1024, 2);
+            Set<BigInteger> moduli = new HashSet<>();
+            for (int i = 0; i < 2; i++) {
+                KeyPair keyPair = pool.take(1024);
+                assertEquals(1024, ((RSAPublicKey) keyPair.getPublic()).getModulus().bitLength());
+                assertTrue(moduli.add(((RSAPublicKey) keyPair.getPublic()).getModulus()));
+            }
+            assertEquals(2, pool.getPooled());
+            awaitDepth(pool, 1024, 2);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testGeneratesWhenDrained() throws Exception {
+        KeyPairPool pool = new KeyPairPool(1, 1);
+        pool.prefill(1024);
+        awaitDepth(pool, 1024, 1);
+        // without the background thread the pool is not refilled after the take below
+        pool.shutdown();
+        BigInteger pooledModulus = ((RSAPublicKey) pool.take(1024).getPublic()).getModulus();
+        assertEquals(1, pool.getPooled());
+        assertEquals(0, pool.getGenerated());
+        assertEquals(0, pool.getDepth(1024));
+        KeyPair keyPair = pool.take(1024);
+        assertEquals(1024, ((RSAPublicKey) keyPair.getPublic()).getModulus().bitLength());
+        assertNotEquals(pooledModulus, ((RSAPublicKey) keyPair.getPublic()).getModulus());
+        assertEquals(1, pool.getPooled());
+        assertEquals(1, pool.getGenerated());
+        assertEquals(0, pool.getDepth(1024));
+        assertTrue(pool.getWaitNanos() > 0);
+    }
+
+    @Test
+    public void testZeroDepthAlwaysGenerates() throws Exception {
+        KeyPairPool pool = new KeyPairPool(0, 1);
+        try {
+            pool.take(1024);
+            assertEquals(0, pool.getPooled());
+            assertEquals(1, pool.getGenerated());
+            assertEquals(0, pool.getDepth(1024));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testKeepsSizesApart() throws Exception {
+        KeyPairPool pool = new KeyPairPool(1, 1);
+        try {
+            pool.prefill(1024);
+            awaitDepth(pool, 1024, 1);
+            assertEquals(0, pool.getDepth(2048));
+            KeyPair keyPair = pool.take(2048);
+            assertEquals(2048, ((RSAPublicKey) keyPair.getPublic()).getModulus().bitLength());
+            assertEquals(1, pool.getGenerated());
+            assertEquals(1, pool.getDepth(1024));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNegativeDepth() {
+        new KeyPairPool(-1, 1);
+    }
+}
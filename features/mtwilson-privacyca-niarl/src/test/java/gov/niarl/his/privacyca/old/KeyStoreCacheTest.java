@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeyStoreCacheTest {
+    private File directory;
+    private File p12;
+
+    @Before
+    public void createKeyStore() throws Exception {
+        directory = Files.createTempDirectory("keystore-cache").toFile();
+        p12 = new File(directory, "ca.p12");
+        TpmUtils.createCaP12("EC", 256, "First CA", "password", p12.getPath(), 30);
+    }
+
+    @After
+    public void deleteDirectory() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Replace the key store by renaming a new one over it, as a key rotation should.
+     */
+    private void rotate(String caName) throws Exception {
+        File next = new File(directory, "next.p12");
+        TpmUtils.createCaP12("EC", 256, caName, "password", next.getPath(), 30);
+        Files.move(next.toPath(), p12.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Test
+    public void testCachesUntilFileChanges() throws Exception {
+        try (KeyStoreCache cache = new KeyStoreCache(false)) {
+            KeyStoreCache.Material first = cache.get(p12.getPath(), "password");
+            assertSame(first, cache.get(p12.getPath(), "password"));
+            assertEquals(1, cache.getLoads());
+            assertNotNull(first.getPrivateKey());
+            assertTrue(first.getCertificate().getSubjectX500Principal().getName().contains("First CA"));
+            rotate("Second CA");
+            KeyStoreCache.Material second = cache.get(p12.getPath(), "password");
+            assertTrue(second.getCertificate().getSubjectX500Principal().getName().contains("Second CA"));
+            assertEquals(2, cache.getLoads());
+        }
+    }
+
+    @Test
+    public void testWatcherReloadsInBackground() throws Exception {
+        try (KeyStoreCache cache = new KeyStoreCache(true)) {
+            Assume.assumeTrue(cache.isWatching());
+            cache.get(p12.getPath(), "password");
+            rotate("Second CA");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (cache.getReloads() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue(cache.getReloads() > 0);
+            long loads = cache.getLoads();
+            assertTrue(cache.get(p12.getPath(), "password").getCertificate().getSubjectX500Principal().getName().contains("Second CA"));
+            assertEquals(loads, cache.getLoads());
+        }
+    }
+
+    @Test
+    public void testConcurrentFirstLoadIsSingleFlight() throws Exception {
+        final int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (final KeyStoreCache cache = new KeyStoreCache(false)) {
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<KeyStoreCache.Material>> results = new ArrayList<>();
+            for (int index = 0; index < threads; index++) {
+                results.add(executor.submit(new Callable<KeyStoreCache.Material>() {
+                    @Override
+                    public KeyStoreCache.Material call() throws Exception {
+                        start.await();
+                        return cache.get(p12.getPath(), "password");
+                    }
+                }));
+            }
+            start.countDown();
+            KeyStoreCache.Material first = results.get(0).get();
+            for (Future<KeyStoreCache.Material> result : results) {
+                assertSame(first, result.get());
+            }
+            assertEquals(1, cache.getLoads());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWrongPasswordIsNotServedFromCache() throws Exception {
+        try (KeyStoreCache cache = new KeyStoreCache(false)) {
+            cache.get(p12.getPath(), "password");
+            try {
+                cache.get(p12.getPath(), "wrong");
+                fail("A wrong password should not load the key store");
+            } catch (IOException e) {
+                // the MAC does not verify
+            }
+            // a failed load is tried again
+            try {
+                cache.get(p12.getPath(), "wrong");
+                fail("A wrong password should not load the key store");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(3, cache.getLoads());
+            assertEquals(1, cache.size());
+        }
+    }
+
+    @Test
+    public void testMissingFileIsNotHeld() throws Exception {
+        try (KeyStoreCache cache = new KeyStoreCache(false)) {
+            try {
+                cache.get(new File(directory, "missing.p12").getPath(), "password");
+                fail("A missing file should not load");
+            } catch (NoSuchFileException e) {
+                // expected
+            }
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    public void testMultiPrimeKeysMatchTheirAliases() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        List<PrivateKey> keys = new ArrayList<>();
+        for (int index = 0; index < 2; index++) {
+            KeyPair keyPair = MultiPrimeRsa.generateKeyPair(2048, 3, new SecureRandom());
+            X509Certificate cert = TestCertificates.selfSigned(keyPair);
+            keyStore.setKeyEntry("key" + index, keyPair.getPrivate(), "password".toCharArray(), new Certificate[] {cert});
+            keys.add(keyPair.getPrivate());
+        }
+        File multiPrime = new File(directory, "multiprime.p12");
+        try (FileOutputStream out = new FileOutputStream(multiPrime)) {
+            keyStore.store(out, "password".toCharArray());
+        }
+        try (KeyStoreCache cache = new KeyStoreCache(false)) {
+            KeyStoreCache.Material material = cache.get(multiPrime.getPath(), "password");
+            for (int index = 0; index < 2; index++) {
+                PrivateKey key = material.getPrivateKey("key" + index);
+                assertTrue(MultiPrimeRsa.isMultiPrime(key));
+                assertArrayEquals(keys.get(index).getEncoded(), key.getEncoded());
+            }
+        }
+    }
+
+    @Test
+    public void testTpmUtilsReadsThroughDefaultCache() throws Exception {
+        assertEquals(TpmUtils.certFromP12(p12.getPath(), "password"), KeyStoreCache.getDefault().get(p12.getPath(), "password").getCertificate());
+        assertSame(TpmUtils.privateKeyFromP12(p12.getPath(), "password"), TpmUtils.privateKeyFromP12(p12.getPath(), "password"));
+    }
+}
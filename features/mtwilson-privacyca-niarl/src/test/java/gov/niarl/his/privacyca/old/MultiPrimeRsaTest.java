@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import gov.niarl.his.privacyca.old.Benchmarks.Task;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.security.InvalidParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAMultiPrimePrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAOtherPrimeInfo;
+import java.util.Arrays;
+import java.util.Date;
+import javax.crypto.Cipher;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The benchmark test compares the private operation of two-prime keys, done by the selected
+ * RSA_DECRYPT provider, with that of multi-prime keys, done by MultiPrimeRsa. It is skipped
+ * unless the build is run with -Dprivacyca.benchmark=true.
+ */
+public class MultiPrimeRsaTest {
+    private static final int WARMUP = 50;
+    private static final int ITERATIONS = 500;
+    private static KeyPair keyPair;
+    private static RSAMultiPrimePrivateCrtKey privateKey;
+
+    @BeforeClass
+    public static void createKey() throws Exception {
+        keyPair = MultiPrimeRsa.generateKeyPair(2048, 3, new SecureRandom());
+        privateKey = (RSAMultiPrimePrivateCrtKey) keyPair.getPrivate();
+    }
+
+    @Test
+    public void testGeneratesConsistentKey() {
+        RSAPublicKey publicKey = (RSAPublicKey) keyPair.getPublic();
+        assertEquals(2048, publicKey.getModulus().bitLength());
+        assertEquals(publicKey.getModulus(), privateKey.getModulus());
+        assertTrue(MultiPrimeRsa.isMultiPrime(privateKey));
+        RSAOtherPrimeInfo[] otherPrimes = privateKey.getOtherPrimeInfo();
+        assertEquals(1, otherPrimes.length);
+        BigInteger r = otherPrimes[0].getPrime();
+        assertEquals(privateKey.getModulus(), privateKey.getPrimeP().multiply(privateKey.getPrimeQ()).multiply(r));
+        for (BigInteger prime : new BigInteger[] {privateKey.getPrimeP(), privateKey.getPrimeQ(), r}) {
+            BigInteger pMinusOne = prime.subtract(BigInteger.ONE);
+            assertEquals(BigInteger.ONE, privateKey.getPrivateExponent().multiply(privateKey.getPublicExponent()).mod(pMinusOne));
+        }
+        assertFalse(MultiPrimeRsa.lostOtherPrimes(privateKey));
+    }
+
+    @Test
+    public void testModulusHasRequestedSize() throws Exception {
+        SecureRandom random = new SecureRandom();
+        for (int index = 0; index < 20; index++) {
+            assertEquals(2048, ((RSAPublicKey) MultiPrimeRsa.generateKeyPair(2048, 3, random).getPublic()).getModulus().bitLength());
+        }
+        for (int index = 0; index < 4; index++) {
+            assertEquals(4096, ((RSAPublicKey) MultiPrimeRsa.generateKeyPair(4096, 4, random).getPublic()).getModulus().bitLength());
+        }
+    }
+
+    @Test
+    public void testReadsKeyFromPkcs12() throws Exception {
+        X509Certificate cert = CertificateTemplate.forIssuer(TestCertificates.caCert()).issue(BigInteger.TEN, new Date(), new Date(System.currentTimeMillis() + 86400000L),
+                keyPair.getPublic(), "HIS_Identity_Key", TestCertificates.caKeyPair().getPrivate());
+        // the JDK keystore encrypts the key with PBES2, PBKDF2 with HMAC-SHA256 and AES-256
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("key", privateKey, "password".toCharArray(), new Certificate[] {cert});
+        ByteArrayOutputStream pfx = new ByteArrayOutputStream();
+        keyStore.store(pfx, "password".toCharArray());
+        RSAMultiPrimePrivateCrtKey read = MultiPrimeRsa.privateKeyFromPkcs12(pfx.toByteArray(), "password".toCharArray());
+        assertArrayEquals(privateKey.getEncoded(), read.getEncoded());
+    }
+
+    @Test
+    public void testPrivateOperationMatchesModPow() throws Exception {
+        BigInteger c = new BigInteger(2000, new SecureRandom());
+        byte[] result = MultiPrimeRsa.privateOperation(privateKey, c.toByteArray());
+        assertEquals(256, result.length);
+        assertEquals(c.modPow(privateKey.getPrivateExponent(), privateKey.getModulus()), new BigInteger(1, result));
+    }
+
+    @Test(expected = javax.crypto.BadPaddingException.class)
+    public void testRejectsInputAboveModulus() throws Exception {
+        MultiPrimeRsa.privateOperation(privateKey, privateKey.getModulus().add(BigInteger.ONE).toByteArray());
+    }
+
+    @Test
+    public void testSignaturesVerifyWithStandardProvider() throws Exception {
+        byte[] data = "TBSCertificate".getBytes();
+        for (String algorithm : new String[] {"SHA256withRSA", "SHA384withRSA"}) {
+            Signature signer = Signature.getInstance(algorithm, MultiPrimeRsa.getProvider());
+            signer.initSign(privateKey);
+            signer.update(data);
+            byte[] signature = signer.sign();
+            Signature verifier = Signature.getInstance(algorithm);
+            verifier.initVerify(keyPair.getPublic());
+            verifier.update(data);
+            assertTrue(algorithm, verifier.verify(signature));
+        }
+    }
+
+    @Test
+    public void testEncodingRoundTrip() throws Exception {
+        RSAMultiPrimePrivateCrtKey parsed = MultiPrimeRsa.privateKey(privateKey.getEncoded());
+        assertArrayEquals(privateKey.getEncoded(), parsed.getEncoded());
+        assertEquals(privateKey.getOtherPrimeInfo()[0].getCrtCoefficient(), parsed.getOtherPrimeInfo()[0].getCrtCoefficient());
+    }
+
+    @Test
+    public void testOaepDecryption() throws Exception {
+        byte[] secret = new byte[28];
+        new SecureRandom().nextBytes(secret);
+        byte[] ciphertext = TpmUtils.tcgAsymEncrypt(secret, (RSAPublicKey) keyPair.getPublic());
+        assertArrayEquals(secret, TcgOaep.decrypt(ciphertext, privateKey).getMessage());
+        assertArrayEquals(secret, TpmUtils.tcgAsymDecrypt(ciphertext, privateKey, "TCPA"));
+    }
+
+    @Test
+    public void testCaP12RoundTrip() throws Exception {
+        File p12 = File.createTempFile("multiprime-ca", ".p12");
+        try {
+            TpmUtils.createCaP12(MultiPrimeRsa.ALGORITHM, 2048, "Multi-prime Privacy CA", "password", p12.getPath(), 30);
+            PrivateKey caKey = TpmUtils.privateKeyFromP12(p12.getPath(), "password");
+            assertTrue(MultiPrimeRsa.isMultiPrime(caKey));
+            X509Certificate caCert = TpmUtils.certFromP12(p12.getPath(), "password");
+            caCert.verify(caCert.getPublicKey());
+            assertEquals(((RSAPublicKey) caCert.getPublicKey()).getModulus(), ((RSAMultiPrimePrivateCrtKey) caKey).getModulus());
+            TpmPubKey aik = new TpmPubKey((RSAPublicKey) keyPair.getPublic(), 3, 1);
+            X509Certificate cert = TpmUtils.makeCert(aik, "HIS_Identity_Key", caKey, caCert, 30, 0);
+            cert.verify(caCert.getPublicKey());
+        } finally {
+            p12.delete();
+        }
+    }
+
+    @Test(expected = InvalidParameterException.class)
+    public void testRejectsTooManyPrimes() throws Exception {
+        MultiPrimeRsa.generateKeyPair(2048, 4, new SecureRandom());
+    }
+
+    @Test
+    public void benchmarkPrivateOperation() throws Exception {
+        Benchmarks.assumeEnabled();
+        for (int keySize : new int[] {3072, 4096}) {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+            keyGen.initialize(keySize);
+            final KeyPair twoPrime = keyGen.generateKeyPair();
+            final byte[] input = Arrays.copyOf(new byte[] {0x12, 0x34}, keySize / 8 - 1);
+            measure("RSA-" + keySize + " 2 primes", new Task() {
+                @Override
+                public void run() throws Exception {
+                    Cipher cipher = CryptoPrimitives.cipher("RSA/ECB/NoPadding", CryptoProviders.get(CryptoProviders.Operation.RSA_DECRYPT));
+                    cipher.init(Cipher.DECRYPT_MODE, twoPrime.getPrivate());
+                    cipher.doFinal(input);
+                }
+            });
+            for (int primes = 3; primes <= MultiPrimeRsa.maxPrimes(keySize); primes++) {
+                final RSAMultiPrimePrivateCrtKey multiPrime = (RSAMultiPrimePrivateCrtKey) MultiPrimeRsa.generateKeyPair(keySize, primes, new SecureRandom()).getPrivate();
+                measure("RSA-" + keySize + " " + primes + " primes", new Task() {
+                    @Override
+                    public void run() throws Exception {
+                        MultiPrimeRsa.privateOperation(multiPrime, input);
+                    }
+                });
+            }
+        }
+    }
+
+    private static void measure(String name, Task task) throws Exception {
+        Benchmarks.report("private operation " + name, WARMUP, ITERATIONS, task);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SerialNumberAllocatorTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SerialNumberAllocatorTest.class);
+
+    @Test
+    public void testSerialsArePositiveAndShort() {
+        SerialNumberAllocator[] allocators = {
+            SerialNumberAllocator.forNode(0),
+            SerialNumberAllocator.forNode(SerialNumberAllocator.MAX_NODE_ID),
+            SerialNumberAllocator.withRandomPrefix(new SecureRandom())
+        };
+        for (SerialNumberAllocator allocator : allocators) {
+            BigInteger previous = BigInteger.ZERO;
+            for (int i = 0; i < 10000; i++) {
+                BigInteger serial = allocator.next();
+                assertTrue(serial.signum() > 0);
+                assertTrue(serial.toByteArray().length <= 20);
+                assertTrue(serial.compareTo(previous) > 0);
+                previous = serial;
+            }
+        }
+    }
+
+    @Test
+    public void testNodeIdIsInTheSerial() {
+        BigInteger serial = SerialNumberAllocator.forNode(0x1234).next();
+        assertEquals(0x1234, serial.shiftRight(64).intValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNodeIdOutOfRange() {
+        SerialNumberAllocator.forNode(SerialNumberAllocator.MAX_NODE_ID + 1);
+    }
+
+    @Test
+    public void testRestartedAllocatorStartsAbove() throws InterruptedException {
+        SerialNumberAllocator before = SerialNumberAllocator.forNode(7);
+        BigInteger last = null;
+        for (int i = 0; i < 1000; i++) {
+            last = before.next();
+        }
+        Thread.sleep(2);
+        SerialNumberAllocator after = SerialNumberAllocator.forNode(7);
+        assertTrue(after.next().compareTo(last) > 0);
+    }
+
+    /**
+     * Issues serials from several threads on each of several simulated nodes, some with node
+     * IDs and some with random prefixes, and checks that no serial was issued twice. The
+     * number of serials per thread can be raised with -Dprivacyca.serial.stress=N.
+     */
+    @Test
+    public void testNoCollisionsAcrossThreadsAndNodes() throws InterruptedException {
+        final int perThread = Integer.getInteger("privacyca.serial.stress", 100000);
+        final int threadsPerNode = 4;
+        SecureRandom random = new SecureRandom();
+        SerialNumberAllocator[] nodes = {
+            SerialNumberAllocator.forNode(0),
+            SerialNumberAllocator.forNode(1),
+            SerialNumberAllocator.forNode(2),
+            SerialNumberAllocator.forNode(SerialNumberAllocator.MAX_NODE_ID),
+            SerialNumberAllocator.withRandomPrefix(random),
+            SerialNumberAllocator.withRandomPrefix(random)
+        };
+        int total = nodes.length * threadsPerNode * perThread;
+        // serials are at most 128 bits, so each is kept as two longs instead of a BigInteger
+        final long[] high = new long[total];
+        final long[] low = new long[total];
+        List<Thread> threads = new ArrayList<>();
+        int offset = 0;
+        for (final SerialNumberAllocator node : nodes) {
+            for (int t = 0; t < threadsPerNode; t++) {
+                final int start = offset;
+                threads.add(new Thread(() -> {
+                    for (int i = start; i < start + perThread; i++) {
+                        BigInteger serial = node.next();
+                        high[i] = serial.shiftRight(64).longValue();
+                        low[i] = serial.longValue();
+                    }
+                }));
+                offset += perThread;
+            }
+        }
+        long started = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - started;
+        log.debug("Issued {} serials on {} threads in {} ms", total, threads.size(), elapsed / 1000000);
+        assertEquals(0, countDuplicates(high, low));
+    }
+
+    /**
+     * Inserts every (high, low) pair into an open addressing table and counts the pairs that
+     * were already there. A low half of zero is never issued, so it marks an empty slot.
+     */
+    private static int countDuplicates(long[] high, long[] low) {
+        int capacity = Integer.highestOneBit(high.length) << 2;
+        int mask = capacity - 1;
+        long[] tableHigh = new long[capacity];
+        long[] tableLow = new long[capacity];
+        int duplicates = 0;
+        for (int i = 0; i < high.length; i++) {
+            assertTrue(low[i] != 0);
+            long mixed = (high[i] * 0x9e3779b97f4a7c15L) ^ (low[i] * 0xc2b2ae3d27d4eb4fL);
+            int slot = (int) (mixed ^ (mixed >>> 32)) & mask;
+            while (tableLow[slot] != 0 && (tableLow[slot] != low[i] || tableHigh[slot] != high[i])) {
+                slot = (slot + 1) & mask;
+            }
+            if (tableLow[slot] != 0) {
+                duplicates++;
+            } else {
+                tableHigh[slot] = high[i];
+                tableLow[slot] = low[i];
+            }
+        }
+        return duplicates;
+    }
+}
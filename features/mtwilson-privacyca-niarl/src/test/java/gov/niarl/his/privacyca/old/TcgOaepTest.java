@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import javax.crypto.BadPaddingException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TcgOaepTest {
+    private static KeyPair keyPair;
+    private static final byte[] MESSAGE = "symmetric key material".getBytes();
+
+    @BeforeClass
+    public static void createKey() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        keyPair = keyGen.generateKeyPair();
+    }
+
+    @Test
+    public void testTcpaLabel() throws Exception {
+        byte[] ciphertext = TpmUtils.tcgAsymEncrypt(MESSAGE, (RSAPublicKey) keyPair.getPublic(), "TCPA");
+        TcgOaep.Result result = TcgOaep.decrypt(ciphertext, (RSAPrivateKey) keyPair.getPrivate());
+        assertArrayEquals(MESSAGE, result.getMessage());
+        assertFalse(result.isBlankLabel());
+    }
+
+    @Test
+    public void testBlankLabel() throws Exception {
+        byte[] ciphertext = TpmUtils.tcgAsymEncrypt(MESSAGE, (RSAPublicKey) keyPair.getPublic(), "");
+        TcgOaep.Result result = TcgOaep.decrypt(ciphertext, (RSAPrivateKey) keyPair.getPrivate());
+        assertArrayEquals(MESSAGE, result.getMessage());
+        assertTrue(result.isBlankLabel());
+    }
+
+    @Test
+    public void testEmptyMessage() throws Exception {
+        byte[] ciphertext = TpmUtils.tcgAsymEncrypt(new byte[0], (RSAPublicKey) keyPair.getPublic(), "TCPA");
+        assertEquals(0, TcgOaep.decrypt(ciphertext, (RSAPrivateKey) keyPair.getPrivate()).getMessage().length);
+    }
+
+    @Test(expected = BadPaddingException.class)
+    public void testOtherLabelRejected() throws Exception {
+        byte[] ciphertext = TpmUtils.tcgAsymEncrypt(MESSAGE, (RSAPublicKey) keyPair.getPublic(), "OTHER");
+        TcgOaep.decrypt(ciphertext, (RSAPrivateKey) keyPair.getPrivate());
+    }
+
+    @Test(expected = BadPaddingException.class)
+    public void testCorruptedCiphertextRejected() throws Exception {
+        byte[] ciphertext = TpmUtils.tcgAsymEncrypt(MESSAGE, (RSAPublicKey) keyPair.getPublic(), "TCPA");
+        ciphertext[ciphertext.length / 2] ^= 0x01;
+        TcgOaep.decrypt(ciphertext, (RSAPrivateKey) keyPair.getPrivate());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import javax.security.auth.x500.X500Principal;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.SubjectKeyIdentifier;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Certificates for the tests: the self-signed Privacy CA they issue certificates with, and
+ * manufacturer CA chains for EK certificates.
+ */
+final class TestCertificates {
+    static final long DAY = 86400000L;
+    static final String PRIVACY_CA_SUBJECT = "CN=Privacy CA,OU=Test,O=Intel";
+    private static KeyPair caKeyPair;
+    private static X509Certificate caCert;
+
+    private TestCertificates() {
+    }
+
+    /**
+     * @return The RSA 2048 key pair of the shared Privacy CA.
+     */
+    static synchronized KeyPair caKeyPair() throws Exception {
+        if (caKeyPair == null) {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+            keyGen.initialize(2048);
+            caKeyPair = keyGen.generateKeyPair();
+        }
+        return caKeyPair;
+    }
+
+    /**
+     * @return The certificate of the shared Privacy CA.
+     */
+    static synchronized X509Certificate caCert() throws Exception {
+        if (caCert == null) {
+            caCert = selfSigned(caKeyPair());
+        }
+        return caCert;
+    }
+
+    /**
+     * @return A self-signed Privacy CA certificate for the key pair, valid for a day.
+     */
+    static X509Certificate selfSigned(KeyPair keyPair) throws Exception {
+        long now = System.currentTimeMillis();
+        return certificate(1, PRIVACY_CA_SUBJECT, keyPair.getPublic(), null, keyPair.getPrivate(), now, now + DAY, true, null);
+    }
+
+    /**
+     * Build a certificate signed with CertificateTemplate.signatureAlgorithm of the issuer key.
+     * A CA certificate has basic constraints and a subject key identifier; one with an issuer
+     * has an authority key identifier.
+     *
+     * @param issuer The issuer certificate, or null for a self-signed one.
+     * @param keyIdentifier The subject key identifier, or null to derive it from the key.
+     */
+    static X509Certificate certificate(long serial, String subject, PublicKey subjectKey, X509Certificate issuer, PrivateKey signingKey,
+            long notBefore, long notAfter, boolean ca, byte[] keyIdentifier) throws Exception {
+        X500Principal subjectName = new X500Principal(subject);
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer == null ? subjectName : issuer.getSubjectX500Principal(),
+                BigInteger.valueOf(serial), new Date(notBefore), new Date(notAfter), subjectName, subjectKey);
+        JcaX509ExtensionUtils extensions = new JcaX509ExtensionUtils();
+        if (ca) {
+            builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+            builder.addExtension(Extension.subjectKeyIdentifier, false,
+                    keyIdentifier == null ? extensions.createSubjectKeyIdentifier(subjectKey) : new SubjectKeyIdentifier(keyIdentifier));
+        }
+        if (issuer != null) {
+            builder.addExtension(Extension.authorityKeyIdentifier, false, extensions.createAuthorityKeyIdentifier(issuer));
+        }
+        PublicKey issuerKey = issuer == null ? subjectKey : issuer.getPublicKey();
+        return new JcaX509CertificateConverter().getCertificate(
+                builder.build(new JcaContentSignerBuilder(CertificateTemplate.signatureAlgorithm(issuerKey)).build(signingKey)));
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TpmBlobReaderTest {
+
+    @Test
+    public void testRelativeReads() throws Exception {
+        byte[] blob = new byte[] {(byte) 0xee, 0x00, 0x00, 0x01, 0x02, 0x01, 0x02, 0x7f, 0x0a, 0x0b, 0x0c, (byte) 0xee};
+        TpmBlobReader reader = new TpmBlobReader(blob, 1, blob.length - 2);
+        assertEquals(0x00000102, reader.readUINT32());
+        assertEquals((short) 0x0102, reader.readUINT16());
+        assertEquals((byte) 0x7f, reader.readByte());
+        ByteBuffer slice = reader.readSlice(3);
+        assertEquals(0, reader.remaining());
+        assertEquals(3, slice.remaining());
+        assertEquals((byte) 0x0a, slice.get(0));
+        assertEquals((byte) 0x0c, slice.get(2));
+    }
+
+    @Test
+    public void testAbsoluteReadsAreUnsigned() throws Exception {
+        byte[] blob = new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xfe};
+        TpmBlobReader reader = new TpmBlobReader(ByteBuffer.wrap(blob));
+        assertEquals(0xfffffffeL, reader.getUINT32(0));
+        assertEquals(0xfffe, reader.getUINT16(2));
+        assertEquals(0, reader.position());
+    }
+
+    @Test(expected = TpmUtils.TpmUnsignedConversionException.class)
+    public void testReadUINT32RejectsNegative() throws Exception {
+        new TpmBlobReader(new byte[] {(byte) 0x80, 0x00, 0x00, 0x00}).readUINT32();
+    }
+
+    @Test(expected = TpmUtils.TpmBytestreamResouceException.class)
+    public void testReadBeyondEnd() throws Exception {
+        TpmBlobReader reader = new TpmBlobReader(new byte[] {0x00, 0x00, 0x00, 0x10, 0x01});
+        int size = reader.readUINT32();
+        reader.readBytes(size);
+    }
+}
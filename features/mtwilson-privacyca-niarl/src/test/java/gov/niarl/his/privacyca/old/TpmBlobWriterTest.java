@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TpmBlobWriterTest {
+
+    private static void writeSample(TpmBlobWriter writer) throws Exception {
+        writer.putUINT32(0x00000102);
+        writer.putUINT16((short) 0x0304);
+        writer.putByte((byte) 0x7f);
+        writer.putBytes(new byte[] {(byte) 0xee, 0x0a, 0x0b, (byte) 0xee}, 1, 2);
+    }
+
+    @Test
+    public void testBufferAndStreamEncodingsMatch() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(9);
+        TpmBlobWriter bufferWriter = new TpmBlobWriter(buffer);
+        writeSample(bufferWriter);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        TpmBlobWriter streamWriter = new TpmBlobWriter(stream);
+        writeSample(streamWriter);
+        byte[] expected = new byte[] {0x00, 0x00, 0x01, 0x02, 0x03, 0x04, 0x7f, 0x0a, 0x0b};
+        assertArrayEquals(expected, buffer.array());
+        assertArrayEquals(expected, stream.toByteArray());
+        assertEquals(9, bufferWriter.count());
+        assertEquals(9, streamWriter.count());
+        TpmBlobReader reader = new TpmBlobReader(expected);
+        assertEquals(0x00000102, reader.readUINT32());
+        assertEquals((short) 0x0304, reader.readUINT16());
+    }
+
+    @Test(expected = TpmUtils.TpmUnsignedConversionException.class)
+    public void testPutUINT32RejectsNegative() throws Exception {
+        new TpmBlobWriter(ByteBuffer.allocate(4)).putUINT32(-1);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * A parsed identity proof copies its fields out of the decrypted blob only when they are read;
+ * these tests compare it with a proof built from the fields.
+ */
+public class TpmIdentityProofTest {
+    private static TpmIdentityProof eager;
+    private static byte[] blob;
+
+    @BeforeClass
+    public static void createProof() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        TpmPubKey aik = new TpmPubKey((RSAPublicKey) keyGen.generateKeyPair().getPublic(), 3, 1);
+        eager = new TpmIdentityProof("HIS_Identity_Key".getBytes(), filled(256, 1), aik, filled(900, 2), filled(40, 3), new byte[0], true, false, true);
+        blob = eager.toByteArray();
+    }
+
+    private static byte[] filled(int size, int value) {
+        byte[] field = new byte[size];
+        Arrays.fill(field, (byte) value);
+        return field;
+    }
+
+    private static TpmIdentityProof parse() throws Exception {
+        return new TpmIdentityProof(blob, true, false, true);
+    }
+
+    private static void assertSameFields(TpmIdentityProof proof) throws Exception {
+        assertEquals(eager.getEkCredSize(), proof.getEkCredSize());
+        assertEquals(eager.getPlatformCredSize(), proof.getPlatformCredSize());
+        assertEquals(eager.getConformCredSize(), proof.getConformCredSize());
+        assertEquals(eager.getEncodedSize(), proof.getEncodedSize());
+        assertArrayEquals(eager.getVer(), proof.getVer());
+        assertArrayEquals(eager.getAik().toByteArray(), proof.getAik().toByteArray());
+        assertArrayEquals(eager.getIdLableBytes(), proof.getIdLableBytes());
+        assertArrayEquals(eager.getIdBindingBytes(), proof.getIdBindingBytes());
+        assertArrayEquals(eager.getEkCredBytes(), proof.getEkCredBytes());
+        assertArrayEquals(eager.getPlatformCredBytes(), proof.getPlatformCredBytes());
+        assertArrayEquals(eager.getConformCredBytes(), proof.getConformCredBytes());
+        assertEquals(eager.getEkCredSize(), proof.getEkCredSize());
+        assertEquals(eager.getEncodedSize(), proof.getEncodedSize());
+    }
+
+    @Test
+    public void testLazyGettersMatchFields() throws Exception {
+        TpmIdentityProof proof = parse();
+        assertSameFields(proof);
+        assertArrayEquals(blob, proof.toByteArray());
+    }
+
+    @Test
+    public void testGettersAfterWriteTo() throws Exception {
+        TpmIdentityProof proof = parse();
+        ByteBuffer buffer = ByteBuffer.allocate(proof.getEncodedSize());
+        proof.writeTo(buffer);
+        assertEquals(0, buffer.remaining());
+        assertArrayEquals(blob, buffer.array());
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        proof.writeTo(stream);
+        assertArrayEquals(blob, stream.toByteArray());
+        assertSameFields(proof);
+    }
+
+    @Test
+    public void testPartlyReadProofWritesSameBytes() throws Exception {
+        TpmIdentityProof proof = parse();
+        assertEquals(900, proof.getEkCredBytes().length);
+        assertArrayEquals(blob, proof.toByteArray());
+        assertSameFields(proof);
+    }
+
+    @Test
+    public void testProofInsideLargerBlob() throws Exception {
+        byte[] padded = new byte[blob.length + 16];
+        System.arraycopy(blob, 0, padded, 8, blob.length);
+        TpmBlobReader reader = new TpmBlobReader(padded, 8, blob.length);
+        TpmIdentityProof proof = new TpmIdentityProof(reader, true, false, true);
+        assertEquals(0, reader.remaining());
+        assertEquals(eager.getEkCredSize(), proof.ekCredBuffer().remaining());
+        assertArrayEquals(blob, proof.toByteArray());
+        assertSameFields(proof);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TpmIdentityRequestDecoderTest {
+    private static KeyPair caKeys;
+
+    @BeforeClass
+    public static void createCaKeys() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        caKeys = generator.generateKeyPair();
+    }
+
+    @Test
+    public void testStreamedDecodeMatchesArrayDecode() throws Exception {
+        TpmIdentityRequestDecoder decoder = new TpmIdentityRequestDecoder(64, TpmIdentityRequestDecoder.DEFAULT_MAX_SYM_SIZE);
+        for (boolean trousers : new boolean[] {true, false}) {
+            byte[] blob = TpmUtils.createIdentityRequest("HIS_Identity_Key", (RSAPublicKey) caKeys.getPublic(), trousers, trousers, trousers).toByteArray();
+            TpmIdentityProof expected = new TpmIdentityRequest(blob).decrypt((RSAPrivateKey) caKeys.getPrivate());
+            TpmIdentityProof streamed = decoder.decode(Channels.newChannel(new ByteArrayInputStream(blob)), (RSAPrivateKey) caKeys.getPrivate());
+            assertArrayEquals(expected.toByteArray(), streamed.toByteArray());
+            assertEquals(trousers, decoder.getRequest().getIVmode());
+        }
+    }
+
+    @Test(expected = TpmUtils.TpmBytestreamResouceException.class)
+    public void testTruncatedChannel() throws Exception {
+        byte[] blob = TpmUtils.createIdentityRequest("HIS_Identity_Key", (RSAPublicKey) caKeys.getPublic(), true, true, true).toByteArray();
+        byte[] truncated = Arrays.copyOf(blob, blob.length - 1);
+        new TpmIdentityRequestDecoder().decode(Channels.newChannel(new ByteArrayInputStream(truncated)), (RSAPrivateKey) caKeys.getPrivate());
+    }
+}
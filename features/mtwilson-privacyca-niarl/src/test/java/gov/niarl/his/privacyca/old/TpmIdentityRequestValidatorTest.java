@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import gov.niarl.his.privacyca.old.TpmIdentityRequestValidator.Result;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TpmIdentityRequestValidatorTest {
+    private static final int MODULUS_BYTES = 256;
+
+    /**
+     * A TPM_IDENTITY_REQ with an RSA asym algorithm (no parms), AES128 with a 16 byte IV
+     * in the sym parms, and blobs of the given sizes.
+     */
+    private static byte[] request(int symAlgorithm, int asymSize, int symSize) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + 12 + 12 + 12 + 16 + asymSize + symSize);
+        buf.putInt(asymSize).putInt(symSize);
+        buf.putInt(1).putShort((short) 3).putShort((short) 1).putInt(0);
+        buf.putInt(symAlgorithm).putShort((short) 0xff).putShort((short) 1).putInt(12 + 16);
+        buf.putInt(128).putInt(128).putInt(16).put(new byte[16]);
+        return buf.array();
+    }
+
+    @Test
+    public void testValidRequest() {
+        byte[] blob = request(6, MODULUS_BYTES, 64);
+        assertEquals(Result.VALID, TpmIdentityRequestValidator.validate(blob, 0, blob.length, MODULUS_BYTES));
+    }
+
+    @Test
+    public void testRejectsMalformedRequests() {
+        byte[] valid = request(6, MODULUS_BYTES, 64);
+        assertEquals(Result.TRUNCATED, TpmIdentityRequestValidator.validate(valid, 0, valid.length - 1, MODULUS_BYTES));
+        assertEquals(Result.TRUNCATED, TpmIdentityRequestValidator.validate(valid, 0, 10, MODULUS_BYTES));
+        assertEquals(Result.TRAILING_DATA, TpmIdentityRequestValidator.validate(Arrays.copyOf(valid, valid.length + 1), 0, valid.length + 1, MODULUS_BYTES));
+        assertEquals(Result.ASYM_SIZE_MISMATCH, TpmIdentityRequestValidator.validate(valid, 0, valid.length, 128));
+        // TPM_ALG_HMAC is not a symmetric cipher
+        byte[] hmac = request(0x5, MODULUS_BYTES, 64);
+        assertEquals(Result.UNSUPPORTED_SYM_ALGORITHM, TpmIdentityRequestValidator.validate(hmac, 0, hmac.length, MODULUS_BYTES));
+        byte[] partialBlock = request(6, MODULUS_BYTES, 60);
+        assertEquals(Result.SYM_SIZE_MISMATCH, TpmIdentityRequestValidator.validate(partialBlock, 0, partialBlock.length, MODULUS_BYTES));
+        byte[] huge = valid.clone();
+        huge[0] = (byte) 0x80;
+        assertEquals(Result.SIZE_OUT_OF_RANGE, TpmIdentityRequestValidator.validate(huge, 0, huge.length, MODULUS_BYTES));
+        byte[] badParms = valid.clone();
+        badParms[8 + 12 + 12 + 11] = 15; // ivSize no longer matches parmSize
+        assertEquals(Result.BAD_KEY_PARMS, TpmIdentityRequestValidator.validate(badParms, 0, badParms.length, MODULUS_BYTES));
+        byte[] notRsa = valid.clone();
+        notRsa[8 + 3] = 2;
+        assertEquals(Result.UNSUPPORTED_ASYM_ALGORITHM, TpmIdentityRequestValidator.validate(notRsa, 0, notRsa.length, MODULUS_BYTES));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package gov.niarl.his.privacyca.old;
+
+import java.io.File;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TrousersProfileCacheTest {
+    private static final byte[] EK_A = "ek certificate a".getBytes();
+    private static final byte[] EK_B = "ek certificate b".getBytes();
+
+    @Test
+    public void testRecordAndLookup() {
+        TrousersProfileCache cache = new TrousersProfileCache(10);
+        TrousersProfile trousers = TrousersProfile.of(true, true, true);
+        assertNull(cache.record(EK_A, trousers));
+        assertSame(trousers, cache.record(EK_A, trousers));
+        assertEquals(0.5, cache.getHitRate(), 0.0001);
+        assertEquals(0, cache.getChanges());
+        assertSame(trousers, cache.record(EK_A, TrousersProfile.of(false, false, false)));
+        assertEquals(1, cache.getChanges());
+        assertSame(TrousersProfile.of(false, false, false), cache.lookup(EK_A));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        TrousersProfileCache cache = new TrousersProfileCache(10);
+        cache.record(EK_A, TrousersProfile.of(true, false, true));
+        cache.record(EK_B, TrousersProfile.of(false, true, false));
+        File file = File.createTempFile("trousers-profiles", ".txt");
+        try {
+            cache.save(file);
+            TrousersProfileCache loaded = new TrousersProfileCache(10);
+            assertEquals(2, loaded.load(file));
+            assertSame(TrousersProfile.of(true, false, true), loaded.lookup(EK_A));
+            assertSame(TrousersProfile.of(false, true, false), loaded.lookup(EK_B));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testFromFileLoadsSavedProfiles() throws Exception {
+        TrousersProfileCache cache = new TrousersProfileCache(10);
+        cache.record(EK_A, TrousersProfile.of(true, true, false));
+        File file = File.createTempFile("trousers-profiles", ".txt");
+        try {
+            cache.save(file);
+            TrousersProfileCache loaded = TrousersProfileCache.fromFile(file);
+            assertEquals(1, loaded.size());
+            assertSame(TrousersProfile.of(true, true, false), loaded.lookup(EK_A));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testProfileFlags() {
+        for (int flags = 0; flags < 8; flags++) {
+            TrousersProfile profile = TrousersProfile.fromFlags(flags);
+            assertSame(profile, TrousersProfile.of(profile.getIVmode(), profile.getSymkeyEncscheme(), profile.getOeapMode()));
+        }
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.codec;
+
+/**
+ * Thrown by a generated codec when a buffer does not hold a well-formed structure.
+ */
+public class TpmCodecException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public TpmCodecException(String message) {
+        super(message);
+    }
+
+    public static TpmCodecException truncated(String structure, String field) {
+        return new TpmCodecException(structure + " is truncated at " + field);
+    }
+
+    public static TpmCodecException sizeOutOfRange(String structure, String field, long size) {
+        return new TpmCodecException(structure + "." + field + " size " + size + " is out of range");
+    }
+}
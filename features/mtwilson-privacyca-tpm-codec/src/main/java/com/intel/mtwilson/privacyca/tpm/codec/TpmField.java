@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.codec;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * A field of a {@link TpmStructure} schema. The Java type of the annotated field must
+ * agree with the wire type: {@code byte} for BYTE, {@code short} for UINT16, {@code int}
+ * for UINT32 and {@code byte[]} for all others.
+ * 
+ * @see TpmType
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface TpmField {
+    /**
+     * @return position of the field in the structure; fields are encoded in ascending order
+     */
+    int order();
+    
+    TpmType type();
+    
+    /**
+     * @return number of bytes of a BYTES field
+     */
+    int length() default 0;
+    
+    /**
+     * @return name of the earlier UINT16 or UINT32 field holding the size of a SIZED_BYTES field
+     */
+    String size() default "";
+}
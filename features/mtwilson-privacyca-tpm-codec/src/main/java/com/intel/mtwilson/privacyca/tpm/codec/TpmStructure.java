@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.codec;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a schema class describing the wire format of a TPM structure. The fields of the
+ * class annotated with {@link TpmField} are the fields of the structure, in the order
+ * given by {@link TpmField#order()}. The schema class itself is never instantiated.
+ * 
+ * At compile time TpmCodecProcessor generates a codec class next to the schema with a
+ * flyweight reader ({@code wrap}) and static {@code encodedSize} and {@code encode}
+ * methods.
+ * 
+ * @see TpmField
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface TpmStructure {
+    /**
+     * @return TCG name of the structure, used in error messages
+     */
+    String value();
+    
+    /**
+     * @return simple name of the generated codec class; by default the schema class name
+     * with a trailing "Schema" replaced by "Codec"
+     */
+    String codec() default "";
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.codec;
+
+/**
+ * Wire types supported by generated codecs. All integers are big-endian.
+ */
+public enum TpmType {
+    /** A single byte. */
+    BYTE,
+    /** Two byte integer. */
+    UINT16,
+    /** Four byte integer. When used as the size of another field it must not exceed Integer.MAX_VALUE. */
+    UINT32,
+    /** Fixed number of bytes, given by {@link TpmField#length()}. */
+    BYTES,
+    /** Bytes whose count is held in an earlier UINT16 or UINT32 field named by {@link TpmField#size()}. */
+    SIZED_BYTES,
+    /** UINT16 count followed by that many bytes, as in a TPM2B or TPM_SYMMETRIC_KEY. */
+    U16_SIZED_BYTES,
+    /** UINT32 count followed by that many bytes, as in TPM_STORE_PUBKEY. */
+    U32_SIZED_BYTES,
+    /** An entire TPM_KEY_PARMS (12 byte header with parmSize at offset 8, then parmSize bytes), kept as one region. */
+    KEY_PARMS
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.codec.processor;
+
+import com.intel.mtwilson.privacyca.tpm.codec.TpmType;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the source of a codec class for one schema. The generated code has no loops and no
+ * helper calls on the hot path: each field becomes a bounds check followed by inline
+ * big-endian shifts, so the JIT sees a single straight-line method per structure.
+ *
+ * The generated class has:
+ * <ul>
+ * <li>{@code wrap(byte[], int, int)}, which decodes the structure in place, keeping scalar
+ * values and the offset/length of each byte field; nothing is allocated and the wrapper can
+ * be reused,</li>
+ * <li>getters for scalars, {@code getXOffset()/getXLength()} for byte fields and
+ * {@code copyX()} for callers that need a detached copy,</li>
+ * <li>static {@code encodedSize(...)} and {@code encode(ByteBuffer, ...)}, which write the
+ * structure straight into the caller's buffer. Size fields named by a SIZED_BYTES field are
+ * computed from the array and are not parameters.</li>
+ * </ul>
+ */
+class CodecGenerator {
+    /** Names used by the generated code itself. */
+    static final Set<String> RESERVED = new HashSet<>(Arrays.asList("buffer", "offset", "length", "target", "start", "pos", "end", "STRUCTURE"));
+
+    static class Field {
+        final String name;
+        final TpmType type;
+        final int fixedLength;
+        /** For a UINT16/UINT32 field: the SIZED_BYTES field whose size it holds. */
+        Field sizeOf;
+        /** For a SIZED_BYTES field: the field holding its size. */
+        Field sizeField;
+
+        Field(String name, TpmType type, int fixedLength) {
+            this.name = name;
+            this.type = type;
+            this.fixedLength = fixedLength;
+        }
+
+        boolean isScalar() {
+            return type == TpmType.BYTE || type == TpmType.UINT16 || type == TpmType.UINT32;
+        }
+
+        /** Fields that are encode() parameters; size fields are derived. */
+        boolean isParameter() {
+            return sizeOf == null;
+        }
+
+        String capitalized() {
+            return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        }
+    }
+
+    private final String packageName;
+    private final String className;
+    private final String structureName;
+    private final String schemaName;
+    private final List<Field> fields;
+    private final StringBuilder out = new StringBuilder();
+
+    CodecGenerator(String packageName, String className, String structureName, String schemaName, List<Field> fields) {
+        this.packageName = packageName;
+        this.className = className;
+        this.structureName = structureName;
+        this.schemaName = schemaName;
+        this.fields = fields;
+    }
+
+    static String javaType(TpmType type) {
+        switch (type) {
+            case BYTE:
+                return "byte";
+            case UINT16:
+                return "short";
+            case UINT32:
+                return "int";
+            default:
+                return "byte[]";
+        }
+    }
+
+    String generate() {
+        if (!packageName.isEmpty()) {
+            line(0, "package " + packageName + ";");
+            line(0, "");
+        }
+        line(0, "import com.intel.mtwilson.privacyca.tpm.codec.TpmCodecException;");
+        line(0, "import java.nio.ByteBuffer;");
+        line(0, "import java.nio.ByteOrder;");
+        line(0, "");
+        line(0, "/**");
+        line(0, " * Codec for " + structureName + ", generated by TpmCodecProcessor from {@link " + schemaName + "}. Do not edit.");
+        line(0, " */");
+        line(0, "public final class " + className + " {");
+        line(1, "private static final String STRUCTURE = \"" + structureName + "\";");
+        line(1, "private byte[] buffer;");
+        line(1, "private int offset;");
+        line(1, "private int length;");
+        for (Field field : fields) {
+            if (field.isScalar()) {
+                line(1, "private " + javaType(field.type) + " " + field.name + ";");
+            } else {
+                line(1, "private int " + field.name + "Offset;");
+                line(1, "private int " + field.name + "Length;");
+            }
+        }
+        line(0, "");
+        generateWrap();
+        generateAccessors();
+        generateEncodedSize();
+        generateEncode();
+        line(0, "}");
+        return out.toString();
+    }
+
+    private void generateWrap() {
+        line(1, "public " + className + " wrap(byte[] buffer) throws TpmCodecException {");
+        line(2, "return wrap(buffer, 0, buffer.length);");
+        line(1, "}");
+        line(0, "");
+        line(1, "/**");
+        line(1, " * Decode the structure at the start of a region of <b>buffer</b>, without copying. The");
+        line(1, " * region may extend past the end of the structure; see length(). If an exception is thrown");
+        line(1, " * the state of this codec is undefined until the next successful wrap.");
+        line(1, " */");
+        line(1, "public " + className + " wrap(byte[] buffer, int offset, int length) throws TpmCodecException {");
+        line(2, "if (offset < 0 || length < 0 || offset > buffer.length - length) {");
+        line(3, "throw new IndexOutOfBoundsException(\"Invalid region \" + offset + \"+\" + length + \" of \" + buffer.length + \" byte buffer\");");
+        line(2, "}");
+        line(2, "final int end = offset + length;");
+        line(2, "int pos = offset;");
+        for (Field field : fields) {
+            String n = field.name;
+            switch (field.type) {
+                case BYTE:
+                    require(n, "1");
+                    line(2, "this." + n + " = buffer[pos];");
+                    line(2, "pos += 1;");
+                    break;
+                case UINT16:
+                    require(n, "2");
+                    line(2, "this." + n + " = (short) " + uint16("pos") + ";");
+                    line(2, "pos += 2;");
+                    break;
+                case UINT32:
+                    require(n, "4");
+                    line(2, "this." + n + " = " + uint32("pos") + ";");
+                    if (field.sizeOf != null) {
+                        line(2, "if (this." + n + " < 0) {");
+                        line(3, "throw TpmCodecException.sizeOutOfRange(STRUCTURE, \"" + n + "\", this." + n + " & 0xffffffffL);");
+                        line(2, "}");
+                    }
+                    line(2, "pos += 4;");
+                    break;
+                case BYTES:
+                    region(n, String.valueOf(field.fixedLength));
+                    break;
+                case SIZED_BYTES:
+                    region(n, field.sizeField.type == TpmType.UINT16 ? "(this." + field.sizeField.name + " & 0xffff)" : "this." + field.sizeField.name);
+                    break;
+                case U16_SIZED_BYTES:
+                    require(n, "2");
+                    line(2, "this." + n + "Length = " + uint16("pos") + ";");
+                    line(2, "pos += 2;");
+                    region(n, "this." + n + "Length");
+                    break;
+                case U32_SIZED_BYTES:
+                    require(n, "4");
+                    line(2, "this." + n + "Length = " + uint32("pos") + ";");
+                    line(2, "if (this." + n + "Length < 0) {");
+                    line(3, "throw TpmCodecException.sizeOutOfRange(STRUCTURE, \"" + n + "\", this." + n + "Length & 0xffffffffL);");
+                    line(2, "}");
+                    line(2, "pos += 4;");
+                    region(n, "this." + n + "Length");
+                    break;
+                case KEY_PARMS:
+                    require(n, "12");
+                    line(2, "this." + n + "Length = " + uint32("pos + 8") + ";");
+                    line(2, "if (this." + n + "Length < 0 || this." + n + "Length > Integer.MAX_VALUE - 12) {");
+                    line(3, "throw TpmCodecException.sizeOutOfRange(STRUCTURE, \"" + n + "\", this." + n + "Length & 0xffffffffL);");
+                    line(2, "}");
+                    line(2, "this." + n + "Length += 12;");
+                    region(n, "this." + n + "Length");
+                    break;
+                default:
+                    throw new IllegalStateException(field.type.name());
+            }
+        }
+        line(2, "this.buffer = buffer;");
+        line(2, "this.offset = offset;");
+        line(2, "this.length = pos - offset;");
+        line(2, "return this;");
+        line(1, "}");
+        line(0, "");
+    }
+
+    private void require(String field, String count) {
+        line(2, "if (end - pos < " + count + ") {");
+        line(3, "throw TpmCodecException.truncated(STRUCTURE, \"" + field + "\");");
+        line(2, "}");
+    }
+
+    private void region(String field, String size) {
+        require(field, size);
+        line(2, "this." + field + "Offset = pos;");
+        if (!size.equals("this." + field + "Length")) {
+            line(2, "this." + field + "Length = " + size + ";");
+        }
+        line(2, "pos += " + size + ";");
+    }
+
+    private static String uint16(String index) {
+        return "(((buffer[" + index + "] & 0xff) << 8) | (buffer[" + index + " + 1] & 0xff))";
+    }
+
+    private static String uint32(String index) {
+        return "(((buffer[" + index + "] & 0xff) << 24) | ((buffer[" + index + " + 1] & 0xff) << 16) | ((buffer[" + index + " + 2] & 0xff) << 8) | (buffer[" + index + " + 3] & 0xff))";
+    }
+
+    private void generateAccessors() {
+        line(1, "/** @return the array passed to the last wrap() */");
+        line(1, "public byte[] buffer() {");
+        line(2, "return buffer;");
+        line(1, "}");
+        line(0, "");
+        line(1, "/** @return the index of the structure in buffer() */");
+        line(1, "public int offset() {");
+        line(2, "return offset;");
+        line(1, "}");
+        line(0, "");
+        line(1, "/** @return the encoded length of the structure */");
+        line(1, "public int length() {");
+        line(2, "return length;");
+        line(1, "}");
+        line(0, "");
+        for (Field field : fields) {
+            String n = field.name;
+            String c = field.capitalized();
+            if (field.isScalar()) {
+                line(1, "public " + javaType(field.type) + " get" + c + "() {");
+                line(2, "return " + n + ";");
+                line(1, "}");
+                line(0, "");
+            } else {
+                line(1, "/** @return the index of " + n + " in buffer() */");
+                line(1, "public int get" + c + "Offset() {");
+                line(2, "return " + n + "Offset;");
+                line(1, "}");
+                line(0, "");
+                line(1, "public int get" + c + "Length() {");
+                line(2, "return " + n + "Length;");
+                line(1, "}");
+                line(0, "");
+                line(1, "/** @return a new array holding " + n + " */");
+                line(1, "public byte[] copy" + c + "() {");
+                line(2, "byte[] copy = new byte[" + n + "Length];");
+                line(2, "System.arraycopy(buffer, " + n + "Offset, copy, 0, " + n + "Length);");
+                line(2, "return copy;");
+                line(1, "}");
+                line(0, "");
+            }
+        }
+    }
+
+    private void generateEncodedSize() {
+        int constant = 0;
+        StringBuilder params = new StringBuilder();
+        StringBuilder sum = new StringBuilder();
+        for (Field field : fields) {
+            switch (field.type) {
+                case BYTE:
+                    constant += 1;
+                    break;
+                case UINT16:
+                    constant += 2;
+                    break;
+                case UINT32:
+                    constant += 4;
+                    break;
+                case BYTES:
+                    constant += field.fixedLength;
+                    break;
+                case U16_SIZED_BYTES:
+                    constant += 2;
+                    break;
+                case U32_SIZED_BYTES:
+                    constant += 4;
+                    break;
+                default:
+                    break;
+            }
+            if (!field.isScalar() && field.type != TpmType.BYTES) {
+                append(params, "byte[] " + field.name);
+                sum.append(" + ").append(field.name).append(".length");
+            }
+        }
+        line(1, "/** @return the number of bytes encode() writes for these variable-length fields */");
+        line(1, "public static int encodedSize(" + params + ") {");
+        line(2, "return " + constant + sum + ";");
+        line(1, "}");
+        line(0, "");
+    }
+
+    private void generateEncode() {
+        StringBuilder params = new StringBuilder("ByteBuffer target");
+        for (Field field : fields) {
+            if (field.isParameter()) {
+                append(params, javaType(field.type) + " " + field.name);
+            }
+        }
+        line(1, "/**");
+        line(1, " * Encode the structure at the position of <b>target</b>, which must be big-endian and have");
+        line(1, " * at least encodedSize() bytes remaining.");
+        line(1, " *");
+        line(1, " * @return the number of bytes written");
+        line(1, " */");
+        line(1, "public static int encode(" + params + ") {");
+        line(2, "if (target.order() != ByteOrder.BIG_ENDIAN) {");
+        line(3, "throw new IllegalArgumentException(\"TPM structures are big-endian\");");
+        line(2, "}");
+        for (Field field : fields) {
+            String n = field.name;
+            if (field.type == TpmType.BYTES) {
+                check(n + ".length != " + field.fixedLength, n + " must be " + field.fixedLength + " bytes");
+            } else if (field.type == TpmType.U16_SIZED_BYTES || (field.type == TpmType.SIZED_BYTES && field.sizeField.type == TpmType.UINT16)) {
+                check(n + ".length > 0xffff", n + " is too large for a UINT16 size");
+            } else if (field.type == TpmType.KEY_PARMS) {
+                check(n + ".length < 12", n + " is not a TPM_KEY_PARMS");
+            }
+        }
+        line(2, "final int start = target.position();");
+        for (Field field : fields) {
+            String n = field.name;
+            switch (field.type) {
+                case BYTE:
+                    line(2, "target.put(" + n + ");");
+                    break;
+                case UINT16:
+                    line(2, field.sizeOf != null ? "target.putShort((short) " + field.sizeOf.name + ".length);" : "target.putShort(" + n + ");");
+                    break;
+                case UINT32:
+                    line(2, field.sizeOf != null ? "target.putInt(" + field.sizeOf.name + ".length);" : "target.putInt(" + n + ");");
+                    break;
+                case U16_SIZED_BYTES:
+                    line(2, "target.putShort((short) " + n + ".length);");
+                    line(2, "target.put(" + n + ");");
+                    break;
+                case U32_SIZED_BYTES:
+                    line(2, "target.putInt(" + n + ".length);");
+                    line(2, "target.put(" + n + ");");
+                    break;
+                default:
+                    line(2, "target.put(" + n + ");");
+                    break;
+            }
+        }
+        line(2, "return target.position() - start;");
+        line(1, "}");
+    }
+
+    private void check(String condition, String message) {
+        line(2, "if (" + condition + ") {");
+        line(3, "throw new IllegalArgumentException(STRUCTURE + \"." + message + "\");");
+        line(2, "}");
+    }
+
+    private static void append(StringBuilder list, String item) {
+        if (list.length() > 0) {
+            list.append(", ");
+        }
+        list.append(item);
+    }
+
+    private void line(int indent, String text) {
+        for (int i = 0; i < indent; i++) {
+            out.append("    ");
+        }
+        out.append(text).append('\n');
+    }
+}
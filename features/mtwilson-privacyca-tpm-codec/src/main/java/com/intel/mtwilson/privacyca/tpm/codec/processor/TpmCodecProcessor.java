@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.codec.processor;
+
+import com.intel.mtwilson.privacyca.tpm.codec.TpmField;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmStructure;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmType;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a codec class for each class annotated with {@link TpmStructure}. The schema is
+ * checked first; any problem is reported as a compile error on the offending field and no
+ * codec is generated for that schema.
+ *
+ * @see CodecGenerator
+ */
+@SupportedAnnotationTypes({"com.intel.mtwilson.privacyca.tpm.codec.TpmStructure", "com.intel.mtwilson.privacyca.tpm.codec.TpmField"})
+public class TpmCodecProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(TpmStructure.class)) {
+            if (element.getKind() != ElementKind.CLASS) {
+                error(element, "@TpmStructure is only allowed on classes");
+                continue;
+            }
+            TypeElement schema = (TypeElement) element;
+            List<CodecGenerator.Field> fields = readFields(schema);
+            if (fields == null) {
+                continue;
+            }
+            TpmStructure structure = schema.getAnnotation(TpmStructure.class);
+            String packageName = processingEnv.getElementUtils().getPackageOf(schema).getQualifiedName().toString();
+            String codecName = structure.codec().isEmpty() ? defaultCodecName(schema.getSimpleName().toString()) : structure.codec();
+            String qualifiedName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+            CodecGenerator generator = new CodecGenerator(packageName, codecName, structure.value(), schema.getQualifiedName().toString(), fields);
+            try {
+                JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, schema);
+                try (Writer out = file.openWriter()) {
+                    out.write(generator.generate());
+                }
+            } catch (IOException e) {
+                error(schema, "Cannot write " + qualifiedName + ": " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    static String defaultCodecName(String schemaName) {
+        if (schemaName.endsWith("Schema")) {
+            return schemaName.substring(0, schemaName.length() - "Schema".length()) + "Codec";
+        }
+        return schemaName + "Codec";
+    }
+
+    /**
+     * @return the annotated fields in wire order, or null if the schema has errors (already reported)
+     */
+    private List<CodecGenerator.Field> readFields(TypeElement schema) {
+        List<VariableElement> elements = new ArrayList<>();
+        for (Element member : schema.getEnclosedElements()) {
+            if (member.getKind() == ElementKind.FIELD && member.getAnnotation(TpmField.class) != null) {
+                elements.add((VariableElement) member);
+            }
+        }
+        Collections.sort(elements, new Comparator<VariableElement>() {
+            @Override
+            public int compare(VariableElement a, VariableElement b) {
+                return Integer.compare(a.getAnnotation(TpmField.class).order(), b.getAnnotation(TpmField.class).order());
+            }
+        });
+        if (elements.isEmpty()) {
+            error(schema, "@TpmStructure has no @TpmField fields");
+            return null;
+        }
+        boolean valid = true;
+        List<CodecGenerator.Field> fields = new ArrayList<>();
+        Map<String, CodecGenerator.Field> byName = new HashMap<>();
+        Integer previousOrder = null;
+        for (VariableElement element : elements) {
+            TpmField annotation = element.getAnnotation(TpmField.class);
+            String name = element.getSimpleName().toString();
+            if (previousOrder != null && previousOrder == annotation.order()) {
+                error(element, "Duplicate @TpmField order " + annotation.order());
+                valid = false;
+            }
+            previousOrder = annotation.order();
+            if (CodecGenerator.RESERVED.contains(name)) {
+                error(element, "Field name '" + name + "' is reserved by the generated codec");
+                valid = false;
+            }
+            String javaType = element.asType().toString();
+            String expectedType = CodecGenerator.javaType(annotation.type());
+            if (!expectedType.equals(javaType)) {
+                error(element, annotation.type() + " field must be declared as " + expectedType);
+                valid = false;
+            }
+            CodecGenerator.Field field = new CodecGenerator.Field(name, annotation.type(), annotation.length());
+            if (annotation.type() == TpmType.BYTES && annotation.length() <= 0) {
+                error(element, "BYTES field needs a positive length");
+                valid = false;
+            }
+            if (annotation.type() == TpmType.SIZED_BYTES) {
+                CodecGenerator.Field sizeField = byName.get(annotation.size());
+                if (sizeField == null) {
+                    error(element, "SIZED_BYTES size must name an earlier field: '" + annotation.size() + "'");
+                    valid = false;
+                } else if (sizeField.type != TpmType.UINT16 && sizeField.type != TpmType.UINT32) {
+                    error(element, "Size field " + sizeField.name + " must be UINT16 or UINT32");
+                    valid = false;
+                } else if (sizeField.sizeOf != null) {
+                    error(element, "Size field " + sizeField.name + " already holds the size of " + sizeField.sizeOf.name);
+                    valid = false;
+                } else {
+                    sizeField.sizeOf = field;
+                    field.sizeField = sizeField;
+                }
+            } else if (!annotation.size().isEmpty()) {
+                error(element, "size is only allowed on SIZED_BYTES fields");
+                valid = false;
+            }
+            fields.add(field);
+            byName.put(name, field);
+        }
+        return valid ? fields : null;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
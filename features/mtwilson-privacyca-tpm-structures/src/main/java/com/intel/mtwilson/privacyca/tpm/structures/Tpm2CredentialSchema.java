@@ -0,0 +1,21 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.structures;
+
+import com.intel.mtwilson.privacyca.tpm.codec.TpmField;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmStructure;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmType;
+
+/**
+ * Output of TPM2_MakeCredential (TPM 2.0 Part 3, 12.6): a TPM2B_ID_OBJECT followed by a
+ * TPM2B_ENCRYPTED_SECRET, as carried by gov.niarl.his.privacyca.old.Tpm2Credential.
+ */
+@TpmStructure("TPM2_MakeCredential response")
+abstract class Tpm2CredentialSchema {
+    @TpmField(order = 0, type = TpmType.U16_SIZED_BYTES)
+    byte[] credentialBlob;
+    @TpmField(order = 1, type = TpmType.U16_SIZED_BYTES)
+    byte[] secret;
+}
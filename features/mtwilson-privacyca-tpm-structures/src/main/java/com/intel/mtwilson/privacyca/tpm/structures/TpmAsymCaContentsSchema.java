@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.structures;
+
+import com.intel.mtwilson.privacyca.tpm.codec.TpmField;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmStructure;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmType;
+
+/**
+ * TPM_ASYM_CA_CONTENTS (TPM 1.2 Part 2, 12.7) before encryption: a TPM_SYMMETRIC_KEY followed by
+ * the SHA-1 digest of the identity key.
+ */
+@TpmStructure("TPM_ASYM_CA_CONTENTS")
+abstract class TpmAsymCaContentsSchema {
+    @TpmField(order = 0, type = TpmType.UINT32)
+    int algId;
+    @TpmField(order = 1, type = TpmType.UINT16)
+    short encScheme;
+    @TpmField(order = 2, type = TpmType.U16_SIZED_BYTES)
+    byte[] sessionKey;
+    @TpmField(order = 3, type = TpmType.BYTES, length = 20)
+    byte[] idDigest;
+}
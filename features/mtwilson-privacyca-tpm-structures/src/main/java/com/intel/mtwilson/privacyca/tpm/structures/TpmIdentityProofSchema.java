@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.structures;
+
+import com.intel.mtwilson.privacyca.tpm.codec.TpmField;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmStructure;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmType;
+
+/**
+ * TPM_IDENTITY_PROOF (TPM 1.2 Part 2, 12.5), as parsed by gov.niarl.his.privacyca.old.TpmIdentityProof.
+ * The identityKey TPM_PUBKEY is described by its two parts, identityKeyParms and identityKey.
+ */
+@TpmStructure("TPM_IDENTITY_PROOF")
+abstract class TpmIdentityProofSchema {
+    @TpmField(order = 0, type = TpmType.BYTES, length = 4)
+    byte[] structVer;
+    @TpmField(order = 1, type = TpmType.UINT32)
+    int labelSize;
+    @TpmField(order = 2, type = TpmType.UINT32)
+    int identityBindingSize;
+    @TpmField(order = 3, type = TpmType.UINT32)
+    int endorsementSize;
+    @TpmField(order = 4, type = TpmType.UINT32)
+    int platformSize;
+    @TpmField(order = 5, type = TpmType.UINT32)
+    int conformanceSize;
+    @TpmField(order = 6, type = TpmType.KEY_PARMS)
+    byte[] identityKeyParms;
+    @TpmField(order = 7, type = TpmType.U32_SIZED_BYTES)
+    byte[] identityKey;
+    @TpmField(order = 8, type = TpmType.SIZED_BYTES, size = "labelSize")
+    byte[] labelArea;
+    @TpmField(order = 9, type = TpmType.SIZED_BYTES, size = "identityBindingSize")
+    byte[] identityBinding;
+    @TpmField(order = 10, type = TpmType.SIZED_BYTES, size = "endorsementSize")
+    byte[] endorsementCredential;
+    @TpmField(order = 11, type = TpmType.SIZED_BYTES, size = "platformSize")
+    byte[] platformCredential;
+    @TpmField(order = 12, type = TpmType.SIZED_BYTES, size = "conformanceSize")
+    byte[] conformanceCredential;
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.structures;
+
+import com.intel.mtwilson.privacyca.tpm.codec.TpmField;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmStructure;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmType;
+
+/**
+ * TPM_IDENTITY_REQ (TPM 1.2 Part 2, 12.4), as parsed by gov.niarl.his.privacyca.old.TpmIdentityRequest.
+ * A TrouSerS-style IV at the head of symBlob is not split out here.
+ */
+@TpmStructure("TPM_IDENTITY_REQ")
+abstract class TpmIdentityRequestSchema {
+    @TpmField(order = 0, type = TpmType.UINT32)
+    int asymSize;
+    @TpmField(order = 1, type = TpmType.UINT32)
+    int symSize;
+    @TpmField(order = 2, type = TpmType.KEY_PARMS)
+    byte[] asymAlgorithm;
+    @TpmField(order = 3, type = TpmType.KEY_PARMS)
+    byte[] symAlgorithm;
+    @TpmField(order = 4, type = TpmType.SIZED_BYTES, size = "asymSize")
+    byte[] asymBlob;
+    @TpmField(order = 5, type = TpmType.SIZED_BYTES, size = "symSize")
+    byte[] symBlob;
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.structures;
+
+import com.intel.mtwilson.privacyca.tpm.codec.TpmField;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmStructure;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmType;
+
+/**
+ * TPM_KEY (TPM 1.2 Part 2, 10.2), as parsed by gov.niarl.his.privacyca.old.TpmKey.
+ */
+@TpmStructure("TPM_KEY")
+abstract class TpmKeySchema {
+    @TpmField(order = 0, type = TpmType.BYTES, length = 4)
+    byte[] structVer;
+    @TpmField(order = 1, type = TpmType.UINT16)
+    short keyUsage;
+    @TpmField(order = 2, type = TpmType.UINT32)
+    int keyFlags;
+    @TpmField(order = 3, type = TpmType.BYTE)
+    byte authDataUsage;
+    @TpmField(order = 4, type = TpmType.KEY_PARMS)
+    byte[] algorithmParms;
+    @TpmField(order = 5, type = TpmType.U32_SIZED_BYTES)
+    byte[] pcrInfo;
+    @TpmField(order = 6, type = TpmType.U32_SIZED_BYTES)
+    byte[] pubKey;
+    @TpmField(order = 7, type = TpmType.U32_SIZED_BYTES)
+    byte[] encData;
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.structures;
+
+import com.intel.mtwilson.privacyca.tpm.codec.TpmField;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmStructure;
+import com.intel.mtwilson.privacyca.tpm.codec.TpmType;
+
+/**
+ * TPM_SYM_CA_ATTESTATION (TPM 1.2 Part 2, 12.6), as written by gov.niarl.his.privacyca.old.TpmSymCaAttestation.
+ */
+@TpmStructure("TPM_SYM_CA_ATTESTATION")
+abstract class TpmSymCaAttestationSchema {
+    @TpmField(order = 0, type = TpmType.UINT32)
+    int credSize;
+    @TpmField(order = 1, type = TpmType.KEY_PARMS)
+    byte[] algorithm;
+    @TpmField(order = 2, type = TpmType.SIZED_BYTES, size = "credSize")
+    byte[] credential;
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2019 Intel Corporation
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.intel.mtwilson.privacyca.tpm.structures;
+
+import com.intel.mtwilson.privacyca.tpm.codec.TpmCodecException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TpmCodecTest {
+    private static final byte[] STRUCT_VER = new byte[] {1, 1, 0, 0};
+    // TPM_ALG_RSA, TPM_ES_RSAESOAEP_SHA1_MGF1, TPM_SS_NONE, 12 bytes of TPM_RSA_KEY_PARMS
+    private static final byte[] RSA_KEY_PARMS = new byte[] {0, 0, 0, 1, 0, 3, 0, 1, 0, 0, 0, 12, 0, 0, 8, 0, 0, 0, 0, 2, 0, 0, 0, 0};
+
+    @Test
+    public void testTpmKeyRoundTrip() throws Exception {
+        byte[] modulus = new byte[256];
+        Arrays.fill(modulus, (byte) 0x5a);
+        byte[] encData = new byte[] {9, 8, 7};
+        ByteBuffer target = ByteBuffer.allocate(TpmKeyCodec.encodedSize(RSA_KEY_PARMS, new byte[0], modulus, encData) + 3);
+        target.put(new byte[] {(byte) 0xee});
+        int written = TpmKeyCodec.encode(target, STRUCT_VER, (short) 0x0014, 0, (byte) 1, RSA_KEY_PARMS, new byte[0], modulus, encData);
+        assertEquals(target.capacity() - 3, written);
+
+        TpmKeyCodec key = new TpmKeyCodec().wrap(target.array(), 1, target.capacity() - 1);
+        assertEquals(written, key.length());
+        assertEquals((short) 0x0014, key.getKeyUsage());
+        assertEquals((byte) 1, key.getAuthDataUsage());
+        assertArrayEquals(RSA_KEY_PARMS, key.copyAlgorithmParms());
+        assertEquals(0, key.getPcrInfoLength());
+        assertArrayEquals(modulus, key.copyPubKey());
+        assertArrayEquals(encData, key.copyEncData());
+        assertSame(target.array(), key.buffer());
+    }
+
+    @Test
+    public void testDerivedSizeFields() throws Exception {
+        byte[] label = "HIS_Identity_Key".getBytes("UTF-8");
+        byte[] binding = new byte[256];
+        byte[] ek = new byte[700];
+        byte[] identityKey = new byte[256];
+        ByteBuffer target = ByteBuffer.allocate(TpmIdentityProofCodec.encodedSize(RSA_KEY_PARMS, identityKey, label, binding, ek, new byte[0], new byte[0]));
+        TpmIdentityProofCodec.encode(target, STRUCT_VER, RSA_KEY_PARMS, identityKey, label, binding, ek, new byte[0], new byte[0]);
+        assertFalse(target.hasRemaining());
+
+        TpmIdentityProofCodec proof = new TpmIdentityProofCodec().wrap(target.array());
+        assertEquals(label.length, proof.getLabelSize());
+        assertEquals(ek.length, proof.getEndorsementSize());
+        assertEquals(0, proof.getPlatformSize());
+        assertArrayEquals(label, proof.copyLabelArea());
+        assertEquals(ek.length, proof.getEndorsementCredentialLength());
+    }
+
+    @Test(expected = TpmCodecException.class)
+    public void testTruncated() throws Exception {
+        ByteBuffer target = ByteBuffer.allocate(Tpm2CredentialCodec.encodedSize(new byte[134], new byte[258]));
+        Tpm2CredentialCodec.encode(target, new byte[134], new byte[258]);
+        new Tpm2CredentialCodec().wrap(target.array(), 0, target.capacity() - 1);
+    }
+}